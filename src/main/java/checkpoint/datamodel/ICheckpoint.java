@@ -32,6 +32,12 @@ public interface ICheckpoint {
 	// is required but commented out:
 	/* static ICheckpoint load(Path checkpointDir) throws IOException; */
 
+	/** Sets the {@link INode#getHash()} of all directories from the hashes
+	 *  of the nodes inside of them. Must be called after all nodes have been
+	 *  added and hashed, and again if any were changed afterwards.
+	 *  @see checkpoint.datamodel.implementation.DirectoryHasher */
+	void computeDirectoryHashes();
+
 	/** Set to true if all {@link Node}s which are available on the filesystem
 	 *  have been computed and stored in the checkpoint.
 	 *  Persisted by {@link #save(Path)} and loaded by load().
@@ -48,9 +54,9 @@ public interface ICheckpoint {
 	int getNodeCount();
 
 	/** Returns the sum of {@link INode#getSize()} of all contained nodes.
-	 *  Please notice that this will be 0 after loading a checkpoint from disk
-	 *  because we don't include it in the file format yet. A TODO for that
-	 *  exists at {@link INode#getSize()}. */
+	 *  Please notice that this will be too low after loading a checkpoint
+	 *  which was written by a former version which did not include the size
+	 *  in the file format, see {@link INode#getSize()}. */
 	long getNodeSize();
 
 	int getHashingFailureCount();
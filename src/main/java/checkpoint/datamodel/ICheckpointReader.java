@@ -0,0 +1,38 @@
+package checkpoint.datamodel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import checkpoint.datamodel.implementation.Checkpoint.PathComparator;
+
+/** Reads the {@link INode}s of a checkpoint on disk one after another without
+ *  keeping them in memory, as opposed to loading a whole {@link ICheckpoint}.
+ *  This allows processing checkpoints of any size in constant memory.
+ *  
+ *  Not thread-safe. */
+public interface ICheckpointReader extends Closeable {
+
+	// Java does not support static abstract interface methods, so the following
+	// is required but commented out:
+	/* static ICheckpointReader open(Path checkpointDir) throws IOException; */
+
+	/** Returns the next {@link INode} or null if the end of the checkpoint
+	 *  has been reached.
+	 *  The nodes are returned in strictly ascending order as defined by
+	 *  {@link PathComparator}.
+	 *  
+	 *  @throws IOException If reading fails or the checkpoint is not valid,
+	 *      which includes it not being sorted. As validation happens while
+	 *      reading this may be thrown after some nodes have been returned
+	 *      already. */
+	INode next() throws IOException;
+
+	/** Must only be called after {@link #next()} has returned null.
+	 *  @see ICheckpoint#isComplete() */
+	boolean isComplete();
+
+	/** The directory which was passed to open(). */
+	Path getCheckpointDir();
+
+}
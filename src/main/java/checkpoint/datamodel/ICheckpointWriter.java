@@ -0,0 +1,52 @@
+package checkpoint.datamodel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.EnumSet;
+
+import checkpoint.datamodel.ITimestamps.TimestampTypes;
+import checkpoint.datamodel.implementation.Checkpoint.PathComparator;
+
+/** Writes a checkpoint to disk one {@link INode} after another without
+ *  keeping them in memory, as opposed to saving a whole {@link ICheckpoint}.
+ *  Together with {@link ICheckpointReader} this allows processing checkpoints
+ *  of any size in constant memory.
+ *  
+ *  The output file only replaces an existing checkpoint once
+ *  {@link #finish(boolean)} has been called. So it is safe to read a checkpoint
+ *  with an {@link ICheckpointReader} while writing to the same directory.
+ *  
+ *  Not thread-safe. */
+public interface ICheckpointWriter extends Closeable {
+
+	// Java does not support static abstract interface methods, so the following
+	// is required but commented out.
+	// Will exclude the given TimestampTypes when writing, like
+	// ICheckpoint.save(Path, EnumSet) does.
+	/*
+	static ICheckpointWriter open(Path checkpointDir,
+		EnumSet<TimestampTypes> timestampsFilter) throws IOException;
+	*/
+
+	/** @throws IllegalArgumentException If the node is not greater than the
+	 *     previous one as defined by {@link PathComparator}, i.e. nodes must
+	 *     be added sorted and without duplicates. */
+	void addNode(INode n) throws IOException, IllegalArgumentException;
+
+	/** Writes the EOF marker and moves the output into place.
+	 *  No further nodes can be added afterwards.
+	 *  
+	 *  @param isComplete See {@link ICheckpoint#setCompleteFlag(boolean)}. */
+	void finish(boolean isComplete) throws IOException;
+
+	/** Releases all resources. If {@link #finish(boolean)} was not called the
+	 *  partially written output is deleted and an existing checkpoint at the
+	 *  output directory stays as is.
+	 *  Thus you should always call this in a finally block. */
+	@Override void close() throws IOException;
+
+	/** @see ICheckpoint#save(Path, EnumSet) */
+	EnumSet<TimestampTypes> getTimestampsFilter();
+
+}
@@ -45,19 +45,25 @@ public interface INode {
 	 *  {@link ConcurrentCheckpointGenerator} is trivial.
 	 * 
 	 *  Returns 0 if the size is not available, which is the case if the
-	 *  checkpoint has been loaded from disk as our file format currently does
-	 *  not include it.
-	 *  TODO: Allow including this in the checkpoint file. Adapt the JavaDoc of
-	 *  {@link ICheckpoint#getNodeSize()} then as well as all functions which
-	 *  use it. */
+	 *  checkpoint has been loaded from a file which was written by a former
+	 *  version which did not include the size in the file format.
+	 *  Thus a size of 0 is not a reliable indication of an empty file, e.g.
+	 *  for detecting changed files by comparing the size of a node to the
+	 *  size of the file on disk a 0 must be treated as "unknown".
+	 *  TODO: Return -1 for unavailable sizes to tell them apart. Needs review
+	 *  of all functions which sum up sizes. */
 	long getSize();
 
-	/** Returns null for directories.
-	 *  TODO: Actually do return a hash by hashing the hashes of all files and
-	 *  directories inside of it.
+	/** For non-directories may return null if computing the ISHA256 failed
+	 *  due to e.g. IOException, or if the ISHA256 has not been computed yet.
 	 *  
-	 *  For non-directories may return null if computing the ISHA256 failed
-	 *  due to e.g. IOException, or if the ISHA256 has not been computed yet. */
+	 *  For directories returns the hash of the names and hashes of all files
+	 *  and directories inside of it as specified at
+	 *  {@link checkpoint.datamodel.implementation.DirectoryHasher}, i.e. two
+	 *  directories with the same hash have identical contents.
+	 *  Returns null if it has not been computed, which is the case for
+	 *  checkpoints of former versions, or if the hash of a node inside of it
+	 *  is not available. */
 	ISHA256 getHash();
 
 	void setHash(ISHA256 sha256);
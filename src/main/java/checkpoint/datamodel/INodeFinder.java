@@ -17,7 +17,9 @@ public interface INodeFinder {
 	 *  here to not spread a dangerous shell command which wouldn't work with
 	 *  files whose name contains a linebreak.
 	 *  
-	 *  FIXME: Support Thread.interrupt(). */
-	Collection<INode> findNodes(Path inputDir) throws IOException;
+	 *  @throws InterruptedException If the thread is interrupted while
+	 *      walking. The walk is stopped then. */
+	Collection<INode> findNodes(Path inputDir)
+			throws IOException, InterruptedException;
 
 }
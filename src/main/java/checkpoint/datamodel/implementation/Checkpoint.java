@@ -1,47 +1,34 @@
 package checkpoint.datamodel.implementation;
 
-import static checkpoint.datamodel.ITimestamps.TimestampTypes.AccessTime;
-import static checkpoint.datamodel.ITimestamps.TimestampTypes.BirthTime;
-import static checkpoint.datamodel.ITimestamps.TimestampTypes.ModificationTime;
-import static checkpoint.datamodel.ITimestamps.TimestampTypes.StatusChangeTime;
-import static checkpoint.datamodel.implementation.Node.constructNode;
-import static checkpoint.datamodel.implementation.SHA256.sha256fromString;
-import static checkpoint.datamodel.implementation.Timestamps.timestampsFromDates;
 import static java.lang.Math.min;
 import static java.nio.charset.StandardCharsets.UTF_8;
-import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
-import static java.nio.file.StandardOpenOption.CREATE;
-import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
-import static java.nio.file.StandardOpenOption.WRITE;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.nio.file.FileAlreadyExistsException;
-import java.nio.file.Files;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.attribute.PosixFilePermissions;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.Date;
 import java.util.EnumSet;
-import java.util.HashMap;
-import java.util.Scanner;
-import java.util.StringTokenizer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.regex.Pattern;
-
-import org.apache.commons.codec.DecoderException;
 
 import checkpoint.datamodel.ICheckpoint;
 import checkpoint.datamodel.INode;
-import checkpoint.datamodel.ISHA256;
-import checkpoint.datamodel.ITimestamps;
 import checkpoint.datamodel.ITimestamps.TimestampTypes;
 import checkpoint.generation.ConcurrentCheckpointGenerator;
+import checkpoint.serialization.CheckpointParser;
+import checkpoint.serialization.CheckpointReader;
+import checkpoint.serialization.CheckpointWriter;
+import checkpoint.serialization.CheckpointWriter.Index;
+import checkpoint.serialization.ConcurrentCheckpointParser;
 
 public final class Checkpoint implements ICheckpoint {
 
@@ -67,8 +54,7 @@ public final class Checkpoint implements ICheckpoint {
 	 *  A workaround may be to use a different data structure to keep track of
 	 *  the count, which we will need anyway due to {@link #getNodeSize()}
 	 *  already being tracked separately. */
-	private final TreeMap<Path, INode> nodes
-		= new TreeMap<>(new PathComparator());
+	private final TreeMap<Path, INode> nodes;
 
 	/** Our Python/Bash reference implementations use the shell command
 	 *  "LC_ALL=C sort --zero-terminated" for sorting paths.
@@ -125,6 +111,23 @@ public final class Checkpoint implements ICheckpoint {
 			
 			return a.length - b.length;
 		}
+		
+		/** Returns true if the given path is sorted after all paths inside
+		 *  of the given directory, given that it is not sorted before the
+		 *  directory itself.
+		 *  Notice that the paths inside of a directory do not necessarily
+		 *  follow it directly: E.g. "./a.b" is sorted between "./a" and
+		 *  "./a/b" because '.' is smaller than '/'. */
+		public static boolean isAfterSubtree(String path, String directory) {
+			// All paths which are sorted between the directory and the ones
+			// inside of it consist of the directory plus a character smaller
+			// than '/'. As '/' is ASCII comparing the chars of the String is
+			// the same as comparing the UTF-8 bytes.
+			if(!path.startsWith(directory))
+				return true;
+			return path.length() > directory.length()
+				&& path.charAt(directory.length()) > '/';
+		}
 	}
 
 	/** @see ICheckpoint#isComplete() */
@@ -133,33 +136,22 @@ public final class Checkpoint implements ICheckpoint {
 	/** @see ICheckpoint#getNodeSize() */
 	private long nodeSize = 0;
 
-	/** Used by {@link #dateFormat} and {@link #load(Path)}. */
-	private static final String DATE_FORMAT_STRING = "yyyy-MM-dd HH:mm:ss Z";
-	
-	/** Used by {@link #save(Path)}.
-	 * 
-	 *  WARNING: SimpleDateFormat is NOT thread-safe! Synchronize upon this
-	 *  Checkpoint when using this!
-	 *  
-	 *  Not used by {@link #load(Path)} since that function is static and we
-	 *  shouldn't require globally synchronizing all instances of Checkpoint
-	 *  to access this concurrently. */
-	private final SimpleDateFormat dateFormat
-		= new SimpleDateFormat(DATE_FORMAT_STRING);
-
-	private static final String SHA256SUM_OF_DIRECTORY = "(directory)";
-	private static final String SHA256SUM_FAILED = "(sha256sum failed!)";
-	private static final String STAT_FAILED = "(stat failed!)";
+	public Checkpoint() {
+		nodes = new TreeMap<>(new PathComparator());
+	}
 
-	/** These, plus an additional \0, mark the end of a Checkpoint file.
-	 *  The additional \0 is so they can be parsed as if they were a path of
-	 *  a regular {@link Node} in the checkpoint which keeps the code of
-	 *  {@link Checkpoint#save(Path)} simple. */
-	private static final class EOFPaths {
-		static final String CheckpointComplete
-			= "This checkpoint is complete.\n";
-		static final String CheckpointIncomplete
-			= "This checkpoint is INCOMPLETE but can be resumed.\n";
+	/** Bulk version of {@link #addNode(INode)} for the constructor.
+	 *  The given nodes must be in strictly ascending order as defined by
+	 *  {@link PathComparator}, i.e. sorted and without duplicates.
+	 *  
+	 *  As opposed to calling addNode() for each node this does not need to
+	 *  walk the tree of {@link #nodes} for each one:
+	 *  {@link TreeMap#TreeMap(SortedMap)} builds the tree in linear time
+	 *  without any comparisons. */
+	private Checkpoint(List<INode> sorted) {
+		nodes = new TreeMap<>(new SortedNodeList(sorted));
+		for(INode n : sorted)
+			nodeSize += n.getSize();
 	}
 
 	@Override public synchronized void addNode(INode n)
@@ -201,206 +193,81 @@ public final class Checkpoint implements ICheckpoint {
 		save(checkpointDir, EnumSet.noneOf(TimestampTypes.class));
 	}
 
-	@Override public synchronized void save(Path checkpointDir,
+	@Override public void save(Path checkpointDir,
 			EnumSet<TimestampTypes> timestampsFilter) throws IOException {
 		
-		// FIXME: The creation of the dir and setting of its permissions likely
-		// is not safe against race conditions caused by malicious processes
-		// which have e.g. group or others write permissions to the dir.
-		// Either fix that or document it.
-		
-		// Don't pass the permissions to it but manually set them later to
-		// ensure they also get set when rewriting an existing checkpoint.
-		Files.createDirectories(checkpointDir);
-		
-		// createDirectories() does not guarantee to throw if it exists as
-		// a non-dir already so do that first to ensure we don't change
-		// permissions of it if it is a file.
-		if(!Files.isDirectory(checkpointDir, NOFOLLOW_LINKS)) {
-			throw new FileAlreadyExistsException(
-				"Is not a directory, should be a non-symlink dir or not exist: "
-				+ checkpointDir.toString());
-		}
-		
-		Files.setPosixFilePermissions(checkpointDir,
-			PosixFilePermissions.fromString("rwx------"));
+		save(checkpointDir, timestampsFilter, false,
+			EnumSet.noneOf(Index.class));
+	}
+
+	/** If compress is true the checkpoint is gzipped on multiple threads, see
+	 *  {@link CheckpointWriter#open(Path, EnumSet, boolean)}.
+	 *  {@link #load(Path)} reads both.
+	 *  The given {@link Index}es are written as well, which requires compress
+	 *  to be false. */
+	public synchronized void save(Path checkpointDir,
+			EnumSet<TimestampTypes> timestampsFilter, boolean compress,
+			EnumSet<Index> indexes) throws IOException {
 		
-		// TODO: Use Files.createTempFile() and move it into place once we're
-		// finished. This may ensure that intermediate saving will never result
-		// in a corrupted file if the system crashes: Either the old file will
-		// still be there, or the new one, or none.
-		Path outputFilePath = checkpointDir.resolve("checkpoint.txt");
-		if(Files.exists(outputFilePath, NOFOLLOW_LINKS) &&
-				!Files.isRegularFile(outputFilePath, NOFOLLOW_LINKS)) {
-			
-			throw new FileAlreadyExistsException(
-				"Is not a file, should be a non-symlink file or not exist: "
-				+ outputFilePath.toString());
-		}
-		// FIXME: Performance: Use a custom buffer size, default is 8192 which
-		// is a bit small.
-		BufferedWriter w = Files.newBufferedWriter(outputFilePath, UTF_8,
-				CREATE, TRUNCATE_EXISTING, WRITE);
+		CheckpointWriter w = CheckpointWriter.open(checkpointDir,
+			timestampsFilter, compress, indexes);
 		try {
-			for(INode n : nodes.values()) {
-				w.write(n.getPath().toString());
-				
-				w.write("\0\t");
-				if(n.isDirectory())
-					w.write(SHA256SUM_OF_DIRECTORY);
-				else {
-					ISHA256 hash = n.getHash();
-					w.write(hash != null ? hash.toString() : SHA256SUM_FAILED);
-				}
-				
-				ITimestamps t = n.getTimetamps();
-				
-				if(t != null) {
-					if(!timestampsFilter.contains(BirthTime)) {
-						w.write("\tBirth: ");
-						Date btime = t.getBirthTime();
-						w.write(btime != null ? dateFormat.format(btime) : "-");
-					}
-					
-					if(!timestampsFilter.contains(AccessTime)) {
-						w.write("\tAccess: ");
-						Date atime = t.getAccessTime();
-						w.write(atime != null ? dateFormat.format(atime) : "-");
-					}
-					
-					if(!timestampsFilter.contains(ModificationTime)) {
-						w.write("\tModify: ");
-						Date mtime = t.getModificationTime();
-						w.write(mtime != null ? dateFormat.format(mtime) : "-");
-					}
-					
-					if(!timestampsFilter.contains(StatusChangeTime)) {
-						w.write("\tChange: ");
-						Date ctime = t.getStatusChangeTime();
-						w.write(ctime != null ? dateFormat.format(ctime) : "-");
-					}
-				} else {
-					w.write("\t");
-					w.write(STAT_FAILED);
-				}
-				
-				w.write('\n');
-			}
-			
-			w.write(complete ? EOFPaths.CheckpointComplete
-			                 : EOFPaths.CheckpointIncomplete);
-			w.write('\0');
+			// Format on all CPUs as that is the bottleneck, not the disk.
+			w.addNodes(nodes.values());
+			w.finish(complete);
 		} finally {
 			w.close();
 		}
 	}
 
+	/** Loading a checkpoint of 1M nodes / 216 MB on a single core took
+	 *  3.0 - 3.7 s, about 5 times faster than the former implementation
+	 *  which used a Scanner and regular expressions: 15 - 18 s. The aim was
+	 *  10 times, but parsing alone takes only 1.5 - 1.9 s of that, the rest
+	 *  is allocating and retaining the nodes. Parsing is done on multiple
+	 *  threads, so with multiple CPUs it is faster. */
 	public static Checkpoint load(Path checkpointDir)
 			throws IOException {
 		
-		// Albeit save() separates all fields by \t we cannot use that for
-		// splitting the whole line into tokens since Linux filenames may
-		// contain \t and even \n.
-		// So we first determine the file path by looking for \0, then the end
-		// of the line by \n, and split the parts in between by \t.
-		// TODO: Performance: Use something else than class Scanner for this
-		// because regular expressions are overkill here, we merely need
-		// splitting upon custom fixed strings or even characters.
-		// E.g. some implementation of Reader which supports a readLine() which
-		// allows specifying a fixed string as a custom end of line marker.
-		Pattern pathDelimiter = Pattern.compile("\0");
-		Pattern lineDelimiter = Pattern.compile("\n");
-		
-		Checkpoint result = new Checkpoint();
-		SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT_STRING);
-		Path inputFilePath = checkpointDir.resolve("checkpoint.txt");
-		// FIXME: Performance: Use a custom buffer size, default is 8192 which
-		// is a bit small.
-		BufferedReader r = Files.newBufferedReader(inputFilePath, UTF_8);
-		Scanner s = null;
+		Checkpoint result = null;
+		boolean complete;
+		Path inputFilePath = CheckpointReader.getCheckpointFile(checkpointDir);
+		ReadableByteChannel channel
+			= CheckpointReader.openChannel(inputFilePath);
 		try {
-			s = new Scanner(r);
-			while(true) {
-				s.useDelimiter(pathDelimiter);
-				String pathStr = s.next();
-				s.skip(pathDelimiter);
-				
-				s.useDelimiter(lineDelimiter);
-				if(!s.hasNext()) {
-					if(pathStr.equals(EOFPaths.CheckpointComplete)) {
-						result.complete = true;
-						break;
-					} else if(pathStr.equals(EOFPaths.CheckpointIncomplete)) {
-						result.complete = false;
-						break;
-					} else
-						throw new IOException(
-							"Checkpoint is truncated, EOF marker is missing!");
-				}
-				Path path = Paths.get(pathStr);
-				
-				// TODO: Use longer variable names
-				String l = s.next();
-				s.skip(lineDelimiter);
-				
-				StringTokenizer t = new StringTokenizer(l, "\t");
-				String hashString = t.nextToken();
-				boolean isDirectory = hashString.equals(SHA256SUM_OF_DIRECTORY);
-				ISHA256 hash =
-					(!isDirectory && !hashString.equals(SHA256SUM_FAILED))
-					? sha256fromString(hashString)
-					: null;
-				
-				// TODO: Performance: Use ArrayMap from e.g. Apache Java Commons
-				HashMap<String, Date> dates = new HashMap<>();
-				boolean noTimestampsAvailable = false;
-				while(t.hasMoreTokens()) {
-					String timestampToken = t.nextToken();
-					noTimestampsAvailable = timestampToken.equals(STAT_FAILED);
-					if(noTimestampsAvailable) {
-						// The file timestamps are read all at once for a single
-						// file upon Checkpoint creation, so reading them either
-						// succeeded for all or for none of them - see
-						// ITimestamps.readTimestamps().
-						// So if it failed as indicated by STAT_FAILED then no
-						// dates will be available at all for parsing so we must
-						// break.
-						break;
-					}
-					
-					int splitAt = timestampToken.indexOf(':');
-					String dateName = timestampToken.substring(0, splitAt);
-					String date     = timestampToken.substring(splitAt + 2);
-					
-					if(date.equals("-"))
-						continue;
-					
-					dates.put(dateName, dateFormat.parse(date));
-				}
-				
-				Timestamps timestamps = !noTimestampsAvailable
-					? timestampsFromDates(
-							dates.get("Access"),
-							dates.get("Change"),
-							dates.get("Modify"))
-					: null;
-				
-				// Not currently included in the file format. Once you implement
-				// that please process the related TODO and documentation at the
-				// INode interface and at ICheckpoint.getNodeSize().
-				long size = 0;
-				
-				result.addNode(
-					constructNode(path, isDirectory, size, hash, timestamps));
+			List<INode> loaded;
+			boolean sorted;
+			if(channel instanceof FileChannel) {
+				ConcurrentCheckpointParser parser
+					= new ConcurrentCheckpointParser((FileChannel)channel);
+				loaded = parser.parse();
+				complete = parser.isComplete();
+				sorted = parser.isSorted();
+			} else {
+				// Compressed files cannot be split into chunks for parsing
+				// them concurrently as we cannot seek in them.
+				CheckpointParser parser = new CheckpointParser(channel);
+				loaded = new ArrayList<>();
+				for(INode n; (n = parser.next()) != null; )
+					loaded.add(n);
+				complete = parser.isComplete();
+				sorted = parser.isSorted();
 			}
 			
-			if(s.ioException() != null)
-				throw s.ioException();
+			if(sorted)
+				result = new Checkpoint(loaded);
+			else {
+				// Files written by save() are always sorted so this is merely
+				// for tolerating ones which were e.g. edited manually.
+				result = new Checkpoint();
+				for(INode node : loaded)
+					result.addNode(node);
+			}
+			// Not before adding the nodes as addNode() would refuse them.
+			result.complete = complete;
 			
 			return result;
-		} catch(DecoderException | ParseException | RuntimeException
-				| OutOfMemoryError e) {
-			
+		} catch(RuntimeException | OutOfMemoryError e) {
 			// Free up some memory before we try to construct the IOException to
 			// ensure we don't get OOM again due to the constructing.
 			result = null;
@@ -408,12 +275,124 @@ public final class Checkpoint implements ICheckpoint {
 			
 			throw new IOException(e);
 		} finally {
-			if(s != null)
-				s.close();
-			r.close();
+			channel.close();
 		}
 	}
 
+	/** Read-only {@link SortedMap} view upon a sorted list of {@link INode}s
+	 *  for {@link TreeMap#TreeMap(SortedMap)}, see
+	 *  {@link #Checkpoint(List)}. The list must support fast random access
+	 *  as the sub-maps are found by binary search. */
+	static final class SortedNodeList extends AbstractMap<Path, INode>
+			implements SortedMap<Path, INode> {
+		
+		private final PathComparator comparator = new PathComparator();
+		
+		private final List<INode> sorted;
+		
+		SortedNodeList(List<INode> sorted) {
+			this.sorted = sorted;
+		}
+		
+		@Override public Comparator<? super Path> comparator() {
+			return comparator;
+		}
+		
+		@Override public int size() {
+			return sorted.size();
+		}
+		
+		@Override public Set<Entry<Path, INode>> entrySet() {
+			return new AbstractSet<Entry<Path, INode>>() {
+				@Override public Iterator<Entry<Path, INode>> iterator() {
+					final Iterator<INode> i = sorted.iterator();
+					return new Iterator<Entry<Path, INode>>() {
+						@Override public boolean hasNext() {
+							return i.hasNext();
+						}
+						
+						@Override public Entry<Path, INode> next() {
+							INode n = i.next();
+							return new SimpleImmutableEntry<>(n.getPath(), n);
+						}
+						
+						@Override public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+				
+				@Override public int size() {
+					return sorted.size();
+				}
+			};
+		}
+		
+		/** Returns the index of the first node whose path is not less than
+		 *  the given one, or the size if there is none. */
+		private int indexOf(Path path) {
+			int low = 0;
+			int high = sorted.size();
+			while(low < high) {
+				int middle = (low + high) >>> 1;
+				if(comparator.compare(sorted.get(middle).getPath(), path) < 0)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low;
+		}
+		
+		@Override public INode get(Object key) {
+			if(!(key instanceof Path))
+				return null;
+			
+			int i = indexOf((Path)key);
+			if(i < sorted.size()
+					&& comparator.compare(sorted.get(i).getPath(), (Path)key)
+						== 0) {
+				return sorted.get(i);
+			}
+			return null;
+		}
+		
+		@Override public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+		
+		@Override public SortedMap<Path, INode> subMap(Path from, Path to) {
+			if(comparator.compare(from, to) > 0)
+				throw new IllegalArgumentException("from > to");
+			return new SortedNodeList(
+				sorted.subList(indexOf(from), indexOf(to)));
+		}
+		
+		@Override public SortedMap<Path, INode> headMap(Path to) {
+			return new SortedNodeList(sorted.subList(0, indexOf(to)));
+		}
+		
+		@Override public SortedMap<Path, INode> tailMap(Path from) {
+			return new SortedNodeList(
+				sorted.subList(indexOf(from), sorted.size()));
+		}
+		
+		@Override public Path firstKey() {
+			if(sorted.isEmpty())
+				throw new NoSuchElementException();
+			return sorted.get(0).getPath();
+		}
+		
+		@Override public Path lastKey() {
+			if(sorted.isEmpty())
+				throw new NoSuchElementException();
+			return sorted.get(sorted.size() - 1).getPath();
+		}
+	}
+
+	@Override public synchronized void computeDirectoryHashes() {
+		DirectoryHasher.computeHashes(nodes.values());
+	}
+
 	@Override public synchronized void setCompleteFlag(boolean complete) {
 		this.complete = complete;
 	}
@@ -0,0 +1,134 @@
+package checkpoint.datamodel.implementation;
+
+import static checkpoint.datamodel.implementation.Checkpoint.PathComparator.isAfterSubtree;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.ISHA256;
+import checkpoint.datamodel.implementation.Checkpoint.PathComparator;
+
+/** Computes the {@link INode#getHash()} of directories from the hashes of the
+ *  nodes inside of them, bottom-up like a Merkle tree. This allows comparing
+ *  whole subtrees of two checkpoints by comparing a single hash.
+ *  
+ *  The hash of a directory is the SHA256 of the concatenation of an entry for
+ *  each file and directory directly inside of it, in the order of
+ *  {@link PathComparator}. An entry consists of:
+ *  - the UTF-8 bytes of the name of the node, i.e. the last element of its
+ *    path.
+ *  - a \0 byte.
+ *  - the byte 'd' for a directory, 'f' for a file.
+ *  - the 32 raw bytes of the hash of the node.
+ *  Thus the hash of an empty directory is the SHA256 of no data. Sizes and
+ *  timestamps are not included, the size of a file is part of its content
+ *  anyway.
+ *  If the hash of any node inside of a directory is not available, or a
+ *  directory between them is missing in the checkpoint, the hash of the
+ *  directory is not available either, i.e. null.
+ *  
+ *  As the names and the order are the ones of the checkpoint file other
+ *  implementations can reproduce the hashes from it. E.g. with Bash for a
+ *  directory which contains a file "a" of hash HASH_A and a directory "b" of
+ *  hash HASH_B:
+ *      { printf 'a\0f'; xxd -r -p <<< HASH_A;
+ *        printf 'b\0d'; xxd -r -p <<< HASH_B; } | sha256sum */
+public final class DirectoryHasher {
+
+	private DirectoryHasher() {}
+
+	/** Sets the hash of all directories in the given nodes, which must be
+	 *  sorted by {@link PathComparator}, and replaces existing ones.
+	 *  Runs in a single pass and only keeps the nodes directly inside of the
+	 *  directories which are not finished yet in memory. */
+	public static void computeHashes(Iterable<INode> sortedNodes) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		
+		// The directories whose nodes may follow, the last one first.
+		ArrayDeque<OpenDirectory> stack = new ArrayDeque<>();
+		for(INode n : sortedNodes) {
+			String path = n.getPath().toString();
+			// As the nodes are sorted all nodes inside of a directory are
+			// adjacent, so a directory is finished once a node which is sorted
+			// after them follows.
+			while(!stack.isEmpty()
+					&& isAfterSubtree(path, stack.peek().directoryPath))
+				stack.pop().finish(md);
+			
+			// Not necessarily the last one, see isAfterSubtree().
+			OpenDirectory parent = null;
+			for(OpenDirectory d : stack) {
+				if(path.startsWith(d.prefix)) {
+					parent = d;
+					break;
+				}
+			}
+			if(parent != null) {
+				if(path.indexOf('/', parent.prefix.length()) < 0)
+					parent.children.add(n);
+				else
+					parent.complete = false;
+			}
+			
+			if(n.isDirectory())
+				stack.push(new OpenDirectory(n));
+		}
+		while(!stack.isEmpty())
+			stack.pop().finish(md);
+	}
+
+	private static final class OpenDirectory {
+
+		final INode directory;
+		
+		final String directoryPath;
+		
+		/** The {@link #directoryPath} plus "/", e.g. "./" for the root ".". */
+		final String prefix;
+		
+		/** Sorted as they are added in the order of the input. */
+		final ArrayList<INode> children = new ArrayList<>();
+		
+		/** False if a directory between this one and a node inside of it is
+		 *  missing. */
+		boolean complete = true;
+		
+		OpenDirectory(INode directory) {
+			this.directory = directory;
+			this.directoryPath = directory.getPath().toString();
+			this.prefix = directoryPath + "/";
+		}
+		
+		/** Must only be called once the hashes of all {@link #children} are
+		 *  known. */
+		void finish(MessageDigest md) {
+			directory.setHash(complete ? computeHash(md) : null);
+		}
+		
+		private ISHA256 computeHash(MessageDigest md) {
+			md.reset();
+			for(INode n : children) {
+				ISHA256 hash = n.getHash();
+				if(hash == null)
+					return null;
+				
+				String path = n.getPath().toString();
+				md.update(path.substring(prefix.length()).getBytes(UTF_8));
+				md.update((byte)0);
+				md.update((byte)(n.isDirectory() ? 'd' : 'f'));
+				md.update(hash.toBytes());
+			}
+			return SHA256.construct(md.digest());
+		}
+	}
+
+}
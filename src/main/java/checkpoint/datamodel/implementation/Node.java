@@ -25,10 +25,8 @@ public final class Node implements INode {
 		this.sha256      = sha256;
 		this.timestamps  = timestamps;
 		
-		if(isDirectory) {
-			if(sha256 != null || size != 0)
-				throw new IllegalArgumentException();
-		}
+		if(isDirectory && size != 0)
+			throw new IllegalArgumentException();
 		
 		if(size < 0)
 			throw new IllegalArgumentException();
@@ -3,9 +3,11 @@ package checkpoint.datamodel.implementation;
 import static java.lang.System.err;
 import static java.nio.file.FileVisitResult.CONTINUE;
 import static java.nio.file.FileVisitResult.SKIP_SUBTREE;
+import static java.nio.file.FileVisitResult.TERMINATE;
 import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
 
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileStore;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -13,23 +15,159 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 import checkpoint.datamodel.INode;
 import checkpoint.datamodel.INodeFinder;
 
+/** Walks the input directory with {@link Files#walkFileTree(Path,
+ *  java.nio.file.FileVisitor)} if a single thread is used.
+ *  
+ *  With multiple threads each directory is listed by a {@link DirectoryWalk}
+ *  task of a {@link ForkJoinPool}, which forks a task for each of its
+ *  subdirectories. The walk is latency-bound as each directory listing and
+ *  stat() needs to wait for the disk or network, so this scales with the
+ *  number of threads on SSDs and network filesystems even though the work
+ *  per node is small. The tasks call the same {@link #preVisitDirectory(
+ *  Path, BasicFileAttributes)} and {@link #visitFile(Path,
+ *  BasicFileAttributes)} as the single-threaded walk so the resulting nodes
+ *  are the same, except for their order.
+ *  
+ *  Optionally the {@link Timestamps} of the nodes are read by the same
+ *  stat() as the other attributes of the walk, see
+ *  {@link #NodeFinder(int, boolean)}.
+ *  
+ *  Paths can be excluded by {@link PathPatterns}, see
+ *  {@link #NodeFinder(int, boolean, PathPatterns)}.
+ *  
+ *  The walk can be observed while it is running by another thread via
+ *  {@link #getProgress()}, and stopped by interrupting the thread which
+ *  called {@link #findNodes(Path)}. */
 public final class NodeFinder extends SimpleFileVisitor<Path>
 		implements INodeFinder {
 
 	private static final Path currentDir = Paths.get(".");
 
+	private final int threads;
+
+	private final boolean timestamps;
+
+	/** Null if nothing is excluded. */
+	private final PathPatterns excludes;
+
+	/** The attributes of the "unix" view which the walk reads if it reads
+	 *  the {@link #timestamps}, see {@link UnixAttributes}. */
+	private static final String UNIX_ATTRIBUTES = "unix:size,isDirectory,"
+		+ "isRegularFile,isSymbolicLink,isOther,fileKey,creationTime,"
+		+ Timestamps.ATTRIBUTES;
+
 	private Path              inputDir;
+	/** The st_dev of the inputDir, see {@link #getDevice(
+	 *  BasicFileAttributes)}. Null if it cannot be determined, the
+	 *  {@link #inputDirFilesystem} is compared then, which is slow. */
+	private Long              inputDirDevice;
 	private FileStore         inputDirFilesystem;
 	private Collection<INode> result;
 
+	private final Progress progress = new Progress();
+
+	/** Set if the thread which called {@link #findNodes(Path)} was
+	 *  interrupted, to stop the {@link DirectoryWalk}s. */
+	private volatile boolean stopped = false;
+
+	/** Counters of what the walk discovered so far, for printing its progress
+	 *  on another thread. The values are updated individually, so the ones
+	 *  read at the same time may be from slightly different moments of the
+	 *  walk. */
+	public static final class Progress {
+		
+		private final AtomicLong directories = new AtomicLong();
+		
+		private final AtomicLong files = new AtomicLong();
+		
+		private final AtomicLong bytes = new AtomicLong();
+		
+		/** Of the directory which was entered last, 0 for the inputDir. With
+		 *  multiple threads the walk is not depth-first so this jumps around,
+		 *  it still tells how deep the tree is being walked. */
+		private volatile int depth = 0;
+		
+		private Progress() {}
+		
+		public long getDirectories() {
+			return directories.get();
+		}
+		
+		/** Only regular files are counted, as only they are included. */
+		public long getFiles() {
+			return files.get();
+		}
+		
+		/** The total size of the {@link #getFiles()}. */
+		public long getBytes() {
+			return bytes.get();
+		}
+		
+		public int getDepth() {
+			return depth;
+		}
+	}
+
+	public NodeFinder() {
+		this(1);
+	}
+
+	public NodeFinder(int threads) {
+		this(threads, false);
+	}
+
+	/** @param threads The amount of directories to walk concurrently.
+	 *  @param timestamps If true the nodes have their {@link Timestamps} set
+	 *      from the walk so they need not be read by another stat() per node
+	 *      afterwards. The concurrent walk is used then even with a single
+	 *      thread as {@link Files#walkFileTree(Path,
+	 *      java.nio.file.FileVisitor)} does not read them. Requires the
+	 *      "unix" attribute view, like {@link Timestamps#readTimestamps(
+	 *      Path)}. */
+	public NodeFinder(int threads, boolean timestamps) {
+		this(threads, timestamps, null);
+	}
+
+	/** @param excludes The paths to exclude, may be null. They are matched
+	 *      while walking: Directories which match are not read at all, as
+	 *      are ones whose contents match as a whole. Thus the I/O of the
+	 *      walk and of hashing the excluded files is saved, as opposed to
+	 *      removing them from the checkpoint afterwards. */
+	public NodeFinder(int threads, boolean timestamps,
+			PathPatterns excludes) {
+		
+		if(threads < 1)
+			throw new IllegalArgumentException("threads: " + threads);
+		
+		this.threads = threads;
+		this.timestamps = timestamps;
+		this.excludes = excludes;
+	}
+
+	/** The progress of the current or last call to {@link #findNodes(Path)},
+	 *  can be queried by any thread. The NodeFinder must not be used for
+	 *  multiple walks at once anyway so there is only one. */
+	public Progress getProgress() {
+		return progress;
+	}
+
 	@Override public Collection<INode> findNodes(Path inputDir)
-			throws IOException {
+			throws IOException, InterruptedException {
 		
 		if(!Files.isDirectory(inputDir, NOFOLLOW_LINKS))
 			throw new IOException("Input path is not a directory: " + inputDir);
@@ -38,24 +176,238 @@ public final class NodeFinder extends SimpleFileVisitor<Path>
 		// lot. TODO: Performance: Check with debugger if this actually makes
 		// sense.
 		this.inputDir           = inputDir.toAbsolutePath().normalize();
+		this.inputDirDevice     = getInputDirDevice(this.inputDir);
 		this.inputDirFilesystem = Files.getFileStore(inputDir);
-		// TODO: Performance: Try different data structures.
-		this.result             = new LinkedList<INode>();
+		progress.directories.set(0);
+		progress.files.set(0);
+		progress.bytes.set(0);
+		progress.depth = 0;
+		stopped = false;
 		
-		Files.walkFileTree(inputDir, this);
+		try {
+			if(threads == 1 && !timestamps) {
+				// TODO: Performance: Try different data structures.
+				this.result = new LinkedList<INode>();
+				Files.walkFileTree(this.inputDir, this);
+				// The visitor returns TERMINATE if it notices the interrupt.
+				if(stopped)
+					throw new InterruptedException();
+			} else {
+				this.result = new ConcurrentLinkedQueue<INode>();
+				walkConcurrently();
+			}
+			
+			return this.result;
+		} finally {
+			// Null our members, especially result, to prevent huge memory leak
+			// which would occur if a caller kept the NodeFinder object alive
+			// after we've returned.
+			this.inputDir = null;
+			this.inputDirDevice = null;
+			this.inputDirFilesystem = null;
+			this.result = null;
+		}
+	}
+
+	private void walkConcurrently() throws IOException, InterruptedException {
+		BasicFileAttributes attrs = readAttributes(inputDir);
+		if(preVisitDirectory(inputDir, attrs) != CONTINUE)
+			return;
 		
-		Collection<INode> result = this.result;
-		// Null our members, especially result, to prevent huge memory leak
-		// which would occur if a caller kept the NodeFinder object alive after
-		// we've returned.
-		this.inputDir = null;
-		this.inputDirFilesystem = null;
-		this.result = null;
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			// Not pool.invoke() as it waits uninterruptibly.
+			ForkJoinTask<Void> walk = pool.submit(new DirectoryWalk(inputDir));
+			walk.get();
+		} catch(InterruptedException e) {
+			// The pool's threads are not interrupted by shutdownNow(), and
+			// the I/O of the walk would ignore it anyway.
+			stopped = true;
+			throw e;
+		} catch(ExecutionException e) {
+			// ForkJoinTask.get() wraps the exception of the task.
+			Throwable cause = e.getCause();
+			if(cause instanceof WalkFailure)
+				throw ((WalkFailure)cause).getCause();
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if(cause instanceof Error)
+				throw (Error)cause;
+			throw new RuntimeException(cause);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/** Wraps the IOExceptions of the {@link DirectoryWalk}s as
+	 *  {@link RecursiveAction} cannot throw checked exceptions. */
+	@SuppressWarnings("serial")
+	private static final class WalkFailure extends RuntimeException {
+		WalkFailure(IOException cause) {
+			super(cause);
+		}
 		
-		return result;
+		@Override public synchronized IOException getCause() {
+			return (IOException)super.getCause();
+		}
 	}
 
-	private boolean isOnInputDirFilesystem(Path p) throws IOException {
+	/** Visits the entries of a directory which was already visited by
+	 *  {@link #preVisitDirectory(Path, BasicFileAttributes)} and forks a task
+	 *  for each of its subdirectories. Like {@link Files#walkFileTree(Path,
+	 *  java.nio.file.FileVisitor)} symlinks are not followed and any failure
+	 *  to read a directory or attributes aborts the whole walk. */
+	@SuppressWarnings("serial")
+	private final class DirectoryWalk extends RecursiveAction {
+		
+		private final Path dir;
+		
+		DirectoryWalk(Path dir) {
+			this.dir = dir;
+		}
+		
+		@Override protected void compute() {
+			ArrayList<DirectoryWalk> subdirs = new ArrayList<>();
+			try(DirectoryStream<Path> entries
+					= Files.newDirectoryStream(dir)) {
+				
+				for(Path p : entries) {
+					if(stopped)
+						return;
+					BasicFileAttributes attrs = readAttributes(p);
+					if(!attrs.isDirectory())
+						visitFile(p, attrs);
+					else if(preVisitDirectory(p, attrs) == CONTINUE)
+						subdirs.add(new DirectoryWalk(p));
+				}
+			} catch(IOException e) {
+				throw new WalkFailure(e);
+			}
+			invokeAll(subdirs);
+		}
+	}
+
+	/** Returns {@link UnixAttributes} if we read the {@link #timestamps}. */
+	BasicFileAttributes readAttributes(Path p) throws IOException {
+		if(timestamps) {
+			return new UnixAttributes(
+				Files.readAttributes(p, UNIX_ATTRIBUTES, NOFOLLOW_LINKS));
+		}
+		return Files.readAttributes(p, BasicFileAttributes.class,
+			NOFOLLOW_LINKS);
+	}
+
+	/** The {@link BasicFileAttributes} of the {@link #UNIX_ATTRIBUTES}. The
+	 *  JDK reads the "unix" view with a single stat() as well, but does not
+	 *  provide it as an interface. */
+	private static final class UnixAttributes implements BasicFileAttributes {
+		
+		private final Map<String, Object> attrs;
+		
+		UnixAttributes(Map<String, Object> attrs) {
+			this.attrs = attrs;
+		}
+		
+		Timestamps getTimestamps() {
+			return Timestamps.fromAttributes(attrs);
+		}
+		
+		@Override public FileTime lastModifiedTime() {
+			return (FileTime)attrs.get("lastModifiedTime");
+		}
+		
+		@Override public FileTime lastAccessTime() {
+			return (FileTime)attrs.get("lastAccessTime");
+		}
+		
+		@Override public FileTime creationTime() {
+			return (FileTime)attrs.get("creationTime");
+		}
+		
+		@Override public boolean isRegularFile() {
+			return (Boolean)attrs.get("isRegularFile");
+		}
+		
+		@Override public boolean isDirectory() {
+			return (Boolean)attrs.get("isDirectory");
+		}
+		
+		@Override public boolean isSymbolicLink() {
+			return (Boolean)attrs.get("isSymbolicLink");
+		}
+		
+		@Override public boolean isOther() {
+			return (Boolean)attrs.get("isOther");
+		}
+		
+		@Override public long size() {
+			return (Long)attrs.get("size");
+		}
+		
+		@Override public Object fileKey() {
+			return attrs.get("fileKey");
+		}
+	}
+
+	/** Returns the timestamps if the attributes are {@link UnixAttributes},
+	 *  null otherwise. */
+	private static Timestamps getTimestamps(BasicFileAttributes attrs) {
+		return attrs instanceof UnixAttributes
+			? ((UnixAttributes)attrs).getTimestamps() : null;
+	}
+
+	/** Returns the "unix:dev" attribute of the dir if we can also obtain it
+	 *  from the {@link BasicFileAttributes} of the walk for free, i.e.
+	 *  without an additional stat(), by {@link #getDevice(
+	 *  BasicFileAttributes)}. Returns null otherwise, e.g. on Windows. */
+	static Long getInputDirDevice(Path dir) throws IOException {
+		if(!dir.getFileSystem().supportedFileAttributeViews()
+				.contains("unix"))
+			return null;
+		
+		Long device = (Long)Files.getAttribute(dir, "unix:dev",
+			NOFOLLOW_LINKS);
+		Long fromAttributes = getDevice(Files.readAttributes(dir,
+			BasicFileAttributes.class, NOFOLLOW_LINKS));
+		return device.equals(fromAttributes) ? device : null;
+	}
+
+	/** Returns the st_dev which the {@link BasicFileAttributes#fileKey()} of
+	 *  the JDK on Unix contains, or null if it does not.
+	 *  There is no API for obtaining it from the attributes, but its
+	 *  toString() is "(dev=HEX,ino=DECIMAL)". {@link #getInputDirDevice(
+	 *  Path)} validates that against the "unix:dev" attribute so we don't
+	 *  rely on it if it changes in future JDKs.
+	 *  TODO: Java 9: Check if there is an API by now. */
+	static Long getDevice(BasicFileAttributes attrs) {
+		Object key = attrs.fileKey();
+		if(key == null)
+			return null;
+		
+		String s = key.toString();
+		int end = s.indexOf(',');
+		if(!s.startsWith("(dev=") || end == -1)
+			return null;
+		try {
+			return Long.parseLong(s.substring("(dev=".length(), end), 16);
+		} catch(NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/** Compares the st_dev of the node with the one of the {@link #inputDir}
+	 *  as "find -mount" does, if it is available. Only falls back to
+	 *  comparing the {@link FileStore}s otherwise, as
+	 *  {@link Files#getFileStore(Path)} is much slower than the stat() of
+	 *  the walk: The JDK parses the mount table on each call on Linux. */
+	private boolean isOnInputDirFilesystem(Path p, BasicFileAttributes attrs)
+			throws IOException {
+		
+		if(inputDirDevice != null) {
+			Long device = getDevice(attrs);
+			if(device != null)
+				return device.equals(inputDirDevice);
+		}
 		return Files.getFileStore(p).equals(inputDirFilesystem);
 	}
 
@@ -67,12 +419,39 @@ public final class NodeFinder extends SimpleFileVisitor<Path>
 		return relative;
 	}
 
+	/** Returns true if the walk by {@link Files#walkFileTree(Path,
+	 *  java.nio.file.FileVisitor)} should be terminated because our thread
+	 *  was interrupted. The concurrent walk checks {@link #stopped} instead as
+	 *  the walking threads are not the interrupted one. */
+	private boolean interrupted() {
+		if(threads == 1 && !timestamps && Thread.interrupted())
+			stopped = true;
+		return stopped;
+	}
+
 	@Override public FileVisitResult preVisitDirectory(Path dir,
 			BasicFileAttributes attrs) throws IOException {
 
-		if(isOnInputDirFilesystem(dir)) {
-			result.add(Node.constructNode(adjustPath(dir), true,
-					0 /* constructNode() wants size of 0 for directories! */));
+		if(interrupted())
+			return TERMINATE;
+		
+		Path path = adjustPath(dir);
+		if(excludes != null && excludes.matches(path.toString()))
+			return SKIP_SUBTREE;
+		
+		if(isOnInputDirFilesystem(dir, attrs)) {
+			result.add(Node.constructNode(path, true,
+					0 /* constructNode() wants size of 0 for directories! */,
+					null, getTimestamps(attrs)));
+			progress.directories.incrementAndGet();
+			// The path of the inputDir is "." so subtract 1.
+			progress.depth = path.getNameCount() - 1;
+			
+			// E.g. for a pattern of "./home/*/.cache/", keep the directory
+			// but don't list it.
+			if(excludes != null && excludes.matchesAllBelow(path.toString()))
+				return SKIP_SUBTREE;
+			
 			return CONTINUE;
 		} else {
 			err.println("Ignoring whole dir, is on different filesystem: "
@@ -84,18 +463,27 @@ public final class NodeFinder extends SimpleFileVisitor<Path>
 	@Override public FileVisitResult visitFile(Path file,
 			BasicFileAttributes attrs) throws IOException {
 		
+		if(interrupted())
+			return TERMINATE;
+		
+		Path path = adjustPath(file);
+		if(excludes != null && excludes.matches(path.toString()))
+			return CONTINUE;
+		
 		if(attrs.isRegularFile()) {
 			// While popular Linux knowledge is that mount points are usually a
 			// directory I have in fact encountered *files* in /tmp being a
 			// mount point on my live system, so we need to check
-			// isOnInputDirFilesystem() here as well.
-			// FIXME: Performance: This is actually even ignored by
-			// "find -mount", and thus by the Python/Bash implementations,
-			// perhaps do so here as well?
-			if(isOnInputDirFilesystem(file))
-				result.add(
-					Node.constructNode(adjustPath(file), false, attrs.size()));
-			else {
+			// isOnInputDirFilesystem() here as well. It is cheap as it only
+			// compares the st_dev of the stat() the walk did anyway.
+			// FIXME: This is actually even ignored by "find -mount", and thus
+			// by the Python/Bash implementations, perhaps do so here as well?
+			if(isOnInputDirFilesystem(file, attrs)) {
+				result.add(Node.constructNode(path, false,
+					attrs.size(), null, getTimestamps(attrs)));
+				progress.files.incrementAndGet();
+				progress.bytes.addAndGet(attrs.size());
+			} else {
 				err.println("Ignoring single file, is on different filesystem "
 					+ "(likely via mount --bind SRC_FILE DST_FILE): " + file);
 			}
@@ -0,0 +1,419 @@
+package checkpoint.datamodel.implementation;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** A set of patterns of paths as they appear in a checkpoint, e.g.
+ *  "./home/user/.cache", for excluding them from it. A pattern matches the
+ *  path it denotes and all paths below it. If it ends with a "/" it only
+ *  matches the paths below it, the directory itself is kept then.
+ *  The leading "./" may be omitted.
+ *
+ *  Patterns may contain the glob wildcards:
+ *  - "*" for any amount of characters except "/".
+ *  - "?" for a single character except "/".
+ *  - "[...]" for a single character of a class, "[!...]" for one not in
+ *    it, like in the shell.
+ *  - "**" for any amount of characters including "/", and "**&#47;" for any
+ *    amount of directories including none.
+ *  - "\" to escape the next character.
+ *  E.g. "./home/*&#47;.cache/" excludes the contents of the cache of all
+ *  users.
+ *
+ *  Matching does not try each pattern one after another: The leading
+ *  components of the patterns which don't contain wildcards, which usually
+ *  is most of them, are stored in a trie of path components. A path is
+ *  matched by walking the trie along its components, so all patterns
+ *  without wildcards are matched at once in time of the length of the path.
+ *  The remainders of all patterns with wildcards which end at the same node
+ *  of the trie are combined into a single regular expression there, which
+ *  is only evaluated if the path reaches the node.
+ *
+ *  Alternatively the patterns can be regular expressions, see
+ *  {@link #fromRegexes(Collection)}.
+ *
+ *  Immutable and thus thread-safe. */
+public final class PathPatterns {
+
+	/** Of the paths of {@link #matches(String)}: Each is a single component
+	 *  of a path. */
+	private static final class TrieNode {
+		final HashMap<String, TrieNode> children = new HashMap<>();
+		
+		/** A pattern without wildcards ends here, so the path of this node
+		 *  and all below it match. */
+		boolean matchesSelf = false;
+		
+		/** Same with a trailing "/", so only the paths below match. */
+		boolean matchesBelow = false;
+		
+		/** The regular expressions of the remainders of the patterns with
+		 *  wildcards. Null once {@link #compiled}. */
+		ArrayList<String> regexes = null;
+		
+		/** The {@link #regexes} as a single alternation, matched against the
+		 *  part of a path after the one of this node. Null if there are
+		 *  none. */
+		Pattern compiled = null;
+		
+		void compile() {
+			if(regexes != null) {
+				compiled = Pattern.compile(alternation(regexes));
+				regexes = null;
+			}
+			for(TrieNode child : children.values())
+				child.compile();
+		}
+	}
+
+	private final TrieNode root = new TrieNode();
+
+	/** The regular expressions which cannot be matched via the trie as
+	 *  they are not anchored at the start of the path, combined to a single
+	 *  one. Null if there are none. */
+	private final Pattern unanchored;
+
+	private final int size;
+
+	/** The POSIX character classes of extended regular expressions, and the
+	 *  equivalent names of Java's. */
+	private static final String[][] POSIX_CLASSES = {
+		{ "alnum", "Alnum" }, { "alpha", "Alpha" }, { "blank", "Blank" },
+		{ "cntrl", "Cntrl" }, { "digit", "Digit" }, { "graph", "Graph" },
+		{ "lower", "Lower" }, { "print", "Print" }, { "punct", "Punct" },
+		{ "space", "Space" }, { "upper", "Upper" }, { "xdigit", "XDigit" } };
+
+	/** @param patterns Glob patterns as described at {@link PathPatterns}.
+	 *  @throws IllegalArgumentException If a pattern is invalid. */
+	public PathPatterns(Collection<String> patterns) {
+		this(patterns, false);
+	}
+
+	private PathPatterns(Collection<String> patterns, boolean regexes) {
+		ArrayList<String> unanchored = new ArrayList<>();
+		for(String p : patterns) {
+			if(regexes)
+				addRegex(p, unanchored);
+			else
+				add(p);
+		}
+		root.compile();
+		this.unanchored = unanchored.isEmpty() ? null
+			: Pattern.compile(alternation(unanchored));
+		size = patterns.size();
+	}
+
+	/** Returns patterns which match a path if one of the given extended
+	 *  regular expressions, as for "grep -E", matches anywhere in the path.
+	 *  The path does not end with a "/" for directories. So
+	 *  "^\./home/user/" matches all paths below the directory, but not
+	 *  the directory itself, like in tools/filter-checkpoint.sh, which
+	 *  applies them to the lines of the checkpoint.
+	 *  
+	 *  POSIX character classes such as "[[:alnum:]]" are supported, else
+	 *  the regular expressions are the ones of {@link Pattern}, which are
+	 *  mostly a superset.
+	 *  
+	 *  The leading literal part of expressions which start with "^", such as
+	 *  "./home/" of "^\./home/([[:alnum:]]|-)+/\.cache/", is matched
+	 *  via the trie of path components like the ones of globs, and the
+	 *  remainder by the combined regular expression of the trie node. The
+	 *  ones which don't start with "^" are combined into a single one which
+	 *  is evaluated for every path.
+	 *  
+	 *  @throws IllegalArgumentException If an expression is invalid. */
+	public static PathPatterns fromRegexes(Collection<String> regexes) {
+		return new PathPatterns(regexes, true);
+	}
+
+	private static String alternation(List<String> regexes) {
+		StringBuilder sb = new StringBuilder();
+		for(String r : regexes) {
+			if(sb.length() > 0)
+				sb.append('|');
+			sb.append("(?:").append(r).append(')');
+		}
+		return sb.toString();
+	}
+
+	private void add(String pattern) {
+		String p = pattern;
+		if(!p.equals(".") && !p.startsWith("./")) {
+			while(p.startsWith("/"))
+				p = p.substring(1);
+			p = "./" + p;
+		}
+		boolean below = p.endsWith("/");
+		if(below)
+			p = p.substring(0, p.length() - 1);
+		
+		String[] components = p.split("/", -1);
+		TrieNode node = root;
+		int i = 0;
+		for(; i < components.length && !isGlob(components[i]); ++i) {
+			if(components[i].isEmpty()) {
+				throw new IllegalArgumentException(
+					"Empty path component in pattern: " + pattern);
+			}
+			TrieNode child = node.children.get(components[i]);
+			if(child == null) {
+				child = new TrieNode();
+				node.children.put(components[i], child);
+			}
+			node = child;
+		}
+		
+		if(i == components.length) {
+			if(below)
+				node.matchesBelow = true;
+			else
+				node.matchesSelf = true;
+			return;
+		}
+		
+		StringBuilder regex = new StringBuilder();
+		for(int j = i; j < components.length; ++j) {
+			if(components[j].isEmpty()) {
+				throw new IllegalArgumentException(
+					"Empty path component in pattern: " + pattern);
+			}
+			boolean last = (j == components.length - 1);
+			if(components[j].equals("**") && !last) {
+				// Including the "/" so "a/**/b" also matches "a/b".
+				regex.append("(?:.*/)?");
+				continue;
+			}
+			regex.append(globToRegex(components[j], pattern));
+			if(!last)
+				regex.append('/');
+		}
+		// The regex is matched against a prefix of the remaining path, so
+		// it must end at the end of a component.
+		regex.append(below ? "/" : "(?:/|$)");
+		if(node.regexes == null)
+			node.regexes = new ArrayList<>();
+		node.regexes.add(regex.toString());
+	}
+
+	private void addRegex(String regex, List<String> unanchored) {
+		String r = regex;
+		for(String[] c : POSIX_CLASSES)
+			r = r.replace("[:" + c[0] + ":]", "\\p{" + c[1] + "}");
+		// Validate it as a whole, the parts may be valid when it is not.
+		Pattern.compile(r);
+		
+		if(!r.startsWith("^") || hasTopLevelAlternation(r)) {
+			unanchored.add(r);
+			return;
+		}
+		
+		// The literal characters after the "^", unescaped.
+		StringBuilder literal = new StringBuilder();
+		int i = 1;
+		while(i < r.length()) {
+			char c = r.charAt(i);
+			int next = i + 1;
+			if(c == '\\') {
+				// Escaped letters and digits are classes or backreferences.
+				if(next == r.length()
+						|| Character.isLetterOrDigit(r.charAt(next))) {
+					break;
+				}
+				c = r.charAt(next++);
+			} else if(".[]()*+?{}|^$".indexOf(c) != -1)
+				break;
+			// The character is not literal if a quantifier follows.
+			if(next < r.length() && "*+?{".indexOf(r.charAt(next)) != -1)
+				break;
+			literal.append(c);
+			i = next;
+		}
+		
+		// The trie only contains whole components, the rest of the literal
+		// is matched by the regex.
+		int slash = literal.lastIndexOf("/");
+		TrieNode node = root;
+		if(slash != -1) {
+			for(String component
+					: literal.substring(0, slash).split("/", -1)) {
+				
+				TrieNode child = node.children.get(component);
+				if(child == null) {
+					child = new TrieNode();
+					node.children.put(component, child);
+				}
+				node = child;
+			}
+		}
+		String rest = literal.substring(slash + 1);
+		if(node.regexes == null)
+			node.regexes = new ArrayList<>();
+		node.regexes.add((rest.isEmpty() ? "" : Pattern.quote(rest))
+			+ r.substring(i));
+	}
+
+	/** Returns true if the regex contains a "|" outside of groups, then it
+	 *  is not anchored as a whole even if it starts with "^". */
+	private static boolean hasTopLevelAlternation(String regex) {
+		int groups = 0;
+		int classes = 0;
+		for(int i = 0; i < regex.length(); ++i) {
+			char c = regex.charAt(i);
+			if(c == '\\')
+				++i;
+			else if(c == '[') {
+				++classes;
+				// A "]" at the start of a class is part of it.
+				if(i + 1 < regex.length() && regex.charAt(i + 1) == '^')
+					++i;
+				if(i + 1 < regex.length() && regex.charAt(i + 1) == ']')
+					++i;
+			} else if(c == ']' && classes > 0)
+				--classes;
+			else if(classes == 0) {
+				if(c == '(')
+					++groups;
+				else if(c == ')')
+					--groups;
+				else if(c == '|' && groups == 0)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isGlob(String component) {
+		for(char c : component.toCharArray()) {
+			if(c == '*' || c == '?' || c == '[' || c == '\\')
+				return true;
+		}
+		return false;
+	}
+
+	/** Converts the glob of a single component to a regular expression. A
+	 *  "**" in it may match multiple components nevertheless. */
+	private static String globToRegex(String glob, String pattern) {
+		StringBuilder r = new StringBuilder();
+		for(int i = 0; i < glob.length(); ++i) {
+			char c = glob.charAt(i);
+			switch(c) {
+				case '*':
+					if(i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+						++i;
+						r.append(".*");
+					} else
+						r.append("[^/]*");
+					break;
+				case '?':
+					r.append("[^/]");
+					break;
+				case '[':
+					// A "]" directly after the "[" is part of the class.
+					int end = glob.indexOf(']', i + 2);
+					if(end == -1) {
+						throw new IllegalArgumentException(
+							"Missing ']' in pattern: " + pattern);
+					}
+					boolean negated = glob.charAt(i + 1) == '!';
+					r.append(negated ? "(?!/)[^" : "(?!/)[");
+					for(int j = negated ? i + 2 : i + 1; j < end; ++j) {
+						char k = glob.charAt(j);
+						if(k == '\\' || k == '[' || k == ']' || k == '&'
+								|| k == '^') {
+							r.append('\\');
+						}
+						r.append(k);
+					}
+					r.append(']');
+					i = end;
+					break;
+				case '\\':
+					if(++i == glob.length()) {
+						throw new IllegalArgumentException(
+							"Trailing '\\' in pattern: " + pattern);
+					}
+					appendLiteral(r, glob.charAt(i));
+					break;
+				default:
+					appendLiteral(r, c);
+			}
+		}
+		return r.toString();
+	}
+
+	/** Appends the given character of a glob to the regular expression such
+	 *  that it matches itself only. */
+	private static void appendLiteral(StringBuilder regex, char c) {
+		if(c < 128 && !Character.isLetterOrDigit(c))
+			regex.append('\\');
+		regex.append(c);
+	}
+
+	/** Returns true if any pattern matches the path, which must be of the
+	 *  form of {@link checkpoint.datamodel.INode#getPath()}, i.e. start with
+	 *  "./". */
+	public boolean matches(String path) {
+		if(unanchored != null && unanchored.matcher(path).find())
+			return true;
+		
+		TrieNode node = root;
+		int start = 0;
+		while(true) {
+			if(node.compiled != null) {
+				Matcher m = node.compiled.matcher(path);
+				m.region(start, path.length());
+				if(m.lookingAt())
+					return true;
+			}
+			
+			int end = path.indexOf('/', start);
+			if(end == -1)
+				end = path.length();
+			node = node.children.get(path.substring(start, end));
+			if(node == null)
+				return false;
+			
+			boolean more = end < path.length();
+			if(node.matchesSelf || (node.matchesBelow && more))
+				return true;
+			if(!more)
+				return false;
+			start = end + 1;
+		}
+	}
+
+	/** Returns true if the patterns match all paths below the directory, so
+	 *  it need not be read at all. May return false even though they do if
+	 *  that cannot be easily determined.
+	 *  Only for glob patterns, not for {@link #fromRegexes(Collection)}. */
+	public boolean matchesAllBelow(String dir) {
+		// A pattern which matches the path "DIR/" up to the end of a
+		// component matches the one of any file in DIR as well.
+		return matches(dir + "/");
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/** Reads patterns from a file with one per line. Empty lines and lines
+	 *  starting with "#" are ignored. */
+	public static List<String> readFile(Path file) throws IOException {
+		ArrayList<String> result = new ArrayList<>();
+		for(String line : Files.readAllLines(file, UTF_8)) {
+			if(!line.isEmpty() && !line.startsWith("#"))
+				result.add(line);
+		}
+		return result;
+	}
+
+}
@@ -18,20 +18,30 @@ public final class Timestamps extends ITimestamps {
 	private final FileTime ctime;
 	private final FileTime mtime;
 
-	private Timestamps(Path p) throws IOException {
-		// TODO: Performance: Check if it is faster to read "unix:*", i.e.
-		// to avoid the parsing overhead of specifying individual attributes.
-		Map<String, Object> attrs = Files.readAttributes(p,
-			"unix:lastAccessTime,ctime,lastModifiedTime",
-			LinkOption.NOFOLLOW_LINKS);
-		
+	/** The attributes of the "unix" view which
+	 *  {@link #fromAttributes(Map)} needs. Can be combined with others to
+	 *  read them all with a single stat(), e.g. by {@link NodeFinder}. */
+	public static final String ATTRIBUTES
+		= "lastAccessTime,ctime,lastModifiedTime";
+
+	private Timestamps(Map<String, Object> attrs) {
 		atime = requireNonNull((FileTime)attrs.get("lastAccessTime"));
 		ctime = requireNonNull((FileTime)attrs.get("ctime"));
 		mtime = requireNonNull((FileTime)attrs.get("lastModifiedTime"));
 	}
 
 	public static Timestamps readTimestamps(Path p) throws IOException {
-		return new Timestamps(p);
+		// TODO: Performance: Check if it is faster to read "unix:*", i.e.
+		// to avoid the parsing overhead of specifying individual attributes.
+		return new Timestamps(Files.readAttributes(p, "unix:" + ATTRIBUTES,
+			LinkOption.NOFOLLOW_LINKS));
+	}
+
+	/** @param attrs As returned by {@link Files#readAttributes(Path, String,
+	 *      LinkOption...)} for the "unix" view with at least the
+	 *      {@link #ATTRIBUTES}. */
+	public static Timestamps fromAttributes(Map<String, Object> attrs) {
+		return new Timestamps(attrs);
 	}
 
 	private Timestamps(FileTime atime, FileTime ctime, FileTime mtime) {
@@ -50,6 +60,19 @@ public final class Timestamps extends ITimestamps {
 			(mtime != null ? FileTime.fromMillis(mtime.getTime()) : null));
 	}
 
+	/** Returns true if both dates are in the same second.
+	 *  The text format of checkpoints only stores seconds, so dates which
+	 *  were read from disk must be compared to the ones of a checkpoint this
+	 *  way. */
+	public static boolean sameSecond(Date a, Date b) {
+		return floorSeconds(a.getTime()) == floorSeconds(b.getTime());
+	}
+
+	/** TODO: Java 8: Use Math.floorDiv(). */
+	private static long floorSeconds(long millis) {
+		return (millis >= 0 ? millis : millis - 999) / 1000;
+	}
+
 	@Override public Date getAccessTime() {
 		// We don't store the Date object because Date is not immutable.
 		return atime != null ? new Date(atime.toMillis()) : null;
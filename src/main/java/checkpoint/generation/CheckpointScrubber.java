@@ -0,0 +1,390 @@
+package checkpoint.generation;
+
+import static java.lang.Math.min;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.err;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import checkpoint.datamodel.ICheckpointReader;
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.implementation.Checkpoint.PathComparator;
+import checkpoint.generation.ConcurrentCheckpointVerifier.Result;
+import checkpoint.serialization.CheckpointReader;
+
+/** Verifies a slice of the files of a checkpoint per run, bounded by time
+ *  or bytes, so a tree which is too large to be verified at once is
+ *  verified completely over multiple runs, e.g. over many nights.
+ *
+ *  Each run verifies the files which were verified least recently, or
+ *  never, first. When they were verified is stored in a state file next to
+ *  the checkpoint, see {@link #STATE_FILENAME}. Its syntax is similar to
+ *  the one of checkpoints, sorted the same way: "PATH \0 \t SECONDS \n"
+ *  where SECONDS is the time of the run which verified the file, in
+ *  seconds since the epoch. Files which were never verified are not in it,
+ *  and files which were removed from the checkpoint are removed from it.
+ *
+ *  The verification itself is done by {@link ConcurrentCheckpointVerifier},
+ *  so mismatches are reported the same way as by it.
+ *
+ *  All files of the checkpoint are kept in memory for sorting them by the
+ *  time of their last verification, like
+ *  {@link ConcurrentCheckpointGenerator} keeps all nodes in memory.
+ *  TODO: Performance: Only the path order of the checkpoint, the last
+ *  verification times and the sizes would need to be kept in memory, the
+ *  nodes which are selected could be read again in a second pass over the
+ *  checkpoint. */
+public final class CheckpointScrubber {
+
+	public static final String STATE_FILENAME = "scrub-state.txt";
+
+	private final Path inputDir;
+
+	private final Path checkpointDir;
+
+	private final Path stateFile;
+
+	private final boolean solidStateDrive;
+
+	private final Integer threads;
+
+	private final int readBufferBytes;
+
+	private final IOThrottle throttle;
+
+	/** In seconds, 0 if unlimited. */
+	private final long budgetSeconds;
+
+	/** 0 if unlimited. */
+	private final long budgetBytes;
+
+	/** A file of the checkpoint and when it was last verified. */
+	private static final class Entry {
+		final INode node;
+		/** In seconds since the epoch, 0 if never. */
+		long lastVerified;
+		
+		Entry(INode node, long lastVerified) {
+			this.node = node;
+			this.lastVerified = lastVerified;
+		}
+	}
+
+	/** @param stateFile Null for {@link #STATE_FILENAME} in the
+	 *      checkpointDir.
+	 *  @param threads See {@link ConcurrentCheckpointVerifier}.
+	 *  @param budgetSeconds Stop verifying after this many seconds, 0 if
+	 *      unlimited. See {@link ConcurrentCheckpointVerifier#setDeadline(
+	 *      long)}.
+	 *  @param budgetBytes Only verify files of up to this many bytes in
+	 *      total, 0 if unlimited. At least one file is verified if it is
+	 *      larger. Files of unknown size count with their size on disk. */
+	public CheckpointScrubber(Path inputDir, Path checkpointDir,
+			Path stateFile, boolean solidStateDrive, Integer threads,
+			int readBufferBytes, IOThrottle throttle, long budgetSeconds,
+			long budgetBytes) {
+		
+		this.inputDir = requireNonNull(inputDir);
+		this.checkpointDir = requireNonNull(checkpointDir);
+		this.stateFile = stateFile != null ? stateFile
+			: checkpointDir.resolve(STATE_FILENAME);
+		this.solidStateDrive = solidStateDrive;
+		this.threads = threads;
+		this.readBufferBytes = readBufferBytes;
+		this.throttle = throttle;
+		this.budgetSeconds = budgetSeconds;
+		this.budgetBytes = budgetBytes;
+	}
+
+	/** Verifies the files which were verified least recently until the
+	 *  budget is used up, stores when they were verified in the state file,
+	 *  and prints a summary to stderr. */
+	public Result run() throws IOException, InterruptedException {
+		long startedAt = currentTimeMillis();
+		
+		ArrayList<Entry> entries = new ArrayList<>();
+		boolean complete;
+		try(CheckpointReader checkpoint
+				= CheckpointReader.open(checkpointDir)) {
+			complete = load(checkpoint, entries);
+		}
+		
+		// Sorting is stable, so files with the same time of verification
+		// stay in the order of their paths, which is good for rotational
+		// disks as explained at ConcurrentCheckpointGenerator.
+		ArrayList<Entry> queue = new ArrayList<>(entries);
+		Collections.sort(queue, new Comparator<Entry>() {
+			@Override public int compare(Entry e1, Entry e2) {
+				return Long.compare(e1.lastVerified, e2.lastVerified);
+			}
+		});
+		
+		Slice slice = new Slice(queue, complete);
+		ConcurrentCheckpointVerifier verifier
+			= new ConcurrentCheckpointVerifier(inputDir, slice,
+				solidStateDrive, threads, readBufferBytes, throttle, false,
+				false);
+		if(budgetSeconds > 0)
+			verifier.setDeadline(startedAt + budgetSeconds * 1000);
+		// Files with mismatches are also marked as verified, they were
+		// reported and would otherwise be reported again on every run until
+		// a new checkpoint is created.
+		final Set<INode> verified
+			= Collections.newSetFromMap(new IdentityHashMap<INode, Boolean>());
+		verifier.setListener(new ConcurrentCheckpointVerifier.Listener() {
+			@Override public void verified(INode n, List<String> problems) {
+				verified.add(n);
+			}
+		});
+		Result result = verifier.run();
+		
+		long now = startedAt / 1000;
+		int verifiedCount = 0;
+		for(int i = 0; i < slice.returned; ++i) {
+			Entry e = queue.get(i);
+			if(verified.contains(e.node)) {
+				e.lastVerified = now;
+				++verifiedCount;
+			}
+		}
+		saveState(entries);
+		
+		printSummary(entries, verifiedCount);
+		return result;
+	}
+
+	/** Adds the files of the checkpoint to the list, with their time of
+	 *  verification from the state file, and returns
+	 *  {@link ICheckpointReader#isComplete()}. */
+	private boolean load(ICheckpointReader checkpoint,
+			ArrayList<Entry> entries) throws IOException {
+		
+		PathComparator pathComparator = new PathComparator();
+		try(StateReader state = new StateReader(stateFile)) {
+			state.next();
+			INode n;
+			while((n = checkpoint.next()) != null) {
+				// Directories are only checked for existence, which their
+				// files are checked for anyway.
+				if(n.isDirectory())
+					continue;
+				
+				// Skip the state of files which were removed from the
+				// checkpoint.
+				Path path = n.getPath();
+				while(state.path != null
+						&& pathComparator.compare(state.path, path) < 0)
+					state.next();
+				
+				long lastVerified = 0;
+				if(state.path != null && state.path.equals(path))
+					lastVerified = state.lastVerified;
+				entries.add(new Entry(n, lastVerified));
+			}
+		}
+		return checkpoint.isComplete();
+	}
+
+	/** Writes to a temporary file first to not replace the state with a
+	 *  broken one, like {@link checkpoint.serialization.CheckpointWriter}. */
+	private void saveState(ArrayList<Entry> entries) throws IOException {
+		Path dir = stateFile.toAbsolutePath().getParent();
+		Path temp = Files.createTempFile(dir,
+			stateFile.getFileName() + ".", ".tmp");
+		try {
+			try(OutputStream out = new BufferedOutputStream(
+					Files.newOutputStream(temp))) {
+				
+				for(Entry e : entries) {
+					if(e.lastVerified == 0)
+						continue;
+					
+					out.write(e.node.getPath().toString().getBytes(UTF_8));
+					out.write('\0');
+					out.write('\t');
+					out.write(Long.toString(e.lastVerified).getBytes(UTF_8));
+					out.write('\n');
+				}
+			}
+			// TODO: fsync(), see CheckpointWriter.finish().
+			Files.move(temp, stateFile, ATOMIC_MOVE, REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/** Tells how far the cycle through all files is. */
+	private static void printSummary(ArrayList<Entry> entries, int verified) {
+		err.println("Files verified in this run: " + verified + " of "
+			+ entries.size());
+		
+		long never = 0;
+		long leastRecently = Long.MAX_VALUE;
+		for(Entry e : entries) {
+			if(e.lastVerified == 0)
+				++never;
+			else
+				leastRecently = min(leastRecently, e.lastVerified);
+		}
+		if(never > 0)
+			err.println("Files never verified: " + never);
+		else if(!entries.isEmpty()) {
+			err.println("Least recently verified file was verified at: "
+				+ new Date(leastRecently * 1000));
+		}
+	}
+
+	/** Returns the files of the queue until {@link #budgetBytes} would be
+	 *  exceeded.
+	 *
+	 *  Unlike the {@link ICheckpointReader} contract says the files are not
+	 *  sorted by their path but by their time of verification.
+	 *  {@link ConcurrentCheckpointVerifier} does not rely on the order. */
+	private final class Slice implements ICheckpointReader {
+
+		private final ArrayList<Entry> queue;
+		
+		private final boolean complete;
+		
+		/** The amount of files of the queue which were returned. The
+		 *  verifier may not have verified all of them if the deadline has
+		 *  passed. */
+		int returned = 0;
+		
+		private long returnedBytes = 0;
+		
+		Slice(ArrayList<Entry> queue, boolean complete) {
+			this.queue = queue;
+			this.complete = complete;
+		}
+		
+		@Override public INode next() {
+			if(returned == queue.size())
+				return null;
+			
+			INode n = queue.get(returned).node;
+			long size = budgetBytes > 0 ? getSize(n) : 0;
+			if(budgetBytes > 0 && returned > 0
+					&& returnedBytes + size > budgetBytes)
+				return null;
+			
+			++returned;
+			returnedBytes += size;
+			return n;
+		}
+		
+		/** Returns the size of the file on disk if the checkpoint does not
+		 *  know it, see {@link INode#getSize()}, as otherwise a checkpoint of
+		 *  a former version would be verified completely no matter the
+		 *  budget. If the file cannot be stat()ed 0 is returned, the verifier
+		 *  will report it. */
+		private long getSize(INode n) {
+			if(n.getSize() != 0)
+				return n.getSize();
+			
+			try {
+				return Files.readAttributes(inputDir.resolve(n.getPath()),
+					BasicFileAttributes.class, NOFOLLOW_LINKS).size();
+			} catch(IOException e) {
+				return 0;
+			}
+		}
+		
+		/** Of the checkpoint, not whether all of its files were returned:
+		 *  The verifier reports incomplete checkpoints as a change, which a
+		 *  slice is not as it is partial on purpose. */
+		@Override public boolean isComplete() {
+			return complete;
+		}
+		
+		@Override public Path getCheckpointDir() {
+			return checkpointDir;
+		}
+		
+		@Override public void close() {}
+	}
+
+	/** Reads the state file line by line. A missing file is treated as an
+	 *  empty one, as it is the case on the first run. */
+	private static final class StateReader implements Closeable {
+
+		private final PathComparator pathComparator = new PathComparator();
+		
+		private final InputStream in;
+		
+		/** Of the current line, null at the end of the file. */
+		Path path = null;
+		long lastVerified = 0;
+		
+		StateReader(Path file) throws IOException {
+			InputStream i;
+			try {
+				i = new BufferedInputStream(Files.newInputStream(file));
+			} catch(NoSuchFileException e) {
+				i = null;
+			}
+			in = i;
+		}
+		
+		/** Moves to the next line. */
+		void next() throws IOException {
+			if(in == null)
+				return;
+			
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			int b;
+			while((b = in.read()) != '\0') {
+				if(b == -1) {
+					if(bytes.size() > 0)
+						throw new IOException("State file is truncated!");
+					path = null;
+					return;
+				}
+				bytes.write(b);
+			}
+			Path previous = path;
+			path = Paths.get(new String(bytes.toByteArray(), UTF_8));
+			if(previous != null && pathComparator.compare(previous, path) >= 0)
+				throw new IOException("State file is not sorted at: " + path);
+			
+			if(in.read() != '\t')
+				throw new IOException("Invalid state file at: " + path);
+			long seconds = 0;
+			while((b = in.read()) != '\n') {
+				if(b < '0' || b > '9')
+					throw new IOException("Invalid state file at: " + path);
+				seconds = seconds * 10 + (b - '0');
+			}
+			lastVerified = seconds;
+		}
+		
+		@Override public void close() throws IOException {
+			if(in != null)
+				in.close();
+		}
+	}
+
+}
@@ -4,31 +4,42 @@ import static java.lang.Math.min;
 import static java.lang.System.currentTimeMillis;
 import static java.lang.System.err;
 import static java.lang.System.out;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
 import static java.util.Objects.requireNonNull;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.apache.commons.io.FileUtils.byteCountToDisplaySize;
 
 import java.io.Console;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.lang.time.DurationFormatUtils;
 
 import checkpoint.datamodel.INode;
+import checkpoint.datamodel.ITimestamps.TimestampTypes;
 import checkpoint.datamodel.implementation.Checkpoint;
+import checkpoint.datamodel.implementation.Node;
 import checkpoint.datamodel.implementation.NodeFinder;
+import checkpoint.datamodel.implementation.PathPatterns;
 import checkpoint.datamodel.implementation.Timestamps;
+import checkpoint.generation.JavaSHA256Generator.FileChangedException;
+import checkpoint.serialization.CheckpointWriter.Index;
 
 public final class ConcurrentCheckpointGenerator
 		implements ICheckpointGenerator {
@@ -120,6 +131,18 @@ public final class ConcurrentCheckpointGenerator
 	 *  passed into this variable as bytes. */
 	private final int readBufferBytes;
 
+	/** Limits the reading of all threads together, null if unlimited. */
+	private final IOThrottle throttle;
+
+	/** Whether to compute the hashes of directories, see
+	 *  {@link Checkpoint#computeDirectoryHashes()}. */
+	private final boolean directoryHashes;
+
+	/** Whether to gzip the checkpoint, and which indexes to write for it,
+	 *  see {@link Checkpoint#save(Path, EnumSet, boolean, EnumSet)}. */
+	private final boolean compress;
+	private final EnumSet<Index> indexes;
+
 	/** {@link System#currentTimeMillis()} when we started submitting the
 	 *  {@link INode}s to the worker threads. Used by
 	 *  {@link #printProgress(long, long, int, int)} to estimate the speed.
@@ -128,9 +151,17 @@ public final class ConcurrentCheckpointGenerator
 	 *  include it either. */
 	private long workStartedAtTime = 0;
 
+	/** See {@link #setTimestampsFromWalk(boolean)}. */
+	private boolean timestampsFromWalk = false;
+
+	/** See {@link #setExcludes(PathPatterns)}. */
+	private PathPatterns excludes = null;
+
 
 	public ConcurrentCheckpointGenerator(Path inputDir, Path outputDir,
-			boolean solidStateDrive, Integer threads, int readBufferBytes) {
+			boolean solidStateDrive, Integer threads, int readBufferBytes,
+			IOThrottle throttle, boolean directoryHashes, boolean compress,
+			EnumSet<Index> indexes) {
 		
 		// Convert paths to clean absolute dirs since I suspect their usage
 		// might be faster with the lots of processing we'll do with those paths
@@ -147,11 +178,43 @@ public final class ConcurrentCheckpointGenerator
 				DEFAULT_THREAD_COUNT_SSD : DEFAULT_THREAD_COUNT_HDD;
 		}
 		this.readBufferBytes = readBufferBytes;
+		this.throttle = throttle;
+		this.directoryHashes = directoryHashes;
+		this.compress = compress;
+		this.indexes = EnumSet.copyOf(indexes);
 		
 		// FIXME: Allow resuming an incomplete one.
 		this.checkpoint = new Checkpoint();
 	}
 
+	/** If true the timestamps are read by the {@link NodeFinder} during the
+	 *  walk, with the same stat() as the size, instead of by another stat()
+	 *  after hashing each file. This saves a syscall, and on rotational
+	 *  disks a seek, per node.
+	 *  
+	 *  It also makes the timestamps and the hash consistent: They are read
+	 *  before the file is hashed, so if it is modified afterwards its mtime
+	 *  on disk is newer than the one of the checkpoint, and verifying it
+	 *  reports it as changed instead of as corrupted. Modifications which
+	 *  change the size are detected by an fstat() after hashing, see
+	 *  {@link JavaSHA256Generator#sha256ofFile(Path, long)}, and the file is
+	 *  stat()ed and hashed again then. A modification which keeps the size
+	 *  during the same second as the walk's stat() cannot be detected as
+	 *  checkpoints only store whole seconds.
+	 *  
+	 *  The access times are the ones before we read the files then. */
+	public void setTimestampsFromWalk(boolean timestampsFromWalk) {
+		this.timestampsFromWalk = timestampsFromWalk;
+	}
+
+	/** Excludes the paths which match from the checkpoint. They are
+	 *  excluded while walking, so they are neither read nor hashed, see
+	 *  {@link NodeFinder#NodeFinder(int, boolean, PathPatterns)}.
+	 *  @param excludes May be null to exclude nothing. */
+	public void setExcludes(PathPatterns excludes) {
+		this.excludes = excludes;
+	}
+
 	/** Used by our worker threads to pass failures to the main thread.
 	 *  This is necessary because we cannot use stdout/stderr on them, see
 	 *  the JavaDoc of {@link Worker#call()} */
@@ -187,7 +250,7 @@ public final class ConcurrentCheckpointGenerator
 			// allocating lots of memory may take longer there than having each
 			// Worker do it concurrently on their thread in call().
 			JavaSHA256Generator hasher
-				= new JavaSHA256Generator(readBufferBytes);
+				= new JavaSHA256Generator(readBufferBytes, throttle);
 			
 			LinkedList<Failure> failures = new LinkedList<>();
 			
@@ -199,7 +262,10 @@ public final class ConcurrentCheckpointGenerator
 				
 				if(!node.isDirectory()) {
 					try {
-						node.setHash(hasher.sha256ofFile(pathOnDisk));
+						if(timestampsFromWalk)
+							node = hashSinceWalk(hasher, node, pathOnDisk);
+						else
+							node.setHash(hasher.sha256ofFile(pathOnDisk));
 					} catch(IOException e) {
 						// Set hash to null to mark computation as failed.
 						// This must be done explicitly instead of just leaving
@@ -228,17 +294,21 @@ public final class ConcurrentCheckpointGenerator
 				// and recompute if they have changed in between.
 				// Or perhaps just store the current time before hash
 				// computation and compare it against the timestamps?
-				try {
-					node.setTimestamps(Timestamps.readTimestamps(pathOnDisk));
-				} catch(IOException e) {
-					// Same as for the hash.
-					node.setTimestamps(null);
-					
-					if(failure == null) {
-						failure = new Failure();
-						failure.path = node.getPath();
+				// That is what setTimestampsFromWalk() does.
+				if(!timestampsFromWalk) {
+					try {
+						node.setTimestamps(
+							Timestamps.readTimestamps(pathOnDisk));
+					} catch(IOException e) {
+						// Same as for the hash.
+						node.setTimestamps(null);
+						
+						if(failure == null) {
+							failure = new Failure();
+							failure.path = node.getPath();
+						}
+						failure.timestampsFailure = e;
 					}
-					failure.timestampsFailure = e;
 				}
 				
 				if(failure != null)
@@ -252,6 +322,117 @@ public final class ConcurrentCheckpointGenerator
 		}
 	}
 
+	/** Hashes the file of a node whose size and timestamps were read by the
+	 *  walk, see {@link #setTimestampsFromWalk(boolean)}. If it was modified
+	 *  since then its size and timestamps are read again and it is hashed
+	 *  once more, a new node is returned then. */
+	private static INode hashSinceWalk(JavaSHA256Generator hasher,
+			INode node, Path pathOnDisk)
+			throws IOException, InterruptedException {
+		
+		try {
+			node.setHash(hasher.sha256ofFile(pathOnDisk, node.getSize()));
+			return node;
+		} catch(FileChangedException e) {
+			Map<String, Object> attrs = Files.readAttributes(pathOnDisk,
+				"unix:size," + Timestamps.ATTRIBUTES, NOFOLLOW_LINKS);
+			INode changed = Node.constructNode(node.getPath(), false,
+				(Long)attrs.get("size"), null,
+				Timestamps.fromAttributes(attrs));
+			// If it is modified again the failure is reported.
+			changed.setHash(
+				hasher.sha256ofFile(pathOnDisk, changed.getSize()));
+			return changed;
+		}
+	}
+
+	/** Runs the {@link NodeFinder} on a separate thread and prints its
+	 *  progress every second meanwhile, as on slow disks or network
+	 *  filesystems the walk can take many minutes. If our thread is
+	 *  interrupted the walk is interrupted as well.
+	 *  The walk uses as many threads as the hashing, see NodeFinder. */
+	private Collection<INode> findNodes()
+			throws IOException, InterruptedException {
+		
+		final NodeFinder finder
+			= new NodeFinder(threadCount, timestampsFromWalk, excludes);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Collection<INode>> walk = executor.submit(
+				new Callable<Collection<INode>>() {
+					@Override public Collection<INode> call()
+							throws IOException, InterruptedException {
+						
+						Thread.currentThread().setName(
+							"ConcurrentCheckpointGenerator.NodeFinder");
+						return finder.findNodes(inputDir);
+					}
+				});
+			
+			long startedAt = currentTimeMillis();
+			while(true) {
+				try {
+					Collection<INode> result = walk.get(1, SECONDS);
+					printWalkProgress(finder.getProgress(), startedAt, true);
+					return result;
+				} catch(TimeoutException e) {
+					printWalkProgress(finder.getProgress(), startedAt, false);
+				} catch(ExecutionException e) {
+					Throwable cause = e.getCause();
+					if(cause instanceof IOException)
+						throw (IOException)cause;
+					if(cause instanceof InterruptedException)
+						throw (InterruptedException)cause;
+					if(cause instanceof RuntimeException)
+						throw (RuntimeException)cause;
+					if(cause instanceof Error)
+						throw (Error)cause;
+					throw new RuntimeException(cause);
+				}
+			}
+		} finally {
+			// Interrupts the walk if we were interrupted.
+			executor.shutdownNow();
+		}
+	}
+
+	/** Prints the amount of discovered directories, files and bytes, and the
+	 *  rate of discovering them, in the same way as
+	 *  {@link #printProgress(long, long, int, int)}, i.e. on the same line if
+	 *  stdout is a terminal. If it is not, prints at most every 10 seconds
+	 *  and always at the end.
+	 *  @param finished True when the walk is done. Afterwards the next
+	 *      output goes to a new line. */
+	private void printWalkProgress(NodeFinder.Progress progress,
+			long startedAt, boolean finished) {
+		
+		long elapsedMillis = currentTimeMillis() - startedAt;
+		if(console == null && !finished
+				&& elapsedMillis - lastWalkProgressAt < 10 * 1000) {
+			return;
+		}
+		lastWalkProgressAt = elapsedMillis;
+		
+		if(needToOverwriteProgressLine)
+			console.printf("\33[A\33[2K\r");
+		
+		long directories = progress.getDirectories();
+		long files = progress.getFiles();
+		float elapsedSecs = (float)elapsedMillis / 1000f;
+		float nodesPerSec = elapsedSecs > 0
+			? (directories + files) / elapsedSecs : 0f;
+		String line = String.format("Found: %d dirs, %d files, %s, "
+			+ "depth %d @ %.1f files/dirs/s.%n", directories, files,
+			byteCountToDisplaySize(progress.getBytes()), progress.getDepth(),
+			nodesPerSec);
+		
+		if(console != null) {
+			console.printf("%s", line);
+			needToOverwriteProgressLine = !finished;
+		} else
+			out.print(line);
+	}
+
 	/** Function for splitting a set of work, in our case of files/directories
 	 *  to include in the checkpoint, into a set of batches for submission to a
 	 *  different {@link Worker} thread each.
@@ -352,6 +533,10 @@ public final class ConcurrentCheckpointGenerator
 		out.println("Is SSD:  " + solidStateDrive);
 		out.println("Threads: " + threadCount);
 		out.println("Buffer:  " + readBufferBytes);
+		if(throttle != null)
+			out.println("Throttle: " + throttle.getBytesPerSecond() + " B/s");
+		if(excludes != null)
+			out.println("Exclude patterns: " + excludes.size());
 		
 		// FIXME: Handle Thread.interrupt() gracefully, i.e. save the current
 		// progress.
@@ -361,8 +546,7 @@ public final class ConcurrentCheckpointGenerator
 			+ inputDir + "'... ");
 		// Convert to ArrayList since removeAndDivideWork() does shuffle() which
 		// needs a list which implements RandomAccess.
-		ArrayList<INode> nodes
-			= new ArrayList<INode>(new NodeFinder().findNodes(inputDir));
+		ArrayList<INode> nodes = new ArrayList<INode>(findNodes());
 		final int nodeCount = nodes.size();
 		out.println("Total files/dirs: " + nodeCount);
 		
@@ -461,14 +645,23 @@ public final class ConcurrentCheckpointGenerator
 		} else
 			checkpoint.setCompleteFlag(true);
 		
+		if(directoryHashes) {
+			out.println("Computing directory hashes...");
+			checkpoint.computeDirectoryHashes();
+		}
+		
 		out.println("Saving checkpoint to '" + outputDir + "'...");
-		checkpoint.save(outputDir);
+		checkpoint.save(outputDir, EnumSet.noneOf(TimestampTypes.class),
+			compress, indexes);
 		out.println("Done.");
 	}
 
 	private final Console console = System.console();
 	private boolean needToOverwriteProgressLine = false;
 	private double lastPrintedPercentage = -1;
+	/** Milliseconds since the walk started, see
+	 *  {@link #printWalkProgress(NodeFinder.Progress, long, boolean)}. */
+	private long lastWalkProgressAt = 0;
 
 	/** Prints progress info consisting of:
 	 *  - percentage
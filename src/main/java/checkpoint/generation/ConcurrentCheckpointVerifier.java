@@ -0,0 +1,459 @@
+package checkpoint.generation;
+
+import static checkpoint.serialization.ConcurrentCheckpointParser.getResult;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.err;
+import static java.lang.System.out;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import checkpoint.datamodel.ICheckpointReader;
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.ISHA256;
+import checkpoint.datamodel.ITimestamps;
+import checkpoint.datamodel.implementation.Timestamps;
+
+/** Verifies the files on disk against the nodes of an existing checkpoint,
+ *  i.e. detects files which were modified, deleted or silently corrupted
+ *  ("bit rot") since the checkpoint was created.
+ *
+ *  Uses the same threading as {@link ConcurrentCheckpointGenerator}: Each
+ *  worker thread has its own {@link JavaSHA256Generator}, and the defaults
+ *  for the amount of threads are the same. But the nodes are streamed from
+ *  the {@link ICheckpointReader} to the workers through a bounded queue
+ *  instead of loading them all first, so memory usage does not depend on
+ *  the size of the checkpoint and mismatches are reported as soon as they
+ *  are found. The order of the nodes is not relied upon, see
+ *  {@link CheckpointScrubber}.
+ *
+ *  Each mismatch is printed to stdout as a line in the syntax of the lines
+ *  of a checkpoint: "PATH \0 \t PROBLEM [\t PROBLEM]... \n", where the
+ *  PROBLEMs are the constants of this class. Failures are printed to stderr
+ *  additionally with their exception.
+ *
+ *  Directories are only checked for existing as such. Their timestamps are
+ *  not compared because they change whenever a node inside of them is
+ *  added or removed, which the verification of the nodes detects already. */
+public final class ConcurrentCheckpointVerifier {
+
+	/** The file or directory does not exist anymore. */
+	public static final String MISSING = "missing";
+	/** A file became a directory or vice versa, or a non-regular file. */
+	public static final String TYPE_CHANGED = "type";
+	public static final String SIZE_CHANGED = "size";
+	public static final String MTIME_CHANGED = "mtime";
+	public static final String CTIME_CHANGED = "ctime";
+	public static final String CONTENT_CHANGED = "content";
+	/** Reading the attributes or the content of the file failed. */
+	public static final String READ_FAILED = "read-failed";
+
+	public static enum Result {
+		/** All nodes were verified successfully. */
+		OK,
+		/** Nodes were modified, deleted or could not be read, or not all
+		 *  of them could be verified because the checkpoint is
+		 *  incomplete. */
+		CHANGED,
+		/** The content of a file differs even though its size and mtime are
+		 *  unchanged, which is what silent data corruption looks like:
+		 *  Legitimate modifications change the mtime. Thus the checkpoint
+		 *  must contain the mtime of the file, else it is merely
+		 *  {@link #CHANGED}. */
+		CORRUPTED
+	}
+
+	/** Work is passed to the workers in batches of at most this many nodes,
+	 *  to not wait for the queue for every small file. */
+	private static final int BATCH_NODES = 256;
+
+	/** In bytes. Also limits the batches by the size of their files so the
+	 *  workers finish at roughly the same time. */
+	private static final long BATCH_BYTES = 16 * 1024 * 1024;
+
+	/** Marks the end of the work for the workers. */
+	private static final List<INode> END_OF_WORK = new ArrayList<>(0);
+
+	private final Path inputDir;
+
+	private final ICheckpointReader checkpoint;
+
+	private final int threadCount;
+
+	/** See {@link ConcurrentCheckpointGenerator}. */
+	private final int readBufferBytes;
+
+	/** Null if reading is not throttled. */
+	private final IOThrottle throttle;
+
+	/** If true only the size and timestamps of files are compared, their
+	 *  content is not read. */
+	private final boolean quick;
+
+	private final boolean failFast;
+
+	/** Set once a mismatch was found if {@link #failFast} is true, or by
+	 *  {@link #isStopped()} once the {@link #deadline} has passed. */
+	private volatile boolean stopped = false;
+
+	/** In milliseconds since the epoch, see {@link #setDeadline(long)}. */
+	private long deadline = Long.MAX_VALUE;
+
+	/** Set once we were stopped due to the {@link #deadline}. */
+	private volatile boolean deadlinePassed = false;
+
+	/** Null if none was set by {@link #setListener(Listener)}. */
+	private Listener listener = null;
+
+	// The counts are guarded by synchronizing on this.
+	private long verifiedNodes = 0;
+	private long verifiedBytes = 0;
+	private long mismatchedNodes = 0;
+	private long corruptedFiles = 0;
+	/** Files whose hash is not available in the checkpoint, so their content
+	 *  cannot be verified. */
+	private long unverifiableFiles = 0;
+	private boolean complete = false;
+
+	/** Receives the result of each node which was verified. */
+	public interface Listener {
+		/** Called concurrently by the worker threads, but synchronized on
+		 *  the verifier.
+		 *  @param problems Empty if the node matched. */
+		void verified(INode n, List<String> problems);
+	}
+
+	/** @param threads Null for the default of
+	 *     {@link ConcurrentCheckpointGenerator} for the given type of disk. */
+	public ConcurrentCheckpointVerifier(Path inputDir,
+			ICheckpointReader checkpoint, boolean solidStateDrive,
+			Integer threads, int readBufferBytes, IOThrottle throttle,
+			boolean quick, boolean failFast) {
+		
+		this.inputDir
+			= requireNonNull(inputDir).toAbsolutePath().normalize();
+		this.checkpoint = requireNonNull(checkpoint);
+		if(threads != null)
+			this.threadCount = threads;
+		else {
+			this.threadCount = solidStateDrive
+				? ConcurrentCheckpointGenerator.DEFAULT_THREAD_COUNT_SSD
+				: ConcurrentCheckpointGenerator.DEFAULT_THREAD_COUNT_HDD;
+		}
+		this.readBufferBytes = readBufferBytes;
+		this.throttle = throttle;
+		this.quick = quick;
+		this.failFast = failFast;
+	}
+
+	/** Stop verifying once the given time in milliseconds since the epoch
+	 *  has passed. The hashing of files which is in progress then is
+	 *  interrupted, and they are not reported.
+	 *  Reaching the deadline is not considered as a mismatch, and the
+	 *  completeness of the checkpoint is not checked then.
+	 *  Must be called before {@link #run()}. */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/** Must be called before {@link #run()}. */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/** Verifies all nodes of the checkpoint, or until the first mismatch if
+	 *  failFast is true, and prints a summary to stderr.
+	 *
+	 *  TODO: Performance: For SSDs {@link ConcurrentCheckpointGenerator}
+	 *  shuffles the files, which needs all of them in memory. The threads
+	 *  process neighbouring files of the sorted checkpoint here. Shuffling
+	 *  each window of a few thousand nodes may help. */
+	public Result run() throws IOException, InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			BlockingQueue<List<INode>> queue
+				= new ArrayBlockingQueue<>(2 * threadCount);
+			ArrayList<Future<Void>> workers = new ArrayList<>(threadCount);
+			for(int i = 0; i < threadCount; ++i)
+				workers.add(executor.submit(new Worker(queue)));
+			
+			ArrayList<INode> batch = new ArrayList<>(BATCH_NODES);
+			long batchBytes = 0;
+			INode n;
+			while(!isStopped() && (n = checkpoint.next()) != null) {
+				batch.add(n);
+				batchBytes += n.getSize();
+				if(batch.size() >= BATCH_NODES || batchBytes >= BATCH_BYTES) {
+					submit(queue, batch, workers);
+					batch = new ArrayList<>(BATCH_NODES);
+					batchBytes = 0;
+				}
+			}
+			if(!isStopped()) {
+				complete = checkpoint.isComplete();
+				submit(queue, batch, workers);
+				for(int i = 0; i < threadCount; ++i)
+					submit(queue, END_OF_WORK, workers);
+			}
+			// Checked again as submit() gives up once we are stopped, so
+			// workers may wait for work which never comes. Also we don't want
+			// to wait for the hashing of large files to finish then.
+			if(isStopped())
+				executor.shutdownNow();
+			
+			// Also interrupt the hashing at the deadline while waiting.
+			executor.shutdown();
+			while(!executor.awaitTermination(1, SECONDS)) {
+				if(isStopped())
+					executor.shutdownNow();
+			}
+			for(Future<Void> w : workers)
+				getResult(w);
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		out.flush();
+		return printSummary();
+	}
+
+	/** Waits until there is space in the queue. Meanwhile checks whether a
+	 *  worker has failed, so we don't wait forever then. */
+	private void submit(BlockingQueue<List<INode>> queue, List<INode> batch,
+			List<Future<Void>> workers)
+			throws IOException, InterruptedException {
+		
+		while(!isStopped() && !queue.offer(batch, 1, SECONDS)) {
+			for(Future<Void> w : workers) {
+				if(w.isDone()) {
+					getResult(w);
+					throw new RuntimeException(
+						"BUG: Worker thread exited! Please report this!");
+				}
+			}
+		}
+	}
+
+	private final class Worker implements Callable<Void> {
+
+		private final BlockingQueue<List<INode>> queue;
+		
+		Worker(BlockingQueue<List<INode>> queue) {
+			this.queue = queue;
+		}
+		
+		@Override public Void call() {
+			Thread.currentThread().setName(
+				"ConcurrentCheckpointVerifier.Worker");
+			
+			// See ConcurrentCheckpointGenerator.Worker.call().
+			JavaSHA256Generator hasher
+				= new JavaSHA256Generator(readBufferBytes, throttle);
+			
+			ArrayList<String> problems = new ArrayList<>();
+			try {
+				List<INode> batch;
+				while((batch = queue.take()) != END_OF_WORK) {
+					for(INode n : batch) {
+						if(isStopped())
+							return null;
+						
+						long bytes = verify(n, hasher, problems);
+						report(n, bytes, problems);
+						problems.clear();
+					}
+				}
+			} catch(InterruptedException e) {
+				// Shutdown requested due to --fail-fast or the deadline, see
+				// verify().
+			}
+			return null;
+		}
+	}
+
+	/** Returns true if we were stopped, and stops us if the
+	 *  {@link #deadline} has passed. */
+	private boolean isStopped() {
+		if(!stopped && deadline != Long.MAX_VALUE
+				&& currentTimeMillis() >= deadline) {
+			deadlinePassed = true;
+			stopped = true;
+		}
+		return stopped;
+	}
+
+	/** Adds the problems of the given node to the given list and returns
+	 *  the amount of bytes which were hashed.
+	 *  @throws InterruptedException If we were stopped while hashing. */
+	long verify(INode n, ISHA256Generator hasher,
+			List<String> problems) throws InterruptedException {
+		
+		// INode.getPath() is relative to the inputDir.
+		Path pathOnDisk = inputDir.resolve(n.getPath());
+		Map<String, Object> attrs;
+		try {
+			// A single stat() for all of them.
+			attrs = Files.readAttributes(pathOnDisk,
+				"unix:isDirectory,isRegularFile,size,lastModifiedTime,ctime",
+				NOFOLLOW_LINKS);
+		} catch(NoSuchFileException e) {
+			problems.add(MISSING);
+			return 0;
+		} catch(IOException e) {
+			problems.add(READ_FAILED);
+			printFailure(n, e);
+			return 0;
+		}
+		
+		boolean isDirectory = (Boolean)attrs.get("isDirectory");
+		if(isDirectory != n.isDirectory()
+				|| (!isDirectory && !(Boolean)attrs.get("isRegularFile"))) {
+			problems.add(TYPE_CHANGED);
+			return 0;
+		}
+		if(isDirectory)
+			return 0;
+		
+		// A size of 0 in the checkpoint may mean unknown, see INode.getSize().
+		// The mtime will tell if an empty file was modified.
+		long size = (Long)attrs.get("size");
+		boolean sizeChanged = n.getSize() != 0 && n.getSize() != size;
+		if(sizeChanged)
+			problems.add(SIZE_CHANGED);
+		
+		ITimestamps t = n.getTimetamps();
+		if(t != null) {
+			if(changed(t.getModificationTime(),
+					(FileTime)attrs.get("lastModifiedTime")))
+				problems.add(MTIME_CHANGED);
+			if(changed(t.getStatusChangeTime(), (FileTime)attrs.get("ctime")))
+				problems.add(CTIME_CHANGED);
+		}
+		
+		if(quick)
+			return 0;
+		
+		ISHA256 expected = n.getHash();
+		if(expected == null) {
+			synchronized(this) {
+				++unverifiableFiles;
+			}
+			return 0;
+		}
+		// Files of a different size cannot have the same content, so save
+		// the I/O.
+		if(sizeChanged) {
+			problems.add(CONTENT_CHANGED);
+			return 0;
+		}
+		
+		try {
+			if(!expected.equals(hasher.sha256ofFile(pathOnDisk)))
+				problems.add(CONTENT_CHANGED);
+			return size;
+		} catch(IOException e) {
+			// Stopping interrupts the reading, which closes the channel.
+			// The file was not verified then, so it must neither be
+			// reported as a failure nor passed to the listener.
+			if(e instanceof ClosedByInterruptException || isStopped()) {
+				throw new InterruptedException(
+					"Stopped while reading: " + pathOnDisk);
+			}
+			problems.add(READ_FAILED);
+			printFailure(n, e);
+			return 0;
+		}
+	}
+
+	/** An unavailable timestamp of the checkpoint is not compared. */
+	private static boolean changed(Date expected, FileTime actual) {
+		return expected != null
+			&& !Timestamps.sameSecond(expected, new Date(actual.toMillis()));
+	}
+
+	private synchronized void report(INode n, long bytes,
+			List<String> problems) {
+		
+		++verifiedNodes;
+		verifiedBytes += bytes;
+		if(listener != null)
+			listener.verified(n, problems);
+		if(problems.isEmpty())
+			return;
+		
+		++mismatchedNodes;
+		// The mtime is unavailable e.g. in checkpoints which were filtered
+		// with --remove-timestamps m, and is not compared then.
+		ITimestamps t = n.getTimetamps();
+		boolean mtimeMatched = t != null && t.getModificationTime() != null
+			&& !problems.contains(MTIME_CHANGED);
+		if(problems.contains(CONTENT_CHANGED)
+				&& !problems.contains(SIZE_CHANGED) && mtimeMatched)
+			++corruptedFiles;
+		
+		ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+		byte[] path = n.getPath().toString().getBytes(UTF_8);
+		line.write(path, 0, path.length);
+		line.write('\0');
+		for(String p : problems) {
+			line.write('\t');
+			byte[] bytesOfProblem = p.getBytes(UTF_8);
+			line.write(bytesOfProblem, 0, bytesOfProblem.length);
+		}
+		line.write('\n');
+		out.write(line.toByteArray(), 0, line.size());
+		
+		if(failFast)
+			stopped = true;
+	}
+
+	private synchronized void printFailure(INode n, IOException e) {
+		err.println("Reading failed for '" + n.getPath() + "': " + e);
+	}
+
+	private synchronized Result printSummary() {
+		err.println("Verified: " + verifiedNodes + " nodes, "
+			+ verifiedBytes + " bytes hashed");
+		err.println("Mismatched: " + mismatchedNodes);
+		err.println("Corrupted: " + corruptedFiles);
+		if(unverifiableFiles > 0) {
+			err.println("Not verifiable as their hash is not available in "
+				+ "the checkpoint: " + unverifiableFiles);
+		}
+		if(deadlinePassed)
+			err.println("Stopped as the deadline has passed.");
+		else if(stopped)
+			err.println("Stopped at the first mismatch due to --fail-fast.");
+		else if(!complete) {
+			err.println("WARNING: The checkpoint is incomplete, not all "
+				+ "files were verified.");
+		}
+		
+		if(corruptedFiles > 0)
+			return Result.CORRUPTED;
+		else if(mismatchedNodes > 0 || (!complete && !deadlinePassed))
+			return Result.CHANGED;
+		else
+			return Result.OK;
+	}
+
+}
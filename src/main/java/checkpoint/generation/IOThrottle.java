@@ -0,0 +1,51 @@
+package checkpoint.generation;
+
+import static java.lang.Math.max;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/** Limits the rate at which files are read to a given amount of bytes per
+ *  second, so generating or verifying checkpoints on a live system does not
+ *  starve other users of the disk.
+ *
+ *  Shared by all threads of a {@link ConcurrentCheckpointGenerator} or
+ *  {@link ConcurrentCheckpointVerifier}, each of which passes it to its
+ *  {@link JavaSHA256Generator}, so the limit applies to their sum.
+ *  Thread-safe. */
+public final class IOThrottle {
+
+	private final long bytesPerSecond;
+
+	/** {@link System#nanoTime()} at which the bytes which were acquired so
+	 *  far will have been read at the desired rate.
+	 *  If it is in the past we have been idle, which is not carried over to
+	 *  allow a burst afterwards. */
+	private long nextFreeAt = nanoTime();
+
+	public IOThrottle(long bytesPerSecond) {
+		if(bytesPerSecond < 1)
+			throw new IllegalArgumentException(
+				"Invalid rate: " + bytesPerSecond);
+		
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	/** Called after the given amount of bytes was read, sleeps as long as
+	 *  needed to stay at the rate. */
+	public void acquire(long bytes) throws InterruptedException {
+		long sleep;
+		synchronized(this) {
+			long now = nanoTime();
+			nextFreeAt = max(nextFreeAt, now);
+			// As double because bytes * 10^9 would overflow at 9 GB already.
+			nextFreeAt += (long)((double)bytes / bytesPerSecond * 1e9);
+			sleep = nextFreeAt - now;
+		}
+		NANOSECONDS.sleep(sleep);
+	}
+
+	public long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+}
@@ -55,17 +55,53 @@ public final class JavaSHA256Generator implements ISHA256Generator {
 	 *  files in typical usage of Checkpoint. */
 	private final ByteBuffer buffer;
 
+	/** Null if the reading is not throttled. */
+	private final IOThrottle throttle;
+
 	public JavaSHA256Generator() {
 		this(DEFAULT_READ_BUFFER_SIZE);
 	}
 
 	public JavaSHA256Generator(int readBufferBytes) {
+		this(readBufferBytes, null);
+	}
+
+	/** @param throttle Null to read as fast as possible. */
+	public JavaSHA256Generator(int readBufferBytes, IOThrottle throttle) {
 		buffer = ByteBuffer.allocate(readBufferBytes);
+		this.throttle = throttle;
 	}
 
 	public SHA256 sha256ofFile(Path p)
 			throws IOException, InterruptedException {
 		
+		return sha256ofFile(p, -1);
+	}
+
+	/** Thrown by {@link JavaSHA256Generator#sha256ofFile(Path, long)}. */
+	@SuppressWarnings("serial")
+	public static final class FileChangedException extends IOException {
+		FileChangedException(String message) {
+			super(message);
+		}
+	}
+
+	/** Same as {@link #sha256ofFile(Path)} but throws
+	 *  {@link FileChangedException} if the file does not have the expected
+	 *  size anymore, e.g. the one {@link NodeFinder} saw during the walk:
+	 *  After reading, the size is obtained from the open channel, which is a
+	 *  cheap fstat() instead of a stat() which would need to resolve the
+	 *  path again, and compared to the expected one and to the amount of
+	 *  bytes which were read. So modifications since the size was obtained
+	 *  which change the size are detected, also if they happened while we
+	 *  were reading.
+	 *  TODO: Java offers no API for the fstat() of the timestamps of an open
+	 *  channel, with it we could also detect modifications which keep the
+	 *  size.
+	 *  @param expectedSize -1 to not check it. */
+	public SHA256 sha256ofFile(Path p, long expectedSize)
+			throws IOException, InterruptedException {
+		
 		// TODO: Performance: Recycle the MessageDigest objects using reset(),
 		// by changing this class to be non-immutable = having this function
 		// (and sha256fromString()) not be static and storing the MessageDigest
@@ -87,7 +123,10 @@ public final class JavaSHA256Generator implements ISHA256Generator {
 			// First make sure to read the warnings about that at ByteBuffer's
 			// top-level JavaDoc.
 			buffer.clear();
-			while(channel.read(buffer) > 0) {
+			long totalRead = 0;
+			int read;
+			while((read = channel.read(buffer)) > 0) {
+				totalRead += read;
 				// FIXME: The Oracle Java tutorial wrongly says we should
 				// rewind() the buffer before md.update() and then flip() it
 				// afterwards, at section "Reading, Writing and Creating files"
@@ -103,12 +142,25 @@ public final class JavaSHA256Generator implements ISHA256Generator {
 				// counters of the buffer, so this is fine to use w.r.t. speed.
 				buffer.clear();
 				
+				// Also obeys interruption.
+				if(throttle != null)
+					throttle.acquire(read);
+				
 				// TODO: Performance: Try if checking this only every N'th
 				// iteration provides a noticeable improvement.
 				if(thread.isInterrupted())
 					throw new InterruptedException();
 			}
 			
+			if(expectedSize != -1) {
+				long size = channel.size();
+				if(size != expectedSize || totalRead != expectedSize) {
+					throw new FileChangedException("File was modified, size "
+						+ "was " + expectedSize + " bytes, read " + totalRead
+						+ ", now " + size + ": " + p);
+				}
+			}
+			
 			return SHA256.construct(md.digest());
 		} finally {
 			channel.close();
@@ -0,0 +1,309 @@
+package checkpoint.serialization;
+
+import static checkpoint.datamodel.implementation.Node.constructNode;
+import static checkpoint.datamodel.implementation.Timestamps.timestampsFromDates;
+import static checkpoint.serialization.BinaryFormat.FLAG_ACCESS_TIME;
+import static checkpoint.serialization.BinaryFormat.FLAG_DIRECTORY;
+import static checkpoint.serialization.BinaryFormat.FLAG_HASH;
+import static checkpoint.serialization.BinaryFormat.FLAG_MILLISECONDS;
+import static checkpoint.serialization.BinaryFormat.FLAG_MODIFICATION_TIME;
+import static checkpoint.serialization.BinaryFormat.FLAG_STATUS_CHANGE_TIME;
+import static checkpoint.serialization.BinaryFormat.FLAG_TIMESTAMPS;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumSet;
+
+import checkpoint.datamodel.ICheckpointReader;
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.ISHA256;
+import checkpoint.datamodel.ITimestamps;
+import checkpoint.datamodel.ITimestamps.TimestampTypes;
+import checkpoint.datamodel.implementation.SHA256;
+import checkpoint.serialization.BinaryFormat.Column;
+
+/** Reads the binary format described at {@link BinaryFormat}.
+ *  
+ *  Can read only a subset of the {@link Column}s to speed up tools which e.g.
+ *  only need the hashes, see {@link #open(Path, EnumSet)}. */
+public final class BinaryCheckpointReader implements ICheckpointReader {
+
+	private final Path checkpointDir;
+
+	private final FileChannel channel;
+
+	private final EnumSet<Column> columns;
+
+	private final EnumSet<TimestampTypes> timestampsFilter;
+
+	/** Offset in the file of the next block. */
+	private long position;
+
+	/** The data of the current block, indexed by {@link Column#ordinal()}.
+	 *  The buffers are reused for all blocks. Null for columns which are not
+	 *  read. */
+	private final ByteBuffer[] columnData
+		= new ByteBuffer[Column.values().length];
+
+	private int nodesLeftInBlock = 0;
+
+	/** Whether the next node is the first one of the current block. */
+	private boolean firstInBlock;
+
+	/** The UTF-8 bytes of the path of the current node. Swapped with
+	 *  {@link #previousPath} for each node to avoid copying. */
+	private byte[] path = new byte[4096];
+
+	private int pathLength = -1;
+
+	private byte[] previousPath = new byte[4096];
+
+	private boolean endMarkerRead = false;
+
+	private boolean complete;
+
+	private BinaryCheckpointReader(Path checkpointDir, EnumSet<Column> columns)
+			throws IOException {
+		
+		this.checkpointDir = checkpointDir;
+		this.columns = EnumSet.copyOf(columns);
+		// We need those to construct the nodes at all.
+		this.columns.add(Column.Paths);
+		this.columns.add(Column.Flags);
+		for(Column c : this.columns)
+			columnData[c.ordinal()] = ByteBuffer.allocate(64 * 1024);
+		
+		channel = FileChannel.open(checkpointDir.resolve(BinaryFormat.FILENAME),
+			READ);
+		try {
+			ByteBuffer header = read(BinaryFormat.MAGIC.length + 4 + 1);
+			byte[] magic = new byte[BinaryFormat.MAGIC.length];
+			header.get(magic);
+			if(!Arrays.equals(magic, BinaryFormat.MAGIC))
+				throw new IOException("Not a binary checkpoint!");
+			int version = header.getInt();
+			if(version != BinaryFormat.VERSION) {
+				throw new IOException(
+					"Unsupported version of binary checkpoint: " + version);
+			}
+			timestampsFilter
+				= BinaryFormat.decodeTimestampsFilter(header.get());
+		} catch(IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/** Only reads the given columns. {@link Column#Paths} and
+	 *  {@link Column#Flags} are always read.
+	 *  WARNING: The nodes which {@link #next()} returns will lack the data of
+	 *  the other columns: Their hashes will be null as if hashing failed, the
+	 *  dates of their timestamps null, their sizes 0. */
+	public static BinaryCheckpointReader open(Path checkpointDir,
+			EnumSet<Column> columns) throws IOException {
+		
+		return new BinaryCheckpointReader(checkpointDir, columns);
+	}
+
+	/** Reads all columns. */
+	public static BinaryCheckpointReader open(Path checkpointDir)
+			throws IOException {
+		
+		return open(checkpointDir, EnumSet.allOf(Column.class));
+	}
+
+	@Override public INode next() throws IOException {
+		if(endMarkerRead)
+			return null;
+		
+		try {
+			if(nodesLeftInBlock == 0 && !readBlock())
+				return null;
+			
+			--nodesLeftInBlock;
+			return readNode();
+		} catch(BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("Invalid binary checkpoint!", e);
+		}
+	}
+
+	/** Returns false if the end marker was read instead of a block. */
+	private boolean readBlock() throws IOException {
+		int nodes = read(4).getInt();
+		if(nodes == 0) {
+			ByteBuffer trailer = read(1 + BinaryFormat.MAGIC.length);
+			complete = (trailer.get() == 1);
+			byte[] magic = new byte[BinaryFormat.MAGIC.length];
+			trailer.get(magic);
+			if(!Arrays.equals(magic, BinaryFormat.MAGIC))
+				throw new IOException("Invalid end marker!");
+			endMarkerRead = true;
+			return false;
+		}
+		if(nodes < 0)
+			throw new IOException("Invalid amount of nodes: " + nodes);
+		
+		Column[] all = Column.values();
+		ByteBuffer header = read(4 * all.length);
+		long offset = position;
+		for(Column c : all) {
+			int length = header.getInt();
+			if(length < 0)
+				throw new IOException("Invalid length of column: " + c);
+			
+			if(columns.contains(c)) {
+				ByteBuffer data = columnData[c.ordinal()];
+				if(data.capacity() < length) {
+					data = ByteBuffer.allocate(Math.max(length,
+						2 * data.capacity()));
+					columnData[c.ordinal()] = data;
+				}
+				data.clear();
+				data.limit(length);
+				while(data.hasRemaining()) {
+					if(channel.read(data, offset + data.position()) < 0)
+						throw truncated();
+				}
+				data.flip();
+			}
+			offset += length;
+		}
+		position = offset;
+		
+		nodesLeftInBlock = nodes;
+		firstInBlock = true;
+		return true;
+	}
+
+	private INode readNode() throws IOException {
+		ByteBuffer paths = columnData[Column.Paths.ordinal()];
+		int shared = (int)readVarint(paths);
+		int suffix = (int)readVarint(paths);
+		if(shared < 0 || suffix < 0 || (firstInBlock && shared != 0)
+				|| shared > Math.max(pathLength, 0))
+			throw new IOException("Invalid path encoding!");
+		firstInBlock = false;
+		
+		// Keep the previous path to check the order.
+		byte[] previous = path;
+		int previousLength = pathLength;
+		path = previousPath;
+		previousPath = previous;
+		if(shared + suffix > path.length)
+			path = new byte[Math.max(2 * path.length, shared + suffix)];
+		System.arraycopy(previous, 0, path, 0, shared);
+		paths.get(path, shared, suffix);
+		pathLength = shared + suffix;
+		if(previousLength >= 0 && CheckpointParser.compareUnsigned(
+				previous, previousLength, path, 0, pathLength) >= 0) {
+			throw new IOException("Checkpoint is not sorted, or contains "
+				+ "duplicates, at: " + new String(path, 0, pathLength, UTF_8));
+		}
+		Path p = Paths.get(new String(path, 0, pathLength, UTF_8));
+		
+		int flags = columnData[Column.Flags.ordinal()].get();
+		boolean isDirectory = (flags & FLAG_DIRECTORY) != 0;
+		
+		long size = 0;
+		ByteBuffer sizes = columnData[Column.Sizes.ordinal()];
+		if(sizes != null)
+			size = readVarint(sizes);
+		
+		ISHA256 hash = null;
+		if((flags & FLAG_HASH) != 0) {
+			ByteBuffer hashes = columnData[Column.Hashes.ordinal()];
+			if(hashes != null) {
+				byte[] bytes = new byte[32];
+				hashes.get(bytes);
+				hash = SHA256.construct(bytes);
+			}
+		}
+		
+		ITimestamps timestamps = null;
+		if((flags & FLAG_TIMESTAMPS) != 0) {
+			Date atime = readDate(Column.AccessTimes, flags, FLAG_ACCESS_TIME);
+			Date ctime = readDate(Column.StatusChangeTimes, flags,
+				FLAG_STATUS_CHANGE_TIME);
+			Date mtime = readDate(Column.ModificationTimes, flags,
+				FLAG_MODIFICATION_TIME);
+			timestamps = timestampsFromDates(atime, ctime, mtime);
+		}
+		
+		return constructNode(p, isDirectory, size, hash, timestamps);
+	}
+
+	private Date readDate(Column column, int flags, int flag) {
+		ByteBuffer data = columnData[column.ordinal()];
+		if((flags & flag) == 0 || data == null)
+			return null;
+		
+		if((flags & FLAG_MILLISECONDS) != 0)
+			return new Date(data.getLong());
+		
+		// TODO: Java 8: Use Math.floorDiv().
+		long nanos = data.getLong();
+		long millis = nanos / 1000000;
+		if(nanos % 1000000 < 0)
+			--millis;
+		return new Date(millis);
+	}
+
+	private static long readVarint(ByteBuffer b) throws IOException {
+		long result = 0;
+		for(int shift = 0; shift < 64; shift += 7) {
+			byte value = b.get();
+			result |= (long)(value & 0x7F) << shift;
+			if(value >= 0)
+				return result;
+		}
+		throw new IOException("Invalid varint!");
+	}
+
+	/** Reads the given amount of bytes at the {@link #position} and advances
+	 *  it. */
+	private ByteBuffer read(int bytes) throws IOException {
+		ByteBuffer result = ByteBuffer.allocate(bytes);
+		while(result.hasRemaining()) {
+			if(channel.read(result, position + result.position()) < 0)
+				throw truncated();
+		}
+		position += bytes;
+		result.flip();
+		return result;
+	}
+
+	private static IOException truncated() {
+		return new IOException(
+			"Checkpoint is truncated, end marker is missing!");
+	}
+
+	@Override public boolean isComplete() {
+		if(!endMarkerRead) {
+			throw new IllegalStateException(
+				"next() has not returned null yet!");
+		}
+		return complete;
+	}
+
+	@Override public Path getCheckpointDir() {
+		return checkpointDir;
+	}
+
+	/** The filter which was passed to {@link BinaryCheckpointWriter}. */
+	public EnumSet<TimestampTypes> getTimestampsFilter() {
+		return EnumSet.copyOf(timestampsFilter);
+	}
+
+	@Override public void close() throws IOException {
+		channel.close();
+	}
+
+}
@@ -0,0 +1,309 @@
+package checkpoint.serialization;
+
+import static checkpoint.datamodel.ITimestamps.TimestampTypes.AccessTime;
+import static checkpoint.datamodel.ITimestamps.TimestampTypes.ModificationTime;
+import static checkpoint.datamodel.ITimestamps.TimestampTypes.StatusChangeTime;
+import static checkpoint.serialization.BinaryFormat.FLAG_ACCESS_TIME;
+import static checkpoint.serialization.BinaryFormat.FLAG_DIRECTORY;
+import static checkpoint.serialization.BinaryFormat.FLAG_HASH;
+import static checkpoint.serialization.BinaryFormat.FLAG_MILLISECONDS;
+import static checkpoint.serialization.BinaryFormat.FLAG_MODIFICATION_TIME;
+import static checkpoint.serialization.BinaryFormat.FLAG_STATUS_CHANGE_TIME;
+import static checkpoint.serialization.BinaryFormat.FLAG_TIMESTAMPS;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumSet;
+
+import checkpoint.datamodel.ICheckpointWriter;
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.ISHA256;
+import checkpoint.datamodel.ITimestamps;
+import checkpoint.datamodel.ITimestamps.TimestampTypes;
+import checkpoint.serialization.BinaryFormat.Column;
+
+/** Writes the binary format described at {@link BinaryFormat}.
+ *  Like {@link CheckpointWriter} it writes to a temporary file which replaces
+ *  an existing checkpoint only in {@link #finish(boolean)}. */
+public final class BinaryCheckpointWriter implements ICheckpointWriter {
+
+	private final Path outputFilePath;
+
+	private final Path tempFilePath;
+
+	private final EnumSet<TimestampTypes> timestampsFilter;
+
+	private final boolean writeAccess;
+	private final boolean writeChange;
+	private final boolean writeModify;
+
+	private final FileChannel channel;
+
+	/** The data of the current block, indexed by {@link Column#ordinal()}. */
+	private final ColumnBuffer[] columns
+		= new ColumnBuffer[Column.values().length];
+
+	private int nodesInBlock = 0;
+
+	/** The UTF-8 bytes of the path of the previous node, for front-coding and
+	 *  for checking the order. */
+	private byte[] previousPath = new byte[4096];
+
+	/** -1 if no node was added yet. */
+	private int previousPathLength = -1;
+
+	private boolean finished = false;
+
+	private BinaryCheckpointWriter(Path checkpointDir,
+			EnumSet<TimestampTypes> timestampsFilter) throws IOException {
+		
+		this.timestampsFilter = EnumSet.copyOf(timestampsFilter);
+		writeAccess = !timestampsFilter.contains(AccessTime);
+		writeChange = !timestampsFilter.contains(StatusChangeTime);
+		writeModify = !timestampsFilter.contains(ModificationTime);
+		for(int i = 0; i < columns.length; ++i)
+			columns[i] = new ColumnBuffer();
+		
+		outputFilePath = CheckpointWriter.prepareOutputDir(checkpointDir,
+			BinaryFormat.FILENAME);
+		tempFilePath = Files.createTempFile(checkpointDir,
+			BinaryFormat.FILENAME + ".", ".tmp");
+		try {
+			channel = FileChannel.open(tempFilePath, WRITE, TRUNCATE_EXISTING);
+			
+			ByteBuffer header = ByteBuffer.allocate(BinaryFormat.MAGIC.length
+				+ 4 + 1);
+			header.put(BinaryFormat.MAGIC);
+			header.putInt(BinaryFormat.VERSION);
+			header.put(BinaryFormat.encodeTimestampsFilter(timestampsFilter));
+			header.flip();
+			write(header);
+		} catch(IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/** Will exclude the given {@link TimestampTypes} when writing. */
+	public static BinaryCheckpointWriter open(Path checkpointDir,
+			EnumSet<TimestampTypes> timestampsFilter) throws IOException {
+		
+		return new BinaryCheckpointWriter(checkpointDir, timestampsFilter);
+	}
+
+	public static BinaryCheckpointWriter open(Path checkpointDir)
+			throws IOException {
+		
+		return open(checkpointDir, EnumSet.noneOf(TimestampTypes.class));
+	}
+
+	@Override public void addNode(INode n)
+			throws IOException, IllegalArgumentException {
+		
+		if(finished)
+			throw new IllegalStateException("finish() was called already!");
+		
+		// TODO: Performance: Encode without creating a new array, see
+		// NodeFormatter.
+		byte[] path = n.getPath().toString().getBytes(UTF_8);
+		if(previousPathLength >= 0 && CheckpointParser.compareUnsigned(
+				previousPath, previousPathLength, path, 0, path.length) >= 0) {
+			throw new IllegalArgumentException(
+				"Nodes not added in sorted order, or duplicate: "
+				+ n.getPath());
+		}
+		
+		int shared = 0;
+		if(nodesInBlock > 0) {
+			int max = Math.min(previousPathLength, path.length);
+			while(shared < max && previousPath[shared] == path[shared])
+				++shared;
+		}
+		ColumnBuffer paths = columns[Column.Paths.ordinal()];
+		paths.putVarint(shared);
+		paths.putVarint(path.length - shared);
+		paths.put(path, shared, path.length - shared);
+		
+		if(previousPath.length < path.length)
+			previousPath = new byte[path.length];
+		System.arraycopy(path, 0, previousPath, 0, path.length);
+		previousPathLength = path.length;
+		
+		int flags = 0;
+		if(n.isDirectory())
+			flags |= FLAG_DIRECTORY;
+		ISHA256 hash = n.getHash();
+		if(hash != null) {
+			flags |= FLAG_HASH;
+			columns[Column.Hashes.ordinal()].put(hash.toBytes());
+		}
+		
+		ITimestamps t = n.getTimetamps();
+		if(t != null) {
+			flags |= FLAG_TIMESTAMPS;
+			Date atime = writeAccess ? t.getAccessTime() : null;
+			Date ctime = writeChange ? t.getStatusChangeTime() : null;
+			Date mtime = writeModify ? t.getModificationTime() : null;
+			
+			boolean millis = !fitsNanoseconds(atime)
+				|| !fitsNanoseconds(ctime) || !fitsNanoseconds(mtime);
+			if(millis)
+				flags |= FLAG_MILLISECONDS;
+			if(putDate(Column.AccessTimes, atime, millis))
+				flags |= FLAG_ACCESS_TIME;
+			if(putDate(Column.StatusChangeTimes, ctime, millis))
+				flags |= FLAG_STATUS_CHANGE_TIME;
+			if(putDate(Column.ModificationTimes, mtime, millis))
+				flags |= FLAG_MODIFICATION_TIME;
+		}
+		
+		columns[Column.Flags.ordinal()].putByte(flags);
+		columns[Column.Sizes.ordinal()].putVarint(n.getSize());
+		
+		if(++nodesInBlock == BinaryFormat.NODES_PER_BLOCK)
+			writeBlock();
+	}
+
+	private static boolean fitsNanoseconds(Date date) {
+		if(date == null)
+			return true;
+		
+		long millis = date.getTime();
+		return millis >= Long.MIN_VALUE / 1000000
+			&& millis <= Long.MAX_VALUE / 1000000;
+	}
+
+	/** Returns false if the date is null. */
+	private boolean putDate(Column column, Date date, boolean millis) {
+		if(date == null)
+			return false;
+		
+		// TODO: Java 8: Store the full precision of the FileTime once
+		// ITimestamps provides Instant instead of Date.
+		columns[column.ordinal()].putLong(millis ? date.getTime()
+		                                         : date.getTime() * 1000000L);
+		return true;
+	}
+
+	private void writeBlock() throws IOException {
+		if(nodesInBlock == 0)
+			return;
+		
+		ByteBuffer header = ByteBuffer.allocate(4 + 4 * columns.length);
+		header.putInt(nodesInBlock);
+		for(ColumnBuffer c : columns)
+			header.putInt(c.length);
+		header.flip();
+		
+		ByteBuffer[] buffers = new ByteBuffer[1 + columns.length];
+		buffers[0] = header;
+		for(int i = 0; i < columns.length; ++i) {
+			buffers[i + 1]
+				= ByteBuffer.wrap(columns[i].data, 0, columns[i].length);
+		}
+		write(buffers);
+		
+		for(ColumnBuffer c : columns)
+			c.length = 0;
+		nodesInBlock = 0;
+	}
+
+	private void write(ByteBuffer... buffers) throws IOException {
+		long remaining = 0;
+		for(ByteBuffer b : buffers)
+			remaining += b.remaining();
+		
+		while(remaining > 0)
+			remaining -= channel.write(buffers);
+	}
+
+	@Override public void finish(boolean isComplete) throws IOException {
+		if(finished)
+			throw new IllegalStateException("finish() was called already!");
+		
+		writeBlock();
+		
+		ByteBuffer trailer = ByteBuffer.allocate(4 + 1
+			+ BinaryFormat.MAGIC.length);
+		trailer.putInt(0);
+		trailer.put((byte)(isComplete ? 1 : 0));
+		trailer.put(BinaryFormat.MAGIC);
+		trailer.flip();
+		write(trailer);
+		channel.close();
+		
+		// TODO: fsync(), see CheckpointWriter.finish().
+		Files.move(tempFilePath, outputFilePath, ATOMIC_MOVE, REPLACE_EXISTING);
+		finished = true;
+	}
+
+	@Override public void close() throws IOException {
+		try {
+			if(channel != null)
+				channel.close();
+		} finally {
+			if(!finished)
+				Files.deleteIfExists(tempFilePath);
+		}
+	}
+
+	@Override public EnumSet<TimestampTypes> getTimestampsFilter() {
+		return EnumSet.copyOf(timestampsFilter);
+	}
+
+	/** Growable array of the data of a {@link Column} of the current block. */
+	private static final class ColumnBuffer {
+
+		byte[] data = new byte[64 * 1024];
+
+		int length = 0;
+
+		void putByte(int b) {
+			ensureCapacity(1);
+			data[length++] = (byte)b;
+		}
+
+		void putVarint(long value) {
+			ensureCapacity(10);
+			while((value & ~0x7FL) != 0) {
+				data[length++] = (byte)((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			data[length++] = (byte)value;
+		}
+
+		void putLong(long value) {
+			ensureCapacity(8);
+			for(int shift = 56; shift >= 0; shift -= 8)
+				data[length++] = (byte)(value >>> shift);
+		}
+
+		void put(byte[] bytes) {
+			put(bytes, 0, bytes.length);
+		}
+
+		void put(byte[] bytes, int offset, int count) {
+			ensureCapacity(count);
+			System.arraycopy(bytes, offset, data, length, count);
+			length += count;
+		}
+
+		private void ensureCapacity(int additionalBytes) {
+			if(length + additionalBytes > data.length) {
+				data = Arrays.copyOf(data,
+					Math.max(data.length * 2, length + additionalBytes));
+			}
+		}
+	}
+
+}
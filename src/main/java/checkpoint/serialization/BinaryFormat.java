@@ -0,0 +1,104 @@
+package checkpoint.serialization;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.util.EnumSet;
+
+import checkpoint.datamodel.ITimestamps.TimestampTypes;
+
+/** Constants of the compact binary file format which
+ *  {@link BinaryCheckpointWriter} writes and {@link BinaryCheckpointReader}
+ *  reads. It is an optional alternative to the {@link TextFormat} for use by
+ *  automation, the text format stays the default as it is human-readable.
+ *  
+ *  All numbers are big-endian. "varint" means an unsigned LEB128 number, i.e.
+ *  7 bits per byte with the highest bit set on all but the last byte.
+ *  
+ *  The file consists of:
+ *  - the {@link #MAGIC}, the {@link #VERSION} as int and the timestamps
+ *    filter as byte with bit (1 << ordinal) set for each filtered
+ *    {@link TimestampTypes}.
+ *  - blocks of up to {@link #NODES_PER_BLOCK} nodes in the order of the
+ *    nodes. Each block consists of the int amount of nodes in it, an int per
+ *    {@link Column} with the amount of bytes of its data in the block, and
+ *    then the data of the columns in the order of {@link Column}.
+ *    As the lengths are known upfront readers can skip columns they don't
+ *    need, and the blocks bound the memory usage of reading and writing.
+ *  - the end marker: an int 0 as if it was a block without nodes, a byte of
+ *    1 if the checkpoint is complete or 0 otherwise, and the {@link #MAGIC}
+ *    again so truncation can be detected. */
+public final class BinaryFormat {
+
+	public static final String FILENAME = "checkpoint.bin";
+
+	public static final byte[] MAGIC = "CHKPTBIN".getBytes(US_ASCII);
+
+	public static final int VERSION = 1;
+
+	public static final int NODES_PER_BLOCK = 64 * 1024;
+
+	/** The columns of each block, in the order in which they are stored. */
+	public static enum Column {
+		/** Front-coded paths: For each node a varint of the amount of bytes
+		 *  which its path shares with the beginning of the previous one in the
+		 *  block, a varint of the amount of remaining bytes, and the remaining
+		 *  UTF-8 bytes. The first path of each block is stored fully so blocks
+		 *  can be decoded independently. */
+		Paths,
+		/** A byte of {@link BinaryFormat#FLAG_DIRECTORY} etc. per node. */
+		Flags,
+		/** A varint per node, see {@link checkpoint.datamodel.INode#getSize()}.
+		 */
+		Sizes,
+		/** The raw 32 bytes of the SHA256 for each node which has
+		 *  {@link BinaryFormat#FLAG_HASH}. */
+		Hashes,
+		/** A long of nanoseconds since the epoch for each node which has
+		 *  {@link BinaryFormat#FLAG_ACCESS_TIME}, or of milliseconds if it
+		 *  has {@link BinaryFormat#FLAG_MILLISECONDS}. */
+		AccessTimes,
+		/** Same as {@link #AccessTimes} for
+		 *  {@link BinaryFormat#FLAG_STATUS_CHANGE_TIME}. */
+		StatusChangeTimes,
+		/** Same as {@link #AccessTimes} for
+		 *  {@link BinaryFormat#FLAG_MODIFICATION_TIME}. */
+		ModificationTimes
+	}
+
+	public static final int FLAG_DIRECTORY = 1;
+	/** Not set if the hash is not available, see
+	 *  {@link checkpoint.datamodel.INode#getHash()}. */
+	public static final int FLAG_HASH = 2;
+	/** Not set if reading the timestamps failed. */
+	public static final int FLAG_TIMESTAMPS = 4;
+	/** The timestamp flags are only set if {@link #FLAG_TIMESTAMPS} is and
+	 *  the individual timestamp is not null.
+	 *  The birth time is always null so it is not stored, see
+	 *  {@link checkpoint.datamodel.ITimestamps#getBirthTime()}. */
+	public static final int FLAG_ACCESS_TIME = 8;
+	public static final int FLAG_STATUS_CHANGE_TIME = 16;
+	public static final int FLAG_MODIFICATION_TIME = 32;
+	/** Set if the timestamps of the node are stored as milliseconds instead
+	 *  of nanoseconds since the epoch because they are outside of the range
+	 *  of the latter, which is about the years 1678 to 2261. */
+	public static final int FLAG_MILLISECONDS = 64;
+
+	static byte encodeTimestampsFilter(EnumSet<TimestampTypes> filter) {
+		int result = 0;
+		for(TimestampTypes t : filter)
+			result |= 1 << t.ordinal();
+		return (byte)result;
+	}
+
+	static EnumSet<TimestampTypes> decodeTimestampsFilter(byte filter) {
+		EnumSet<TimestampTypes> result = EnumSet.noneOf(TimestampTypes.class);
+		for(TimestampTypes t : TimestampTypes.values()) {
+			if((filter & (1 << t.ordinal())) != 0)
+				result.add(t);
+		}
+		return result;
+	}
+
+	private BinaryFormat() {}
+
+}
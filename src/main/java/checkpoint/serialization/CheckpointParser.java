@@ -0,0 +1,756 @@
+package checkpoint.serialization;
+
+import static checkpoint.datamodel.implementation.Node.constructNode;
+import static checkpoint.datamodel.implementation.Timestamps.timestampsFromDates;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Scanner;
+
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.ISHA256;
+import checkpoint.datamodel.ITimestamps;
+import checkpoint.datamodel.implementation.Checkpoint;
+import checkpoint.datamodel.implementation.Checkpoint.PathComparator;
+import checkpoint.datamodel.implementation.SHA256;
+import checkpoint.serialization.TextFormat.EOFPaths;
+
+/** Parses the plain-text format described at {@link TextFormat} one
+ *  {@link INode} at a time.
+ *  
+ *  Replaces the former implementation of {@link Checkpoint#load(Path)} which
+ *  used {@link Scanner} with regular expressions, a HashMap per line and
+ *  {@link SimpleDateFormat} for every date. That took minutes for a checkpoint
+ *  of a few million lines.
+ *  Instead we scan the raw bytes in a large buffer for the fixed delimiters
+ *  \0, \t and \n and decode the hashes and dates by hand. Only the paths are
+ *  converted to Strings because {@link Path} requires that.
+ *  
+ *  Not thread-safe, use a separate instance per thread. */
+public final class CheckpointParser {
+
+	/** In bytes. Large enough to make the per-read() overhead of the channel
+	 *  negligible, small enough to not matter for memory usage.
+	 *  The buffer is grown automatically if a single line is larger. */
+	public static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	/** In bytes. {@link #findPath(FileChannel, byte[])} parses ranges of at
+	 *  most this size linearly instead of searching them further. */
+	private static final int SEARCH_BLOCK_SIZE = 64 * 1024;
+
+	/** In bytes, for {@link #findPath(FileChannel, byte[])}. Will be grown
+	 *  automatically if a node is larger. */
+	static final int SEARCH_BUFFER_SIZE = 4 * 1024;
+
+	/** Null if we read from a {@link #file} instead. */
+	private final ReadableByteChannel channel;
+
+	/** If non-null we use positional reads upon this instead of reading from
+	 *  {@link #channel}. This allows multiple instances to parse different
+	 *  ranges of the same file concurrently, see
+	 *  {@link ConcurrentCheckpointParser}. */
+	private final FileChannel file;
+
+	/** Offset in the input where we stop returning nodes: The node which
+	 *  starts at or after it is left for a different instance to parse. */
+	private final long end;
+
+	private byte[]     buffer;
+	/** Offset in the input of the first byte of {@link #buffer}. */
+	private long       bufferOffset;
+	private ByteBuffer bufferWrapper;
+	/** Index in {@link #buffer} of the first byte which was not consumed. */
+	private int        position = 0;
+	/** Index in {@link #buffer} after the last byte which was read. */
+	private int        limit = 0;
+	private boolean    endOfInput = false;
+
+	private boolean eofMarkerRead = false;
+	private boolean complete = false;
+
+	/** Decoding paths with a decoder instead of new String(byte[], Charset)
+	 *  ensures we throw upon invalid UTF-8 instead of silently replacing it,
+	 *  which is what the former Reader-based implementation did as well. */
+	private final CharsetDecoder pathDecoder = UTF_8.newDecoder();
+	private CharBuffer pathChars = CharBuffer.allocate(4096);
+
+	/** Raw bytes of the path of the previous node to validate the order of the
+	 *  input without the overhead of {@link PathComparator}. */
+	private byte[]  previousPath = new byte[4096];
+	private int     previousPathLength = -1;
+	private boolean sorted = true;
+
+	/** Only used for dates which {@link #parseDateFast(int, int)} cannot deal
+	 *  with, so it is created lazily. */
+	private SimpleDateFormat dateFormat = null;
+
+	public CheckpointParser(ReadableByteChannel channel) {
+		this(channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	public CheckpointParser(ReadableByteChannel channel, int bufferSize) {
+		this.channel = channel;
+		this.file = null;
+		this.end = Long.MAX_VALUE;
+		this.bufferOffset = 0;
+		this.buffer = new byte[bufferSize];
+		this.bufferWrapper = ByteBuffer.wrap(buffer);
+	}
+
+	/** Parses only the nodes which start in the given range of the file.
+	 *  The start must be the beginning of a node, see
+	 *  {@link #findNodeStart(FileChannel, long)}. The end can be
+	 *  {@link Long#MAX_VALUE} to parse until the EOF marker.
+	 *  
+	 *  Does not change the position of the file so multiple instances can
+	 *  be used upon the same {@link FileChannel} concurrently. */
+	public CheckpointParser(FileChannel file, long start, long end,
+			int bufferSize) {
+		
+		this.channel = null;
+		this.file = file;
+		this.end = end;
+		this.bufferOffset = start;
+		this.buffer = new byte[bufferSize];
+		this.bufferWrapper = ByteBuffer.wrap(buffer);
+	}
+
+	/** Returns the offset of the node whose path ends at or after the given
+	 *  offset of the file. I.e. if the offset is inside of the path of a node
+	 *  that node's start is returned, otherwise the start of the next node.
+	 *  Returns the file size if there is no further node. The EOF marker
+	 *  counts as a node here as well.
+	 *  
+	 *  We cannot just search for the next \n because paths may contain it, as
+	 *  well as \t. But the \0 cannot be part of a path, so every \0 marks
+	 *  the end of the path of a node, and the first \n after it marks the end
+	 *  of that node because none of the fields after the path contain one.
+	 *  So the node we look for starts after the first \n which follows the
+	 *  last \0 before the offset.
+	 *  
+	 *  Does not change the position of the file. */
+	public static long findNodeStart(FileChannel file, long offset)
+			throws IOException {
+		
+		if(offset <= 0)
+			return 0;
+		
+		ByteBuffer b = ByteBuffer.allocate(64 * 1024);
+		
+		long pathEnd = -1;
+		for(long blockEnd = offset; blockEnd > 0 && pathEnd < 0; ) {
+			long blockStart = Math.max(0, blockEnd - b.capacity());
+			b.clear();
+			b.limit((int)(blockEnd - blockStart));
+			readFully(file, b, blockStart);
+			for(int i = b.limit() - 1; i >= 0; --i) {
+				if(b.get(i) == '\0') {
+					pathEnd = blockStart + i;
+					break;
+				}
+			}
+			blockEnd = blockStart;
+		}
+		
+		if(pathEnd < 0)
+			return 0;
+		
+		long size = file.size();
+		for(long blockStart = pathEnd + 1; blockStart < size; ) {
+			b.clear();
+			b.limit((int)Math.min(b.capacity(), size - blockStart));
+			readFully(file, b, blockStart);
+			for(int i = 0; i < b.limit(); ++i) {
+				if(b.get(i) == '\n')
+					return blockStart + i + 1;
+			}
+			blockStart += b.limit();
+		}
+		return size;
+	}
+
+	/** Returns the offset of the first node whose path is not smaller than
+	 *  the given UTF-8 bytes in the order of {@link PathComparator}, or the
+	 *  offset of the EOF marker if there is none. The file must be sorted.
+	 *  
+	 *  Binary-searches the file by {@link #findNodeStart(FileChannel, long)}
+	 *  and parsing the single node there, so only a few blocks of the file
+	 *  are read. Once the remaining range is small it is parsed linearly.
+	 *  
+	 *  Does not change the position of the file. */
+	public static long findPath(FileChannel file, byte[] path)
+			throws IOException {
+		
+		// A node start whose path is smaller, or 0.
+		long low = 0;
+		// A node start whose path is not smaller, or the EOF marker, or the
+		// end of the file.
+		long high = file.size();
+		while(high - low > SEARCH_BLOCK_SIZE) {
+			long middle = findNodeStart(file, low + (high - low) / 2);
+			// Happens if a single node spans the rest of the range.
+			if(middle <= low || middle >= high)
+				break;
+			
+			INode n = new CheckpointParser(file, middle, middle + 1,
+				SEARCH_BUFFER_SIZE).next();
+			if(n == null || compare(n, path) >= 0)
+				high = middle;
+			else
+				low = middle;
+		}
+		
+		CheckpointParser parser = new CheckpointParser(file, low, high,
+			SEARCH_BUFFER_SIZE);
+		while(true) {
+			long offset = parser.getOffset();
+			INode n = parser.next();
+			if(n == null || compare(n, path) >= 0)
+				return offset;
+		}
+	}
+
+	private static int compare(INode n, byte[] path) {
+		byte[] p = n.getPath().toString().getBytes(UTF_8);
+		return compareUnsigned(p, p.length, path, 0, path.length);
+	}
+
+	private static void readFully(FileChannel file, ByteBuffer b, long offset)
+			throws IOException {
+		
+		while(b.hasRemaining()) {
+			if(file.read(b, offset + b.position()) < 0)
+				throw new EOFException();
+		}
+	}
+
+	/** Returns the next node of the input or null if the EOF marker has been
+	 *  reached.
+	 *  
+	 *  @throws IOException If reading fails or the input is not valid, which
+	 *      includes it being truncated, i.e. the EOF marker missing. */
+	public INode next() throws IOException {
+		if(eofMarkerRead || bufferOffset + position >= end)
+			return null;
+		
+		// All indices are relative to position because fill() may move the
+		// data in the buffer.
+		int pathEnd = find((byte)'\0', 0);
+		if(pathEnd < 0)
+			throw truncated();
+		
+		String pathString = decodePath(pathEnd);
+		
+		if(!ensureAvailable(pathEnd + 2)) {
+			// Nothing follows the \0 so the path must be an EOF marker.
+			if(pathString.equals(EOFPaths.CheckpointComplete))
+				complete = true;
+			else if(pathString.equals(EOFPaths.CheckpointIncomplete))
+				complete = false;
+			else
+				throw truncated();
+			
+			eofMarkerRead = true;
+			position = limit;
+			return null;
+		}
+		
+		if(buffer[position + pathEnd + 1] != '\t')
+			throw new IOException("Missing \\t after path: " + pathString);
+		
+		int lineEnd = find((byte)'\n', pathEnd + 2);
+		if(lineEnd < 0)
+			throw truncated();
+		
+		Path path = Paths.get(pathString);
+		checkOrder(pathEnd);
+		
+		INode result = parseFields(path, position + pathEnd + 2,
+			position + lineEnd);
+		
+		position += lineEnd + 1;
+		return result;
+	}
+
+	/** Skips the following nodes whose path starts with the given UTF-8
+	 *  bytes, e.g. "./dir/" for all nodes inside of "./dir", and returns
+	 *  their amount. The first node which does not match is returned by the
+	 *  next call to {@link #next()}.
+	 *  As the input is sorted the skipped nodes are the ones which
+	 *  {@link #next()} would have returned. But their fields are not parsed,
+	 *  and no {@link INode} is created for them, so this is much faster.
+	 *  They are included in {@link #isSorted()}.
+	 *  
+	 *  @throws IOException Same as {@link #next()}. */
+	public long skip(byte[] prefix) throws IOException {
+		long skipped = 0;
+		while(!eofMarkerRead && bufferOffset + position < end) {
+			int pathEnd = find((byte)'\0', 0);
+			if(pathEnd < 0)
+				throw truncated();
+			if(!startsWith(pathEnd, prefix))
+				break;
+			// Leave the EOF marker to next().
+			if(!ensureAvailable(pathEnd + 2))
+				break;
+			
+			int lineEnd = find((byte)'\n', pathEnd + 2);
+			if(lineEnd < 0)
+				throw truncated();
+			
+			checkOrder(pathEnd);
+			position += lineEnd + 1;
+			++skipped;
+		}
+		return skipped;
+	}
+
+	/** Returns true if the path of the given length at the {@link #position}
+	 *  starts with the given bytes. */
+	private boolean startsWith(int pathLength, byte[] prefix) {
+		if(pathLength < prefix.length)
+			return false;
+		for(int i = 0; i < prefix.length; ++i) {
+			if(buffer[position + i] != prefix[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static IOException truncated() {
+		return new IOException(
+			"Checkpoint is truncated, EOF marker is missing!");
+	}
+
+	/** Returns the offset in the input of the node which the next call to
+	 *  {@link #next()} will return, or of the EOF marker. */
+	public long getOffset() {
+		return bufferOffset + position;
+	}
+
+	/** Must only be called after {@link #next()} has returned null due to the
+	 *  EOF marker, i.e. not if it did so due to reaching the end of the range
+	 *  given to {@link #CheckpointParser(FileChannel, long, long, int)}. */
+	public boolean isComplete() {
+		if(!eofMarkerRead)
+			throw new IllegalStateException("EOF marker not reached yet!");
+		
+		return complete;
+	}
+
+	/** Returns true if the nodes which were returned by {@link #next()} so
+	 *  far were in strictly ascending order as defined by
+	 *  {@link PathComparator}, i.e. if they were sorted and contained no
+	 *  duplicates.
+	 *  {@link Checkpoint#save(Path)} always produces such files, and so do our
+	 *  Python/Bash reference implementations, so this allows users of the
+	 *  parser to skip sorting. */
+	public boolean isSorted() {
+		return sorted;
+	}
+
+	private INode parseFields(Path path, int from, int to)
+			throws IOException {
+		
+		int hashEnd = indexOf((byte)'\t', from, to);
+		
+		boolean isDirectory = false;
+		ISHA256 hash = null;
+		if(equalsAscii(from, hashEnd, TextFormat.SHA256SUM_OF_DIRECTORY))
+			isDirectory = true;
+		else if(!equalsAscii(from, hashEnd, TextFormat.SHA256SUM_FAILED))
+			hash = parseHash(from, hashEnd);
+		
+		// Missing in files of former versions, the size is unavailable then
+		// which INode.getSize() represents by 0.
+		long size = 0;
+		ISHA256 directoryHash = null;
+		Date atime = null, ctime = null, mtime = null;
+		boolean noTimestampsAvailable = false;
+		int fieldStart = hashEnd + 1;
+		while(fieldStart <= to) {
+			int fieldEnd = indexOf((byte)'\t', fieldStart, to);
+			if(fieldEnd == fieldStart) {
+				// Skip empty fields like the former StringTokenizer-based
+				// implementation did.
+				fieldStart = fieldEnd + 1;
+				continue;
+			}
+			
+			if(equalsAscii(fieldStart, fieldEnd, TextFormat.STAT_FAILED)) {
+				// The file timestamps are read all at once for a single
+				// file upon Checkpoint creation, so reading them either
+				// succeeded for all or for none of them - see
+				// ITimestamps.readTimestamps().
+				// So if it failed as indicated by STAT_FAILED then no
+				// dates will be available at all for parsing so we must
+				// break.
+				noTimestampsAvailable = true;
+				break;
+			}
+			
+			int colon = indexOf((byte)':', fieldStart, fieldEnd);
+			int valueStart = colon + 2;
+			if(colon == fieldEnd || valueStart > fieldEnd
+					|| buffer[colon + 1] != ' ') {
+				throw new IOException("Invalid field in line of: " + path);
+			}
+			
+			// The birth time is always null, see ITimestamps, and unknown
+			// fields are ignored without parsing their value to allow adding
+			// new ones in the future.
+			if(equalsAscii(fieldStart, colon, TextFormat.SIZE))
+				size = parseSize(path, valueStart, fieldEnd);
+			else if(equalsAscii(fieldStart, colon, TextFormat.DIRECTORY_HASH))
+				directoryHash = parseHash(valueStart, fieldEnd);
+			else if(equalsAscii(fieldStart, colon, "Access"))
+				atime = parseDateOrUnavailable(valueStart, fieldEnd);
+			else if(equalsAscii(fieldStart, colon, "Change"))
+				ctime = parseDateOrUnavailable(valueStart, fieldEnd);
+			else if(equalsAscii(fieldStart, colon, "Modify"))
+				mtime = parseDateOrUnavailable(valueStart, fieldEnd);
+			
+			fieldStart = fieldEnd + 1;
+		}
+		
+		ITimestamps timestamps = !noTimestampsAvailable
+			? timestampsFromDates(atime, ctime, mtime)
+			: null;
+		
+		if(directoryHash != null) {
+			if(!isDirectory) {
+				throw new IOException("Directory hash in line of file: "
+					+ path);
+			}
+			hash = directoryHash;
+		}
+		
+		try {
+			return constructNode(path, isDirectory, size, hash, timestamps);
+		} catch(IllegalArgumentException e) {
+			throw new IOException("Invalid line for: " + path, e);
+		}
+	}
+
+	/** Parses the decimal digits in [from, to) without creating a String. */
+	private long parseSize(Path path, int from, int to) throws IOException {
+		if(from == to)
+			throw new IOException("Invalid size in line of: " + path);
+		
+		long size = 0;
+		for(int i = from; i < to; ++i) {
+			int digit = buffer[i] - '0';
+			if(digit < 0 || digit > 9
+					|| size > (Long.MAX_VALUE - digit) / 10) {
+				throw new IOException("Invalid size in line of: " + path);
+			}
+			size = 10 * size + digit;
+		}
+		return size;
+	}
+
+	private Date parseDateOrUnavailable(int from, int to) throws IOException {
+		return equalsAscii(from, to, TextFormat.DATE_UNAVAILABLE)
+			? null : parseDate(from, to);
+	}
+
+	private ISHA256 parseHash(int from, int to) throws IOException {
+		if(to - from != 64) {
+			throw new IOException(
+				"Invalid length for hex-encoded SHA256, should be 64: "
+				+ (to - from));
+		}
+		
+		byte[] bytes = new byte[32];
+		for(int i = 0; i < bytes.length; ++i) {
+			int high = hexDigit(buffer[from + 2 * i]);
+			int low  = hexDigit(buffer[from + 2 * i + 1]);
+			if((high | low) < 0)
+				throw new IOException("Invalid hex-encoded SHA256!");
+			bytes[i] = (byte)((high << 4) | low);
+		}
+		return SHA256.construct(bytes);
+	}
+
+	private static int hexDigit(byte b) {
+		if(b >= '0' && b <= '9')
+			return b - '0';
+		else if(b >= 'a' && b <= 'f')
+			return b - 'a' + 10;
+		else if(b >= 'A' && b <= 'F')
+			return b - 'A' + 10;
+		else
+			return -1;
+	}
+
+	private Date parseDate(int from, int to) throws IOException {
+		long millis = parseDateFast(from, to);
+		if(millis != Long.MIN_VALUE)
+			return new Date(millis);
+		
+		if(dateFormat == null)
+			dateFormat = new SimpleDateFormat(TextFormat.DATE_FORMAT_STRING);
+		
+		String date = new String(buffer, from, to - from, UTF_8);
+		try {
+			return dateFormat.parse(date);
+		} catch(ParseException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/** Decodes dates of the {@link TextFormat#DATE_FORMAT_STRING}, e.g.
+	 *  "2019-01-23 12:34:56 +0100", without {@link SimpleDateFormat}.
+	 *  
+	 *  Returns {@link Long#MIN_VALUE} if the date is anything but the common
+	 *  case so the caller can fall back to {@link SimpleDateFormat}. This
+	 *  includes values which SimpleDateFormat would leniently roll over, e.g.
+	 *  a 31st of February, and dates before the Gregorian calendar was
+	 *  introduced, for which it would use the Julian calendar. */
+	private long parseDateFast(int from, int to) {
+		if(to - from != 25)
+			return Long.MIN_VALUE;
+		
+		byte[] b = buffer;
+		if(b[from + 4] != '-' || b[from + 7] != '-' || b[from + 10] != ' '
+				|| b[from + 13] != ':' || b[from + 16] != ':'
+				|| b[from + 19] != ' ')
+			return Long.MIN_VALUE;
+		
+		int year   = digits(from,      4);
+		int month  = digits(from + 5,  2);
+		int day    = digits(from + 8,  2);
+		int hour   = digits(from + 11, 2);
+		int minute = digits(from + 14, 2);
+		int second = digits(from + 17, 2);
+		int offsetHours   = digits(from + 21, 2);
+		int offsetMinutes = digits(from + 23, 2);
+		byte sign = b[from + 20];
+		
+		if((year | month | day | hour | minute | second | offsetHours
+				| offsetMinutes) < 0 || (sign != '+' && sign != '-'))
+			return Long.MIN_VALUE;
+		
+		// 1583 is the first full year of the Gregorian calendar.
+		if(year < 1583 || month < 1 || month > 12 || day < 1
+				|| day > daysOfMonth(year, month) || hour > 23
+				|| minute > 59 || second > 59 || offsetMinutes > 59)
+			return Long.MIN_VALUE;
+		
+		long offsetSeconds = offsetHours * 3600L + offsetMinutes * 60L;
+		if(sign == '-')
+			offsetSeconds = -offsetSeconds;
+		
+		long seconds = daysSinceEpoch(year, month, day) * 86400L
+			+ hour * 3600L + minute * 60L + second - offsetSeconds;
+		return seconds * 1000L;
+	}
+
+	/** Returns the decimal value of the given amount of ASCII digits in the
+	 *  buffer, or -1 if any of them is not a digit. */
+	private int digits(int from, int count) {
+		int result = 0;
+		for(int i = from; i < from + count; ++i) {
+			int digit = buffer[i] - '0';
+			if(digit < 0 || digit > 9)
+				return -1;
+			result = result * 10 + digit;
+		}
+		return result;
+	}
+
+	private static int daysOfMonth(int year, int month) {
+		switch(month) {
+			case 2:
+				boolean leap = (year % 4 == 0 && year % 100 != 0)
+					|| year % 400 == 0;
+				return leap ? 29 : 28;
+			case 4: case 6: case 9: case 11:
+				return 30;
+			default:
+				return 31;
+		}
+	}
+
+	/** Days from 1970-01-01 to the given date of the proleptic Gregorian
+	 *  calendar, for positive years.
+	 *  TODO: Java 8: Replace with LocalDate.toEpochDay().
+	 *  Source of the algorithm: "days_from_civil()" at
+	 *  https://howardhinnant.github.io/date_algorithms.html */
+	private static long daysSinceEpoch(int year, int month, int day) {
+		if(month <= 2)
+			--year;
+		int era = year / 400;
+		int yearOfEra = year - era * 400;
+		int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5
+			+ day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+			+ dayOfYear;
+		return era * 146097L + dayOfEra - 719468;
+	}
+
+	private String decodePath(int length) throws IOException {
+		if(pathChars.capacity() < length)
+			pathChars = CharBuffer.allocate(length);
+		
+		ByteBuffer in = ByteBuffer.wrap(buffer, position, length);
+		pathChars.clear();
+		pathDecoder.reset();
+		CoderResult r = pathDecoder.decode(in, pathChars, true);
+		if(!r.isUnderflow())
+			r.throwException();
+		r = pathDecoder.flush(pathChars);
+		if(!r.isUnderflow())
+			r.throwException();
+		
+		return new String(pathChars.array(), 0, pathChars.position());
+	}
+
+	/** Compares the raw bytes of the path at the current position against
+	 *  the previous one. */
+	private void checkOrder(int pathLength) {
+		if(sorted) {
+			if(!isNormalized(position, pathLength))
+				sorted = false;
+			else if(previousPathLength >= 0 && compareUnsigned(previousPath,
+					previousPathLength, buffer, position, pathLength) >= 0)
+				sorted = false;
+		}
+		
+		if(previousPath.length < pathLength)
+			previousPath = new byte[pathLength];
+		System.arraycopy(buffer, position, previousPath, 0, pathLength);
+		previousPathLength = pathLength;
+	}
+
+	/** Our raw bytes only match what {@link PathComparator} would compare if
+	 *  {@link Paths#get(String, String...)} didn't normalize the path, which
+	 *  it does by removing redundant and trailing slashes.
+	 *  We check for that here instead of comparing against
+	 *  {@link Path#toString()} because the Path would keep the String which
+	 *  that creates in memory. */
+	private boolean isNormalized(int from, int length) {
+		for(int i = from + 1; i < from + length; ++i) {
+			if(buffer[i] == '/' && buffer[i - 1] == '/')
+				return false;
+		}
+		return length <= 1 || buffer[from + length - 1] != '/';
+	}
+
+	/** Same as the comparison of {@link PathComparator} but upon ranges of
+	 *  arrays. TODO: Java 9: Replace with Arrays.compareUnsigned() */
+	static int compareUnsigned(byte[] a, int aLength,
+			byte[] b, int bOffset, int bLength) {
+		
+		int len = Math.min(aLength, bLength);
+		for(int i = 0; i < len; ++i) {
+			int unsigned1 = a[i] & 0xFF;
+			int unsigned2 = b[bOffset + i] & 0xFF;
+			if(unsigned1 != unsigned2)
+				return Integer.compare(unsigned1, unsigned2);
+		}
+		return aLength - bLength;
+	}
+
+	private boolean equalsAscii(int from, int to, String s) {
+		if(to - from != s.length())
+			return false;
+		
+		for(int i = 0; i < s.length(); ++i) {
+			if(buffer[from + i] != s.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/** Returns the index of the given byte in the given absolute range of the
+	 *  buffer, or the end of the range if it isn't contained. */
+	private int indexOf(byte b, int from, int to) {
+		for(int i = from; i < to; ++i) {
+			if(buffer[i] == b)
+				return i;
+		}
+		return to;
+	}
+
+	/** Returns the distance from {@link #position} of the next occurrence of
+	 *  the given byte at or after position + fromDistance, or -1 if the input
+	 *  ends before.
+	 *  May refill the buffer and thereby move the data inside of it, so
+	 *  callers must only keep indices which are relative to position. */
+	private int find(byte b, int fromDistance) throws IOException {
+		int i = position + fromDistance;
+		while(true) {
+			for(; i < limit; ++i) {
+				if(buffer[i] == b)
+					return i - position;
+			}
+			
+			int scannedDistance = i - position;
+			if(!fill())
+				return -1;
+			i = position + scannedDistance;
+		}
+	}
+
+	/** Returns true if at least the given amount of bytes is available in the
+	 *  buffer starting at {@link #position}. */
+	private boolean ensureAvailable(int bytes) throws IOException {
+		while(limit - position < bytes) {
+			if(!fill())
+				return false;
+		}
+		return true;
+	}
+
+	/** Moves the unconsumed data to the beginning of the buffer, grows the
+	 *  buffer if it is full of unconsumed data, and reads as much as fits.
+	 *  Returns false if there is no more input. */
+	private boolean fill() throws IOException {
+		if(endOfInput)
+			return false;
+		
+		if(position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			bufferOffset += position;
+			limit -= position;
+			position = 0;
+		}
+		
+		if(limit == buffer.length) {
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			bufferWrapper = ByteBuffer.wrap(buffer);
+		}
+		
+		bufferWrapper.limit(buffer.length);
+		bufferWrapper.position(limit);
+		int read;
+		do {
+			read = file != null
+				? file.read(bufferWrapper, bufferOffset + limit)
+				: channel.read(bufferWrapper);
+		} while(read == 0);
+		
+		if(read < 0) {
+			endOfInput = true;
+			return false;
+		}
+		
+		limit += read;
+		return true;
+	}
+
+}
@@ -0,0 +1,145 @@
+package checkpoint.serialization;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+import checkpoint.datamodel.ICheckpointReader;
+import checkpoint.datamodel.INode;
+
+/** Reads the plain-text format described at {@link TextFormat} by a single
+ *  {@link CheckpointParser}.
+ *  Unlike {@link checkpoint.datamodel.implementation.Checkpoint#load(Path)}
+ *  this does not tolerate unsorted files since callers rely on the order for
+ *  processing the nodes without keeping them in memory.
+ *  
+ *  Transparently decompresses {@link TextFormat#COMPRESSED_FILENAME}, see
+ *  {@link #getCheckpointFile(Path)}. */
+public final class CheckpointReader implements ICheckpointReader {
+
+	/** In bytes, for reading compressed files. */
+	private static final int GZIP_BUFFER_SIZE = 1024 * 1024;
+
+	private final Path checkpointDir;
+
+	private final ReadableByteChannel channel;
+
+	private final CheckpointParser parser;
+
+	private CheckpointReader(Path checkpointDir) throws IOException {
+		this.checkpointDir = checkpointDir;
+		channel = openChannel(getCheckpointFile(checkpointDir));
+		parser = new CheckpointParser(channel);
+	}
+
+	public static CheckpointReader open(Path checkpointDir) throws IOException {
+		return new CheckpointReader(checkpointDir);
+	}
+
+	/** Returns the path of {@link TextFormat#FILENAME} or of
+	 *  {@link TextFormat#COMPRESSED_FILENAME} in the given dir, whichever
+	 *  exists.
+	 *  Throws {@link NoSuchFileException} if none exists, and
+	 *  {@link IOException} if both exist as we cannot know which one is the
+	 *  right one. */
+	public static Path getCheckpointFile(Path checkpointDir)
+			throws IOException {
+		
+		Path plain = checkpointDir.resolve(TextFormat.FILENAME);
+		Path compressed = checkpointDir.resolve(TextFormat.COMPRESSED_FILENAME);
+		boolean plainExists = Files.exists(plain, NOFOLLOW_LINKS);
+		boolean compressedExists = Files.exists(compressed, NOFOLLOW_LINKS);
+		
+		if(plainExists && compressedExists) {
+			throw new IOException("Both " + plain + " and " + compressed
+				+ " exist, please delete the outdated one!");
+		}
+		if(!plainExists && !compressedExists)
+			throw new NoSuchFileException(plain.toString());
+		
+		return compressedExists ? compressed : plain;
+	}
+
+	/** Returns true if the given file as returned by
+	 *  {@link #getCheckpointFile(Path)} is compressed. */
+	public static boolean isCompressed(Path checkpointFile) {
+		return checkpointFile.getFileName().toString()
+			.equals(TextFormat.COMPRESSED_FILENAME);
+	}
+
+	/** Opens the given file as returned by {@link #getCheckpointFile(Path)}
+	 *  and decompresses it if necessary.
+	 *  For uncompressed files the result is a {@link FileChannel}. */
+	public static ReadableByteChannel openChannel(Path checkpointFile)
+			throws IOException {
+		
+		if(!isCompressed(checkpointFile))
+			return FileChannel.open(checkpointFile, READ);
+		
+		// TODO: Performance: Decompression is single-threaded as a gzip
+		// stream cannot be split without decompressing it. It is much faster
+		// than compressing though, and the parser is the bottleneck anyway.
+		InputStream in = Files.newInputStream(checkpointFile);
+		try {
+			return Channels.newChannel(
+				new GZIPInputStream(in, GZIP_BUFFER_SIZE));
+		} catch(IOException | RuntimeException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	@Override public INode next() throws IOException {
+		INode n = parser.next();
+		// The parser only tracks the order so it can tell whether a whole file
+		// is sorted, so we must check it after every node.
+		if(!parser.isSorted()) {
+			throw new IOException("Checkpoint is not sorted, or contains "
+				+ "duplicates or non-normalized paths, at: "
+				+ (n != null ? n.getPath() : "EOF"));
+		}
+		return n;
+	}
+
+	/** Skips the following nodes which are inside of the given directory
+	 *  and returns their amount. This is much faster than reading them, see
+	 *  {@link CheckpointParser#skip(byte[])}.
+	 *  As the nodes inside of a directory don't necessarily follow it
+	 *  directly, see
+	 *  {@link checkpoint.datamodel.implementation.Checkpoint.PathComparator
+	 *  #isAfterSubtree(String, String)}, this should be called once
+	 *  {@link #next()} returned the first one of them. */
+	public long skipSubtree(Path directory) throws IOException {
+		byte[] prefix = (directory.toString() + "/").getBytes(UTF_8);
+		long skipped = parser.skip(prefix);
+		if(!parser.isSorted()) {
+			throw new IOException("Checkpoint is not sorted, or contains "
+				+ "duplicates or non-normalized paths, inside of: "
+				+ directory);
+		}
+		return skipped;
+	}
+
+	@Override public boolean isComplete() {
+		return parser.isComplete();
+	}
+
+	@Override public Path getCheckpointDir() {
+		return checkpointDir;
+	}
+
+	@Override public void close() throws IOException {
+		channel.close();
+	}
+
+}
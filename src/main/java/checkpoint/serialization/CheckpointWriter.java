@@ -0,0 +1,485 @@
+package checkpoint.serialization;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+import checkpoint.datamodel.ICheckpointWriter;
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.ITimestamps.TimestampTypes;
+import checkpoint.datamodel.implementation.Checkpoint;
+
+/** Writes the plain-text format described at {@link TextFormat}.
+ *  Used by {@link Checkpoint#save(Path, EnumSet)} and by shell commands which
+ *  stream a checkpoint from a {@link CheckpointReader} to disk.
+ *  
+ *  Can optionally gzip the output to {@link TextFormat#COMPRESSED_FILENAME},
+ *  see {@link #open(Path, EnumSet, boolean)}, or write indexes, see
+ *  {@link #open(Path, EnumSet, boolean, EnumSet)}. */
+public final class CheckpointWriter implements ICheckpointWriter {
+
+	/** In bytes. Large enough to make the per-write() overhead of the channel
+	 *  negligible. Lines which are larger are written without buffering. */
+	public static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	/** Amount of nodes which {@link #addNodes(Iterable, int)} formats per
+	 *  task. Their output is typically a few MiB. */
+	public static final int NODES_PER_RANGE = 16 * 1024;
+
+	/** The optional indexes which {@link #finish(boolean)} can write next to
+	 *  the checkpoint. */
+	public static enum Index {
+		/** See {@link PathIndex}. */
+		Paths,
+		/** See {@link HashIndex}. */
+		Hashes
+	}
+
+	private final Path outputFilePath;
+
+	/** We write to this and move it to {@link #outputFilePath} in
+	 *  {@link #finish(boolean)}. This ensures that an existing checkpoint is
+	 *  never lost if the system crashes while writing: Either the old file
+	 *  will still be there or the new one. It also allows reading a checkpoint
+	 *  while writing it to the same directory. */
+	private final Path tempFilePath;
+
+	private final EnumSet<TimestampTypes> timestampsFilter;
+
+	private final FileChannel file;
+
+	/** The {@link #file}, or a {@link ParallelGzipChannel} upon it. */
+	private final GatheringByteChannel channel;
+
+	/** The file of the other one of the compressed and uncompressed format,
+	 *  deleted by {@link #finish(boolean)}. */
+	private final Path otherFormatFilePath;
+
+	/** Collects the output of {@link #formatter} until it is full, then it is
+	 *  written to the {@link #channel}. A direct buffer because the channel
+	 *  would otherwise copy the data into a temporary direct one anyway. */
+	private final ByteBuffer buffer;
+
+	private final NodeFormatter formatter;
+
+	/** Amount of nodes which were added, and of bytes which were written
+	 *  before compression. */
+	private long nodeCount = 0;
+	private long byteCount = 0;
+
+	/** The UTF-8 paths of every {@link PathIndex#DEFAULT_INTERVAL}th node and
+	 *  the offsets of their lines in the output, null if we don't write a
+	 *  {@link PathIndex}. */
+	private final ArrayList<byte[]> indexPaths;
+	private long[] indexOffsets;
+
+	/** Null if we don't write a {@link HashIndex}. */
+	private final HashIndex.Builder hashIndex;
+
+	private boolean finished = false;
+
+	private CheckpointWriter(Path checkpointDir,
+			EnumSet<TimestampTypes> timestampsFilter, boolean compress,
+			EnumSet<Index> indexes) throws IOException {
+		
+		if(compress && !indexes.isEmpty()) {
+			throw new IllegalArgumentException(
+				"Compressed checkpoints cannot be indexed!");
+		}
+		
+		this.timestampsFilter = EnumSet.copyOf(timestampsFilter);
+		boolean pathIndex = indexes.contains(Index.Paths);
+		indexPaths = pathIndex ? new ArrayList<byte[]>() : null;
+		indexOffsets = pathIndex ? new long[1024] : null;
+		hashIndex = indexes.contains(Index.Hashes)
+			? new HashIndex.Builder() : null;
+		formatter = new NodeFormatter(timestampsFilter, 64 * 1024);
+		buffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+		
+		String filename = compress ? TextFormat.COMPRESSED_FILENAME
+		                           : TextFormat.FILENAME;
+		outputFilePath = prepareOutputDir(checkpointDir, filename);
+		otherFormatFilePath = checkpointDir.resolve(compress
+			? TextFormat.FILENAME : TextFormat.COMPRESSED_FILENAME);
+		
+		// createTempFile() uses permissions which only allow the owner to
+		// access the file, which is what we want for checkpoints.
+		tempFilePath = Files.createTempFile(checkpointDir, filename + ".",
+			".tmp");
+		FileChannel f = null;
+		try {
+			f = FileChannel.open(tempFilePath, WRITE, TRUNCATE_EXISTING);
+			// Use all CPUs as compression would otherwise be much slower than
+			// formatting.
+			channel = compress
+				? new ParallelGzipChannel(f, Deflater.DEFAULT_COMPRESSION,
+					Runtime.getRuntime().availableProcessors())
+				: f;
+			file = f;
+		} catch(IOException | RuntimeException e) {
+			if(f != null)
+				f.close();
+			Files.deleteIfExists(tempFilePath);
+			throw e;
+		}
+	}
+
+	/** Creates the checkpoint directory, or sets its permissions if it exists.
+	 *  Returns the path of the given file in it after checking that it is a
+	 *  regular file or does not exist.
+	 *  Also used by {@link BinaryCheckpointWriter}. */
+	static Path prepareOutputDir(Path checkpointDir, String filename)
+			throws IOException {
+		
+		// FIXME: The creation of the dir and setting of its permissions likely
+		// is not safe against race conditions caused by malicious processes
+		// which have e.g. group or others write permissions to the dir.
+		// Either fix that or document it.
+		
+		// Don't pass the permissions to it but manually set them later to
+		// ensure they also get set when rewriting an existing checkpoint.
+		Files.createDirectories(checkpointDir);
+		
+		// createDirectories() does not guarantee to throw if it exists as
+		// a non-dir already so do that first to ensure we don't change
+		// permissions of it if it is a file.
+		if(!Files.isDirectory(checkpointDir, NOFOLLOW_LINKS)) {
+			throw new FileAlreadyExistsException(
+				"Is not a directory, should be a non-symlink dir or not exist: "
+				+ checkpointDir.toString());
+		}
+		
+		Files.setPosixFilePermissions(checkpointDir,
+			PosixFilePermissions.fromString("rwx------"));
+		
+		Path outputFilePath = checkpointDir.resolve(filename);
+		if(Files.exists(outputFilePath, NOFOLLOW_LINKS) &&
+				!Files.isRegularFile(outputFilePath, NOFOLLOW_LINKS)) {
+			
+			throw new FileAlreadyExistsException(
+				"Is not a file, should be a non-symlink file or not exist: "
+				+ outputFilePath.toString());
+		}
+		
+		return outputFilePath;
+	}
+
+	/** Will exclude the given {@link TimestampTypes} when writing.
+	 *  
+	 *  If compress is true the output is gzipped to
+	 *  {@link TextFormat#COMPRESSED_FILENAME} on multiple threads, see
+	 *  {@link ParallelGzipChannel}. {@link CheckpointReader} reads either
+	 *  file, so to not make it choose between two checkpoints
+	 *  {@link #finish(boolean)} deletes the file of the other format. */
+	public static CheckpointWriter open(Path checkpointDir,
+			EnumSet<TimestampTypes> timestampsFilter, boolean compress)
+			throws IOException {
+		
+		return open(checkpointDir, timestampsFilter, compress,
+			EnumSet.noneOf(Index.class));
+	}
+
+	/** Same as {@link #open(Path, EnumSet, boolean)} but can also write the
+	 *  given {@link Index}es. This requires compress to be false.
+	 *  Existing indexes of the other types are deleted by
+	 *  {@link #finish(boolean)} as they would be outdated. */
+	public static CheckpointWriter open(Path checkpointDir,
+			EnumSet<TimestampTypes> timestampsFilter, boolean compress,
+			EnumSet<Index> indexes) throws IOException {
+		
+		return new CheckpointWriter(checkpointDir, timestampsFilter, compress,
+			indexes);
+	}
+
+	/** Will exclude the given {@link TimestampTypes} when writing. */
+	public static CheckpointWriter open(Path checkpointDir,
+			EnumSet<TimestampTypes> timestampsFilter) throws IOException {
+		
+		return open(checkpointDir, timestampsFilter, false);
+	}
+
+	public static CheckpointWriter open(Path checkpointDir)
+			throws IOException {
+		
+		return open(checkpointDir, EnumSet.noneOf(TimestampTypes.class));
+	}
+
+	@Override public void addNode(INode n)
+			throws IOException, IllegalArgumentException {
+		
+		if(finished)
+			throw new IllegalStateException("finish() was called already!");
+		
+		formatter.clear();
+		formatter.append(n);
+		if(indexPaths != null && nodeCount % PathIndex.DEFAULT_INTERVAL == 0)
+			addIndexEntry(n, byteCount);
+		if(hashIndex != null && !n.isDirectory() && n.getHash() != null)
+			hashIndex.add(n.getHash(), byteCount);
+		++nodeCount;
+		write(formatter.buffer(), formatter.length());
+	}
+
+	private void addIndexEntry(INode n, long offset) {
+		if(indexPaths.size() == indexOffsets.length)
+			indexOffsets = Arrays.copyOf(indexOffsets, 2 * indexOffsets.length);
+		indexOffsets[indexPaths.size()] = offset;
+		indexPaths.add(n.getPath().toString().getBytes(UTF_8));
+	}
+
+	/** Same as calling {@link #addNode(INode)} for each of the given nodes,
+	 *  but formats them on multiple threads to benefit from multiple CPUs.
+	 *  
+	 *  The nodes are split into ranges of {@link #NODES_PER_RANGE} which are
+	 *  formatted concurrently. The resulting buffers are written in order so
+	 *  the output is identical to adding them one by one. To bound the memory
+	 *  usage only a few ranges per thread are in progress at once, and the
+	 *  iterator of the nodes is only used by the calling thread.
+	 *  
+	 *  @param threads The maximal amount of threads to use. */
+	public void addNodes(Iterable<? extends INode> nodes, int threads)
+			throws IOException, IllegalArgumentException {
+		
+		Iterator<? extends INode> iterator = nodes.iterator();
+		if(threads <= 1) {
+			// Don't bother creating threads.
+			while(iterator.hasNext())
+				addNode(iterator.next());
+			return;
+		}
+		
+		if(finished)
+			throw new IllegalStateException("finish() was called already!");
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			ArrayDeque<Future<RangeFormatter>> queue = new ArrayDeque<>();
+			INode previous = null;
+			while(iterator.hasNext() || !queue.isEmpty()) {
+				while(iterator.hasNext() && queue.size() < 2 * threads) {
+					ArrayList<INode> range = new ArrayList<>(NODES_PER_RANGE);
+					while(iterator.hasNext() && range.size() < NODES_PER_RANGE)
+						range.add(iterator.next());
+					
+					// The first range is checked against the previous call of
+					// addNode(), if any, by our own formatter.
+					NodeFormatter f = (previous == null) ? formatter
+						: new NodeFormatter(timestampsFilter, 1024 * 1024);
+					if(previous != null)
+						f.setPreviousNode(previous);
+					previous = range.get(range.size() - 1);
+					
+					queue.add(executor.submit(new RangeFormatter(f, range,
+						indexPaths != null ? nodeCount : -1,
+						hashIndex != null)));
+					nodeCount += range.size();
+				}
+				
+				// Write all ranges which are finished already with a single
+				// gathering write, but at least the first one.
+				ArrayList<ByteBuffer> buffers = new ArrayList<>();
+				// byteCount includes what is still in our buffer.
+				long offset = byteCount;
+				do {
+					RangeFormatter range = ConcurrentCheckpointParser
+						.getResult(queue.remove());
+					NodeFormatter f = range.formatter;
+					buffers.add(ByteBuffer.wrap(f.buffer(), 0, f.length()));
+					for(int i = 0; i < range.indexNodes.size(); ++i) {
+						addIndexEntry(range.indexNodes.get(i),
+							offset + range.indexOffsets[i]);
+					}
+					if(hashIndex != null)
+						hashIndex.addAll(range.hashIndex, offset);
+					offset += f.length();
+				} while(!queue.isEmpty() && queue.peek().isDone());
+				write(buffers.toArray(new ByteBuffer[buffers.size()]));
+			}
+			
+			// Our formatter must know the last node to check the order of any
+			// node which is added by addNode() afterwards.
+			if(previous != null) {
+				formatter.clear();
+				formatter.setPreviousNode(previous);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/** Same as {@link #addNodes(Iterable, int)} with one thread per CPU. */
+	public void addNodes(Iterable<? extends INode> nodes)
+			throws IOException, IllegalArgumentException {
+		
+		addNodes(nodes, Runtime.getRuntime().availableProcessors());
+	}
+
+	@Override public void finish(boolean isComplete) throws IOException {
+		if(finished)
+			throw new IllegalStateException("finish() was called already!");
+		
+		formatter.clear();
+		formatter.appendEOFMarker(isComplete);
+		write(formatter.buffer(), formatter.length());
+		flush();
+		if(channel instanceof ParallelGzipChannel)
+			((ParallelGzipChannel)channel).finish();
+		channel.close();
+		
+		// TODO: fsync() the file and its directory so the move cannot be
+		// persisted before the contents of the file on filesystems which do
+		// not guarantee that.
+		Files.move(tempFilePath, outputFilePath, ATOMIC_MOVE, REPLACE_EXISTING);
+		finished = true;
+		
+		// If we crash before this CheckpointReader will complain about both
+		// existing, which is better than silently using the wrong one.
+		Files.deleteIfExists(otherFormatFilePath);
+		
+		// If we crash before this the indexes will notice that they do not
+		// match the checkpoint.
+		Path dir = outputFilePath.getParent();
+		if(indexPaths != null)
+			PathIndex.write(dir, byteCount, indexPaths, indexOffsets);
+		else
+			Files.deleteIfExists(dir.resolve(PathIndex.FILENAME));
+		if(hashIndex != null)
+			hashIndex.write(dir, byteCount);
+		else
+			Files.deleteIfExists(dir.resolve(HashIndex.FILENAME));
+	}
+
+	private void write(byte[] bytes, int length) throws IOException {
+		byteCount += length;
+		if(length > buffer.remaining()) {
+			flush();
+			
+			if(length > buffer.capacity()) {
+				ByteBuffer wrapper = ByteBuffer.wrap(bytes, 0, length);
+				while(wrapper.hasRemaining())
+					channel.write(wrapper);
+				return;
+			}
+		}
+		
+		buffer.put(bytes, 0, length);
+	}
+
+	/** Writes the given buffers after the content of our {@link #buffer}. */
+	private void write(ByteBuffer[] buffers) throws IOException {
+		flush();
+		
+		long remaining = 0;
+		for(ByteBuffer b : buffers)
+			remaining += b.remaining();
+		byteCount += remaining;
+		
+		while(remaining > 0)
+			remaining -= channel.write(buffers);
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	@Override public void close() throws IOException {
+		try {
+			// Also closes the file if it is a ParallelGzipChannel.
+			channel.close();
+		} finally {
+			if(!finished)
+				Files.deleteIfExists(tempFilePath);
+		}
+	}
+
+	/** Returns the line of the given node as the writer would write it,
+	 *  without the terminating \n. For printing nodes in the same format as
+	 *  checkpoints. */
+	public static String format(INode n) {
+		NodeFormatter f
+			= new NodeFormatter(EnumSet.noneOf(TimestampTypes.class), 1024);
+		f.append(n);
+		return new String(f.buffer(), 0, f.length() - 1, UTF_8);
+	}
+
+	@Override public EnumSet<TimestampTypes> getTimestampsFilter() {
+		return EnumSet.copyOf(timestampsFilter);
+	}
+
+	/** Formats a range of nodes for {@link #addNodes(Iterable, int)}. */
+	private static final class RangeFormatter
+			implements Callable<RangeFormatter> {
+
+		final NodeFormatter formatter;
+
+		/** Set to null once formatting is done to allow garbage collection. */
+		List<INode> nodes;
+
+		/** The index of the first node among all nodes of the checkpoint, or
+		 *  -1 if we don't write a {@link PathIndex}. */
+		final long firstNodeIndex;
+
+		/** The nodes which are to be added to the {@link PathIndex} and the
+		 *  offsets of their lines in the {@link #formatter}'s buffer. */
+		final ArrayList<INode> indexNodes = new ArrayList<>();
+		int[] indexOffsets;
+
+		/** The records for the {@link HashIndex} with offsets in the
+		 *  {@link #formatter}'s buffer, null if we don't write one. */
+		final HashIndex.Builder hashIndex;
+
+		RangeFormatter(NodeFormatter formatter, List<INode> nodes,
+				long firstNodeIndex, boolean hashIndex) {
+			
+			this.formatter = formatter;
+			this.nodes = nodes;
+			this.firstNodeIndex = firstNodeIndex;
+			this.hashIndex = hashIndex ? new HashIndex.Builder() : null;
+		}
+
+		@Override public RangeFormatter call() {
+			formatter.clear();
+			indexOffsets = new int[firstNodeIndex >= 0
+				? nodes.size() / PathIndex.DEFAULT_INTERVAL + 1 : 0];
+			long index = firstNodeIndex;
+			for(INode n : nodes) {
+				if(index >= 0 && index++ % PathIndex.DEFAULT_INTERVAL == 0) {
+					indexOffsets[indexNodes.size()] = formatter.length();
+					indexNodes.add(n);
+				}
+				if(hashIndex != null && !n.isDirectory() && n.getHash() != null)
+					hashIndex.add(n.getHash(), formatter.length());
+				formatter.append(n);
+			}
+			nodes = null;
+			return this;
+		}
+	}
+
+}
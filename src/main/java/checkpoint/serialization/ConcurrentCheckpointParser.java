@@ -0,0 +1,389 @@
+package checkpoint.serialization;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.implementation.Checkpoint.PathComparator;
+
+/** Parses a whole checkpoint file using multiple {@link CheckpointParser}s on
+ *  different threads to benefit from multiple CPUs.
+ *  
+ *  The file is split into chunks of equal size. Each chunk is moved to start
+ *  at the beginning of a node by
+ *  {@link CheckpointParser#findNodeStart(FileChannel, long)}, then the chunks
+ *  are parsed concurrently and the resulting nodes concatenated in the order
+ *  of the file. The result is thus identical to parsing with a single
+ *  {@link CheckpointParser}. */
+public final class ConcurrentCheckpointParser {
+
+	/** In bytes. Chunks smaller than this aren't worth a separate thread. */
+	public static final long MIN_CHUNK_SIZE = 16 * 1024 * 1024;
+
+	/** In bytes, of the chunks of {@link #stream(ReadableByteChannel, int,
+	 *  ChunkHandler)}. Smaller than the {@link #MIN_CHUNK_SIZE} of
+	 *  {@link #parse()} as the nodes of a chunk are kept in memory only
+	 *  until it is consumed then: Chunks which are too large make them live
+	 *  long enough to be copied by the garbage collector. */
+	private static final long STREAM_CHUNK_SIZE = 2 * 1024 * 1024;
+
+	/** In bytes, for the parsers of the {@link #STREAM_CHUNK_SIZE} chunks.
+	 *  The default one is larger than the chunks. */
+	private static final int STREAM_BUFFER_SIZE = 256 * 1024;
+
+	/** Amount of nodes per chunk of {@link #stream(ReadableByteChannel, int,
+	 *  ChunkHandler)} if the file cannot be split, about
+	 *  {@link #STREAM_CHUNK_SIZE}. */
+	private static final int NODES_PER_CHUNK = 8 * 1024;
+
+	private final FileChannel file;
+
+	private final int threads;
+
+	private boolean complete;
+
+	private boolean sorted;
+
+	/** @param threads The maximal amount of threads to use. Less will be used
+	 *     for small files. */
+	public ConcurrentCheckpointParser(FileChannel file, int threads) {
+		this.file = file;
+		this.threads = threads;
+	}
+
+	/** Uses as many threads as there are CPUs. */
+	public ConcurrentCheckpointParser(FileChannel file) {
+		this(file, Runtime.getRuntime().availableProcessors());
+	}
+
+	/** Returns all nodes of the file in the order in which they are stored.
+	 *  
+	 *  @throws IOException See {@link CheckpointParser#next()}. If multiple
+	 *      chunks fail the failure of the first one is thrown. */
+	public List<INode> parse() throws IOException {
+		ArrayList<Long> starts = splitIntoChunks(file, threads);
+		
+		if(starts.size() == 1) {
+			// Don't bother creating a thread.
+			ParserTask task = new ParserTask(0, Long.MAX_VALUE);
+			List<INode> result = task.call();
+			complete = task.parser.isComplete();
+			sorted = task.parser.isSorted();
+			return result;
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(starts.size());
+		try {
+			ArrayList<ParserTask> tasks = new ArrayList<>(starts.size());
+			ArrayList<Future<List<INode>>> results
+				= new ArrayList<>(starts.size());
+			for(int i = 0; i < starts.size(); ++i) {
+				boolean last = (i == starts.size() - 1);
+				ParserTask task = new ParserTask(starts.get(i),
+					last ? Long.MAX_VALUE : starts.get(i + 1));
+				tasks.add(task);
+				results.add(executor.submit(task));
+			}
+			
+			ArrayList<INode> result = new ArrayList<>();
+			sorted = true;
+			PathComparator comparator = new PathComparator();
+			for(int i = 0; i < results.size(); ++i) {
+				List<INode> chunk = getResult(results.get(i));
+				
+				// Each parser only checked the order inside of its own chunk
+				// so we must check it at the boundaries of the chunks as well.
+				if(!tasks.get(i).parser.isSorted())
+					sorted = false;
+				else if(sorted && !chunk.isEmpty() && !result.isEmpty()) {
+					Path last  = result.get(result.size() - 1).getPath();
+					Path first = chunk.get(0).getPath();
+					if(comparator.compare(last, first) >= 0)
+						sorted = false;
+				}
+				
+				result.addAll(chunk);
+				// Allow garbage collection of the chunk's list.
+				results.set(i, null);
+			}
+			
+			complete = tasks.get(tasks.size() - 1).parser.isComplete();
+			return result;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/** Same as {@link CheckpointParser#isComplete()}. */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/** Same as {@link CheckpointParser#isSorted()}. */
+	public boolean isSorted() {
+		return sorted;
+	}
+
+	/** Returns the start offsets of the chunks into which the given file is
+	 *  split for the given maximal amount of threads, the first is always 0.
+	 *  Each chunk ends where the next one starts, the last one at the EOF
+	 *  marker. Also used by the "compare" command. */
+	public static ArrayList<Long> splitIntoChunks(FileChannel file,
+			int threads) throws IOException {
+		
+		return splitIntoChunks(file, threads, MIN_CHUNK_SIZE);
+	}
+
+	private static ArrayList<Long> splitIntoChunks(FileChannel file,
+			int threads, long minChunkSize) throws IOException {
+		
+		long size = file.size();
+		int chunks = (int)max(1, min(threads, size / minChunkSize));
+		ArrayList<Long> starts = new ArrayList<>(chunks);
+		starts.add(0L);
+		for(int i = 1; i < chunks; ++i) {
+			long start
+				= CheckpointParser.findNodeStart(file, size / chunks * i);
+			// If a node is larger than a chunk multiple chunks may be moved to
+			// the same start. The EOF marker is always at the end of the file
+			// so if a chunk starts there we also don't need any chunk after it
+			// as the last chunk will parse it.
+			if(start > starts.get(starts.size() - 1) && start < size)
+				starts.add(start);
+		}
+		return starts;
+	}
+
+	/** Processes the chunks of {@link ConcurrentCheckpointParser#stream(
+	 *  ReadableByteChannel, int, ChunkHandler)}. */
+	public interface ChunkHandler<T> {
+		/** Is called concurrently on multiple threads, for each chunk of
+		 *  nodes in the order of the file. */
+		T process(List<INode> nodes) throws IOException;
+		
+		/** Is called on the thread which called stream() with the results of
+		 *  {@link #process(List)} in the order of the file. */
+		void consume(T result) throws IOException;
+	}
+
+	/** Parses the checkpoint in chunks and passes them to the handler, for
+	 *  processing checkpoints of any size with multiple CPUs: Unlike
+	 *  {@link #parse()} only the chunks which are processed by the threads
+	 *  and up to as many results which wait to be consumed are in memory.
+	 *  
+	 *  If the channel is a {@link FileChannel} the chunks are of
+	 *  a few MiB and are parsed by the threads as well.
+	 *  Otherwise, e.g. for a compressed checkpoint, it cannot be split, so
+	 *  it is parsed on the calling thread and only processed concurrently.
+	 *  
+	 *  Like {@link CheckpointReader} this does not tolerate unsorted files
+	 *  as the handler may rely on the order.
+	 *  
+	 *  @return {@link CheckpointParser#isComplete()}.
+	 *  @throws IOException If parsing fails, the file is not sorted, or the
+	 *      handler throws. */
+	public static <T> boolean stream(ReadableByteChannel channel,
+			int threads, ChunkHandler<T> handler) throws IOException {
+		
+		Stream<T> stream = new Stream<>(handler, threads);
+		try {
+			if(channel instanceof FileChannel) {
+				FileChannel file = (FileChannel)channel;
+				ArrayList<Long> starts = splitIntoChunks(file,
+					Integer.MAX_VALUE, STREAM_CHUNK_SIZE);
+				for(int i = 0; i < starts.size(); ++i) {
+					stream.submit(file, starts.get(i),
+						(i == starts.size() - 1) ? Long.MAX_VALUE
+						                         : starts.get(i + 1));
+				}
+			} else {
+				CheckpointParser parser = new CheckpointParser(channel);
+				ArrayList<INode> nodes = new ArrayList<>(NODES_PER_CHUNK);
+				for(INode n; (n = parser.next()) != null; ) {
+					nodes.add(n);
+					if(nodes.size() == NODES_PER_CHUNK) {
+						stream.submit(nodes, parser, false);
+						nodes = new ArrayList<>(NODES_PER_CHUNK);
+					}
+				}
+				// Also if it is empty, to pass the EOF marker.
+				stream.submit(nodes, parser, true);
+			}
+			
+			while(!stream.queue.isEmpty())
+				stream.consume();
+			return stream.complete;
+		} finally {
+			stream.executor.shutdownNow();
+		}
+	}
+
+	/** The state of {@link ConcurrentCheckpointParser#stream(
+	 *  ReadableByteChannel, int, ChunkHandler)}. */
+	private static final class Stream<T> {
+		
+		final ChunkHandler<T> handler;
+		
+		final int threads;
+		
+		final ExecutorService executor;
+		
+		final ArrayDeque<Future<Chunk<T>>> queue = new ArrayDeque<>();
+		
+		/** Of the last node of the chunks which were consumed so far, to
+		 *  check the order at the boundary to the next one. */
+		Path last = null;
+		
+		/** Of the last chunk which was consumed. */
+		boolean complete = false;
+		
+		Stream(ChunkHandler<T> handler, int threads) {
+			this.handler = handler;
+			this.threads = threads;
+			executor = Executors.newFixedThreadPool(threads);
+		}
+		
+		/** Parses and processes the given part of the file on a thread. */
+		void submit(final FileChannel file, final long start, final long end)
+				throws IOException {
+			
+			submit(new Callable<Chunk<T>>() {
+				@Override public Chunk<T> call() throws IOException {
+					CheckpointParser parser = new CheckpointParser(file, start,
+						end, STREAM_BUFFER_SIZE);
+					ArrayList<INode> nodes = new ArrayList<>();
+					for(INode n; (n = parser.next()) != null; )
+						nodes.add(n);
+					
+					Chunk<T> c = new Chunk<>();
+					c.first = nodes.isEmpty() ? null : nodes.get(0).getPath();
+					c.last = nodes.isEmpty() ? null
+						: nodes.get(nodes.size() - 1).getPath();
+					c.sorted = parser.isSorted();
+					// Only the last chunk reaches the EOF marker.
+					c.complete = (end == Long.MAX_VALUE) && parser.isComplete();
+					c.result = handler.process(nodes);
+					return c;
+				}
+			});
+		}
+		
+		/** Processes the given nodes, which the parser of the whole file has
+		 *  returned last, on a thread.
+		 *  @param end True if the parser has reached the end of the file. */
+		void submit(final List<INode> nodes, CheckpointParser parser,
+				boolean end) throws IOException {
+			
+			// The parser checked the order across the chunks already.
+			if(!parser.isSorted()) {
+				throw notSorted(nodes.isEmpty() ? null
+					: nodes.get(nodes.size() - 1).getPath());
+			}
+			final boolean complete = end && parser.isComplete();
+			submit(new Callable<Chunk<T>>() {
+				@Override public Chunk<T> call() throws IOException {
+					Chunk<T> c = new Chunk<>();
+					c.sorted = true;
+					c.complete = complete;
+					c.result = handler.process(nodes);
+					return c;
+				}
+			});
+		}
+		
+		private void submit(Callable<Chunk<T>> task) throws IOException {
+			// Bound the memory usage if consume() is slower than the threads.
+			if(queue.size() >= 2 * threads)
+				consume();
+			queue.add(executor.submit(task));
+		}
+		
+		/** Passes the result of the first chunk of the queue to the handler
+		 *  once it is available. */
+		void consume() throws IOException {
+			Chunk<T> c = getResult(queue.remove());
+			if(!c.sorted)
+				throw notSorted(c.last);
+			if(c.first != null && last != null
+					&& new PathComparator().compare(last, c.first) >= 0) {
+				throw notSorted(c.first);
+			}
+			if(c.last != null)
+				last = c.last;
+			complete = c.complete;
+			handler.consume(c.result);
+		}
+	}
+
+	/** A chunk of {@link #stream(ReadableByteChannel, int, ChunkHandler)}. */
+	private static final class Chunk<T> {
+		T result;
+		/** The paths of its first and last node, null if it is empty or if
+		 *  its order was checked while parsing already. */
+		Path first;
+		Path last;
+		boolean sorted;
+		boolean complete;
+	}
+
+	private static IOException notSorted(Path at) {
+		return new IOException("Checkpoint is not sorted, or contains "
+			+ "duplicates or non-normalized paths, at: " + at);
+	}
+
+	/** Returns the result of the future and rethrows the exception of the
+	 *  task, if any, as is. Also used by {@link CheckpointWriter} and the
+	 *  "compare" command. */
+	public static <T> T getResult(Future<T> future) throws IOException {
+		
+		try {
+			return future.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException)
+				throw (IOException)cause;
+			else if(cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			else if(cause instanceof Error)
+				throw (Error)cause;
+			else
+				throw new RuntimeException(cause);
+		}
+	}
+
+	private final class ParserTask implements Callable<List<INode>> {
+
+		final CheckpointParser parser;
+
+		ParserTask(long start, long end) {
+			parser = new CheckpointParser(file, start, end,
+				CheckpointParser.DEFAULT_BUFFER_SIZE);
+		}
+
+		@Override public List<INode> call() throws IOException {
+			ArrayList<INode> result = new ArrayList<>();
+			INode n;
+			while((n = parser.next()) != null)
+				result.add(n);
+			return result;
+		}
+	}
+
+}
@@ -0,0 +1,284 @@
+package checkpoint.serialization;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/** Sorts more records than fit into memory: Records are collected in memory
+ *  until a given amount of bytes is used, then sorted and written to a
+ *  temporary file as a sorted run. {@link #sorted()} merges the runs.
+ *
+ *  A record is a byte[] and records are ordered by comparing their bytes
+ *  unsigned, a shorter record before a longer one which it is a prefix of.
+ *  So the users encode the fields they sort by at the start of the records,
+ *  with numbers big-endian.
+ *
+ *  The run files are deleted by {@link #close()}.
+ *
+ *  Not thread-safe. */
+public final class ExternalSorter implements Closeable {
+
+	/** Estimate of the bytes of memory a record needs in addition to its
+	 *  bytes: The object header and length of the array and the reference
+	 *  to it in the list. */
+	private static final int RECORD_OVERHEAD = 32;
+
+	/** Maximal amount of runs to merge at once, to bound the amount of open
+	 *  files and their buffers. If there are more the existing ones are
+	 *  merged into a single one first. */
+	private static final int MAX_RUNS = 128;
+
+	/** In bytes, per run when merging. */
+	private static final int RUN_BUFFER_SIZE = 64 * 1024;
+
+	public static final Comparator<byte[]> COMPARATOR
+			= new Comparator<byte[]>() {
+		
+		@Override public int compare(byte[] a, byte[] b) {
+			int length = Math.min(a.length, b.length);
+			for(int i = 0; i < length; ++i) {
+				int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+				if(c != 0)
+					return c;
+			}
+			return a.length - b.length;
+		}
+	};
+
+	private final Path tempDir;
+
+	private final long memoryBytes;
+
+	private ArrayList<byte[]> records = new ArrayList<>();
+
+	private long recordsBytes = 0;
+
+	private final ArrayList<Run> runs = new ArrayList<>();
+
+	private long size = 0;
+
+	private boolean sorted = false;
+
+	/** A sorted temporary file of records as int length plus bytes. */
+	private static final class Run {
+		final Path file;
+		final long count;
+		
+		Run(Path file, long count) {
+			this.file = file;
+			this.count = count;
+		}
+	}
+
+	/** @param tempDir Where to store the runs. Null for the default temporary
+	 *      directory of the system.
+	 *  @param memoryBytes How much memory to use for the records before
+	 *      writing them to a run. */
+	public ExternalSorter(Path tempDir, long memoryBytes) {
+		if(memoryBytes <= 0)
+			throw new IllegalArgumentException("memoryBytes: " + memoryBytes);
+		
+		this.tempDir = tempDir;
+		this.memoryBytes = memoryBytes;
+	}
+
+	/** The record must not be modified afterwards. */
+	public void add(byte[] record) throws IOException {
+		if(sorted)
+			throw new IllegalStateException("sorted() was called already!");
+		
+		records.add(requireNonNull(record));
+		recordsBytes += record.length + RECORD_OVERHEAD;
+		++size;
+		if(recordsBytes >= memoryBytes)
+			spill();
+	}
+
+	/** Amount of records which were added. */
+	public long size() {
+		return size;
+	}
+
+	/** Amount of runs which were written to disk so far. */
+	public int getRunCount() {
+		return runs.size();
+	}
+
+	private void spill() throws IOException {
+		Collections.sort(records, COMPARATOR);
+		Path file = createTempFile();
+		try(DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(file),
+					RUN_BUFFER_SIZE))) {
+			
+			for(byte[] r : records) {
+				out.writeInt(r.length);
+				out.write(r);
+			}
+		}
+		runs.add(new Run(file, records.size()));
+		// Allocate a new list instead of clear()ing it so the memory of its
+		// array is released, it may have grown very large.
+		records = new ArrayList<>();
+		recordsBytes = 0;
+		
+		if(runs.size() >= MAX_RUNS) {
+			Path merged = createTempFile();
+			long count = 0;
+			try(Merger merger = new Merger(new ArrayList<>(runs), null);
+				DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(merged),
+						RUN_BUFFER_SIZE))) {
+				
+				for(byte[] r; (r = merger.next()) != null; ++count) {
+					out.writeInt(r.length);
+					out.write(r);
+				}
+			}
+			for(Run r : runs)
+				Files.delete(r.file);
+			runs.clear();
+			runs.add(new Run(merged, count));
+		}
+	}
+
+	private Path createTempFile() throws IOException {
+		return tempDir != null
+			? Files.createTempFile(tempDir, "checkpoint-sort.", ".tmp")
+			: Files.createTempFile("checkpoint-sort.", ".tmp");
+	}
+
+	/** Returns all records in sorted order. Can only be called once, and no
+	 *  records can be added afterwards. */
+	public Reader sorted() throws IOException {
+		if(sorted)
+			throw new IllegalStateException("sorted() was called already!");
+		sorted = true;
+		
+		Collections.sort(records, COMPARATOR);
+		ArrayList<byte[]> inMemory = records;
+		records = null;
+		return new Merger(runs, inMemory);
+	}
+
+	public interface Reader extends Closeable {
+		/** Returns null at the end. */
+		byte[] next() throws IOException;
+	}
+
+	/** Merges the runs and the records in memory via a heap of their
+	 *  current records. */
+	private static final class Merger implements Reader {
+
+		private final ArrayList<DataInputStream> inputs = new ArrayList<>();
+		
+		private final PriorityQueue<Source> heap;
+		
+		private static final class Source {
+			/** Null for the records in memory. */
+			final DataInputStream in;
+			final ArrayList<byte[]> inMemory;
+			long remaining;
+			byte[] current;
+			
+			Source(DataInputStream in, ArrayList<byte[]> inMemory,
+					long count) {
+				
+				this.in = in;
+				this.inMemory = inMemory;
+				this.remaining = count;
+			}
+			
+			/** Returns false at the end. */
+			boolean advance() throws IOException {
+				if(remaining == 0) {
+					current = null;
+					return false;
+				}
+				if(in != null) {
+					current = new byte[in.readInt()];
+					in.readFully(current);
+				} else
+					current = inMemory.get(inMemory.size() - (int)remaining);
+				--remaining;
+				return true;
+			}
+		}
+		
+		/** @param inMemory Sorted records which were not written to a run, or
+		 *      null. */
+		Merger(ArrayList<Run> runs, ArrayList<byte[]> inMemory)
+				throws IOException {
+			
+			heap = new PriorityQueue<>(runs.size() + 1,
+				new Comparator<Source>() {
+					@Override public int compare(Source a, Source b) {
+						return COMPARATOR.compare(a.current, b.current);
+					}
+				});
+			try {
+				for(Run r : runs) {
+					DataInputStream in = new DataInputStream(
+						new BufferedInputStream(Files.newInputStream(r.file),
+							RUN_BUFFER_SIZE));
+					inputs.add(in);
+					Source s = new Source(in, null, r.count);
+					if(s.advance())
+						heap.add(s);
+				}
+				if(inMemory != null) {
+					Source s = new Source(null, inMemory, inMemory.size());
+					if(s.advance())
+						heap.add(s);
+				}
+			} catch(IOException | RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+		
+		@Override public byte[] next() throws IOException {
+			Source s = heap.poll();
+			if(s == null)
+				return null;
+			
+			byte[] result = s.current;
+			if(s.advance())
+				heap.add(s);
+			return result;
+		}
+		
+		@Override public void close() throws IOException {
+			IOException failure = null;
+			for(DataInputStream in : inputs) {
+				try {
+					in.close();
+				} catch(IOException e) {
+					failure = e;
+				}
+			}
+			if(failure != null)
+				throw failure;
+		}
+	}
+
+	/** Deletes the runs. The {@link Reader} must be closed first. */
+	@Override public void close() throws IOException {
+		for(Run r : runs)
+			Files.deleteIfExists(r.file);
+		runs.clear();
+		records = null;
+	}
+
+}
@@ -0,0 +1,323 @@
+package checkpoint.serialization;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.ISHA256;
+
+/** Reverse index of a {@link TextFormat} checkpoint which allows finding the
+ *  nodes of a given {@link ISHA256} without parsing the whole checkpoint.
+ *  
+ *  It is a table of a record of the hash and the offset of the line of the
+ *  node in the checkpoint for each node which has a hash, sorted by the hash
+ *  and then the offset. The records have a fixed size so the table can be
+ *  binary-searched in place, it is memory-mapped for that. Thus repeated
+ *  lookups merely touch a few pages of it, which stay in the page cache.
+ *  
+ *  It is written by {@link CheckpointWriter} if enabled by
+ *  {@link CheckpointWriter.Index#Hashes}, as {@link #FILENAME} next to the
+ *  checkpoint. Compressed checkpoints cannot be indexed since we cannot seek
+ *  in them.
+ *  
+ *  The file consists of the {@link #MAGIC}, the {@link #VERSION} as int, the
+ *  size of the checkpoint file as long to detect an outdated index, the long
+ *  amount of records, and the records of {@link #RECORD_SIZE} bytes: The 32
+ *  bytes of the hash and the long offset. All numbers are big-endian.
+ *  
+ *  Not thread-safe. */
+public final class HashIndex implements Closeable {
+
+	public static final String FILENAME = TextFormat.FILENAME + ".hashidx";
+
+	public static final byte[] MAGIC = "CHKPTHSH".getBytes(US_ASCII);
+
+	public static final int VERSION = 1;
+
+	private static final int HASH_SIZE = 32;
+
+	public static final int RECORD_SIZE = HASH_SIZE + 8;
+
+	private static final int HEADER_SIZE = MAGIC.length + 4 + 8 + 8;
+
+	/** A {@link MappedByteBuffer} can be at most 2 GiB so we map the records
+	 *  in segments of this many. */
+	private static final long RECORDS_PER_SEGMENT
+		= Integer.MAX_VALUE / RECORD_SIZE;
+
+	/** In bytes, for parsing a single node. Will be grown automatically if a
+	 *  node is larger. */
+	private static final int PARSER_BUFFER_SIZE = 4 * 1024;
+
+	private final FileChannel checkpoint;
+
+	private final MappedByteBuffer[] segments;
+
+	private final long recordCount;
+
+	private HashIndex(FileChannel checkpoint, MappedByteBuffer[] segments,
+			long recordCount) {
+		
+		this.checkpoint = checkpoint;
+		this.segments = segments;
+		this.recordCount = recordCount;
+	}
+
+	/** Maps the index of the checkpoint in the given dir.
+	 *  Throws {@link java.nio.file.NoSuchFileException} if it has none, and
+	 *  {@link IOException} if it is invalid or outdated. */
+	public static HashIndex open(Path checkpointDir) throws IOException {
+		FileChannel checkpoint = FileChannel.open(
+			checkpointDir.resolve(TextFormat.FILENAME), READ);
+		try(FileChannel index
+				= FileChannel.open(checkpointDir.resolve(FILENAME), READ)) {
+			
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while(header.hasRemaining()) {
+				if(index.read(header, header.position()) < 0)
+					throw new IOException("Index is truncated!");
+			}
+			header.flip();
+			byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if(!Arrays.equals(magic, MAGIC))
+				throw new IOException("Not a checkpoint hash index!");
+			int version = header.getInt();
+			if(version != VERSION) {
+				throw new IOException(
+					"Unsupported version of checkpoint hash index: " + version);
+			}
+			if(header.getLong() != checkpoint.size()) {
+				throw new IOException("Index is outdated, please re-create it "
+					+ "with the 'filter --hash-index' command!");
+			}
+			long count = header.getLong();
+			if(count < 0 || HEADER_SIZE + count * RECORD_SIZE != index.size())
+				throw new IOException("Index is truncated!");
+			
+			// The mappings stay valid after closing the channel.
+			int segmentCount = (int)((count + RECORDS_PER_SEGMENT - 1)
+				/ RECORDS_PER_SEGMENT);
+			MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+			for(int i = 0; i < segmentCount; ++i) {
+				long first = i * RECORDS_PER_SEGMENT;
+				long records = Math.min(RECORDS_PER_SEGMENT, count - first);
+				segments[i] = index.map(MapMode.READ_ONLY,
+					HEADER_SIZE + first * RECORD_SIZE, records * RECORD_SIZE);
+			}
+			return new HashIndex(checkpoint, segments, count);
+		} catch(IOException | RuntimeException e) {
+			checkpoint.close();
+			throw e;
+		}
+	}
+
+	/** Returns the nodes which have the given hash, in the order of the
+	 *  checkpoint. The list is empty if there are none. */
+	public List<INode> lookup(ISHA256 hash) throws IOException {
+		byte[] key = hash.toBytes();
+		ArrayList<INode> result = new ArrayList<>();
+		for(long i = lowerBound(key); i < recordCount; ++i) {
+			if(compare(i, key) != 0)
+				break;
+			
+			INode n = parseNode(offset(i));
+			if(n == null || !hash.equals(n.getHash())) {
+				throw new IOException("Index does not match the checkpoint, "
+					+ "please re-create it with the 'filter --hash-index' "
+					+ "command!");
+			}
+			result.add(n);
+		}
+		return result;
+	}
+
+	/** Returns the index of the first record whose hash is not smaller than
+	 *  the given one, or {@link #recordCount} if there is none. */
+	private long lowerBound(byte[] key) {
+		long low = 0;
+		long high = recordCount;
+		while(low < high) {
+			long middle = (low + high) >>> 1;
+			if(compare(middle, key) < 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/** Compares the hash of the given record to the given one. */
+	private int compare(long record, byte[] key) {
+		ByteBuffer segment = segments[(int)(record / RECORDS_PER_SEGMENT)];
+		int position = (int)(record % RECORDS_PER_SEGMENT) * RECORD_SIZE;
+		for(int i = 0; i < HASH_SIZE; ++i) {
+			int c = (segment.get(position + i) & 0xFF) - (key[i] & 0xFF);
+			if(c != 0)
+				return c;
+		}
+		return 0;
+	}
+
+	private long offset(long record) {
+		ByteBuffer segment = segments[(int)(record / RECORDS_PER_SEGMENT)];
+		return segment.getLong(
+			(int)(record % RECORDS_PER_SEGMENT) * RECORD_SIZE + HASH_SIZE);
+	}
+
+	private INode parseNode(long offset) throws IOException {
+		// The end is exclusive, so this parses only the node at the offset.
+		return new CheckpointParser(checkpoint, offset, offset + 1,
+			PARSER_BUFFER_SIZE).next();
+	}
+
+	/** Amount of indexed nodes. */
+	public long size() {
+		return recordCount;
+	}
+
+	@Override public void close() throws IOException {
+		// TODO: Java 9: The mappings are only unmapped by garbage collection,
+		// there is no API for doing it earlier.
+		checkpoint.close();
+	}
+
+	/** Collects the records for {@link CheckpointWriter}.
+	 *  
+	 *  TODO: Performance: This keeps 40 bytes per file in memory until the
+	 *  checkpoint is finished, which is fine for Checkpoint.save() as it keeps
+	 *  all nodes in memory anyway. For streaming huge checkpoints through the
+	 *  "filter" command sorted runs could be spilled to disk and merged. */
+	static final class Builder {
+
+		/** The records as 5 longs each: The hash as 4 longs with the sign bit
+		 *  flipped, so comparing them signed is equal to comparing the bytes
+		 *  unsigned, and the offset. */
+		private long[] records = new long[5 * 1024];
+		
+		private int count = 0;
+		
+		void add(ISHA256 hash, long offset) {
+			if(5 * (count + 1) > records.length)
+				records = Arrays.copyOf(records, 2 * records.length);
+			
+			ByteBuffer b = ByteBuffer.wrap(hash.toBytes());
+			int i = 5 * count++;
+			for(int j = 0; j < 4; ++j)
+				records[i + j] = b.getLong() ^ Long.MIN_VALUE;
+			records[i + 4] = offset;
+		}
+		
+		/** Adds the records of the given builder with the given amount added
+		 *  to their offset. */
+		void addAll(Builder other, long offsetDelta) {
+			for(int i = 0; i < other.count; ++i) {
+				if(5 * (count + 1) > records.length)
+					records = Arrays.copyOf(records, 2 * records.length);
+				System.arraycopy(other.records, 5 * i, records, 5 * count, 4);
+				records[5 * count + 4] = other.records[5 * i + 4] + offsetDelta;
+				++count;
+			}
+		}
+		
+		void write(Path checkpointDir, long checkpointSize) throws IOException {
+			sort(0, count);
+			
+			Path file = checkpointDir.resolve(FILENAME);
+			Path temp = Files.createTempFile(checkpointDir, FILENAME + ".",
+				".tmp");
+			try {
+				try(DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(Files.newOutputStream(temp),
+							1024 * 1024))) {
+					
+					out.write(MAGIC);
+					out.writeInt(VERSION);
+					out.writeLong(checkpointSize);
+					out.writeLong(count);
+					for(int i = 0; i < 5 * count; i += 5) {
+						for(int j = 0; j < 4; ++j)
+							out.writeLong(records[i + j] ^ Long.MIN_VALUE);
+						out.writeLong(records[i + 4]);
+					}
+				}
+				// TODO: fsync(), see CheckpointWriter.finish().
+				Files.move(temp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+		}
+		
+		/** Quicksort of the records in [from, to). Java has no sort for
+		 *  arrays of records of primitives, and sorting an array of objects
+		 *  would need much more memory. The offsets are unique so there are no
+		 *  equal records, and the hashes are random so there is no input which
+		 *  is bad for the choice of the pivot. */
+		private void sort(int from, int to) {
+			while(to - from > 16) {
+				int pivot = partition(from, to);
+				// Recurse into the smaller part to bound the stack depth.
+				if(pivot - from < to - pivot) {
+					sort(from, pivot);
+					from = pivot + 1;
+				} else {
+					sort(pivot + 1, to);
+					to = pivot;
+				}
+			}
+			// Insertion sort for the small rest.
+			for(int i = from + 1; i < to; ++i) {
+				for(int j = i; j > from && compare(j - 1, j) > 0; --j)
+					swap(j - 1, j);
+			}
+		}
+		
+		/** Returns the final index of the pivot. */
+		private int partition(int from, int to) {
+			swap((from + to) >>> 1, to - 1);
+			int pivot = to - 1;
+			int store = from;
+			for(int i = from; i < pivot; ++i) {
+				if(compare(i, pivot) < 0)
+					swap(i, store++);
+			}
+			swap(store, pivot);
+			return store;
+		}
+		
+		private int compare(int a, int b) {
+			for(int j = 0; j < 5; ++j) {
+				long x = records[5 * a + j];
+				long y = records[5 * b + j];
+				if(x != y)
+					return x < y ? -1 : 1;
+			}
+			return 0;
+		}
+		
+		private void swap(int a, int b) {
+			for(int j = 0; j < 5; ++j) {
+				long t = records[5 * a + j];
+				records[5 * a + j] = records[5 * b + j];
+				records[5 * b + j] = t;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,454 @@
+package checkpoint.serialization;
+
+import static checkpoint.datamodel.ITimestamps.TimestampTypes.AccessTime;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import checkpoint.datamodel.ICheckpointReader;
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.ITimestamps.TimestampTypes;
+import checkpoint.datamodel.implementation.Checkpoint.PathComparator;
+
+/** Stores many checkpoints of the same input dir, e.g. one per night, as a
+ *  few full checkpoints plus the differences of the others, which takes
+ *  orders of magnitude less space than storing each of them fully.
+ *
+ *  The store is a directory with a subdirectory per checkpoint which was
+ *  added, named by its number in the order of adding them, padded by zeros
+ *  to {@link #SNAPSHOT_DIGITS} digits so they sort naturally. Each of these
+ *  "snapshots" is either:
+ *  - a base: A checkpoint directory with the full checkpoint.
+ *  - a delta: Contains a checkpoint directory {@link #CHANGED} with the
+ *    nodes which were added or modified compared to the previous snapshot,
+ *    and a checkpoint directory {@link #REMOVED} with the previous version
+ *    of the nodes which were removed.
+ *  Additionally each contains a {@link #LABEL} file which describes it, by
+ *  default the name of the checkpoint directory it was added from.
+ *
+ *  A new base is written every {@link #DEFAULT_REBASE_INTERVAL} snapshots,
+ *  or if the delta would not be much smaller than a base, so reconstructing
+ *  a snapshot only needs to apply a limited amount of deltas.
+ *
+ *  All checkpoints are stored uncompressed so the node of a path can be
+ *  found in each of them by binary search, see
+ *  {@link CheckpointParser#findPath(FileChannel, byte[])}. This allows
+ *  querying the history of a path without reading the whole store.
+ *
+ *  The {@link TimestampTypes#AccessTime} is not stored: Creating a
+ *  checkpoint reads all files, which changes the access time of all of them
+ *  so each delta would contain all nodes.
+ *
+ *  Not thread-safe, and there must not be multiple processes adding to the
+ *  same store. */
+public final class HistoryStore {
+
+	public static final String CHANGED = "changed";
+	public static final String REMOVED = "removed";
+	public static final String LABEL = "label.txt";
+
+	public static final int SNAPSHOT_DIGITS = 8;
+
+	/** For daily snapshots this is about a base per quarter of a year. */
+	public static final int DEFAULT_REBASE_INTERVAL = 90;
+
+	/** If a delta contains more nodes than this share of the nodes of the
+	 *  snapshot a base is written instead, as it would not save much space
+	 *  but reconstructing it would take longer. */
+	private static final double MAX_DELTA_SHARE = 0.5;
+
+	private static final EnumSet<TimestampTypes> TIMESTAMPS_FILTER
+		= EnumSet.of(AccessTime);
+
+	private final Path dir;
+
+	private HistoryStore(Path dir) {
+		this.dir = dir;
+	}
+
+	/** Opens an existing store.
+	 *
+	 *  @throws NoSuchFileException If the directory does not exist. */
+	public static HistoryStore open(Path dir) throws IOException {
+		if(!Files.isDirectory(dir))
+			throw new NoSuchFileException(dir.toString());
+		return new HistoryStore(dir);
+	}
+
+	/** Opens the store, creating the directory if it does not exist. */
+	public static HistoryStore create(Path dir) throws IOException {
+		Files.createDirectories(dir);
+		return new HistoryStore(dir);
+	}
+
+	/** Returns the numbers of the snapshots in ascending order. */
+	public List<Integer> getSnapshots() throws IOException {
+		ArrayList<Integer> result = new ArrayList<>();
+		try(DirectoryStream<Path> s = Files.newDirectoryStream(dir,
+				"[0-9][0-9][0-9][0-9][0-9][0-9][0-9][0-9]")) {
+			for(Path p : s)
+				result.add(Integer.parseInt(p.getFileName().toString()));
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	public boolean isBase(int snapshot) {
+		return !Files.exists(getDir(snapshot).resolve(CHANGED),
+			NOFOLLOW_LINKS);
+	}
+
+	public String getLabel(int snapshot) throws IOException {
+		return new String(Files.readAllBytes(getDir(snapshot).resolve(LABEL)),
+			UTF_8);
+	}
+
+	private Path getDir(int snapshot) {
+		return dir.resolve(String.format("%0" + SNAPSHOT_DIGITS + "d",
+			snapshot));
+	}
+
+	/** Adds the checkpoint in the given directory as a new snapshot and
+	 *  returns its number.
+	 *  The snapshot is written to a temporary directory first which is
+	 *  renamed once it is complete, so a failure does not damage the store.
+	 *  @param rebaseInterval Write a base if the last one is this many
+	 *      snapshots ago. */
+	public int add(Path checkpointDir, String label, int rebaseInterval)
+			throws IOException {
+		
+		List<Integer> snapshots = getSnapshots();
+		int previous = snapshots.isEmpty() ? 0
+			: snapshots.get(snapshots.size() - 1);
+		int snapshot = previous + 1;
+		Path target = getDir(snapshot);
+		Path temp = dir.resolve(target.getFileName() + ".tmp");
+		deleteRecursively(temp);
+		try {
+			boolean base = previous == 0
+				|| snapshot - getLastBase(snapshots) >= rebaseInterval;
+			if(!base)
+				base = !addDelta(previous, checkpointDir, temp);
+			if(base) {
+				deleteRecursively(temp);
+				addBase(checkpointDir, temp);
+			}
+			Files.write(temp.resolve(LABEL), label.getBytes(UTF_8));
+			Files.move(temp, target, ATOMIC_MOVE);
+		} finally {
+			deleteRecursively(temp);
+		}
+		return snapshot;
+	}
+
+	private int getLastBase(List<Integer> snapshots) {
+		for(int i = snapshots.size() - 1; i >= 0; --i) {
+			if(isBase(snapshots.get(i)))
+				return snapshots.get(i);
+		}
+		throw new IllegalStateException("No base in history store: " + dir);
+	}
+
+	private static void addBase(Path checkpointDir, Path snapshotDir)
+			throws IOException {
+		
+		try(CheckpointReader reader = CheckpointReader.open(checkpointDir);
+			CheckpointWriter writer
+				= CheckpointWriter.open(snapshotDir, TIMESTAMPS_FILTER)) {
+			
+			for(INode n; (n = reader.next()) != null; )
+				writer.addNode(n);
+			writer.finish(reader.isComplete());
+		}
+	}
+
+	/** Writes the differences of the checkpoint to the previous snapshot.
+	 *  Returns false if the delta is too large to be worth it, see
+	 *  {@link #MAX_DELTA_SHARE}. */
+	private boolean addDelta(int previous, Path checkpointDir,
+			Path snapshotDir) throws IOException {
+		
+		PathComparator pathComparator = new PathComparator();
+		// Nodes are compared by their lines as it is what is stored.
+		NodeFormatter oldLine = new NodeFormatter(TIMESTAMPS_FILTER, 1024);
+		NodeFormatter newLine = new NodeFormatter(TIMESTAMPS_FILTER, 1024);
+		long nodes = 0;
+		long differing = 0;
+		try(ICheckpointReader oldNodes = open(previous);
+			CheckpointReader newNodes = CheckpointReader.open(checkpointDir);
+			CheckpointWriter changed = CheckpointWriter.open(
+				snapshotDir.resolve(CHANGED), TIMESTAMPS_FILTER);
+			CheckpointWriter removed = CheckpointWriter.open(
+				snapshotDir.resolve(REMOVED), TIMESTAMPS_FILTER)) {
+			
+			INode o = oldNodes.next();
+			INode n = newNodes.next();
+			while(o != null || n != null) {
+				int c = (o == null) ? 1
+				      : (n == null) ? -1
+				      : pathComparator.compare(o.getPath(), n.getPath());
+				
+				if(c < 0) {
+					removed.addNode(o);
+					++differing;
+					o = oldNodes.next();
+					continue;
+				}
+				
+				++nodes;
+				if(c > 0) {
+					changed.addNode(n);
+					++differing;
+				} else {
+					oldLine.clear();
+					oldLine.append(o);
+					newLine.clear();
+					newLine.append(n);
+					if(!equals(oldLine, newLine)) {
+						changed.addNode(n);
+						++differing;
+					}
+					o = oldNodes.next();
+				}
+				n = newNodes.next();
+			}
+			
+			if(differing > MAX_DELTA_SHARE * nodes)
+				return false;
+			
+			changed.finish(newNodes.isComplete());
+			removed.finish(true);
+			return true;
+		}
+	}
+
+	/** TODO: Java 9: Use Arrays.equals(byte[], int, int, byte[], int, int) */
+	private static boolean equals(NodeFormatter a, NodeFormatter b) {
+		if(a.length() != b.length())
+			return false;
+		
+		byte[] bufferA = a.buffer();
+		byte[] bufferB = b.buffer();
+		for(int i = 0; i < a.length(); ++i) {
+			if(bufferA[i] != bufferB[i])
+				return false;
+		}
+		return true;
+	}
+
+	/** Returns a reader of the checkpoint of the given snapshot.
+	 *  It is reconstructed while reading by applying the deltas since the
+	 *  last base to it, which only needs memory for the current node of
+	 *  each. */
+	public ICheckpointReader open(int snapshot) throws IOException {
+		if(isBase(snapshot))
+			return CheckpointReader.open(getDir(snapshot));
+		
+		ICheckpointReader previous = open(snapshot - 1);
+		try {
+			return new DeltaReader(previous, getDir(snapshot));
+		} catch(IOException | RuntimeException e) {
+			previous.close();
+			throw e;
+		}
+	}
+
+	/** A change of a path in a snapshot, see {@link #getHistory(String)}. */
+	public static final class Change {
+		public final int snapshot;
+		/** Null if the path was removed. */
+		public final INode node;
+		/** Null if the path was added. */
+		public final INode previousNode;
+		
+		Change(int snapshot, INode node, INode previousNode) {
+			this.snapshot = snapshot;
+			this.node = node;
+			this.previousNode = previousNode;
+		}
+	}
+
+	/** Returns the snapshots in which the node of the given path, in the
+	 *  format of {@link INode#getPath()}, was added, modified or removed.
+	 *  Only searches the node in each snapshot, see the class JavaDoc. */
+	public List<Change> getHistory(String path) throws IOException {
+		byte[] key = path.getBytes(UTF_8);
+		ArrayList<Change> result = new ArrayList<>();
+		INode current = null;
+		String currentLine = null;
+		for(int s : getSnapshots()) {
+			Path snapshotDir = getDir(s);
+			INode n;
+			if(isBase(s))
+				n = lookup(snapshotDir, key);
+			else {
+				n = lookup(snapshotDir.resolve(CHANGED), key);
+				if(n == null) {
+					if(lookup(snapshotDir.resolve(REMOVED), key) == null)
+						continue; // Unchanged
+				}
+			}
+			
+			// A base may not differ from the previous snapshot.
+			String line = n != null ? CheckpointWriter.format(n) : null;
+			if(line == null ? currentLine != null : !line.equals(currentLine))
+				result.add(new Change(s, n, current));
+			current = n;
+			currentLine = line;
+		}
+		return result;
+	}
+
+	/** Returns the node of the given path in the checkpoint in the given
+	 *  directory, or null if it does not contain it. */
+	private static INode lookup(Path checkpointDir, byte[] path)
+			throws IOException {
+		
+		try(FileChannel file = FileChannel.open(
+				checkpointDir.resolve(TextFormat.FILENAME), READ)) {
+			
+			long offset = CheckpointParser.findPath(file, path);
+			INode n = new CheckpointParser(file, offset, offset + 1,
+				CheckpointParser.SEARCH_BUFFER_SIZE).next();
+			return n != null && Arrays.equals(
+					n.getPath().toString().getBytes(UTF_8), path)
+				? n : null;
+		}
+	}
+
+	/** Applies a delta to the nodes of the previous snapshot. */
+	private static final class DeltaReader implements ICheckpointReader {
+
+		private final PathComparator pathComparator = new PathComparator();
+		
+		private final ICheckpointReader previous;
+		private final CheckpointReader changed;
+		private final CheckpointReader removed;
+		
+		/** The next node of each, null if it needs to be read. */
+		private INode previousNode = null, changedNode = null,
+			removedNode = null;
+		private boolean previousEnd = false, changedEnd = false,
+			removedEnd = false;
+		
+		DeltaReader(ICheckpointReader previous, Path snapshotDir)
+				throws IOException {
+			
+			this.previous = previous;
+			changed = CheckpointReader.open(snapshotDir.resolve(CHANGED));
+			try {
+				removed = CheckpointReader.open(snapshotDir.resolve(REMOVED));
+			} catch(IOException | RuntimeException e) {
+				changed.close();
+				throw e;
+			}
+		}
+		
+		@Override public INode next() throws IOException {
+			while(true) {
+				if(previousNode == null && !previousEnd)
+					previousEnd = (previousNode = previous.next()) == null;
+				if(changedNode == null && !changedEnd)
+					changedEnd = (changedNode = changed.next()) == null;
+				
+				if(changedNode != null && (previousNode == null
+						|| pathComparator.compare(changedNode.getPath(),
+							previousNode.getPath()) <= 0)) {
+					
+					// Replaces the previous node if it has the same path.
+					if(previousNode != null && changedNode.getPath().equals(
+							previousNode.getPath()))
+						previousNode = null;
+					
+					INode n = changedNode;
+					changedNode = null;
+					return n;
+				}
+				if(previousNode == null)
+					return null;
+				
+				INode n = previousNode;
+				previousNode = null;
+				if(!isRemoved(n))
+					return n;
+			}
+		}
+		
+		private boolean isRemoved(INode n) throws IOException {
+			while(true) {
+				if(removedNode == null && !removedEnd)
+					removedEnd = (removedNode = removed.next()) == null;
+				if(removedNode == null)
+					return false;
+				
+				int c = pathComparator.compare(removedNode.getPath(),
+					n.getPath());
+				if(c > 0)
+					return false;
+				removedNode = null;
+				if(c == 0)
+					return true;
+			}
+		}
+		
+		/** The delta stores whether the checkpoint which it was created from
+		 *  is complete. */
+		@Override public boolean isComplete() {
+			return changed.isComplete();
+		}
+		
+		@Override public Path getCheckpointDir() {
+			return changed.getCheckpointDir().getParent();
+		}
+		
+		@Override public void close() throws IOException {
+			try {
+				previous.close();
+			} finally {
+				try {
+					changed.close();
+				} finally {
+					removed.close();
+				}
+			}
+		}
+	}
+
+	private static void deleteRecursively(Path p) throws IOException {
+		if(!Files.exists(p, NOFOLLOW_LINKS))
+			return;
+		
+		Files.walkFileTree(p, new SimpleFileVisitor<Path>() {
+			@Override public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override public FileVisitResult postVisitDirectory(Path d,
+					IOException e) throws IOException {
+				if(e != null)
+					throw e;
+				Files.delete(d);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+}
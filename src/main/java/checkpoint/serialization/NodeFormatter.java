@@ -0,0 +1,409 @@
+package checkpoint.serialization;
+
+import static checkpoint.datamodel.ITimestamps.TimestampTypes.AccessTime;
+import static checkpoint.datamodel.ITimestamps.TimestampTypes.BirthTime;
+import static checkpoint.datamodel.ITimestamps.TimestampTypes.ModificationTime;
+import static checkpoint.datamodel.ITimestamps.TimestampTypes.StatusChangeTime;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedWriter;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.TimeZone;
+
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.ISHA256;
+import checkpoint.datamodel.ITimestamps;
+import checkpoint.datamodel.ITimestamps.TimestampTypes;
+import checkpoint.datamodel.implementation.Checkpoint.PathComparator;
+import checkpoint.serialization.TextFormat.EOFPaths;
+
+/** Encodes {@link INode}s to the UTF-8 bytes of their line in the format
+ *  described at {@link TextFormat} and appends them to an internal buffer.
+ *  
+ *  This replaces formatting with a {@link BufferedWriter} which encoded every
+ *  written String to UTF-8 on its own, and a {@link SimpleDateFormat} call
+ *  for each of the four dates of every node. That made saving CPU-bound.
+ *  Instead we encode the path by hand, hex-encode the hash by a table lookup
+ *  and remember the formatted bytes of recently seen dates: The format only
+ *  has a resolution of seconds, and files which were created or changed
+ *  together usually share their timestamps, so most dates are cache hits.
+ *  Misses are formatted by hand as well.
+ *  The output was byte-identical to the former implementation, which did not
+ *  write the size field yet.
+ *  
+ *  Not thread-safe, use a separate instance per thread. */
+final class NodeFormatter {
+
+	private static final byte[] HEX_DIGITS
+		= "0123456789abcdef".getBytes(US_ASCII);
+
+	private static final byte[] DIRECTORY
+		= TextFormat.SHA256SUM_OF_DIRECTORY.getBytes(UTF_8);
+	private static final byte[] HASH_FAILED
+		= TextFormat.SHA256SUM_FAILED.getBytes(UTF_8);
+	private static final byte[] STAT_FAILED
+		= ("\t" + TextFormat.STAT_FAILED).getBytes(UTF_8);
+	private static final byte[] DATE_UNAVAILABLE
+		= TextFormat.DATE_UNAVAILABLE.getBytes(UTF_8);
+	private static final byte[] SIZE
+		= ("\t" + TextFormat.SIZE + ": ").getBytes(UTF_8);
+	private static final byte[] DIRECTORY_HASH
+		= ("\t" + TextFormat.DIRECTORY_HASH + ": ").getBytes(UTF_8);
+	private static final byte[] BIRTH  = "\tBirth: ".getBytes(UTF_8);
+	private static final byte[] ACCESS = "\tAccess: ".getBytes(UTF_8);
+	private static final byte[] MODIFY = "\tModify: ".getBytes(UTF_8);
+	private static final byte[] CHANGE = "\tChange: ".getBytes(UTF_8);
+
+	/** Must be a power of 2. Large enough to hold all four timestamps of
+	 *  many nodes, small enough to stay in the CPU cache. */
+	private static final int DATE_CACHE_SIZE = 1024;
+
+	private final boolean writeBirth;
+	private final boolean writeAccess;
+	private final boolean writeModify;
+	private final boolean writeChange;
+
+	private byte[] buffer;
+
+	private int length = 0;
+
+	/** The UTF-8 bytes of the path of the node which was appended last, for
+	 *  checking the order. Comparing them is equal to comparing the paths by
+	 *  {@link PathComparator} but avoids the overhead of it encoding each
+	 *  path again. */
+	private byte[] previousPath = new byte[4096];
+
+	/** -1 if no node was appended yet. */
+	private int previousPathLength = -1;
+
+	/** WARNING: SimpleDateFormat is NOT thread-safe! This is fine because
+	 *  this class isn't either.
+	 *  Only used if a date is neither in the {@link #dateCacheKeys} nor
+	 *  supported by {@link #formatDateFast(long)}. */
+	private final SimpleDateFormat dateFormat
+		= new SimpleDateFormat(TextFormat.DATE_FORMAT_STRING);
+
+	/** The {@link TimeZone} of the {@link #dateFormat}. */
+	private final TimeZone timeZone = dateFormat.getTimeZone();
+
+	/** The seconds since the epoch of the formatted dates in
+	 *  {@link #dateCacheValues} at the same index.
+	 *  The index is the lower bits of the seconds, i.e. the cache is direct
+	 *  mapped which is enough as dates of adjacent nodes are usually close to
+	 *  each other.
+	 *  Empty entries have a null value. */
+	private final long[] dateCacheKeys = new long[DATE_CACHE_SIZE];
+
+	private final byte[][] dateCacheValues = new byte[DATE_CACHE_SIZE][];
+
+	NodeFormatter(EnumSet<TimestampTypes> timestampsFilter,
+			int initialBufferSize) {
+		
+		writeBirth  = !timestampsFilter.contains(BirthTime);
+		writeAccess = !timestampsFilter.contains(AccessTime);
+		writeModify = !timestampsFilter.contains(ModificationTime);
+		writeChange = !timestampsFilter.contains(StatusChangeTime);
+		
+		buffer = new byte[initialBufferSize];
+	}
+
+	/** The bytes which were appended since the last {@link #clear()} are
+	 *  stored in the range [0, {@link #length()}) of the returned array.
+	 *  The array is replaced by a larger one when growing so do not keep
+	 *  references to it across calls to the append functions. */
+	byte[] buffer() {
+		return buffer;
+	}
+
+	int length() {
+		return length;
+	}
+
+	void clear() {
+		length = 0;
+	}
+
+	/** Makes {@link #append(INode)} behave as if the given node had been
+	 *  appended before, without appending it. For formatting a range of
+	 *  nodes which is not the first one. */
+	void setPreviousNode(INode n) {
+		int pathStart = length;
+		appendPath(n.getPath().toString());
+		setPreviousPath(pathStart);
+		length = pathStart;
+	}
+
+	/** @throws IllegalArgumentException If the node is not greater than the
+	 *     previous one as defined by {@link PathComparator}, i.e. nodes must
+	 *     be appended sorted and without duplicates. Nothing is appended
+	 *     then. */
+	void append(INode n) throws IllegalArgumentException {
+		int pathStart = length;
+		appendPath(n.getPath().toString());
+		int pathLength = length - pathStart;
+		if(previousPathLength >= 0 && CheckpointParser.compareUnsigned(
+				previousPath, previousPathLength,
+				buffer, pathStart, pathLength) >= 0) {
+			
+			length = pathStart;
+			throw new IllegalArgumentException(
+				"Nodes not added in sorted order, or duplicate: "
+				+ n.getPath());
+		}
+		setPreviousPath(pathStart);
+		
+		ensureCapacity(2 + 64);
+		buffer[length++] = 0;
+		buffer[length++] = '\t';
+		ISHA256 hash = n.getHash();
+		if(n.isDirectory()) {
+			appendBytes(DIRECTORY);
+			if(hash != null) {
+				appendBytes(DIRECTORY_HASH);
+				appendHash(hash);
+			}
+		} else {
+			if(hash != null)
+				appendHash(hash);
+			else
+				appendBytes(HASH_FAILED);
+			
+			appendBytes(SIZE);
+			appendNumber(n.getSize());
+		}
+		
+		ITimestamps t = n.getTimetamps();
+		
+		if(t != null) {
+			if(writeBirth) {
+				appendBytes(BIRTH);
+				appendDate(t.getBirthTime());
+			}
+			
+			if(writeAccess) {
+				appendBytes(ACCESS);
+				appendDate(t.getAccessTime());
+			}
+			
+			if(writeModify) {
+				appendBytes(MODIFY);
+				appendDate(t.getModificationTime());
+			}
+			
+			if(writeChange) {
+				appendBytes(CHANGE);
+				appendDate(t.getStatusChangeTime());
+			}
+		} else
+			appendBytes(STAT_FAILED);
+		
+		ensureCapacity(1);
+		buffer[length++] = '\n';
+	}
+
+	/** Copies the path which starts at the given index and ends at
+	 *  {@link #length} to the {@link #previousPath}. */
+	private void setPreviousPath(int pathStart) {
+		int pathLength = length - pathStart;
+		if(previousPath.length < pathLength)
+			previousPath = new byte[pathLength];
+		System.arraycopy(buffer, pathStart, previousPath, 0, pathLength);
+		previousPathLength = pathLength;
+	}
+
+	/** Appends the EOF marker and its trailing \0. */
+	void appendEOFMarker(boolean isComplete) {
+		appendPath(isComplete ? EOFPaths.CheckpointComplete
+		                      : EOFPaths.CheckpointIncomplete);
+		ensureCapacity(1);
+		buffer[length++] = 0;
+	}
+
+	/** Same as appending {@link String#getBytes(java.nio.charset.Charset)}
+	 *  with UTF-8 but without creating a new array for every path.
+	 *  Like it, and like the Writer which we used formerly, unpaired
+	 *  surrogates are replaced with '?'. */
+	private void appendPath(String s) {
+		int chars = s.length();
+		// A char is encoded to at most 3 bytes, pairs of surrogate chars to 4.
+		ensureCapacity(3 * chars);
+		byte[] b = buffer;
+		int l = length;
+		for(int i = 0; i < chars; ++i) {
+			char c = s.charAt(i);
+			if(c < 0x80)
+				b[l++] = (byte)c;
+			else if(c < 0x800) {
+				b[l++] = (byte)(0xC0 | (c >> 6));
+				b[l++] = (byte)(0x80 | (c & 0x3F));
+			} else if(Character.isSurrogate(c)) {
+				char low;
+				if(Character.isHighSurrogate(c) && i + 1 < chars
+						&& Character.isLowSurrogate(low = s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, low);
+					b[l++] = (byte)(0xF0 | (cp >> 18));
+					b[l++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+					b[l++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+					b[l++] = (byte)(0x80 | (cp & 0x3F));
+					++i;
+				} else
+					b[l++] = '?';
+			} else {
+				b[l++] = (byte)(0xE0 | (c >> 12));
+				b[l++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+				b[l++] = (byte)(0x80 | (c & 0x3F));
+			}
+		}
+		length = l;
+	}
+
+	private void appendDate(Date date) {
+		if(date == null) {
+			appendBytes(DATE_UNAVAILABLE);
+			return;
+		}
+		
+		// The format has no milliseconds so cache by seconds.
+		// TODO: Java 8: Use Math.floorDiv().
+		long millis = date.getTime();
+		long seconds = millis / 1000;
+		if(millis % 1000 < 0)
+			--seconds;
+		
+		int index = (int)seconds & (DATE_CACHE_SIZE - 1);
+		byte[] formatted = dateCacheValues[index];
+		if(dateCacheKeys[index] != seconds || formatted == null) {
+			formatted = formatDateFast(seconds);
+			if(formatted == null) {
+				formatted = dateFormat.format(new Date(seconds * 1000))
+					.getBytes(UTF_8);
+			}
+			dateCacheKeys[index] = seconds;
+			dateCacheValues[index] = formatted;
+		}
+		appendBytes(formatted);
+	}
+
+	/** Formats the given seconds since the epoch like the
+	 *  {@link #dateFormat} does, e.g. "2019-01-23 12:34:56 +0100", but
+	 *  without it. Cache misses are common when timestamps are spread widely
+	 *  so this must be fast as well.
+	 *  
+	 *  Returns null if the year is before 1583, for which SimpleDateFormat
+	 *  would use the Julian calendar, or after 9999, which doesn't fit the
+	 *  four digits. The caller must fall back to SimpleDateFormat then.
+	 *  This is the inverse of {@link CheckpointParser}'s parseDateFast(). */
+	private byte[] formatDateFast(long seconds) {
+		int offsetMillis = timeZone.getOffset(seconds * 1000);
+		// Offsets of historical local mean time have seconds.
+		long local = seconds + offsetMillis / 1000;
+		long days = local / 86400;
+		int secondOfDay = (int)(local % 86400);
+		if(secondOfDay < 0) {
+			secondOfDay += 86400;
+			--days;
+		}
+		
+		// Source of the algorithm: "civil_from_days()" at
+		// https://howardhinnant.github.io/date_algorithms.html
+		// TODO: Java 8: Replace with LocalDate.ofEpochDay().
+		long z = days + 719468;
+		long era = (z >= 0 ? z : z - 146096) / 146097;
+		int dayOfEra = (int)(z - era * 146097);
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524
+			- dayOfEra / 146096) / 365;
+		int dayOfYear = dayOfEra
+			- (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int mp = (5 * dayOfYear + 2) / 153;
+		int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+		
+		if(year < 1583 || year > 9999)
+			return null;
+		
+		// Like SimpleDateFormat we truncate the seconds of the offset.
+		int offsetMinutes = offsetMillis / 60000;
+		byte sign = '+';
+		if(offsetMinutes < 0) {
+			sign = '-';
+			offsetMinutes = -offsetMinutes;
+		}
+		
+		byte[] b = new byte[25];
+		digits(b, 0, (int)year, 4);
+		b[4] = '-';
+		digits(b, 5, month, 2);
+		b[7] = '-';
+		digits(b, 8, day, 2);
+		b[10] = ' ';
+		digits(b, 11, secondOfDay / 3600, 2);
+		b[13] = ':';
+		digits(b, 14, secondOfDay / 60 % 60, 2);
+		b[16] = ':';
+		digits(b, 17, secondOfDay % 60, 2);
+		b[19] = ' ';
+		b[20] = sign;
+		digits(b, 21, offsetMinutes / 60 * 100 + offsetMinutes % 60, 4);
+		return b;
+	}
+
+	/** Stores the given amount of decimal digits of the value, with leading
+	 *  zeros. */
+	private static void digits(byte[] b, int offset, int value, int count) {
+		for(int i = offset + count - 1; i >= offset; --i) {
+			b[i] = (byte)('0' + value % 10);
+			value /= 10;
+		}
+	}
+
+	private void appendHash(ISHA256 hash) {
+		// TODO: Performance: toBytes() clones the array, avoid that.
+		// Not possible without changing ISHA256 which has anonymous
+		// implementations in the tests.
+		byte[] bytes = hash.toBytes();
+		ensureCapacity(2 * bytes.length);
+		for(byte b : bytes) {
+			buffer[length++] = HEX_DIGITS[(b >> 4) & 0xF];
+			buffer[length++] = HEX_DIGITS[b & 0xF];
+		}
+	}
+
+	/** Appends the decimal digits of the given non-negative number. */
+	private void appendNumber(long value) {
+		int digits = 1;
+		for(long v = value / 10; v != 0; v /= 10)
+			++digits;
+		
+		ensureCapacity(digits);
+		for(int i = length + digits - 1; i >= length; --i) {
+			buffer[i] = (byte)('0' + value % 10);
+			value /= 10;
+		}
+		length += digits;
+	}
+
+	private void appendBytes(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length += bytes.length;
+	}
+
+	private void ensureCapacity(int additionalBytes) {
+		int required = length + additionalBytes;
+		if(required < 0)
+			throw new OutOfMemoryError("Line too long");
+		
+		if(required > buffer.length) {
+			int newSize = buffer.length * 2;
+			if(newSize < required)
+				newSize = required;
+			buffer = Arrays.copyOf(buffer, newSize);
+		}
+	}
+
+}
@@ -0,0 +1,254 @@
+package checkpoint.serialization;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/** Compresses everything written to it into a gzip stream on multiple threads,
+ *  similar to the "pigz" tool.
+ *  
+ *  The input is split into blocks of {@link #BLOCK_SIZE} which are compressed
+ *  independently by their own {@link Deflater}. Each but the last block is
+ *  terminated with {@link Deflater#SYNC_FLUSH} which aligns its output to a
+ *  byte boundary without marking it as the final one, so the concatenation of
+ *  the compressed blocks is a single valid deflate stream. To not lose much
+ *  compression ratio due to the splitting each block is primed with the last
+ *  32 KiB of the previous one as dictionary, which is the maximal distance
+ *  deflate can refer back to anyway.
+ *  The CRC32 of the gzip trailer is computed on the calling thread as it is
+ *  much faster than compressing.
+ *  
+ *  {@link #finish()} must be called to write the end of the stream.
+ *  Not thread-safe. */
+final class ParallelGzipChannel implements GatheringByteChannel {
+
+	/** In bytes. Same as pigz's default. */
+	public static final int BLOCK_SIZE = 128 * 1024;
+
+	/** The maximal distance of back-references of deflate. */
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+
+	private static final byte[] HEADER = {
+		0x1f, (byte)0x8b, // Magic
+		Deflater.DEFLATED, // Compression method
+		0, // Flags: None of the optional fields
+		0, 0, 0, 0, // Modification time: Not available
+		0, // Extra flags
+		3 // Operating system: Unix
+	};
+
+	private final WritableByteChannel out;
+
+	private final int level;
+
+	private final int threads;
+
+	/** Null if {@link #threads} is 1, then we compress on the calling thread.*/
+	private final ExecutorService executor;
+
+	/** At most 2 * {@link #threads} blocks are being compressed at once to
+	 *  bound the memory usage. */
+	private final ArrayDeque<Future<byte[]>> queue = new ArrayDeque<>();
+
+	private byte[] block = new byte[BLOCK_SIZE];
+
+	private int blockLength = 0;
+
+	/** The end of the previous block, null for the first one. */
+	private byte[] dictionary = null;
+
+	private final CRC32 crc = new CRC32();
+
+	private long uncompressedSize = 0;
+
+	private boolean finished = false;
+
+	private boolean open = true;
+
+	/** @param level See {@link Deflater#Deflater(int, boolean)}.
+	 *  @param threads The amount of threads to compress with. */
+	ParallelGzipChannel(WritableByteChannel out, int level, int threads)
+			throws IOException {
+		
+		if(threads < 1)
+			throw new IllegalArgumentException("threads < 1: " + threads);
+		
+		this.out = out;
+		this.level = level;
+		this.threads = threads;
+		writeFully(ByteBuffer.wrap(HEADER));
+		executor = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+	}
+
+	@Override public int write(ByteBuffer src) throws IOException {
+		if(!open)
+			throw new ClosedChannelException();
+		if(finished)
+			throw new IllegalStateException("finish() was called already!");
+		
+		int written = src.remaining();
+		while(src.hasRemaining()) {
+			int length = Math.min(src.remaining(), BLOCK_SIZE - blockLength);
+			src.get(block, blockLength, length);
+			crc.update(block, blockLength, length);
+			blockLength += length;
+			
+			if(blockLength == BLOCK_SIZE)
+				submitBlock(false);
+		}
+		uncompressedSize += written;
+		return written;
+	}
+
+	@Override public long write(ByteBuffer[] srcs, int offset, int length)
+			throws IOException {
+		
+		long written = 0;
+		for(int i = offset; i < offset + length; ++i)
+			written += write(srcs[i]);
+		return written;
+	}
+
+	@Override public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	private void submitBlock(boolean last) throws IOException {
+		BlockCompressor c = new BlockCompressor(block, blockLength, dictionary,
+			last, level);
+		
+		if(!last) {
+			dictionary = Arrays.copyOfRange(block,
+				blockLength - DICTIONARY_SIZE, blockLength);
+			// The old array is now owned by the BlockCompressor.
+			block = new byte[BLOCK_SIZE];
+		}
+		blockLength = 0;
+		
+		if(executor == null) {
+			writeFully(ByteBuffer.wrap(c.call()));
+			return;
+		}
+		
+		queue.add(executor.submit(c));
+		// Write all blocks which are finished already without waiting, and
+		// wait for the oldest one if there are too many in progress.
+		while(!queue.isEmpty()
+				&& (queue.size() > 2 * threads || queue.peek().isDone())) {
+			writeFully(ByteBuffer.wrap(
+				ConcurrentCheckpointParser.getResult(queue.remove())));
+		}
+	}
+
+	/** Compresses the remaining data and writes the gzip trailer.
+	 *  Does not close the underlying channel. */
+	void finish() throws IOException {
+		if(finished)
+			throw new IllegalStateException("finish() was called already!");
+		
+		// The last block may be empty, deflate then merely writes an empty
+		// final block.
+		submitBlock(true);
+		while(!queue.isEmpty()) {
+			writeFully(ByteBuffer.wrap(
+				ConcurrentCheckpointParser.getResult(queue.remove())));
+		}
+		
+		ByteBuffer trailer = ByteBuffer.allocate(8);
+		putIntLittleEndian(trailer, (int)crc.getValue());
+		putIntLittleEndian(trailer, (int)uncompressedSize);
+		trailer.flip();
+		writeFully(trailer);
+		finished = true;
+	}
+
+	private static void putIntLittleEndian(ByteBuffer b, int value) {
+		for(int shift = 0; shift < 32; shift += 8)
+			b.put((byte)(value >>> shift));
+	}
+
+	private void writeFully(ByteBuffer b) throws IOException {
+		while(b.hasRemaining())
+			out.write(b);
+	}
+
+	@Override public boolean isOpen() {
+		return open;
+	}
+
+	/** Stops the compression threads and closes the underlying channel. */
+	@Override public void close() throws IOException {
+		open = false;
+		try {
+			if(executor != null)
+				executor.shutdownNow();
+		} finally {
+			out.close();
+		}
+	}
+
+	/** Compresses a single block for {@link ParallelGzipChannel}. */
+	private static final class BlockCompressor implements Callable<byte[]> {
+
+		private final byte[] data;
+		private final int length;
+		private final byte[] dictionary;
+		private final boolean last;
+		private final int level;
+
+		BlockCompressor(byte[] data, int length, byte[] dictionary,
+				boolean last, int level) {
+			
+			this.data = data;
+			this.length = length;
+			this.dictionary = dictionary;
+			this.last = last;
+			this.level = level;
+		}
+
+		@Override public byte[] call() {
+			// nowrap = true: Raw deflate without the zlib header and trailer,
+			// we write the gzip ones ourselves.
+			Deflater deflater = new Deflater(level, true);
+			try {
+				if(dictionary != null)
+					deflater.setDictionary(dictionary);
+				deflater.setInput(data, 0, length);
+				if(last)
+					deflater.finish();
+				
+				// Text compresses well so this usually suffices.
+				byte[] result = new byte[length / 2 + 64];
+				int resultLength = 0;
+				while(true) {
+					resultLength += deflater.deflate(result, resultLength,
+						result.length - resultLength,
+						last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+					
+					// With SYNC_FLUSH deflate() is done once it does not fill
+					// the whole output, with finish() once finished() is true.
+					if(last ? deflater.finished()
+					        : resultLength < result.length)
+						break;
+					
+					if(resultLength == result.length)
+						result = Arrays.copyOf(result, 2 * result.length);
+				}
+				return Arrays.copyOf(result, resultLength);
+			} finally {
+				deflater.end();
+			}
+		}
+	}
+
+}
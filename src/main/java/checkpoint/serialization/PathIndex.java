@@ -0,0 +1,264 @@
+package checkpoint.serialization;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import checkpoint.datamodel.INode;
+
+/** Sparse index of the paths of a {@link TextFormat} checkpoint which allows
+ *  looking up nodes without parsing the whole file.
+ *  
+ *  It contains the path of every {@link #DEFAULT_INTERVAL}th node and its
+ *  byte offset in the checkpoint. As the checkpoint is sorted a lookup can
+ *  binary-search the index in memory and then only has to parse the nodes
+ *  between two indexed ones. The index of a checkpoint of millions of nodes
+ *  is merely a few hundred KiB, so loading it is fast as well.
+ *  
+ *  It is written by {@link CheckpointWriter} if enabled by
+ *  {@link CheckpointWriter.Index#Paths}, as {@link #FILENAME} next to the
+ *  checkpoint. Compressed checkpoints cannot be indexed since we cannot seek
+ *  in them.
+ *  
+ *  The file consists of the {@link #MAGIC}, the {@link #VERSION} as int, the
+ *  size of the checkpoint file as long to detect an outdated index, the int
+ *  amount of entries, and for each entry the int length of the UTF-8 bytes of
+ *  the path, the bytes, and the long offset. All numbers are big-endian.
+ *  
+ *  Not thread-safe. */
+public final class PathIndex implements Closeable {
+
+	public static final String FILENAME = TextFormat.FILENAME + ".idx";
+
+	public static final byte[] MAGIC = "CHKPTIDX".getBytes(US_ASCII);
+
+	public static final int VERSION = 1;
+
+	/** Amount of nodes per index entry. Parsing that many nodes takes well
+	 *  below a millisecond. */
+	public static final int DEFAULT_INTERVAL = 1024;
+
+	/** In bytes, for parsing the nodes between two index entries. Will be
+	 *  grown automatically if a node is larger. */
+	private static final int PARSER_BUFFER_SIZE = 64 * 1024;
+
+	private final FileChannel checkpoint;
+
+	/** The UTF-8 bytes of the indexed paths, in ascending order. */
+	private final byte[][] paths;
+
+	private final long[] offsets;
+
+	private PathIndex(FileChannel checkpoint, byte[][] paths, long[] offsets) {
+		this.checkpoint = checkpoint;
+		this.paths = paths;
+		this.offsets = offsets;
+	}
+
+	/** Loads the index of the checkpoint in the given dir.
+	 *  Throws {@link java.nio.file.NoSuchFileException} if it has none, and
+	 *  {@link IOException} if it is invalid or outdated. */
+	public static PathIndex open(Path checkpointDir) throws IOException {
+		FileChannel checkpoint = FileChannel.open(
+			checkpointDir.resolve(TextFormat.FILENAME), READ);
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(checkpointDir.resolve(FILENAME))))) {
+			
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if(!Arrays.equals(magic, MAGIC))
+				throw new IOException("Not a checkpoint index!");
+			int version = in.readInt();
+			if(version != VERSION) {
+				throw new IOException(
+					"Unsupported version of checkpoint index: " + version);
+			}
+			if(in.readLong() != checkpoint.size()) {
+				throw new IOException("Index is outdated, please re-create it "
+					+ "with the 'filter --index' command!");
+			}
+			
+			int count = in.readInt();
+			if(count < 0)
+				throw new IOException("Invalid amount of entries: " + count);
+			byte[][] paths = new byte[count][];
+			long[] offsets = new long[count];
+			for(int i = 0; i < count; ++i) {
+				int length = in.readInt();
+				if(length < 0)
+					throw new IOException("Invalid path length: " + length);
+				paths[i] = new byte[length];
+				in.readFully(paths[i]);
+				offsets[i] = in.readLong();
+			}
+			return new PathIndex(checkpoint, paths, offsets);
+		} catch(EOFException e) {
+			checkpoint.close();
+			throw new IOException("Index is truncated!", e);
+		} catch(IOException | RuntimeException e) {
+			checkpoint.close();
+			throw e;
+		}
+	}
+
+	/** Used by {@link CheckpointWriter}. Writes to a temporary file first to
+	 *  not replace an existing index with a broken one. */
+	static void write(Path checkpointDir, long checkpointSize,
+			List<byte[]> paths, long[] offsets) throws IOException {
+		
+		Path file = checkpointDir.resolve(FILENAME);
+		Path temp = Files.createTempFile(checkpointDir, FILENAME + ".", ".tmp");
+		try {
+			try(DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				
+				out.write(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(checkpointSize);
+				out.writeInt(paths.size());
+				for(int i = 0; i < paths.size(); ++i) {
+					out.writeInt(paths.get(i).length);
+					out.write(paths.get(i));
+					out.writeLong(offsets[i]);
+				}
+			}
+			// TODO: fsync(), see CheckpointWriter.finish().
+			Files.move(temp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/** Returns the node of the given path, which must be in the format of
+	 *  {@link INode#getPath()}, e.g. "./dir/file". Returns null if the
+	 *  checkpoint does not contain it. */
+	public INode lookup(String path) throws IOException {
+		byte[] key = path.getBytes(UTF_8);
+		// The nodes before the first indexed one cannot match as it is the
+		// first node of the checkpoint.
+		int entry = floorEntry(key, true);
+		if(entry < 0)
+			return null;
+		
+		long end = (entry + 1 < offsets.length) ? offsets[entry + 1]
+		                                        : Long.MAX_VALUE;
+		CheckpointParser parser = new CheckpointParser(checkpoint,
+			offsets[entry], end, PARSER_BUFFER_SIZE);
+		for(INode n = checkEntry(parser.next(), entry); n != null;
+				n = parser.next()) {
+			
+			int c = compare(n, key);
+			if(c == 0)
+				return n;
+			else if(c > 0)
+				break;
+		}
+		return null;
+	}
+
+	/** Returns all nodes whose path starts with the given String, e.g.
+	 *  "./dir/" for all nodes inside of "./dir". Being a String prefix it
+	 *  does not need to end at a "/".
+	 *  As the checkpoint is sorted bytewise all of them are adjacent in it,
+	 *  so this only parses them and the nodes before them up to the previous
+	 *  indexed one.
+	 *  
+	 *  TODO: Return an iterator to allow processing a large amount of nodes
+	 *  without keeping them in memory. */
+	public List<INode> lookupPrefix(String prefix) throws IOException {
+		byte[] key = prefix.getBytes(UTF_8);
+		ArrayList<INode> result = new ArrayList<>();
+		if(offsets.length == 0)
+			return result;
+		
+		int entry = Math.max(floorEntry(key, false), 0);
+		CheckpointParser parser = new CheckpointParser(checkpoint,
+			offsets[entry], Long.MAX_VALUE, PARSER_BUFFER_SIZE);
+		for(INode n = checkEntry(parser.next(), entry); n != null;
+				n = parser.next()) {
+			
+			byte[] p = n.getPath().toString().getBytes(UTF_8);
+			if(startsWith(p, key))
+				result.add(n);
+			else if(CheckpointParser.compareUnsigned(key, key.length,
+					p, 0, p.length) < 0)
+				break;
+		}
+		return result;
+	}
+
+	/** Returns the index of the last entry whose path is smaller than the
+	 *  given one, or equal if inclusive is true. Returns -1 if there is
+	 *  none. */
+	private int floorEntry(byte[] key, boolean inclusive) {
+		int low = 0;
+		int high = paths.length - 1;
+		int result = -1;
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+			int c = CheckpointParser.compareUnsigned(paths[middle],
+				paths[middle].length, key, 0, key.length);
+			if(c < 0 || (c == 0 && inclusive)) {
+				result = middle;
+				low = middle + 1;
+			} else
+				high = middle - 1;
+		}
+		return result;
+	}
+
+	/** Checks that the given first node which was parsed at the offset of
+	 *  the given entry is the indexed one, and returns it.
+	 *  This detects an outdated index in case the size of the checkpoint has
+	 *  not changed.
+	 *  TODO: Also store the modification time of the checkpoint? */
+	private INode checkEntry(INode first, int entry) throws IOException {
+		if(first == null || compare(first, paths[entry]) != 0) {
+			throw new IOException("Index does not match the checkpoint, "
+				+ "please re-create it with the 'filter --index' command!");
+		}
+		return first;
+	}
+
+	private static int compare(INode n, byte[] key) {
+		byte[] p = n.getPath().toString().getBytes(UTF_8);
+		return CheckpointParser.compareUnsigned(p, p.length, key, 0,
+			key.length);
+	}
+
+	private static boolean startsWith(byte[] bytes, byte[] prefix) {
+		if(bytes.length < prefix.length)
+			return false;
+		for(int i = 0; i < prefix.length; ++i) {
+			if(bytes[i] != prefix[i])
+				return false;
+		}
+		return true;
+	}
+
+	/** Amount of indexed nodes. */
+	public int size() {
+		return paths.length;
+	}
+
+	@Override public void close() throws IOException {
+		checkpoint.close();
+	}
+
+}
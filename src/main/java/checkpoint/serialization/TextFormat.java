@@ -0,0 +1,72 @@
+package checkpoint.serialization;
+
+/** Constants of the human-readable plain-text file format which
+ *  {@link CheckpointWriter} writes and {@link CheckpointParser} reads.
+ *  
+ *  Each {@link checkpoint.datamodel.INode} is stored as a line of:
+ *      PATH \0 \t HASH \t Size: BYTES \t Birth: DATE \t Access: DATE
+ *      \t Modify: DATE \t Change: DATE \n
+ *  The size field is only written for files. It was added after the other
+ *  fields so files of former versions lack it, their sizes are unavailable
+ *  then. Former versions cannot read files which contain it.
+ *  For directories a {@link #DIRECTORY_HASH} field follows the
+ *  {@link #SHA256SUM_OF_DIRECTORY} instead if their hash is available, see
+ *  {@link checkpoint.datamodel.implementation.DirectoryHasher}.
+ *  The timestamp fields may be filtered out individually, and all of them are
+ *  replaced by a single {@link #STAT_FAILED} field if reading them failed.
+ *  Readers must ignore unknown fields to allow adding new ones.
+ *  The end of the file is marked by one of {@link EOFPaths} followed by \0.
+ *  
+ *  Albeit the fields are separated by \t we cannot use that for splitting a
+ *  whole line into fields since Linux filenames may contain \t and even \n.
+ *  So readers must first determine the path by looking for \0, then the end
+ *  of the line by \n, and split the parts in between by \t. This works because
+ *  the \0 cannot be part of a filename, and none of the fields after it
+ *  contain a \n. */
+public final class TextFormat {
+
+	public static final String FILENAME = "checkpoint.txt";
+
+	/** Used instead of {@link #FILENAME} if the file is gzip-compressed.
+	 *  A checkpoint directory should contain only one of them. */
+	public static final String COMPRESSED_FILENAME = FILENAME + ".gz";
+
+	/** Used for formatting and parsing the dates of the timestamp fields.
+	 *  Parsing of the common case is done without SimpleDateFormat by
+	 *  {@link CheckpointParser} for performance reasons, so if you change this
+	 *  you must adapt it as well. */
+	public static final String DATE_FORMAT_STRING = "yyyy-MM-dd HH:mm:ss Z";
+
+	/** Name of the field of the size of a file in bytes as decimal number.
+	 *  See {@link checkpoint.datamodel.INode#getSize()}. */
+	public static final String SIZE = "Size";
+
+	/** Name of the field of the hex-encoded hash of a directory.
+	 *  It is a separate field so the hash column keeps telling directories
+	 *  apart from files, and so readers which ignore unknown fields can read
+	 *  it. */
+	public static final String DIRECTORY_HASH = "Merkle";
+
+	public static final String SHA256SUM_OF_DIRECTORY = "(directory)";
+	public static final String SHA256SUM_FAILED = "(sha256sum failed!)";
+	public static final String STAT_FAILED = "(stat failed!)";
+
+	/** Written instead of a date if the timestamp is not available. */
+	public static final String DATE_UNAVAILABLE = "-";
+
+	/** These, plus an additional \0, mark the end of a Checkpoint file.
+	 *  The additional \0 is so they can be parsed as if they were a path of
+	 *  a regular {@link checkpoint.datamodel.INode} in the checkpoint which
+	 *  keeps the code of {@link CheckpointWriter} simple. */
+	public static final class EOFPaths {
+		public static final String CheckpointComplete
+			= "This checkpoint is complete.\n";
+		public static final String CheckpointIncomplete
+			= "This checkpoint is INCOMPLETE but can be resumed.\n";
+
+		private EOFPaths() {}
+	}
+
+	private TextFormat() {}
+
+}
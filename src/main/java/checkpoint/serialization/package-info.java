@@ -1,6 +1,4 @@
-/** Classes to write a checkpoint from the in-memory model to disk.
- *  
- *  TODO: Code quality: The code actually is in class
- *  {@link checkpoint.datamodel.implementation.Checkpoint} currently, move it to
- *  new classes in this package.*/
-package checkpoint.serialization;
\ No newline at end of file
+/** Classes to read and write a checkpoint from the in-memory model from/to
+ *  disk, or to stream it node by node via {@link CheckpointReader} and
+ *  {@link CheckpointWriter} without keeping it in memory. */
+package checkpoint.serialization;
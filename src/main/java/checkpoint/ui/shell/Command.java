@@ -1,9 +1,20 @@
 package checkpoint.ui.shell;
 
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParametersDelegate;
+import com.beust.jcommander.converters.IParameterSplitter;
+
+import checkpoint.datamodel.implementation.PathPatterns;
+
 /** Represents a single shell command which is executable via
  *  "checkpoint NAME_OF_COMMAND".
  *  
@@ -58,4 +69,89 @@ abstract class Command {
 	 *  	having been removed from the beginning of the list. */
 	abstract int run(List<String> args);
 
+	/** For options of type List which may be given multiple times, such as
+	 *  paths, whose values must not be split at commas as JCommander does by
+	 *  default. Must be public to be constructed by JCommander. */
+	public static final class NoSplitter implements IParameterSplitter {
+		@Override public List<String> split(String value) {
+			return Collections.singletonList(value);
+		}
+	}
+
+	/** The --exclude and --exclude-from options of the commands which walk
+	 *  an input dir, to be added to their Options as a field annotated with
+	 *  {@link ParametersDelegate}. */
+	static final class ExcludeOptions {
+		@Parameter(names = { "--exclude" }, splitter = NoSplitter.class,
+			description =
+			  "Exclude a path and everything below it, or only what is below "
+			+ "it if it ends with '/'. Relative to the INPUT_DIR, e.g. "
+			+ "'./home/user/.cache/'. May contain the wildcards '*', '?' and "
+			+ "'[...]' which don't match '/', and '**' which does. Excluded "
+			+ "directories are not read at all. Can be given multiple times.")
+		List<String> exclude = new ArrayList<>();
+		
+		@Parameter(names = { "--exclude-from" }, splitter = NoSplitter.class,
+			description =
+			  "Read patterns as for --exclude from a file, one per line. Empty "
+			+ "lines and lines starting with '#' are ignored. Can be given "
+			+ "multiple times.")
+		List<String> excludeFrom = new ArrayList<>();
+		
+		/** Returns the patterns of both options, null if there are none.
+		 *  @throws IllegalArgumentException If reading a file failed or a
+		 *      pattern is invalid, so it can be thrown from the validate()
+		 *      of the Options. */
+		PathPatterns parse() throws IllegalArgumentException {
+			ArrayList<String> patterns = new ArrayList<>(exclude);
+			for(String file : excludeFrom) {
+				try {
+					patterns.addAll(PathPatterns.readFile(Paths.get(file)));
+				} catch(IOException | InvalidPathException e) {
+					throw new IllegalArgumentException(
+						"Reading --exclude-from failed: " + e);
+				}
+			}
+			return patterns.isEmpty() ? null : new PathPatterns(patterns);
+		}
+	}
+
+	/** Parses an amount of bytes with an optional suffix K, M, G, T or P for
+	 *  KiB, MiB etc., e.g. "2T" for 2 TiB.
+	 *  @param option The name of the option for the error message.
+	 *  @throws IllegalArgumentException If it is invalid or not positive,
+	 *      so it can be thrown from the validate() of the Options of the
+	 *      commands. */
+	static long parseBytes(String option, String value) {
+		return parseWithUnit(option, value.toUpperCase(), "KMGTP",
+			new long[] { 1L << 10, 1L << 20, 1L << 30, 1L << 40, 1L << 50 });
+	}
+
+	/** Parses a duration in seconds with an optional suffix s, m, h or d for
+	 *  seconds, minutes, hours or days, e.g. "2h".
+	 *  @see #parseBytes(String, String) */
+	static long parseSeconds(String option, String value) {
+		return parseWithUnit(option, value, "smhd",
+			new long[] { 1, 60, 60 * 60, 24 * 60 * 60 });
+	}
+
+	private static long parseWithUnit(String option, String value,
+			String units, long[] factors) {
+		
+		int unit = value.isEmpty() ? -1
+			: units.indexOf(value.charAt(value.length() - 1));
+		String number = unit >= 0 ? value.substring(0, value.length() - 1)
+		                          : value;
+		long factor = unit >= 0 ? factors[unit] : 1;
+		try {
+			long n = Long.parseLong(number);
+			if(n < 1 || n > Long.MAX_VALUE / factor)
+				throw new NumberFormatException();
+			return n * factor;
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException(
+				"Invalid " + option + ": " + value);
+		}
+	}
+
 }
@@ -0,0 +1,368 @@
+package checkpoint.ui.shell;
+
+import static checkpoint.ui.shell.ConcurrentJoin.source;
+import static java.lang.System.err;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.ISHA256;
+import checkpoint.datamodel.ITimestamps;
+import checkpoint.serialization.CheckpointParser;
+import checkpoint.serialization.CheckpointReader;
+import checkpoint.serialization.ConcurrentCheckpointParser;
+import checkpoint.ui.shell.ConcurrentJoin.Counts;
+import checkpoint.ui.shell.ConcurrentJoin.Range;
+
+/** Compares two checkpoints and prints machine-readable output, see
+ *  {@link ConcurrentJoin}. Never keeps more than a constant amount of nodes
+ *  in memory, no matter how large the checkpoints are. */
+final class CompareCommand extends Command {
+
+	static final String TYPE_CHANGED = "type";
+	static final String CONTENT_CHANGED = "content";
+	static final String HASH_FAILED = "hash-failed";
+	static final String ATIME_CHANGED = "atime";
+	static final String CTIME_CHANGED = "ctime";
+	static final String MTIME_CHANGED = "mtime";
+
+	/** The CHANGEs in addition to the ones of {@link ConcurrentJoin}. */
+	private static final List<String> CHANGE_TYPES = asList(TYPE_CHANGED,
+		CONTENT_CHANGED, HASH_FAILED, ATIME_CHANGED, CTIME_CHANGED,
+		MTIME_CHANGED);
+
+	@Override String getShortSyntax() {
+		return '\t' + getCommandName()
+			+ " [--threads N] [--atime | --content-only] [--moves "
+			+ "[--memory SIZE] "
+			+ "[--temp-dir DIR]] OLD_CHECKPOINT_DIR NEW_CHECKPOINT_DIR";
+	}
+
+	private static final class Options {
+		@Parameter(names = { "--threads" }, description =
+			  "Maximal number of threads to compare with. Must be at least 1. "
+			+ "Default: The number of CPUs. Less are used for small "
+			+ "checkpoints, and only one if either is compressed.")
+		int threads = Runtime.getRuntime().availableProcessors();
+		
+		@Parameter(names = { "--atime" }, description =
+			  "Also compare the access times. Not done by default because "
+			+ "reading the files, e.g. by 'create', changes them.")
+		boolean atime = false;
+		
+		@Parameter(names = { "--content-only" }, description =
+			  "Only compare the types of the nodes and the contents of "
+			+ "files, not the timestamps. This allows skipping directories "
+			+ "whose hash is equal in both checkpoints as a whole, so "
+			+ "comparing checkpoints with few differences is fast.")
+		boolean contentOnly = false;
+		
+		@Parameter(names = { "--moves" }, description =
+			  "Report files which were moved or renamed as a single line "
+			+ "instead of them being removed and added.")
+		boolean moves = false;
+		
+		@Parameter(names = { "--memory" }, description =
+			  "Same as for the 'find-duplicates' command, for --moves.")
+		String memory = FindDuplicatesCommand.DEFAULT_MEMORY;
+		
+		@Parameter(names = { "--temp-dir" }, description =
+			  "Same as for the 'find-duplicates' command, for --moves.")
+		String tempDir = null;
+		
+		// Parsed from the above String by validate().
+		long memoryBytes;
+		
+		@Parameter(description = "OLD_CHECKPOINT_DIR NEW_CHECKPOINT_DIR")
+		List<String> args = new ArrayList<>(2);
+		
+		void validate() throws IllegalArgumentException {
+			if(threads < 1)
+				throw new IllegalArgumentException("--threads is too low!");
+			
+			if(atime && contentOnly) {
+				throw new IllegalArgumentException(
+					"--atime cannot be combined with --content-only!");
+			}
+			
+			memoryBytes = parseBytes("--memory", memory);
+			if(memoryBytes < 1024 * 1024)
+				throw new IllegalArgumentException("--memory is too low!");
+			
+			// TODO: As of 2019-11-11 with JCommander 1.71 @Parameter(arity = 2)
+			// doesn't work for unnamed parameters it seems so we check it
+			// manually, try again in some years.
+			if(args.size() < 2)
+				throw new IllegalArgumentException("Missing checkpoint dir!");
+			else if(args.size() > 2) {
+				throw new IllegalArgumentException(
+					"Too many/unknown arguments: " + args);
+			}
+		}
+	}
+
+	@Override int run(List<String> args) {
+		Options o = new Options();
+		JCommander jc = new JCommander();
+		jc.addObject(o);
+		jc.setProgramName(getCommandName());
+		try {
+			jc.parse(args.toArray(new String[args.size()]));
+			o.validate();
+			args = null; // Prevent accidental usage instead of Options.args
+		} catch(ParameterException | IllegalArgumentException e) {
+			err.println(e.getMessage());
+			err.println();
+			printUsage(jc);
+			return 2;
+		}
+		
+		Path oldFile;
+		Path newFile;
+		Path tempDir;
+		try {
+			oldFile = CheckpointReader.getCheckpointFile(
+				Paths.get(o.args.get(0)));
+			newFile = CheckpointReader.getCheckpointFile(
+				Paths.get(o.args.get(1)));
+			tempDir = o.tempDir != null ? Paths.get(o.tempDir) : null;
+		} catch(InvalidPathException e) {
+			err.println("Invalid path: " + e.getMessage());
+			return 2;
+		} catch(IOException e) {
+			err.println("Compare failed:");
+			err.println(e);
+			return 2;
+		}
+		
+		try(ReadableByteChannel oldChannel
+				= CheckpointReader.openChannel(oldFile);
+		    ReadableByteChannel newChannel
+				= CheckpointReader.openChannel(newFile);
+		    MoveDetector moves
+				= o.moves ? new MoveDetector(tempDir, o.memoryBytes) : null) {
+			
+			return compare(oldChannel, newChannel, o.threads,
+				new NodeComparator(o.atime, o.contentOnly), moves) ? 0 : 1;
+		} catch(IOException e) {
+			err.println("Compare failed:");
+			err.println(e);
+			return 2;
+		}
+	}
+
+	/** Prints the differences of the given checkpoints to stdout in their
+	 *  order. If both are uncompressed, i.e. {@link FileChannel}s, they are
+	 *  split into ranges of paths which are compared concurrently.
+	 *  Prints a summary to stderr and returns true if they are equal.
+	 *  @param moves Null to not detect moved files. */
+	private static boolean compare(ReadableByteChannel oldChannel,
+			ReadableByteChannel newChannel, int threads,
+			ConcurrentJoin.NodeComparator comparator, MoveDetector moves)
+			throws IOException {
+		
+		ArrayList<Range> ranges = new ArrayList<>();
+		CheckpointParser lastOld;
+		CheckpointParser lastNew;
+		if(oldChannel instanceof FileChannel
+				&& newChannel instanceof FileChannel) {
+			
+			lastOld = lastNew = null;
+			for(long[] r : splitIntoRanges((FileChannel)oldChannel,
+					(FileChannel)newChannel, threads)) {
+				lastOld = new CheckpointParser((FileChannel)oldChannel,
+					r[0], r[1], CheckpointParser.DEFAULT_BUFFER_SIZE);
+				lastNew = new CheckpointParser((FileChannel)newChannel,
+					r[2], r[3], CheckpointParser.DEFAULT_BUFFER_SIZE);
+				ranges.add(new Range(source(lastOld), source(lastNew)));
+			}
+		} else {
+			// TODO: Performance: Compressed files cannot be split, see
+			// CheckpointReader.openChannel(). We could at least decompress
+			// and parse each in a separate thread.
+			lastOld = new CheckpointParser(oldChannel);
+			lastNew = new CheckpointParser(newChannel);
+			ranges.add(new Range(source(lastOld), source(lastNew)));
+		}
+		
+		List<String> changeTypes = CHANGE_TYPES;
+		if(moves != null) {
+			changeTypes = new ArrayList<>(CHANGE_TYPES);
+			changeTypes.add(MoveDetector.MOVED);
+		}
+		Counts c = ConcurrentJoin.run(ranges, comparator, changeTypes, moves);
+		if(moves != null)
+			moves.run(c);
+		// Only the last range reads the EOF marker.
+		boolean complete = lastOld.isComplete() && lastNew.isComplete();
+		if(!complete) {
+			err.println("WARNING: A checkpoint is incomplete, so nodes "
+				+ "may be reported as added or removed which are not.");
+		}
+		c.print();
+		return c.differing == 0;
+	}
+
+	/** Returns the ranges as arrays of { oldStart, oldEnd, newStart, newEnd }
+	 *  such that each contains the same range of paths in both files.
+	 *  The new file is split like {@link ConcurrentCheckpointParser} does
+	 *  and the first path of each of its ranges is searched in the old
+	 *  file. */
+	private static List<long[]> splitIntoRanges(FileChannel oldFile,
+			FileChannel newFile, int threads) throws IOException {
+		
+		// Only looking at the size of the new file is fine: If the old one is
+		// much larger the ranges won't be of similar size but then most of it
+		// were removed nodes which are fast to process.
+		ArrayList<Long> newStarts
+			= ConcurrentCheckpointParser.splitIntoChunks(newFile, threads);
+		ArrayList<Long> oldStarts = new ArrayList<>(newStarts.size());
+		oldStarts.add(0L);
+		for(int i = 1; i < newStarts.size(); ++i) {
+			long start = newStarts.get(i);
+			INode first = new CheckpointParser(newFile, start, start + 1,
+				4096).next();
+			// The EOF marker, the previous range will parse it.
+			if(first == null) {
+				newStarts.subList(i, newStarts.size()).clear();
+				break;
+			}
+			oldStarts.add(CheckpointParser.findPath(oldFile,
+				first.getPath().toString().getBytes(UTF_8)));
+		}
+		
+		ArrayList<long[]> result = new ArrayList<>(newStarts.size());
+		for(int i = 0; i < newStarts.size(); ++i) {
+			boolean last = (i == newStarts.size() - 1);
+			result.add(new long[] {
+				oldStarts.get(i), last ? Long.MAX_VALUE : oldStarts.get(i + 1),
+				newStarts.get(i), last ? Long.MAX_VALUE : newStarts.get(i + 1)
+			});
+		}
+		return result;
+	}
+
+	private static final class NodeComparator
+			implements ConcurrentJoin.NodeComparator {
+		
+		private final boolean atime;
+		
+		private final boolean contentOnly;
+		
+		NodeComparator(boolean atime, boolean contentOnly) {
+			this.atime = atime;
+			this.contentOnly = contentOnly;
+		}
+		
+		@Override public void compare(INode o, INode n, List<String> changes) {
+			if(o.isDirectory() != n.isDirectory())
+				changes.add(TYPE_CHANGED);
+			else if(!o.isDirectory()) {
+				ISHA256 oldHash = o.getHash();
+				ISHA256 newHash = n.getHash();
+				if(oldHash == null || newHash == null)
+					changes.add(HASH_FAILED);
+				else if(!oldHash.equals(newHash))
+					changes.add(CONTENT_CHANGED);
+			}
+			// Differences of the contents of directories are reported as the
+			// ones of the nodes inside of them, so we don't compare their
+			// hashes.
+			
+			if(contentOnly)
+				return;
+			
+			ITimestamps ot = o.getTimetamps();
+			ITimestamps nt = n.getTimetamps();
+			if(atime && !Objects.equals(ot == null ? null : ot.getAccessTime(),
+					nt == null ? null : nt.getAccessTime()))
+				changes.add(ATIME_CHANGED);
+			if(!Objects.equals(ot == null ? null : ot.getStatusChangeTime(),
+					nt == null ? null : nt.getStatusChangeTime()))
+				changes.add(CTIME_CHANGED);
+			if(!Objects.equals(ot == null ? null : ot.getModificationTime(),
+					nt == null ? null : nt.getModificationTime()))
+				changes.add(MTIME_CHANGED);
+		}
+		
+		/** Directories are equal if all nodes inside of them are. Their
+		 *  hashes don't cover the timestamps so this is only used with
+		 *  --content-only. Checkpoints of former versions, and ones created
+		 *  with "create --no-directory-hashes", don't have them. */
+		@Override public boolean isSubtreeEqual(INode o, INode n) {
+			return contentOnly && o.getHash() != null
+				&& o.getHash().equals(n.getHash());
+		}
+	}
+
+	private static void printUsage(JCommander jc) {
+		// TODO: See FilterCommand.printUsage().
+		StringBuilder sb = new StringBuilder();
+		jc.usage(sb);
+		err.println(sb);
+		
+		err.println(
+		    "Compares all nodes of two checkpoints and prints a line for "
+		  + "each node which differs to stdout. "
+		  + "The lines have the same syntax as the ones of checkpoints: "
+		  + "'PATH\\0\\tCHANGE\\tCHANGE...\\n' because paths may contain any "
+		  + "character except \\0. CHANGE can be: "
+		  + "'" + ConcurrentJoin.ADDED + "', '" + ConcurrentJoin.REMOVED
+		  + "', '" + TYPE_CHANGED + "' if a "
+		  + "file became a directory or vice versa, '" + CONTENT_CHANGED
+		  + "' if the hash of a file differs, '" + HASH_FAILED + "' if it "
+		  + "is not available in either checkpoint so the content cannot be "
+		  + "compared, '" + CTIME_CHANGED + "', '" + MTIME_CHANGED + "', "
+		  + "and '" + ATIME_CHANGED + "' with --atime. A timestamp which "
+		  + "is available in only one checkpoint counts as changed. "
+		  + "The lines are in the order of the checkpoints.");
+		err.println();
+		err.println(
+		    "With --moves a file which was removed and a file with the same "
+		  + "hash which was added are printed as a single line of "
+		  + "'NEW_PATH\\0\\t" + MoveDetector.MOVED + "\\tOLD_PATH\\0\\n', "
+		  + "unless both of their sizes are known and differ. "
+		  + "Only files which were removed or added without a counterpart "
+		  + "are printed as such then. These lines are printed after the "
+		  + "others, in the order of their paths. The removed and added "
+		  + "files are sorted in temporary files for that, so memory usage "
+		  + "is bounded by --memory.");
+		err.println();
+		err.println(
+		    "A summary of the amount of nodes per CHANGE is printed to stderr "
+		  + "as 'CHANGE: AMOUNT' lines, plus "
+		  + "'differing' for all nodes which were printed and 'equal' for "
+		  + "the others.");
+		err.println();
+		err.println(
+		    "With --content-only directories whose hash, which covers the "
+		  + "names and contents of all files inside of them, is equal in "
+		  + "both checkpoints are skipped as a whole. Their nodes count as "
+		  + "'equal'. Checkpoints of former versions, and ones created with "
+		  + "'create --no-directory-hashes', don't contain the hashes, all "
+		  + "of their files are compared then.");
+		err.println();
+		err.println(
+		    "Large uncompressed checkpoints are split into ranges of paths "
+		  + "which are compared concurrently. Memory usage does not depend on "
+		  + "the size of the checkpoints.");
+		err.println();
+		err.println("Exit code is 0 if the checkpoints are equal, 1 if they "
+			+ "differ, 2 if an error occurred.");
+	}
+
+}
@@ -0,0 +1,437 @@
+package checkpoint.ui.shell;
+
+import static checkpoint.datamodel.implementation.Checkpoint.PathComparator.isAfterSubtree;
+import static checkpoint.serialization.ConcurrentCheckpointParser.getResult;
+import static java.lang.System.err;
+import static java.lang.System.out;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.implementation.Checkpoint.PathComparator;
+import checkpoint.serialization.CheckpointParser;
+
+/** The merge-join of an old and a new sequence of nodes which are sorted
+ *  by {@link PathComparator}, as done by the "compare" and "status"
+ *  commands. As both are sorted the same way we can walk them side by side
+ *  and only ever need the current node of each in memory.
+ *
+ *  Prints a line for each path whose nodes differ to stdout in the syntax of
+ *  the lines of checkpoints: "PATH \0 \t CHANGE [\t CHANGE]... \n" because
+ *  paths may contain any character except \0. The CHANGEs are
+ *  {@link #ADDED}, {@link #REMOVED} or the ones of the
+ *  {@link NodeComparator}.
+ *
+ *  If the comparator tells that the nodes inside of two directories are
+ *  equal, e.g. by their hashes, they are skipped without comparing them.
+ *
+ *  The sequences can be split into {@link Range}s of paths which are joined
+ *  concurrently. The output of each range is passed to the calling thread
+ *  which prints it in the order of the ranges, so it is the same as if
+ *  there was a single range. */
+final class ConcurrentJoin {
+
+	static final String ADDED = "added";
+	static final String REMOVED = "removed";
+
+	/** In bytes. The output of each range is passed to the thread which
+	 *  prints it in chunks of this size. */
+	private static final int OUTPUT_CHUNK_SIZE = 64 * 1024;
+
+	/** Amount of chunks of output each range may have pending. If a range is
+	 *  done joining before the ones in front of it are printed it will wait
+	 *  once it has this many, which bounds the memory usage. */
+	private static final int OUTPUT_CHUNKS_PER_RANGE = 16;
+
+	/** Marks the end of the output of a range. */
+	private static final byte[] END_OF_OUTPUT = new byte[0];
+
+	private ConcurrentJoin() {}
+
+	interface NodeSource {
+		/** Returns null at the end of the range. */
+		INode next() throws IOException;
+		
+		/** Skips the following nodes which are inside of the given directory,
+		 *  but not beyond the end of the range, and returns their amount.
+		 *  See {@link checkpoint.serialization.CheckpointReader#skipSubtree(
+		 *  Path)}. */
+		long skipSubtree(Path directory) throws IOException;
+	}
+
+	/** Receives the nodes which exist in only one of the sequences instead
+	 *  of them being printed, see {@link MoveDetector}. Called concurrently
+	 *  by the threads of the ranges. */
+	interface UnmatchedNodes {
+		/** Returns false if the node was not taken and shall be printed as
+		 *  usual. */
+		boolean removed(INode n) throws IOException;
+		boolean added(INode n) throws IOException;
+	}
+
+	interface NodeComparator {
+		/** Adds the changes of two nodes of the same path to the list.
+		 *  Called concurrently by the threads of the ranges. */
+		void compare(INode oldNode, INode newNode, List<String> changes);
+		
+		/** Returns true if the nodes inside of two directories of the same
+		 *  path are known to be equal without comparing them, so they can be
+		 *  skipped. They are counted as equal then. Only called if
+		 *  {@link #compare(INode, INode, List)} found no changes of them.
+		 *  Called concurrently by the threads of the ranges. */
+		boolean isSubtreeEqual(INode oldDirectory, INode newDirectory);
+	}
+
+	/** The nodes of both sequences which are in a range of paths. Nodes
+	 *  which are in the range of one sequence must not be in a different
+	 *  range of the other sequence, as they would be reported as added and
+	 *  removed then. */
+	static final class Range {
+		final NodeSource oldNodes;
+		final NodeSource newNodes;
+		
+		Range(NodeSource oldNodes, NodeSource newNodes) {
+			this.oldNodes = oldNodes;
+			this.newNodes = newNodes;
+		}
+	}
+
+	/** Returns a source of the nodes of the parser which checks their order
+	 *  like {@link checkpoint.serialization.CheckpointReader#next()}. */
+	static NodeSource source(final CheckpointParser parser) {
+		return new NodeSource() {
+			@Override public INode next() throws IOException {
+				INode n = parser.next();
+				if(!parser.isSorted()) {
+					throw new IOException("Checkpoint is not sorted, or "
+						+ "contains duplicates or non-normalized paths, at: "
+						+ (n != null ? n.getPath() : "EOF"));
+				}
+				return n;
+			}
+			
+			@Override public long skipSubtree(Path directory)
+					throws IOException {
+				
+				long skipped = parser.skip(
+					(directory.toString() + "/").getBytes(UTF_8));
+				if(!parser.isSorted()) {
+					throw new IOException("Checkpoint is not sorted, or "
+						+ "contains duplicates or non-normalized paths, "
+						+ "inside of: " + directory);
+				}
+				return skipped;
+			}
+		};
+	}
+
+	/** Joins the ranges with a thread for each and prints their output in
+	 *  order.
+	 *  @param changeTypes The CHANGEs of the comparator, in the order in
+	 *      which they should be printed by {@link Counts#print()}.
+	 *  @param unmatched Null to print all added and removed nodes. Nodes it
+	 *      takes are neither printed nor counted. */
+	static Counts run(List<Range> ranges, NodeComparator comparator,
+			List<String> changeTypes, UnmatchedNodes unmatched)
+			throws IOException {
+		
+		ArrayList<RangeJoin> joins = new ArrayList<>(ranges.size());
+		for(Range r : ranges)
+			joins.add(new RangeJoin(r, comparator, changeTypes, unmatched));
+		
+		ExecutorService executor = Executors.newFixedThreadPool(joins.size());
+		try {
+			ArrayList<Future<Counts>> results = new ArrayList<>(joins.size());
+			for(RangeJoin j : joins)
+				results.add(executor.submit(j));
+			
+			// Print the output of the ranges in order while the ones after the
+			// current one continue joining.
+			Counts total = new Counts(changeTypes);
+			for(int i = 0; i < joins.size(); ++i) {
+				BlockingQueue<byte[]> output = joins.get(i).output;
+				byte[] chunk;
+				try {
+					while((chunk = output.take()) != END_OF_OUTPUT)
+						out.write(chunk, 0, chunk.length);
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				total.add(getResult(results.get(i)));
+			}
+			
+			for(int i = 1; i < joins.size(); ++i)
+				joins.get(i - 1).checkOrder(joins.get(i));
+			
+			out.flush();
+			if(out.checkError())
+				throw new IOException("Writing to stdout failed!");
+			return total;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/** The merge-join of a single {@link Range}. The output is passed to the
+	 *  printing thread by {@link #output}. */
+	private static final class RangeJoin implements Callable<Counts> {
+
+		private final PathComparator pathComparator = new PathComparator();
+		
+		private final Range range;
+		
+		private final NodeComparator comparator;
+		
+		private final UnmatchedNodes unmatched;
+		
+		final BlockingQueue<byte[]> output
+			= new ArrayBlockingQueue<>(OUTPUT_CHUNKS_PER_RANGE);
+		
+		private byte[] chunk = new byte[OUTPUT_CHUNK_SIZE];
+		private int chunkLength = 0;
+		
+		private final Counts counts;
+		
+		/** The changes of the current node. */
+		private final ArrayList<String> changes = new ArrayList<>();
+		
+		/** The paths of the equal directories whose nodes may follow, the
+		 *  last one first. */
+		private final ArrayDeque<String> equalDirectories = new ArrayDeque<>();
+		
+		/** For checking the order across the ranges. Null if the range of the
+		 *  sequence was empty. */
+		private Path firstOld = null, lastOld = null;
+		private Path firstNew = null, lastNew = null;
+		
+		RangeJoin(Range range, NodeComparator comparator,
+				List<String> changeTypes, UnmatchedNodes unmatched) {
+			
+			this.range = range;
+			this.comparator = comparator;
+			this.unmatched = unmatched;
+			this.counts = new Counts(changeTypes);
+		}
+		
+		@Override public Counts call() throws IOException,
+				InterruptedException {
+			
+			try {
+				run();
+				flush();
+				return counts;
+			} finally {
+				// Also if we failed so the printing thread stops waiting.
+				// If it is not waiting anymore we were interrupted.
+				output.put(END_OF_OUTPUT);
+			}
+		}
+		
+		private void run() throws IOException, InterruptedException {
+			INode o = nextOld();
+			INode n = nextNew();
+			while(o != null || n != null) {
+				int c = (o == null) ? 1
+				      : (n == null) ? -1
+				      : pathComparator.compare(o.getPath(), n.getPath());
+				
+				if(c < 0) {
+					if(unmatched == null || !unmatched.removed(o)) {
+						changes.add(REMOVED);
+						print(o);
+					}
+					o = nextOld();
+				} else if(c > 0) {
+					if(unmatched == null || !unmatched.added(n)) {
+						changes.add(ADDED);
+						print(n);
+					}
+					n = nextNew();
+				} else {
+					if(!skipIfInsideEqualDirectory(n))
+						compare(o, n);
+					o = nextOld();
+					n = nextNew();
+				}
+			}
+		}
+		
+		/** Compares two nodes of the same path and prints them. */
+		private void compare(INode o, INode n) throws InterruptedException {
+			comparator.compare(o, n, changes);
+			if(changes.isEmpty() && o.isDirectory() && n.isDirectory()
+					&& comparator.isSubtreeEqual(o, n)) {
+				equalDirectories.push(n.getPath().toString());
+			}
+			print(n);
+		}
+		
+		/** Must be called for every node which exists in both sequences.
+		 *  If it is the first one inside of an equal directory skips it and
+		 *  all others of that directory in both sequences, and returns true.
+		 *  As the nodes inside of equal directories are equal they are
+		 *  always reached in both sequences at once, so this is the only
+		 *  place where we need to check for them. */
+		private boolean skipIfInsideEqualDirectory(INode n)
+				throws IOException {
+			
+			String path = n.getPath().toString();
+			while(!equalDirectories.isEmpty()
+					&& isAfterSubtree(path, equalDirectories.peek())) {
+				equalDirectories.pop();
+			}
+			
+			// The nodes inside of a directory are adjacent, so if the node is
+			// inside of one the others of it follow.
+			if(equalDirectories.isEmpty()
+					|| !path.startsWith(equalDirectories.peek() + "/"))
+				return false;
+			
+			// TODO: Performance: The skipped nodes are still read from disk.
+			// If the checkpoints have a PathIndex it could be used to seek
+			// past them.
+			Path directory = Paths.get(equalDirectories.pop());
+			range.oldNodes.skipSubtree(directory);
+			counts.equal += 1 + range.newNodes.skipSubtree(directory);
+			return true;
+		}
+		
+		private INode nextOld() throws IOException {
+			INode n = range.oldNodes.next();
+			if(n != null) {
+				if(firstOld == null)
+					firstOld = n.getPath();
+				lastOld = n.getPath();
+			}
+			return n;
+		}
+		
+		private INode nextNew() throws IOException {
+			INode n = range.newNodes.next();
+			if(n != null) {
+				if(firstNew == null)
+					firstNew = n.getPath();
+				lastNew = n.getPath();
+			}
+			return n;
+		}
+		
+		/** Prints the node with the {@link #changes}, if there are any, and
+		 *  counts them. */
+		private void print(INode n) throws InterruptedException {
+			counts.count(changes);
+			if(changes.isEmpty())
+				return;
+			
+			write(n.getPath().toString().getBytes(UTF_8));
+			write((byte)'\0');
+			for(String c : changes) {
+				write((byte)'\t');
+				write(c.getBytes(UTF_8));
+			}
+			write((byte)'\n');
+			changes.clear();
+		}
+		
+		private void write(byte[] bytes) throws InterruptedException {
+			for(byte b : bytes)
+				write(b);
+		}
+		
+		private void write(byte b) throws InterruptedException {
+			if(chunkLength == chunk.length)
+				flush();
+			chunk[chunkLength++] = b;
+		}
+		
+		private void flush() throws InterruptedException {
+			if(chunkLength == 0)
+				return;
+			
+			output.put(Arrays.copyOf(chunk, chunkLength));
+			chunkLength = 0;
+		}
+		
+		/** Each range only checked the order inside of itself so we must
+		 *  check it at the boundaries to the following range as well.
+		 *  If one was empty the check is skipped, the ranges are computed by
+		 *  searching for paths which would have failed in a way which is
+		 *  detected by that anyway. */
+		void checkOrder(RangeJoin next) throws IOException {
+			if((lastOld != null && next.firstOld != null
+					&& pathComparator.compare(lastOld, next.firstOld) >= 0)
+			|| (lastNew != null && next.firstNew != null
+					&& pathComparator.compare(lastNew, next.firstNew) >= 0)) {
+				
+				throw new IOException("Input is not sorted, or contains "
+					+ "duplicates, at: " + next.firstNew);
+			}
+		}
+	}
+
+	/** The amount of nodes per CHANGE. A node can have multiple changes,
+	 *  e.g. of the content and the mtime, so the sum of them may be larger
+	 *  than the amount of differing nodes. */
+	static final class Counts {
+
+		private final LinkedHashMap<String, Long> changes
+			= new LinkedHashMap<>();
+		
+		long differing = 0;
+		
+		/** Nodes which exist in both and have no changes. */
+		long equal = 0;
+		
+		Counts(List<String> changeTypes) {
+			changes.put(ADDED, 0L);
+			changes.put(REMOVED, 0L);
+			for(String c : changeTypes)
+				changes.put(c, 0L);
+		}
+		
+		void count(List<String> changesOfNode) {
+			if(changesOfNode.isEmpty()) {
+				++equal;
+				return;
+			}
+			
+			++differing;
+			for(String c : changesOfNode)
+				changes.put(c, changes.get(c) + 1);
+		}
+		
+		void add(Counts other) {
+			for(Map.Entry<String, Long> e : other.changes.entrySet())
+				changes.put(e.getKey(), changes.get(e.getKey()) + e.getValue());
+			differing += other.differing;
+			equal += other.equal;
+		}
+		
+		/** To stderr, in "CHANGE: AMOUNT" lines, plus "differing" for all
+		 *  nodes which were printed and "equal" for the others. */
+		void print() {
+			for(Map.Entry<String, Long> e : changes.entrySet())
+				err.println(e.getKey() + ": " + e.getValue());
+			err.println("differing: " + differing);
+			err.println("equal: " + equal);
+		}
+	}
+
+}
@@ -0,0 +1,174 @@
+package checkpoint.ui.shell;
+
+import static java.lang.System.err;
+import static java.lang.System.out;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+
+import checkpoint.datamodel.ICheckpointReader;
+import checkpoint.datamodel.ICheckpointWriter;
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.ITimestamps.TimestampTypes;
+import checkpoint.serialization.BinaryCheckpointReader;
+import checkpoint.serialization.BinaryCheckpointWriter;
+import checkpoint.serialization.BinaryFormat;
+import checkpoint.serialization.CheckpointReader;
+import checkpoint.serialization.CheckpointWriter;
+import checkpoint.serialization.TextFormat;
+
+final class ConvertCommand extends Command {
+
+	@Override String getShortSyntax() {
+		return '\t' + getCommandName() + " --to binary|text [options] "
+			+ "INPUT_CHECKPOINT_DIR [OUTPUT_CHECKPOINT_DIR]";
+	}
+
+	private static final class Options {
+		@Parameter(names = { "--to" }, required = true, description =
+		    "The format to convert to, 'binary' or 'text'. The input is "
+		  + "expected to be in the other format.")
+		String to;
+
+		@Parameter(names = { "--remove-timestamps" }, description =
+		    "Same as for the 'filter' command. Default when converting to "
+		  + "text is the filter which was used when creating the binary "
+		  + "checkpoint.")
+		String removeTimestamps = null;
+
+		@Parameter(description = "INPUT_CHECKPOINT_DIR [OUTPUT_CHECKPOINT_DIR]")
+		List<String> args = new ArrayList<>(2);
+
+		void validate() throws IllegalArgumentException {
+			if(!to.equals("binary") && !to.equals("text")) {
+				throw new IllegalArgumentException(
+					"Invalid argument for --to: '" + to + "'");
+			}
+			
+			if(removeTimestamps != null
+					&& !removeTimestamps.matches("[abcm]{0,4}")) {
+				throw new IllegalArgumentException(
+					"Invalid argument for --remove-timestamps: '"
+					+ removeTimestamps + "'");
+			}
+			
+			// TODO: See FilterCommand.
+			if(args.size() < 1)
+				throw new IllegalArgumentException("Missing input dir!");
+			else if(args.size() > 2) {
+				throw new IllegalArgumentException(
+					"Too many/unknown arguments: " + args);
+			}
+		}
+	}
+
+	@Override int run(List<String> args) {
+		Options o = new Options();
+		JCommander jc = new JCommander();
+		jc.addObject(o);
+		jc.setProgramName(getCommandName());
+		try {
+			jc.parse(args.toArray(new String[args.size()]));
+			o.validate();
+			args = null; // Prevent accidental usage instead of Options.args
+		} catch(ParameterException | IllegalArgumentException e) {
+			err.println(e.getMessage());
+			err.println();
+			printUsage(jc);
+			return 1;
+		}
+		
+		Path input;
+		Path output;
+		try {
+			input = Paths.get(o.args.get(0));
+			output = o.args.size() >= 2
+				? Paths.get(o.args.get(1))
+				: input;
+		} catch(InvalidPathException e) {
+			err.println("Invalid path: " + e.getMessage());
+			return 1;
+		}
+		
+		boolean toBinary = o.to.equals("binary");
+		Path inputFile;
+		try {
+			inputFile = toBinary ? CheckpointReader.getCheckpointFile(input)
+			                     : input.resolve(BinaryFormat.FILENAME);
+		} catch(IOException e) {
+			err.println(e);
+			return 1;
+		}
+		Path outputFile = output.resolve(
+			toBinary ? BinaryFormat.FILENAME : TextFormat.FILENAME);
+		out.println("Input:  " + inputFile.toAbsolutePath());
+		out.println("Output: " + outputFile.toAbsolutePath());
+		
+		out.print("Converting checkpoint... ");
+		try(ICheckpointReader reader = toBinary
+				? CheckpointReader.open(input)
+				: BinaryCheckpointReader.open(input)) {
+			
+			EnumSet<TimestampTypes> timestampsFilter;
+			if(o.removeTimestamps != null) {
+				timestampsFilter
+					= FilterCommand.parseTimestampsFilter(o.removeTimestamps);
+			} else if(!toBinary) {
+				timestampsFilter
+					= ((BinaryCheckpointReader)reader).getTimestampsFilter();
+			} else
+				timestampsFilter = EnumSet.noneOf(TimestampTypes.class);
+			
+			try(ICheckpointWriter writer = toBinary
+					? BinaryCheckpointWriter.open(output, timestampsFilter)
+					: CheckpointWriter.open(output, timestampsFilter)) {
+				
+				for(INode n; (n = reader.next()) != null; )
+					writer.addNode(n);
+				
+				writer.finish(reader.isComplete());
+			}
+			out.println("OK");
+			
+			out.println("Input size:  " + Files.size(inputFile) + " bytes");
+			out.println("Output size: " + Files.size(outputFile) + " bytes");
+			return 0;
+		} catch(IOException e) {
+			err.println("FAILED:");
+			err.println(e);
+			return 1;
+		}
+	}
+
+	private static void printUsage(JCommander jc) {
+		// TODO: See FilterCommand.printUsage().
+		StringBuilder sb = new StringBuilder();
+		jc.usage(sb);
+		err.println(sb);
+		
+		err.println(
+		    "Converts the checkpoint at INPUT_CHECKPOINT_DIR to the given "
+		  + "format and saves it to OUTPUT_CHECKPOINT_DIR if given or "
+		  + "INPUT_CHECKPOINT_DIR otherwise.");
+		err.println();
+		err.println(
+		    "The binary format is a compact alternative to the human-readable "
+		  + "text format, intended for use by automation. Text checkpoints are "
+		  + "named " + TextFormat.FILENAME + " (or "
+		  + TextFormat.COMPRESSED_FILENAME + " if compressed, which is read "
+		  + "transparently), binary ones "
+		  + BinaryFormat.FILENAME + ", so both can be in the same directory. "
+		  + "Converting is lossless: All data of the nodes is preserved.");
+	}
+
+}
@@ -12,9 +12,15 @@ import java.util.List;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.ParametersDelegate;
 
+import checkpoint.datamodel.implementation.PathPatterns;
 import checkpoint.generation.ConcurrentCheckpointGenerator;
+import checkpoint.generation.IOThrottle;
 import checkpoint.generation.JavaSHA256Generator;
+import checkpoint.serialization.HashIndex;
+import checkpoint.serialization.PathIndex;
+import checkpoint.serialization.TextFormat;
 
 final class CreateCommand extends Command {
 
@@ -69,6 +75,60 @@ final class CreateCommand extends Command {
 			+ "You may also have to allow Java to use more memory with -Xmx.")
 		int buffer = JavaSHA256Generator.DEFAULT_READ_BUFFER_SIZE;
 
+		@Parameter(names = { "--throttle" }, description =
+			  "Limit reading the files to the given bytes per second, for all "
+			+ "threads together, so the disk stays usable for others. "
+			+ "Suffixes K, M, G and T are allowed, e.g. '50M' for 50 MiB/s. "
+			+ "Default: Unlimited.")
+		String throttle = null;
+
+		/** Parsed from {@link #throttle} by {@link #validate()}. */
+		IOThrottle ioThrottle = null;
+
+		@Parameter(names = { "--compress" }, description =
+			  "Write the checkpoint gzip-compressed as '"
+			+ TextFormat.COMPRESSED_FILENAME + "'. The compression is done "
+			+ "on all CPUs. All commands can read compressed checkpoints, "
+			+ "and e.g. 'zcat' or 'zgrep' work on them as well.")
+		boolean compress = false;
+
+		@Parameter(names = { "--index" }, description =
+			  "Also write an index of the paths as '" + PathIndex.FILENAME
+			+ "' to speed up the 'lookup' command. Cannot be combined with "
+			+ "--compress.")
+		boolean index = false;
+
+		@Parameter(names = { "--hash-index" }, description =
+			  "Also write an index of the hashes as '" + HashIndex.FILENAME
+			+ "' to speed up the 'find-by-hash' command. Needs about 40 "
+			+ "bytes per file. Cannot be combined with --compress.")
+		boolean hashIndex = false;
+
+		@Parameter(names = { "--no-directory-hashes" }, description =
+			  "Write '" + TextFormat.SHA256SUM_OF_DIRECTORY + "' without a "
+			+ "hash for directories, like the Python implementation does. "
+			+ "The output is then byte-identical to the one of it, which "
+			+ "allows cross-checking the two. Without the hashes "
+			+ "'compare --content-only' cannot skip identical directories.")
+		boolean noDirectoryHashes = false;
+
+		@Parameter(names = { "--walk-timestamps" }, description =
+			  "Read the timestamps while searching the files instead of "
+			+ "after hashing each file, which saves a stat() and on "
+			+ "rotational disks a seek per file. The timestamps are then the "
+			+ "ones from before hashing. A file whose size changed since then "
+			+ "is detected by an fstat() after hashing, and is hashed again. "
+			+ "The access times are the ones from before reading the files "
+			+ "then.")
+		boolean walkTimestamps = false;
+
+		@ParametersDelegate
+		ExcludeOptions exclude = new ExcludeOptions();
+
+		/** Parsed from {@link #exclude} by {@link #validate()}, null if
+		 *  there are none. */
+		PathPatterns excludes = null;
+
 		@Parameter(description =
 			"INPUT_DIR OUTPUT_CHECKPOINT_DIR")
 		List<String> args = new ArrayList<>(2);
@@ -80,6 +140,16 @@ final class CreateCommand extends Command {
 			if(buffer < 4096)
 				throw new IllegalArgumentException("--buffer is too low!");
 			
+			if(throttle != null)
+				ioThrottle = new IOThrottle(parseBytes("--throttle", throttle));
+			
+			if(compress && (index || hashIndex)) {
+				throw new IllegalArgumentException(
+					"--compress cannot be combined with indexes!");
+			}
+			
+			excludes = exclude.parse();
+			
 			// TODO: As of 2019-11-11 with JCommander 1.71 @Parameter(arity = 2)
 			// doesn't work for unnamed parameters it seems so we check it
 			// manually, try again in some years.
@@ -121,8 +191,13 @@ final class CreateCommand extends Command {
 		}
 		
 		try {
-			new ConcurrentCheckpointGenerator(input, output,
-				o.ssd, o.threads, o.buffer).run();
+			ConcurrentCheckpointGenerator generator
+				= new ConcurrentCheckpointGenerator(input, output, o.ssd,
+					o.threads, o.buffer, o.ioThrottle, !o.noDirectoryHashes,
+					o.compress, FilterCommand.getIndexes(o.index, o.hashIndex));
+			generator.setTimestampsFromWalk(o.walkTimestamps);
+			generator.setExcludes(o.excludes);
+			generator.run();
 			return 0;
 		} catch (IOException | InterruptedException e) {
 			err.println("Generating checkpoint failed:");
@@ -145,7 +220,8 @@ final class CreateCommand extends Command {
 			"writes a checkpoint for them to the OUTPUT_CHECKPOINT_DIR.");
 		err.println(
 			"'Almost all' means that non-regular files and files and " +
-			"directories on different mount points are excluded.");
+			"directories on different mount points are excluded, as well " +
+			"as the ones given by --exclude and --exclude-from.");
 		err.println(
 			"Only exclusions due to different mounts will be printed on " +
 			"stderr.");
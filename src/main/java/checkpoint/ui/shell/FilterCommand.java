@@ -6,27 +6,47 @@ import static checkpoint.datamodel.ITimestamps.TimestampTypes.ModificationTime;
 import static checkpoint.datamodel.ITimestamps.TimestampTypes.StatusChangeTime;
 import static java.lang.System.err;
 import static java.lang.System.out;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 
+import checkpoint.datamodel.INode;
 import checkpoint.datamodel.ITimestamps.TimestampTypes;
-import checkpoint.datamodel.implementation.Checkpoint;
+import checkpoint.datamodel.implementation.Node;
+import checkpoint.datamodel.implementation.PathPatterns;
+import checkpoint.serialization.CheckpointReader;
+import checkpoint.serialization.CheckpointWriter;
+import checkpoint.serialization.CheckpointWriter.Index;
+import checkpoint.serialization.ConcurrentCheckpointParser;
+import checkpoint.serialization.HashIndex;
+import checkpoint.serialization.PathIndex;
+import checkpoint.serialization.TextFormat;
 
 final class FilterCommand extends Command {
 
 	@Override String getShortSyntax() {
 		return '\t' + getCommandName() +
-			" [options] INPUT_CHECKPOINT_DIR [OUTPUT_CHECKPOINT_DIR]";
+			" [options] INPUT_CHECKPOINT_DIR [OUTPUT_CHECKPOINT_DIR]\n"
+			+ '\t' + getCommandName() + " [options] INPUT_CHECKPOINT_DIR "
+			+ "--output OUTPUT_CHECKPOINT_DIR [options] [--output ...]";
 	}
 
 	private static final class Options {
@@ -36,6 +56,85 @@ final class FilterCommand extends Command {
 		  + "Example: '--remove-timestamps bc'.")
 		String removeTimestamps = ""; // Default is non-null to simplify code.
 
+		@Parameter(names = { "--compress" }, description =
+		    "Write the output gzip-compressed as '"
+		  + TextFormat.COMPRESSED_FILENAME + "'. If not given it is written "
+		  + "uncompressed, also if the input was compressed. "
+		  + "An existing output checkpoint of the other format is deleted.")
+		boolean compress = false;
+
+		@Parameter(names = { "--index" }, description =
+		    "Also write an index of the paths as '" + PathIndex.FILENAME
+		  + "' to speed up the 'lookup' command. Cannot be combined with "
+		  + "--compress. If not given an existing index of the output is "
+		  + "deleted as it would be outdated.")
+		boolean index = false;
+
+		@Parameter(names = { "--hash-index" }, description =
+		    "Also write an index of the hashes as '" + HashIndex.FILENAME
+		  + "' to speed up the 'find-by-hash' command. Needs about 40 bytes "
+		  + "of memory and disk space per file. Cannot be combined with "
+		  + "--compress. If not given an existing hash index of the output "
+		  + "is deleted as it would be outdated.")
+		boolean hashIndex = false;
+
+		@Parameter(names = { "--remove-directory-hashes" }, description =
+		    "Remove the hashes of directories, to allow comparing the output "
+		  + "with the one of the Python implementation. See "
+		  + "'create --no-directory-hashes'.")
+		boolean removeDirectoryHashes = false;
+
+		@Parameter(names = { "--include-regex" }, splitter = NoSplitter.class,
+			description =
+		    "Keep only the nodes whose path matches an extended regular "
+		  + "expression as for 'grep -E', e.g. '^\\./home/'. Can be given "
+		  + "multiple times to keep the nodes which match any of them. "
+		  + "Default: Keep all.")
+		List<String> includeRegex = new ArrayList<>();
+
+		@Parameter(names = { "--exclude-regex" }, splitter = NoSplitter.class,
+			description =
+		    "Remove the nodes whose path matches an extended regular "
+		  + "expression, also if it matches --include-regex. Can be given "
+		  + "multiple times. Like in tools/filter-checkpoint.sh, e.g. "
+		  + "'^\\./home/([[:alnum:]]|-)+/\\.cache/' removes what is in "
+		  + "the .cache directories but keeps them. If nodes are removed the "
+		  + "hashes of directories are removed as they would be wrong.")
+		List<String> excludeRegex = new ArrayList<>();
+
+		@Parameter(names = { "--include-regex-from" },
+			splitter = NoSplitter.class, description =
+		    "Read expressions for --include-regex from a file, one per line. "
+		  + "Empty lines and lines starting with '#' are ignored.")
+		List<String> includeRegexFrom = new ArrayList<>();
+
+		@Parameter(names = { "--exclude-regex-from" },
+			splitter = NoSplitter.class, description =
+		    "Read expressions for --exclude-regex from a file, see "
+		  + "--include-regex-from.")
+		List<String> excludeRegexFrom = new ArrayList<>();
+
+		/** Parsed from the above by {@link #validate()}, null if none were
+		 *  given. */
+		PathPatterns includes = null;
+		PathPatterns excludes = null;
+
+		@Parameter(names = { "--threads" }, description =
+		    "Number of threads to parse and filter the checkpoint with. "
+		  + "Each output is formatted and written by a thread of its own "
+		  + "additionally. Default: The number of CPUs.")
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		@Parameter(names = { "--output" }, description =
+		    "Write to the given dir instead of OUTPUT_CHECKPOINT_DIR. Can be "
+		  + "given multiple times to write multiple differently filtered "
+		  + "outputs concurrently while reading the input only once. The "
+		  + "options after an --output apply only to that output, the ones "
+		  + "before the first --output apply to all of them. Example: "
+		  + "'filter IN --output FULL --output NO_ATIME --remove-timestamps a "
+		  + "--output HOME --include-regex ^\\./home/'.")
+		String output = null;
+
 		@Parameter(description = "INPUT_CHECKPOINT_DIR [OUTPUT_CHECKPOINT_DIR]")
 		List<String> args = new ArrayList<>(2);
 
@@ -46,6 +145,17 @@ final class FilterCommand extends Command {
 					+ removeTimestamps + "'");
 			}
 			
+			if(compress && (index || hashIndex)) {
+				throw new IllegalArgumentException(
+					"--compress cannot be combined with indexes!");
+			}
+			
+			if(threads < 1)
+				throw new IllegalArgumentException("--threads is too low!");
+			
+			includes = parsePathFilter(includeRegex, includeRegexFrom);
+			excludes = parsePathFilter(excludeRegex, excludeRegexFrom);
+			
 			// TODO: As of 2019-11-11 with JCommander 1.71 @Parameter(arity = 2)
 			// doesn't work for unnamed parameters it seems so we check it
 			// manually, try again in some years.
@@ -54,18 +164,61 @@ final class FilterCommand extends Command {
 			else if(args.size() > 2) {
 				throw new IllegalArgumentException(
 					"Too many/unknown arguments: " + args);
+			} else if(args.size() > 1 && output != null) {
+				throw new IllegalArgumentException(
+					"OUTPUT_CHECKPOINT_DIR cannot be combined with --output!");
 			}
 		}
+
+		String getOutput() {
+			return output != null ? output
+			     : args.get(args.size() >= 2 ? 1 : 0);
+		}
 	}
 
 	@Override int run(List<String> args) {
-		Options o = new Options();
-		JCommander jc = new JCommander();
-		jc.addObject(o);
-		jc.setProgramName(getCommandName());
+		// The Options of each output, parsed from the arguments which apply
+		// to it.
+		ArrayList<Options> outputs = new ArrayList<>();
+		JCommander jc = null;
 		try {
-			jc.parse(args.toArray(new String[args.size()]));
-			o.validate();
+			// The amount of INPUT_CHECKPOINT_DIR and OUTPUT_CHECKPOINT_DIR
+			// before the first --output, only JCommander can tell them apart
+			// from the values of options.
+			int commonArgs = -1;
+			int first = args.indexOf("--output");
+			if(first >= 0) {
+				Options common = new Options();
+				jc = new JCommander();
+				jc.addObject(common);
+				jc.setProgramName(getCommandName());
+				jc.parse(args.subList(0, first).toArray(new String[first]));
+				commonArgs = common.args.size();
+			}
+			for(List<String> a : splitOutputs(args)) {
+				Options o = new Options();
+				jc = new JCommander();
+				jc.addObject(o);
+				jc.setProgramName(getCommandName());
+				jc.parse(a.toArray(new String[a.size()]));
+				// Else they would only apply to one output, and the others
+				// would complain about the missing input dir.
+				if(commonArgs >= 0 && o.args.size() > commonArgs) {
+					throw new IllegalArgumentException(
+						"Only options may follow --output, found: "
+						+ o.args.subList(commonArgs, o.args.size())
+						+ ". INPUT_CHECKPOINT_DIR must be given before the "
+						+ "first --output!");
+				}
+				o.validate();
+				outputs.add(o);
+			}
+			for(Options o : outputs) {
+				if(o.threads != outputs.get(0).threads) {
+					throw new IllegalArgumentException(
+						"--threads must be given before the first --output!");
+				}
+			}
 			args = null; // Prevent accidental usage instead of Options.args
 		} catch(ParameterException | IllegalArgumentException e) {
 			err.println(e.getMessage());
@@ -77,43 +230,56 @@ final class FilterCommand extends Command {
 		// TODO: Use IStringConverterFactory of JCommander instead of manually
 		// processing paths.
 		Path input;
-		Path output;
+		ArrayList<Path> outputDirs = new ArrayList<>(outputs.size());
 		try {
-			input = Paths.get(o.args.get(0));
-			output = o.args.size() >= 2
-				? Paths.get(o.args.get(1))
-				: input;
+			input = Paths.get(outputs.get(0).args.get(0));
+			for(Options o : outputs)
+				outputDirs.add(Paths.get(o.getOutput()));
 		} catch(InvalidPathException e) {
 			err.println("Invalid path: " + e.getMessage());
 			return 1;
 		}
-
-		out.println("Input:  " + input.toAbsolutePath());
-		out.println("Output: " + output.toAbsolutePath());
 		
-		EnumSet<TimestampTypes> timestampFilter
-			= EnumSet.noneOf(TimestampTypes.class);
-		for(char c : o.removeTimestamps.toCharArray()) {
-			switch(c) {
-				case 'a': timestampFilter.add(AccessTime);       break;
-				case 'b': timestampFilter.add(BirthTime);        break;
-				case 'c': timestampFilter.add(StatusChangeTime); break;
-				case 'm': timestampFilter.add(ModificationTime); break;
+		// Multiple writers of the same dir would replace each other's output.
+		HashSet<Path> distinct = new HashSet<>();
+		for(Path output : outputDirs) {
+			if(!distinct.add(output.toAbsolutePath().normalize())) {
+				err.println("Output given multiple times: " + output);
+				return 1;
 			}
 		}
 		
-		if(!o.removeTimestamps.isEmpty()) {
-			// Print from what we've parsed to ease spotting bugs.
-			out.println("Remove timestamps: " + timestampFilter);
+		out.println("Input:  " + input.toAbsolutePath());
+		for(int i = 0; i < outputs.size(); ++i) {
+			Options o = outputs.get(i);
+			out.println("Output: " + outputDirs.get(i).toAbsolutePath());
+			
+			if(!o.removeTimestamps.isEmpty()) {
+				// Print from what we've parsed to ease spotting bugs.
+				out.println("Remove timestamps: "
+					+ parseTimestampsFilter(o.removeTimestamps));
+			}
+			
+			if(o.includes != null)
+				out.println("Include expressions: " + o.includes.size());
+			if(o.excludes != null)
+				out.println("Exclude expressions: " + o.excludes.size());
 		}
 		
-		try {
-			out.print("Loading checkpoint... ");
-			Checkpoint cp = Checkpoint.load(input);
-			out.println("OK");
+		// Stream the nodes instead of loading the whole checkpoint so we work
+		// with checkpoints of any size. Writing in place is safe since the
+		// writers only replace the input once finish() is called.
+		out.print("Filtering checkpoint... ");
+		int threads = outputs.get(0).threads;
+		try(ReadableByteChannel reader = CheckpointReader.openChannel(
+		        CheckpointReader.getCheckpointFile(input));
+		    Filter filter = new Filter(outputs, outputDirs)) {
+			
+			boolean complete = ConcurrentCheckpointParser.stream(reader,
+				threads, filter);
 			
-			out.print("Saving checkpoint...  ");
-			cp.save(output, timestampFilter);
+			// Preserve the EOF marker so incomplete checkpoints stay resumable.
+			filter.finish(complete);
 			out.println("OK");
 			
 			return 0;
@@ -124,6 +290,220 @@ final class FilterCommand extends Command {
 		}
 	}
 
+	/** Splits the arguments at each "--output" into the arguments of each
+	 *  output: The ones before the first "--output", which apply to all
+	 *  outputs, followed by the ones of the output. If there is no
+	 *  "--output" the result is the given arguments. */
+	static List<List<String>> splitOutputs(List<String> args) {
+		int first = args.indexOf("--output");
+		if(first < 0)
+			return Collections.singletonList(args);
+		
+		List<String> common = args.subList(0, first);
+		ArrayList<List<String>> result = new ArrayList<>();
+		for(int start = first; start < args.size(); ) {
+			// Skip the value of the "--output" so a dir called "--output"
+			// works.
+			int end = Math.min(start + 2, args.size());
+			while(end < args.size() && !args.get(end).equals("--output"))
+				++end;
+			ArrayList<String> a = new ArrayList<>(common);
+			a.addAll(args.subList(start, end));
+			result.add(a);
+			start = end;
+		}
+		return result;
+	}
+
+	/** Applies the filters of each output on the parsing threads, and
+	 *  formats and writes the outputs concurrently, each on its own thread.
+	 *  The chunks of the parser are smaller than what
+	 *  {@link CheckpointWriter#addNodes(Iterable, int)} formats per thread,
+	 *  so formatting a chunk on multiple threads would not pay off. */
+	private static final class Filter implements Closeable,
+			ConcurrentCheckpointParser.ChunkHandler<List<List<INode>>> {
+		
+		private final ArrayList<Output> outputs = new ArrayList<>();
+		
+		Filter(List<Options> options, List<Path> dirs) throws IOException {
+			try {
+				for(int i = 0; i < options.size(); ++i)
+					outputs.add(new Output(options.get(i), dirs.get(i)));
+			} catch(IOException | RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+		
+		@Override public List<List<INode>> process(List<INode> nodes) {
+			ArrayList<List<INode>> result = new ArrayList<>(outputs.size());
+			for(Output o : outputs)
+				result.add(o.filter(nodes));
+			return result;
+		}
+		
+		@Override public void consume(List<List<INode>> nodes)
+				throws IOException {
+			
+			for(int i = 0; i < outputs.size(); ++i)
+				outputs.get(i).write(nodes.get(i));
+		}
+		
+		void finish(boolean isComplete) throws IOException {
+			for(Output o : outputs)
+				o.finish(isComplete);
+		}
+		
+		@Override public void close() throws IOException {
+			IOException failure = null;
+			for(Output o : outputs) {
+				try {
+					o.close();
+				} catch(IOException e) {
+					if(failure == null)
+						failure = e;
+				}
+			}
+			if(failure != null)
+				throw failure;
+		}
+	}
+
+	/** One output of a {@link Filter}. */
+	private static final class Output implements Closeable {
+
+		private final PathPatterns includes;
+		
+		private final PathPatterns excludes;
+		
+		private final boolean removeDirectoryHashes;
+		
+		private final CheckpointWriter writer;
+		
+		private final ExecutorService thread
+			= Executors.newSingleThreadExecutor();
+		
+		/** The write of the previous chunk, if any. */
+		private Future<Void> pending = null;
+		
+		Output(Options o, Path dir) throws IOException {
+			includes = o.includes;
+			excludes = o.excludes;
+			// TODO: Only remove the hashes of the directories which contain
+			// removed nodes. As the directories precede their contents this
+			// would need a second pass.
+			removeDirectoryHashes = o.removeDirectoryHashes
+				|| includes != null || excludes != null;
+			try {
+				writer = CheckpointWriter.open(dir,
+					parseTimestampsFilter(o.removeTimestamps), o.compress,
+					getIndexes(o.index, o.hashIndex));
+			} catch(IOException | RuntimeException e) {
+				thread.shutdownNow();
+				throw e;
+			}
+		}
+		
+		/** Returns the nodes of this output. Does not modify the given
+		 *  nodes as the other outputs use them as well. */
+		List<INode> filter(List<INode> nodes) {
+			if(includes == null && excludes == null && !removeDirectoryHashes)
+				return nodes;
+			
+			ArrayList<INode> result = new ArrayList<>(nodes.size());
+			for(INode n : nodes) {
+				String path = n.getPath().toString();
+				if(includes != null && !includes.matches(path))
+					continue;
+				if(excludes != null && excludes.matches(path))
+					continue;
+				if(removeDirectoryHashes && n.isDirectory()
+						&& n.getHash() != null) {
+					n = Node.constructNode(n.getPath(), true, 0, null,
+						n.getTimetamps());
+				}
+				result.add(n);
+			}
+			return result;
+		}
+		
+		/** Writes the nodes on our thread. Waits for the previous write
+		 *  first so at most two chunks per output are in memory. */
+		void write(final List<INode> nodes) throws IOException {
+			if(pending != null)
+				ConcurrentCheckpointParser.getResult(pending);
+			
+			pending = thread.submit(new Callable<Void>() {
+				@Override public Void call() throws IOException {
+					writer.addNodes(nodes, 1);
+					return null;
+				}
+			});
+		}
+		
+		void finish(boolean isComplete) throws IOException {
+			if(pending != null)
+				ConcurrentCheckpointParser.getResult(pending);
+			writer.finish(isComplete);
+		}
+		
+		@Override public void close() throws IOException {
+			// Don't close the writer while it is still writing, e.g. if
+			// another output failed.
+			thread.shutdownNow();
+			try {
+				while(!thread.awaitTermination(1, SECONDS)) { }
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				writer.close();
+			}
+		}
+	}
+
+	/** Returns the patterns of the given expressions and of the ones in
+	 *  the given files, null if there are none. */
+	private static PathPatterns parsePathFilter(List<String> regexes,
+			List<String> files) throws IllegalArgumentException {
+		
+		ArrayList<String> all = new ArrayList<>(regexes);
+		for(String file : files) {
+			try {
+				all.addAll(PathPatterns.readFile(Paths.get(file)));
+			} catch(IOException | InvalidPathException e) {
+				throw new IllegalArgumentException(
+					"Reading expressions failed: " + e);
+			}
+		}
+		return all.isEmpty() ? null : PathPatterns.fromRegexes(all);
+	}
+
+	/** Parses the value of the "--remove-timestamps" option, which must have
+	 *  been validated already. Also used by {@link ConvertCommand}. */
+	static EnumSet<TimestampTypes> parseTimestampsFilter(String letters) {
+		EnumSet<TimestampTypes> result = EnumSet.noneOf(TimestampTypes.class);
+		for(char c : letters.toCharArray()) {
+			switch(c) {
+				case 'a': result.add(AccessTime);       break;
+				case 'b': result.add(BirthTime);        break;
+				case 'c': result.add(StatusChangeTime); break;
+				case 'm': result.add(ModificationTime); break;
+			}
+		}
+		return result;
+	}
+
+	/** Returns the {@link Index}es for the values of the "--index" and
+	 *  "--hash-index" options. Also used by {@link CreateCommand}. */
+	static EnumSet<Index> getIndexes(boolean paths, boolean hashes) {
+		EnumSet<Index> result = EnumSet.noneOf(Index.class);
+		if(paths)
+			result.add(Index.Paths);
+		if(hashes)
+			result.add(Index.Hashes);
+		return result;
+	}
+
 	private static void printUsage(JCommander jc) {
 		// TODO: As of 2019-11-11 with JCommander 1.71 JCommander.usage()
 		// will print to stdout, not stderr, which is bad. So we fix that by
@@ -134,9 +514,15 @@ final class FilterCommand extends Command {
 		err.println(sb);
 		
 		err.println(
-		    "Loads a checkpoint from INPUT_CHECKPOINT_DIR, applies the "
+		    "Reads a checkpoint from INPUT_CHECKPOINT_DIR, applies the "
 		  + "specified filters to it, and saves it to OUTPUT_CHECKPOINT_DIR if "
 		  + "given or INPUT_CHECKPOINT_DIR otherwise.");
+		err.println(
+		    "The checkpoint is streamed in a single pass so it can be of any "
+		  + "size. It is parsed by multiple threads unless it is compressed.");
+		err.println(
+		    "With multiple --output all outputs are written concurrently "
+		  + "during that single pass.");
 	}
 
 }
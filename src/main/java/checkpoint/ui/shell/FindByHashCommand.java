@@ -0,0 +1,161 @@
+package checkpoint.ui.shell;
+
+import static checkpoint.datamodel.implementation.SHA256.sha256fromString;
+import static java.lang.System.err;
+import static java.lang.System.in;
+import static java.lang.System.out;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.commons.codec.DecoderException;
+
+import checkpoint.datamodel.ICheckpointReader;
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.ISHA256;
+import checkpoint.serialization.CheckpointReader;
+import checkpoint.serialization.CheckpointWriter;
+import checkpoint.serialization.HashIndex;
+
+final class FindByHashCommand extends Command {
+
+	@Override String getCommandName() {
+		return "find-by-hash";
+	}
+
+	@Override String getShortSyntax() {
+		return '\t' + getCommandName() + " INPUT_CHECKPOINT_DIR < HASHES";
+	}
+
+	@Override int run(List<String> args) {
+		if(args.size() != 1) {
+			err.println("Syntax:");
+			err.println(getShortSyntax());
+			err.println();
+			err.println("- Reads SHA256 hashes from stdin, one per line. Only "
+				+ "the first word of each line is used, so the output of "
+				+ "'sha256sum' works.");
+			err.println("- Prints the nodes of the checkpoint which have any "
+				+ "of the hashes, in the format of the checkpoint.");
+			err.println("- If the checkpoint has a " + HashIndex.FILENAME
+				+ " (see 'create --hash-index' and 'filter --hash-index') "
+				+ "only a small part of it needs to be read, otherwise all "
+				+ "of it.");
+			err.println("- Exit code is 1 if any hash was not found.");
+			return 1;
+		}
+		
+		Path input;
+		try {
+			input = Paths.get(args.get(0));
+		} catch(InvalidPathException e) {
+			err.println("Invalid path: " + e.getMessage());
+			return 1;
+		}
+		
+		// Sorted so the lookups access the index in ascending order, which is
+		// friendly to the page cache and read-ahead.
+		TreeSet<String> hashes = new TreeSet<>();
+		try {
+			BufferedReader reader
+				= new BufferedReader(new InputStreamReader(in, UTF_8));
+			for(String line; (line = reader.readLine()) != null; ) {
+				line = line.trim();
+				if(line.isEmpty())
+					continue;
+				
+				String hash = line.split("\\s+", 2)[0].toLowerCase();
+				if(!hash.matches("[0-9a-f]{64}")) {
+					err.println("Invalid SHA256: " + hash);
+					return 1;
+				}
+				hashes.add(hash);
+			}
+		} catch(IOException e) {
+			err.println("Reading stdin failed:");
+			err.println(e);
+			return 1;
+		}
+		
+		try {
+			HashSet<ISHA256> found;
+			if(Files.exists(input.resolve(HashIndex.FILENAME), NOFOLLOW_LINKS))
+				found = findByIndex(input, hashes);
+			else {
+				err.println("No " + HashIndex.FILENAME + ", searching the "
+					+ "whole checkpoint. Use 'filter --hash-index' to create "
+					+ "it.");
+				found = findByScan(input, hashes);
+			}
+			
+			boolean allFound = true;
+			for(String hash : hashes) {
+				if(!found.contains(sha256fromString(hash))) {
+					err.println("Not found: " + hash);
+					allFound = false;
+				}
+			}
+			return allFound ? 0 : 1;
+		} catch(IOException e) {
+			err.println("Search failed:");
+			err.println(e);
+			return 1;
+		} catch(DecoderException e) {
+			// We validated the hashes already.
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Returns the hashes which were found. */
+	private static HashSet<ISHA256> findByIndex(Path input,
+			TreeSet<String> hashes) throws IOException, DecoderException {
+		
+		HashSet<ISHA256> found = new HashSet<>();
+		try(HashIndex index = HashIndex.open(input)) {
+			for(String hash : hashes) {
+				ISHA256 sha256 = sha256fromString(hash);
+				for(INode n : index.lookup(sha256)) {
+					out.println(CheckpointWriter.format(n));
+					found.add(sha256);
+				}
+			}
+		}
+		return found;
+	}
+
+	/** Same as {@link #findByIndex(Path, TreeSet)} for checkpoints without a
+	 *  {@link HashIndex}, e.g. compressed ones. Prints the nodes in the order
+	 *  of the checkpoint instead of the order of the hashes. */
+	private static HashSet<ISHA256> findByScan(Path input,
+			TreeSet<String> hashes) throws IOException, DecoderException {
+		
+		HashSet<ISHA256> wanted = new HashSet<>();
+		for(String hash : hashes)
+			wanted.add(sha256fromString(hash));
+		
+		HashSet<ISHA256> found = new HashSet<>();
+		try(ICheckpointReader reader = CheckpointReader.open(input)) {
+			for(INode n; (n = reader.next()) != null; ) {
+				// Like the HashIndex ignore the hashes of directories, they
+				// are not the hash of a file's content.
+				ISHA256 hash = n.getHash();
+				if(!n.isDirectory() && hash != null && wanted.contains(hash)) {
+					out.println(CheckpointWriter.format(n));
+					found.add(hash);
+				}
+			}
+		}
+		return found;
+	}
+
+}
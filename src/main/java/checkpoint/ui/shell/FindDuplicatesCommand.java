@@ -0,0 +1,388 @@
+package checkpoint.ui.shell;
+
+import static java.lang.System.err;
+import static java.lang.System.out;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+
+import checkpoint.datamodel.ICheckpointReader;
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.implementation.SHA256;
+import checkpoint.serialization.CheckpointReader;
+import checkpoint.serialization.ExternalSorter;
+
+/** Finds files with equal content in one or more checkpoints without
+ *  keeping their nodes in memory, so it works for checkpoints of any size:
+ *
+ *  1. The files are streamed from the checkpoints into an
+ *     {@link ExternalSorter} as records of "HASH SIZE CHECKPOINT PATH",
+ *     so equal content becomes adjacent.
+ *  2. The sorted records are walked in groups of equal hash. The size is
+ *     not compared: Checkpoints of old versions have a size of 0 which
+ *     means unknown, see {@link INode#getSize()}, and such files must
+ *     still be grouped with their copies of known size. Sorting by the
+ *     size second puts the largest, i.e. the known one, last in the group.
+ *     Groups of a single file are dropped. The paths of the others are
+ *     written to a temporary members file, and a fixed-size record of
+ *     "WASTED SIZE HASH OFFSET COUNT" per group into a second sorter, where
+ *     WASTED is the bytes which deduplicating it would save and OFFSET the
+ *     position of its paths in the members file. If no file of the group
+ *     has a known size its SIZE and WASTED are 0, which ranks it last.
+ *  3. The groups are read from the second sorter, which yields them ranked
+ *     by WASTED, and their paths are read from the members file.
+ *
+ *  So only the records of the sorters which are below --memory, and the
+ *  buffers of their runs, are in memory at once. */
+final class FindDuplicatesCommand extends Command {
+
+	static final String DEFAULT_MEMORY = "64M";
+
+	/** Size of a record of the first sorter, without the path. */
+	private static final int FILE_RECORD_SIZE = 32 + 8 + 2;
+
+	/** Size of a record of the second sorter. */
+	private static final int GROUP_RECORD_SIZE = 8 + 8 + 32 + 8 + 8;
+
+	/** The checkpoint number is stored as unsigned short. */
+	private static final int MAX_CHECKPOINTS = 0xFFFF;
+
+	/** Of the empty content, which tells a size of 0 which means "empty"
+	 *  from one which means "unknown". */
+	private static final SHA256 EMPTY_FILE_HASH;
+
+	static {
+		try {
+			EMPTY_FILE_HASH = SHA256.construct(
+				MessageDigest.getInstance("SHA-256").digest());
+		} catch(NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override String getCommandName() {
+		return "find-duplicates";
+	}
+
+	@Override String getShortSyntax() {
+		return '\t' + getCommandName()
+			+ " [--memory SIZE] [--temp-dir DIR] [--min-size SIZE] "
+			+ "CHECKPOINT_DIR...";
+	}
+
+	private static final class Options {
+		@Parameter(names = { "--memory" }, description =
+			  "How much memory to use for sorting the files before moving "
+			+ "them to temporary files. Suffixes K, M, G and T are allowed. "
+			+ "The Java heap must be larger, see the -Xmx option of Java.")
+		String memory = DEFAULT_MEMORY;
+		
+		@Parameter(names = { "--temp-dir" }, description =
+			  "Where to store the temporary files. They need about as much "
+			+ "space as the checkpoints, uncompressed. Default: The temporary "
+			+ "directory of the system.")
+		String tempDir = null;
+		
+		@Parameter(names = { "--min-size" }, description =
+			  "Ignore files which are smaller. Suffixes K, M, G and T are "
+			+ "allowed. Empty files are always ignored. Files of unknown "
+			+ "size, see the output, are never ignored.")
+		String minSize = "1";
+		
+		// Parsed from the above Strings by validate().
+		long memoryBytes;
+		long minSizeBytes;
+		
+		@Parameter(description = "CHECKPOINT_DIR...")
+		List<String> args = new ArrayList<>();
+		
+		void validate() throws IllegalArgumentException {
+			memoryBytes = parseBytes("--memory", memory);
+			if(memoryBytes < 1024 * 1024)
+				throw new IllegalArgumentException("--memory is too low!");
+			
+			minSizeBytes = Math.max(1, parseBytes("--min-size", minSize));
+			
+			if(args.isEmpty())
+				throw new IllegalArgumentException("Missing checkpoint dir!");
+			else if(args.size() > MAX_CHECKPOINTS)
+				throw new IllegalArgumentException("Too many checkpoints!");
+		}
+	}
+
+	@Override int run(List<String> args) {
+		Options o = new Options();
+		JCommander jc = new JCommander();
+		jc.addObject(o);
+		jc.setProgramName(getCommandName());
+		try {
+			jc.parse(args.toArray(new String[args.size()]));
+			o.validate();
+			args = null; // Prevent accidental usage instead of Options.args
+		} catch(ParameterException | IllegalArgumentException e) {
+			err.println(e.getMessage());
+			err.println();
+			printUsage(jc);
+			return 1;
+		}
+		
+		ArrayList<Path> checkpoints = new ArrayList<>(o.args.size());
+		Path tempDir;
+		try {
+			for(String a : o.args)
+				checkpoints.add(Paths.get(a));
+			tempDir = o.tempDir != null ? Paths.get(o.tempDir) : null;
+		} catch(InvalidPathException e) {
+			err.println("Invalid path: " + e.getMessage());
+			return 1;
+		}
+		
+		try {
+			findDuplicates(checkpoints, tempDir, o.memoryBytes, o.minSizeBytes);
+			return 0;
+		} catch(IOException e) {
+			err.println("Finding duplicates failed:");
+			err.println(e);
+			return 1;
+		}
+	}
+
+	/** Prints the groups to stdout, see {@link #printGroups(ExternalSorter,
+	 *  Path, List)}, and statistics to stderr.
+	 *  @param tempDir Null for the temporary directory of the system. */
+	static void findDuplicates(List<Path> checkpoints, Path tempDir,
+			long memoryBytes, long minSize) throws IOException {
+		
+		// The groups are collected while the files are merged, and the sorter
+		// of the files keeps its last records in memory for that. So the
+		// groups get only half of the memory to not use twice of it.
+		try(ExternalSorter files = new ExternalSorter(tempDir, memoryBytes);
+			ExternalSorter groups = new ExternalSorter(tempDir,
+				memoryBytes / 2)) {
+			
+			long unknownSize = 0;
+			for(int i = 0; i < checkpoints.size(); ++i)
+				unknownSize += addFiles(checkpoints.get(i), i, minSize, files);
+			err.println("Files: " + files.size());
+			if(unknownSize > 0) {
+				err.println("Files of unknown size as their checkpoint was "
+					+ "created by an old version: " + unknownSize);
+			}
+			
+			Path members = tempDir != null
+				? Files.createTempFile(tempDir, "checkpoint-members.", ".tmp")
+				: Files.createTempFile("checkpoint-members.", ".tmp");
+			try {
+				long[] wasted = groupFiles(files, groups, members);
+				err.println("Groups of duplicates: " + groups.size());
+				err.println("Files in them: " + wasted[1]);
+				err.println("Wasted bytes: " + wasted[0]);
+				
+				printGroups(groups, members, checkpoints);
+			} finally {
+				Files.deleteIfExists(members);
+			}
+		}
+	}
+
+	/** Returns the amount of added files whose size is unknown. */
+	private static long addFiles(Path checkpoint, int number, long minSize,
+			ExternalSorter files) throws IOException {
+		
+		long unknownSize = 0;
+		try(ICheckpointReader reader = CheckpointReader.open(checkpoint)) {
+			for(INode n; (n = reader.next()) != null; ) {
+				// Like the HashIndex ignore directories, their hash is not the
+				// one of a file's content. Files whose hash is unknown cannot
+				// be compared.
+				if(n.isDirectory() || n.getHash() == null)
+					continue;
+				
+				if(n.getSize() != 0) {
+					if(n.getSize() < minSize)
+						continue;
+				} else if(n.getHash().equals(EMPTY_FILE_HASH))
+					continue;
+				else
+					++unknownSize;
+				
+				byte[] path = n.getPath().toString().getBytes(UTF_8);
+				ByteBuffer r = ByteBuffer.allocate(FILE_RECORD_SIZE
+					+ path.length);
+				r.put(n.getHash().toBytes());
+				r.putLong(n.getSize());
+				r.putShort((short)number);
+				r.put(path);
+				files.add(r.array());
+			}
+			if(!reader.isComplete()) {
+				err.println("Checkpoint is incomplete, duplicates of the "
+					+ "missing files are not found: " + checkpoint);
+			}
+		}
+		return unknownSize;
+	}
+
+	/** Walks the sorted files and adds a record for each group of at least
+	 *  two with equal hash to the groups, and their checkpoint
+	 *  numbers and paths to the members file as "CHECKPOINT LENGTH PATH".
+	 *  Returns the total wasted bytes and amount of duplicate files. */
+	private static long[] groupFiles(ExternalSorter files,
+			ExternalSorter groups, Path members) throws IOException {
+		
+		long totalWasted = 0;
+		long totalFiles = 0;
+		try(ExternalSorter.Reader sorted = files.sorted();
+			DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(members),
+					64 * 1024))) {
+			
+			long offset = 0;
+			byte[] first = sorted.next();
+			while(first != null) {
+				// The first file of a group is only written to the members
+				// file once the second one shows that it is a group.
+				long groupOffset = offset;
+				long count = 1;
+				// Sorted by size after the hash, so the last one is known
+				// if any is.
+				long size = ByteBuffer.wrap(first).getLong(32);
+				byte[] r;
+				while((r = sorted.next()) != null && sameContent(first, r)) {
+					if(count == 1)
+						offset += writeMember(out, first);
+					offset += writeMember(out, r);
+					++count;
+					size = ByteBuffer.wrap(r).getLong(32);
+				}
+				
+				if(count > 1) {
+					long wasted = size * (count - 1);
+					totalWasted += wasted;
+					totalFiles += count;
+					
+					ByteBuffer g = ByteBuffer.allocate(GROUP_RECORD_SIZE);
+					// Inverted so the largest is sorted first.
+					g.putLong(Long.MAX_VALUE - wasted);
+					g.putLong(size);
+					g.put(first, 0, 32);
+					g.putLong(groupOffset);
+					g.putLong(count);
+					groups.add(g.array());
+				}
+				first = r;
+			}
+		}
+		return new long[] { totalWasted, totalFiles };
+	}
+
+	private static boolean sameContent(byte[] file1, byte[] file2) {
+		for(int i = 0; i < 32; ++i) {
+			if(file1[i] != file2[i])
+				return false;
+		}
+		return true;
+	}
+
+	/** Returns the amount of bytes written. */
+	private static int writeMember(DataOutputStream out, byte[] file)
+			throws IOException {
+		
+		int pathLength = file.length - FILE_RECORD_SIZE;
+		out.write(file, 32 + 8, 2);
+		out.writeInt(pathLength);
+		out.write(file, FILE_RECORD_SIZE, pathLength);
+		return 2 + 4 + pathLength;
+	}
+
+	/** Prints the groups in the order of the sorter, i.e. by descending
+	 *  wasted bytes, as:
+	 *  "SHA256 \t Size: SIZE \t Copies: COUNT \t Wasted: WASTED \n",
+	 *  where SIZE and WASTED are "unknown" if no file has a known size,
+	 *  followed by a line of "\t PATH \0 \n" for each file, or
+	 *  "\t CHECKPOINT_DIR \0 \t PATH \0 \n" if there are multiple
+	 *  checkpoints. */
+	private static void printGroups(ExternalSorter groups, Path members,
+			List<Path> checkpoints) throws IOException {
+		
+		try(ExternalSorter.Reader sorted = groups.sorted();
+			FileChannel channel = FileChannel.open(members, READ)) {
+			
+			for(byte[] r; (r = sorted.next()) != null; ) {
+				ByteBuffer g = ByteBuffer.wrap(r);
+				long wasted = Long.MAX_VALUE - g.getLong();
+				long size = g.getLong();
+				byte[] hash = new byte[32];
+				g.get(hash);
+				long offset = g.getLong();
+				long count = g.getLong();
+				
+				out.println(SHA256.construct(hash)
+					+ "\tSize: " + (size != 0 ? size : "unknown")
+					+ "\tCopies: " + count
+					+ "\tWasted: " + (size != 0 ? wasted : "unknown"));
+				
+				// Not closed as that would close the channel.
+				DataInputStream in = new DataInputStream(
+					new BufferedInputStream(Channels.newInputStream(
+						channel.position(offset)), 8 * 1024));
+				for(long i = 0; i < count; ++i) {
+					int checkpoint = in.readUnsignedShort();
+					byte[] path = new byte[in.readInt()];
+					in.readFully(path);
+					
+					out.print('\t');
+					if(checkpoints.size() > 1) {
+						out.print(checkpoints.get(checkpoint));
+						out.print("\0\t");
+					}
+					out.write(path);
+					out.print("\0\n");
+				}
+			}
+		}
+	}
+
+	private static void printUsage(JCommander jc) {
+		// TODO: See FilterCommand.printUsage().
+		StringBuilder sb = new StringBuilder();
+		jc.usage(sb);
+		err.println(sb);
+		
+		err.println(
+		    "Prints the groups of files in the checkpoints which have the same "
+		  + "hash, largest waste of space first. Each group is a line "
+		  + "of 'SHA256\\tSize: SIZE\\tCopies: COUNT\\tWasted: BYTES' followed "
+		  + "by a line of '\\tPATH\\0' per file, or of "
+		  + "'\\tCHECKPOINT_DIR\\0\\tPATH\\0' if multiple checkpoints are "
+		  + "given. BYTES is how much space deduplicating the group would "
+		  + "save. Checkpoints of old versions do not contain the size of "
+		  + "files, SIZE and BYTES are 'unknown' if no copy of a group has a "
+		  + "known size, and such groups are printed last.");
+		err.println();
+		err.println(
+		    "Any amount of files can be processed as they are sorted in "
+		  + "temporary files, only --memory is used for that.");
+	}
+
+}
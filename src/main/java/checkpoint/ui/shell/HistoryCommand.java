@@ -0,0 +1,235 @@
+package checkpoint.ui.shell;
+
+import static java.lang.System.err;
+import static java.lang.System.out;
+
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.Parameters;
+
+import checkpoint.datamodel.ICheckpointReader;
+import checkpoint.datamodel.INode;
+import checkpoint.serialization.CheckpointWriter;
+import checkpoint.serialization.HistoryStore;
+import checkpoint.serialization.HistoryStore.Change;
+
+final class HistoryCommand extends Command {
+
+	static final String MODIFIED = "modified";
+
+	@Override String getShortSyntax() {
+		return '\t' + getCommandName()
+			+ " add|list|checkout|log [options] HISTORY_DIR ...";
+	}
+
+	@Parameters(commandDescription = "Adds a checkpoint as a new snapshot, "
+		+ "creating the HISTORY_DIR if it does not exist.")
+	private static final class AddOptions {
+		@Parameter(names = { "--label" }, description =
+			  "Describes the snapshot in the output of 'list' and 'log'. "
+			+ "Default: The name of the CHECKPOINT_DIR, e.g. its date.")
+		String label = null;
+		
+		@Parameter(names = { "--rebase-interval" }, description =
+			  "Store a full checkpoint instead of the differences once the "
+			+ "last full one is this many snapshots ago.")
+		int rebaseInterval = HistoryStore.DEFAULT_REBASE_INTERVAL;
+		
+		@Parameter(description = "HISTORY_DIR CHECKPOINT_DIR")
+		List<String> args = new ArrayList<>(2);
+		
+		void validate() throws IllegalArgumentException {
+			if(rebaseInterval < 1) {
+				throw new IllegalArgumentException(
+					"--rebase-interval is too low!");
+			}
+			validateArgs(args, 2);
+		}
+	}
+
+	@Parameters(commandDescription = "Lists the snapshots.")
+	private static final class ListOptions {
+		@Parameter(description = "HISTORY_DIR")
+		List<String> args = new ArrayList<>(1);
+	}
+
+	@Parameters(commandDescription =
+		"Writes the checkpoint of a snapshot to a checkpoint directory.")
+	private static final class CheckoutOptions {
+		@Parameter(description = "HISTORY_DIR SNAPSHOT OUTPUT_CHECKPOINT_DIR")
+		List<String> args = new ArrayList<>(3);
+	}
+
+	@Parameters(commandDescription =
+		"Prints the snapshots in which the node of a path changed.")
+	private static final class LogOptions {
+		@Parameter(description = "HISTORY_DIR PATH")
+		List<String> args = new ArrayList<>(2);
+	}
+
+	/** TODO: As of 2019-11-11 with JCommander 1.71 @Parameter(arity = 2)
+	 *  doesn't work for unnamed parameters it seems so we check it manually,
+	 *  try again in some years. */
+	private static void validateArgs(List<String> args, int count) {
+		if(args.size() < count) {
+			throw new IllegalArgumentException(
+				"Missing arguments, expected " + count + "!");
+		} else if(args.size() > count) {
+			throw new IllegalArgumentException(
+				"Too many/unknown arguments: " + args);
+		}
+	}
+
+	@Override int run(List<String> args) {
+		AddOptions add = new AddOptions();
+		ListOptions list = new ListOptions();
+		CheckoutOptions checkout = new CheckoutOptions();
+		LogOptions log = new LogOptions();
+		JCommander jc = new JCommander();
+		jc.setProgramName(getCommandName());
+		jc.addCommand("add", add);
+		jc.addCommand("list", list);
+		jc.addCommand("checkout", checkout);
+		jc.addCommand("log", log);
+		String action;
+		try {
+			jc.parse(args.toArray(new String[args.size()]));
+			action = jc.getParsedCommand();
+			if(action == null)
+				throw new IllegalArgumentException("Missing action!");
+			switch(action) {
+				case "add":      add.validate(); break;
+				case "list":     validateArgs(list.args, 1); break;
+				case "checkout": validateArgs(checkout.args, 3); break;
+				case "log":      validateArgs(log.args, 2); break;
+				default: throw new UnsupportedOperationException(
+					"Unknown action: " + action);
+			}
+			args = null; // Prevent accidental usage instead of the Options
+		} catch(ParameterException | IllegalArgumentException e) {
+			err.println(e.getMessage());
+			err.println();
+			printUsage(jc);
+			return 1;
+		}
+		
+		try {
+			switch(action) {
+				case "add":      return add(add);
+				case "list":     return list(list);
+				case "checkout": return checkout(checkout);
+				case "log":      return log(log);
+				default: throw new UnsupportedOperationException(
+					"Unknown action: " + action);
+			}
+		} catch(InvalidPathException e) {
+			err.println("Invalid path: " + e.getMessage());
+			return 1;
+		} catch(IOException e) {
+			err.println("History " + action + " failed:");
+			err.println(e);
+			return 1;
+		}
+	}
+
+	private static int add(AddOptions o) throws IOException {
+		HistoryStore store = HistoryStore.create(Paths.get(o.args.get(0)));
+		Path checkpointDir = Paths.get(o.args.get(1));
+		String label = o.label != null ? o.label
+			: checkpointDir.toAbsolutePath().normalize().getFileName()
+				.toString();
+		int snapshot = store.add(checkpointDir, label, o.rebaseInterval);
+		out.println("Added as snapshot " + snapshot + " ("
+			+ (store.isBase(snapshot) ? "base" : "delta") + ").");
+		return 0;
+	}
+
+	private static int list(ListOptions o) throws IOException {
+		HistoryStore store = HistoryStore.open(Paths.get(o.args.get(0)));
+		for(int s : store.getSnapshots()) {
+			out.println(s + "\t" + (store.isBase(s) ? "base" : "delta")
+				+ "\t" + store.getLabel(s));
+		}
+		return 0;
+	}
+
+	private static int checkout(CheckoutOptions o) throws IOException {
+		HistoryStore store = HistoryStore.open(Paths.get(o.args.get(0)));
+		int snapshot;
+		try {
+			snapshot = Integer.parseInt(o.args.get(1));
+		} catch(NumberFormatException e) {
+			err.println("Invalid snapshot: " + o.args.get(1));
+			return 1;
+		}
+		if(!store.getSnapshots().contains(snapshot)) {
+			err.println("No such snapshot: " + snapshot);
+			return 1;
+		}
+		
+		try(ICheckpointReader reader = store.open(snapshot);
+			CheckpointWriter writer
+				= CheckpointWriter.open(Paths.get(o.args.get(2)))) {
+			
+			for(INode n; (n = reader.next()) != null; )
+				writer.addNode(n);
+			writer.finish(reader.isComplete());
+		}
+		return 0;
+	}
+
+	private static int log(LogOptions o) throws IOException {
+		HistoryStore store = HistoryStore.open(Paths.get(o.args.get(0)));
+		// See LookupCommand.
+		String path = o.args.get(1);
+		if(!path.startsWith("./") && !path.equals("."))
+			path = "./" + path;
+		
+		List<Change> history = store.getHistory(path);
+		for(Change c : history) {
+			String change = c.previousNode == null ? ConcurrentJoin.ADDED
+			              : c.node == null ? ConcurrentJoin.REMOVED
+			              : MODIFIED;
+			out.println(c.snapshot + "\t" + change + "\t"
+				+ store.getLabel(c.snapshot));
+			out.println(CheckpointWriter.format(
+				c.node != null ? c.node : c.previousNode));
+		}
+		if(history.isEmpty()) {
+			err.println("Not found: " + path);
+			return 1;
+		}
+		return 0;
+	}
+
+	private static void printUsage(JCommander jc) {
+		// TODO: See FilterCommand.printUsage().
+		StringBuilder sb = new StringBuilder();
+		jc.usage(sb);
+		err.println(sb);
+		
+		err.println(
+		    "Stores many checkpoints of the same INPUT_DIR, e.g. one per "
+		  + "night, as snapshots in the HISTORY_DIR. Only a full checkpoint "
+		  + "every --rebase-interval snapshots is stored, for the others only "
+		  + "the nodes which were added, modified or removed, which saves "
+		  + "orders of magnitude of space. Access times are not stored as "
+		  + "they change too often.");
+		err.println();
+		err.println(
+		    "'checkout' reconstructs the checkpoint of a SNAPSHOT as listed by "
+		  + "'list'. 'log' prints for each snapshot in which the node of the "
+		  + "PATH was added, modified or removed a line of "
+		  + "'SNAPSHOT\\tCHANGE\\tLABEL' followed by the node in the format "
+		  + "of checkpoints, without reading the whole HISTORY_DIR.");
+	}
+
+}
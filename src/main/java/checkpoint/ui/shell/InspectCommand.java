@@ -5,11 +5,12 @@ import static java.lang.System.out;
 
 import java.io.IOException;
 import java.nio.file.InvalidPathException;
-import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 
-import checkpoint.datamodel.implementation.Checkpoint;
+import checkpoint.datamodel.ICheckpointReader;
+import checkpoint.datamodel.INode;
+import checkpoint.serialization.CheckpointReader;
 
 final class InspectCommand extends Command {
 
@@ -27,15 +28,27 @@ final class InspectCommand extends Command {
 			return 1;
 		}
 		
-		try {
-			Path p = Paths.get(args.get(0));
-			Checkpoint cp = Checkpoint.load(p);
+		// Stream the nodes instead of using Checkpoint.load() so we can inspect
+		// checkpoints which are too large to fit into memory.
+		try(ICheckpointReader reader
+		        = CheckpointReader.open(Paths.get(args.get(0)))) {
+			
+			long nodes = 0;
+			long hashingFailures = 0;
+			long timestampingFailures = 0;
+			for(INode n; (n = reader.next()) != null; ) {
+				++nodes;
+				if(!n.isDirectory() && n.getHash() == null)
+					++hashingFailures;
+				if(n.getTimetamps() == null)
+					++timestampingFailures;
+			}
+			
 			out.println("Checkpoint loaded successfully.");
-			out.println("Number of nodes: " + cp.getNodeCount());
-			out.println("Hashing failed for: " + cp.getHashingFailureCount());
-			out.println("Timestamping failed for: "
-					+ cp.getTimestampingFailureCount());
-			out.println("Is checkpoint complete: " + cp.isComplete());
+			out.println("Number of nodes: " + nodes);
+			out.println("Hashing failed for: " + hashingFailures);
+			out.println("Timestamping failed for: " + timestampingFailures);
+			out.println("Is checkpoint complete: " + reader.isComplete());
 			return 0;
 		} catch(InvalidPathException e) {
 			err.println("Invalid path: " + e.getMessage());
@@ -0,0 +1,183 @@
+package checkpoint.ui.shell;
+
+import static java.lang.System.err;
+import static java.lang.System.out;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+
+import checkpoint.datamodel.ICheckpointReader;
+import checkpoint.datamodel.INode;
+import checkpoint.serialization.CheckpointReader;
+import checkpoint.serialization.CheckpointWriter;
+import checkpoint.serialization.PathIndex;
+
+final class LookupCommand extends Command {
+
+	@Override String getShortSyntax() {
+		return '\t' + getCommandName()
+			+ " [options] INPUT_CHECKPOINT_DIR PATH [PATH...]";
+	}
+
+	private static final class Options {
+		@Parameter(names = { "--prefix" }, description =
+		    "Print all nodes whose path starts with the given PATHs instead "
+		  + "of only the nodes of exactly the given PATHs. "
+		  + "Example: '--prefix ./home/alice/' for everything inside of "
+		  + "that directory.")
+		boolean prefix = false;
+
+		@Parameter(description = "INPUT_CHECKPOINT_DIR PATH [PATH...]")
+		List<String> args = new ArrayList<>();
+
+		void validate() throws IllegalArgumentException {
+			// TODO: As of 2019-11-11 with JCommander 1.71 @Parameter(arity = 2)
+			// doesn't work for unnamed parameters it seems so we check it
+			// manually, try again in some years.
+			if(args.size() < 1)
+				throw new IllegalArgumentException("Missing input dir!");
+			else if(args.size() < 2)
+				throw new IllegalArgumentException("Missing PATH!");
+		}
+	}
+
+	@Override int run(List<String> args) {
+		Options o = new Options();
+		JCommander jc = new JCommander();
+		jc.addObject(o);
+		jc.setProgramName(getCommandName());
+		try {
+			jc.parse(args.toArray(new String[args.size()]));
+			o.validate();
+			args = null; // Prevent accidental usage instead of Options.args
+		} catch(ParameterException | IllegalArgumentException e) {
+			err.println(e.getMessage());
+			err.println();
+			printUsage(jc);
+			return 1;
+		}
+		
+		Path input;
+		try {
+			input = Paths.get(o.args.get(0));
+		} catch(InvalidPathException e) {
+			err.println("Invalid path: " + e.getMessage());
+			return 1;
+		}
+		
+		// Paths in checkpoints are relative to the input dir of "create" and
+		// start with "./", allow omitting that.
+		List<String> paths = new ArrayList<>();
+		for(String p : o.args.subList(1, o.args.size()))
+			paths.add(p.startsWith("./") || p.equals(".") ? p : "./" + p);
+		
+		try {
+			boolean allFound;
+			if(Files.exists(input.resolve(PathIndex.FILENAME), NOFOLLOW_LINKS))
+				allFound = lookupByIndex(input, paths, o.prefix);
+			else {
+				err.println("No " + PathIndex.FILENAME + ", searching the "
+					+ "whole checkpoint. Use 'filter --index' to create it.");
+				allFound = lookupByScan(input, paths, o.prefix);
+			}
+			return allFound ? 0 : 1;
+		} catch(IOException e) {
+			err.println("Lookup failed:");
+			err.println(e);
+			return 1;
+		}
+	}
+
+	/** Returns false if nothing was found for any of the paths. */
+	private static boolean lookupByIndex(Path input, List<String> paths,
+			boolean prefix) throws IOException {
+		
+		boolean allFound = true;
+		try(PathIndex index = PathIndex.open(input)) {
+			for(String p : paths) {
+				List<INode> result;
+				if(prefix)
+					result = index.lookupPrefix(p);
+				else {
+					INode n = index.lookup(p);
+					result = new ArrayList<>(1);
+					if(n != null)
+						result.add(n);
+				}
+				
+				if(result.isEmpty()) {
+					err.println("Not found: " + p);
+					allFound = false;
+				}
+				for(INode n : result)
+					out.println(CheckpointWriter.format(n));
+			}
+		}
+		return allFound;
+	}
+
+	/** Same as {@link #lookupByIndex(Path, List, boolean)} for checkpoints
+	 *  without a {@link PathIndex}, e.g. compressed ones. Searches for all
+	 *  paths in a single pass.
+	 *  Prints the nodes in the order of the checkpoint instead of the order
+	 *  of the paths. */
+	private static boolean lookupByScan(Path input, List<String> paths,
+			boolean prefix) throws IOException {
+		
+		boolean[] found = new boolean[paths.size()];
+		try(ICheckpointReader reader = CheckpointReader.open(input)) {
+			for(INode n; (n = reader.next()) != null; ) {
+				String path = n.getPath().toString();
+				for(int i = 0; i < paths.size(); ++i) {
+					if(prefix ? path.startsWith(paths.get(i))
+					          : path.equals(paths.get(i))) {
+						out.println(CheckpointWriter.format(n));
+						found[i] = true;
+						// Don't print it again for other matching prefixes.
+						break;
+					}
+				}
+			}
+		}
+		
+		boolean allFound = true;
+		for(int i = 0; i < paths.size(); ++i) {
+			if(!found[i]) {
+				err.println("Not found: " + paths.get(i));
+				allFound = false;
+			}
+		}
+		return allFound;
+	}
+
+	private static void printUsage(JCommander jc) {
+		// TODO: See FilterCommand.printUsage().
+		StringBuilder sb = new StringBuilder();
+		jc.usage(sb);
+		err.println(sb);
+		
+		err.println(
+		    "Prints the nodes of the given PATHs from the checkpoint at "
+		  + "INPUT_CHECKPOINT_DIR in the format of the checkpoint. "
+		  + "The PATHs are relative to the INPUT_DIR which the checkpoint was "
+		  + "created of, e.g. './etc/fstab' or 'etc/fstab'.");
+		err.println();
+		err.println(
+		    "If the checkpoint has an " + PathIndex.FILENAME + " (see "
+		  + "'create --index' and 'filter --index') only a small part of it "
+		  + "needs to be read, otherwise all of it.");
+		err.println();
+		err.println("Exit code is 1 if any PATH was not found.");
+	}
+
+}
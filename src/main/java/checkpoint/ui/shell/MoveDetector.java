@@ -0,0 +1,190 @@
+package checkpoint.ui.shell;
+
+import static checkpoint.ui.shell.ConcurrentJoin.ADDED;
+import static checkpoint.ui.shell.ConcurrentJoin.REMOVED;
+import static java.lang.System.out;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+
+import checkpoint.datamodel.INode;
+import checkpoint.serialization.ExternalSorter;
+import checkpoint.ui.shell.ConcurrentJoin.Counts;
+
+/** Detects files which were moved or renamed between two checkpoints for
+ *  the "compare --moves" command: The files which the
+ *  {@link ConcurrentJoin} finds to be only in the old or only in the new
+ *  checkpoint are collected instead of being printed. Then they are joined
+ *  on their hash, and each pair of a removed and an added file with equal
+ *  content is reported as a single move. The files which remain unpaired
+ *  are reported as removed or added as usual.
+ *
+ *  Both sets are collected in {@link ExternalSorter}s as records of
+ *  "HASH SIZE PATH", so equal content becomes adjacent and they can be
+ *  merge-joined. Thereby memory usage is bounded no matter how many files
+ *  were moved. The size is not part of the join key as checkpoints of old
+ *  versions have a size of 0 which means unknown, see
+ *  {@link INode#getSize()}. It is compared after the hash matched: Files
+ *  of different known sizes are not paired. If a content was removed or
+ *  added multiple times the removed and added files are paired in the
+ *  order of their size, i.e. unknown ones first, and then their paths.
+ *
+ *  The output lines are sorted by path with another sorter, they are
+ *  printed after the ones of the {@link ConcurrentJoin}. A move is printed
+ *  as "NEW_PATH \0 \t moved \t OLD_PATH \0 \n".
+ *
+ *  Directories and files without hash are not collected, they are printed
+ *  as usual. */
+final class MoveDetector implements ConcurrentJoin.UnmatchedNodes, Closeable {
+
+	static final String MOVED = "moved";
+
+	/** Size of the hash at the start of the records, which is the join
+	 *  key. */
+	private static final int KEY_SIZE = 32;
+
+	/** Size of the hash and size at the start of the records. */
+	private static final int PREFIX_SIZE = KEY_SIZE + 8;
+
+	private final Path tempDir;
+
+	private final long memoryBytes;
+
+	private final ExternalSorter removed;
+
+	private final ExternalSorter added;
+
+	/** @param tempDir See {@link ExternalSorter}.
+	 *  @param memoryBytes The total memory which the sorters may use. */
+	MoveDetector(Path tempDir, long memoryBytes) {
+		this.tempDir = tempDir;
+		// The sorters of the removed and added files keep their last records
+		// in memory while the one of the output is filled.
+		this.memoryBytes = memoryBytes / 3;
+		removed = new ExternalSorter(tempDir, this.memoryBytes);
+		added = new ExternalSorter(tempDir, this.memoryBytes);
+	}
+
+	@Override public synchronized boolean removed(INode n)
+			throws IOException {
+		
+		return add(removed, n);
+	}
+
+	@Override public synchronized boolean added(INode n) throws IOException {
+		return add(added, n);
+	}
+
+	private static boolean add(ExternalSorter sorter, INode n)
+			throws IOException {
+		
+		if(n.isDirectory() || n.getHash() == null)
+			return false;
+		
+		byte[] path = n.getPath().toString().getBytes(UTF_8);
+		ByteBuffer r = ByteBuffer.allocate(PREFIX_SIZE + path.length);
+		r.put(n.getHash().toBytes());
+		r.putLong(n.getSize());
+		r.put(path);
+		sorter.add(r.array());
+		return true;
+	}
+
+	/** Joins the collected files, prints the moves and the remaining removed
+	 *  and added files to stdout and adds them to the counts. Must be called
+	 *  once after the {@link ConcurrentJoin} is done. */
+	void run(Counts counts) throws IOException {
+		List<String> removedChange = singletonList(REMOVED);
+		List<String> addedChange = singletonList(ADDED);
+		List<String> movedChange = singletonList(MOVED);
+		
+		try(ExternalSorter lines = new ExternalSorter(tempDir, memoryBytes)) {
+			try(ExternalSorter.Reader r = removed.sorted();
+				ExternalSorter.Reader a = added.sorted()) {
+				
+				byte[] o = r.next();
+				byte[] n = a.next();
+				while(o != null || n != null) {
+					int c = (o == null) ? 1
+					      : (n == null) ? -1
+					      : compareKeys(o, n);
+					if(c == 0) {
+						// Same hash. 0 is an unknown size, which matches any.
+						long oldSize = ByteBuffer.wrap(o).getLong(KEY_SIZE);
+						long newSize = ByteBuffer.wrap(n).getLong(KEY_SIZE);
+						if(oldSize != 0 && newSize != 0)
+							c = Long.compare(oldSize, newSize);
+					}
+					
+					if(c < 0) {
+						lines.add(line(o, REMOVED, null));
+						counts.count(removedChange);
+						o = r.next();
+					} else if(c > 0) {
+						lines.add(line(n, ADDED, null));
+						counts.count(addedChange);
+						n = a.next();
+					} else {
+						lines.add(line(n, MOVED, o));
+						counts.count(movedChange);
+						o = r.next();
+						n = a.next();
+					}
+				}
+			}
+			
+			// As paths cannot contain \0 sorting the lines sorts them by
+			// path, in the order of checkpoints.
+			try(ExternalSorter.Reader sorted = lines.sorted()) {
+				for(byte[] l; (l = sorted.next()) != null; )
+					out.write(l, 0, l.length);
+			}
+			out.flush();
+			if(out.checkError())
+				throw new IOException("Writing to stdout failed!");
+		}
+	}
+
+	private static int compareKeys(byte[] a, byte[] b) {
+		for(int i = 0; i < KEY_SIZE; ++i) {
+			int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if(c != 0)
+				return c;
+		}
+		return 0;
+	}
+
+	/** Returns "PATH \0 \t CHANGE [\t OLD_PATH \0] \n" where the paths are
+	 *  the ones of the records. */
+	private static byte[] line(byte[] record, String change, byte[] oldRecord) {
+		ByteArrayOutputStream l = new ByteArrayOutputStream(
+			2 * record.length + 16);
+		l.write(record, PREFIX_SIZE, record.length - PREFIX_SIZE);
+		l.write('\0');
+		l.write('\t');
+		byte[] c = change.getBytes(UTF_8);
+		l.write(c, 0, c.length);
+		if(oldRecord != null) {
+			l.write('\t');
+			l.write(oldRecord, PREFIX_SIZE, oldRecord.length - PREFIX_SIZE);
+			l.write('\0');
+		}
+		l.write('\n');
+		return l.toByteArray();
+	}
+
+	@Override public void close() throws IOException {
+		try {
+			removed.close();
+		} finally {
+			added.close();
+		}
+	}
+
+}
@@ -0,0 +1,170 @@
+package checkpoint.ui.shell;
+
+import static checkpoint.ui.shell.VerifyCommand.EXIT_CHANGED;
+import static checkpoint.ui.shell.VerifyCommand.EXIT_CORRUPTED;
+import static checkpoint.ui.shell.VerifyCommand.EXIT_ERROR;
+import static checkpoint.ui.shell.VerifyCommand.EXIT_OK;
+import static java.lang.System.err;
+
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+
+import checkpoint.generation.CheckpointScrubber;
+import checkpoint.generation.ConcurrentCheckpointVerifier.Result;
+import checkpoint.generation.IOThrottle;
+import checkpoint.generation.JavaSHA256Generator;
+
+final class ScrubCommand extends Command {
+
+	@Override String getShortSyntax() {
+		return '\t' + getCommandName()
+			+ " [--budget DURATION] [--bytes SIZE] [options] "
+			+ "CHECKPOINT_DIR INPUT_DIR";
+	}
+
+	private static final class Options {
+		@Parameter(names = { "--budget" }, description =
+			  "Stop verifying after about this time. Suffixes s, m, h and d "
+			+ "are allowed, e.g. '2h'. Default: Unlimited.")
+		String budget = null;
+		
+		@Parameter(names = { "--bytes" }, description =
+			  "Only verify files of up to this size in total. Suffixes K, M, "
+			+ "G and T are allowed, e.g. '2T'. Default: Unlimited.")
+		String bytes = null;
+		
+		@Parameter(names = { "--state" }, description =
+			  "The file in which to store when each file was verified. "
+			+ "Default: '" + CheckpointScrubber.STATE_FILENAME + "' in the "
+			+ "CHECKPOINT_DIR.")
+		String state = null;
+		
+		@Parameter(names = { "--ssd" }, description =
+			  "Same as for the 'create' command.")
+		boolean ssd = false;
+		
+		@Parameter(names = { "--threads" }, description =
+			  "Same as for the 'verify' command.")
+		Integer threads = null; // No default because it depends on --ssd
+		
+		@Parameter(names = { "--buffer" }, description =
+			  "Same as for the 'create' command.")
+		int buffer = JavaSHA256Generator.DEFAULT_READ_BUFFER_SIZE;
+		
+		@Parameter(names = { "--throttle" }, description =
+			  "Same as for the 'create' command.")
+		String throttle = null;
+		
+		// Parsed from the above Strings by validate(), 0 / null if unset.
+		long budgetSeconds = 0;
+		long budgetBytes = 0;
+		IOThrottle ioThrottle = null;
+		
+		@Parameter(description = "CHECKPOINT_DIR INPUT_DIR")
+		List<String> args = new ArrayList<>(2);
+		
+		void validate() throws IllegalArgumentException {
+			if(budget != null)
+				budgetSeconds = parseSeconds("--budget", budget);
+			
+			if(bytes != null)
+				budgetBytes = parseBytes("--bytes", bytes);
+			
+			if(threads != null && threads < 1)
+				throw new IllegalArgumentException("--threads is too low!");
+			
+			if(buffer < 4096)
+				throw new IllegalArgumentException("--buffer is too low!");
+			
+			if(throttle != null)
+				ioThrottle = new IOThrottle(parseBytes("--throttle", throttle));
+			
+			// TODO: As of 2019-11-11 with JCommander 1.71 @Parameter(arity = 2)
+			// doesn't work for unnamed parameters it seems so we check it
+			// manually, try again in some years.
+			if(args.size() < 2) {
+				throw new IllegalArgumentException(
+					"Missing checkpoint/input dir!");
+			} else if(args.size() > 2) {
+				throw new IllegalArgumentException(
+					"Too many/unknown arguments: " + args);
+			}
+		}
+	}
+
+	@Override int run(List<String> args) {
+		Options o = new Options();
+		JCommander jc = new JCommander();
+		jc.addObject(o);
+		jc.setProgramName(getCommandName());
+		try {
+			jc.parse(args.toArray(new String[args.size()]));
+			o.validate();
+			args = null; // Prevent accidental usage instead of Options.args
+		} catch(ParameterException | IllegalArgumentException e) {
+			err.println(e.getMessage());
+			err.println();
+			printUsage(jc);
+			return EXIT_ERROR;
+		}
+		
+		Path checkpointDir;
+		Path inputDir;
+		Path stateFile;
+		try {
+			checkpointDir = Paths.get(o.args.get(0));
+			inputDir = Paths.get(o.args.get(1));
+			stateFile = o.state != null ? Paths.get(o.state) : null;
+		} catch(InvalidPathException e) {
+			err.println("Invalid path: " + e.getMessage());
+			return EXIT_ERROR;
+		}
+		
+		try {
+			Result result = new CheckpointScrubber(inputDir, checkpointDir,
+				stateFile, o.ssd, o.threads, o.buffer, o.ioThrottle,
+				o.budgetSeconds, o.budgetBytes).run();
+			switch(result) {
+				case OK:        return EXIT_OK;
+				case CHANGED:   return EXIT_CHANGED;
+				case CORRUPTED: return EXIT_CORRUPTED;
+				default: throw new UnsupportedOperationException(
+					"Unknown result: " + result);
+			}
+		} catch(IOException | InterruptedException e) {
+			err.println("Scrubbing failed:");
+			e.printStackTrace(err);
+			return EXIT_ERROR;
+		}
+	}
+
+	private static void printUsage(JCommander jc) {
+		// TODO: See FilterCommand.printUsage().
+		StringBuilder sb = new StringBuilder();
+		jc.usage(sb);
+		err.println(sb);
+		
+		err.println(
+		    "Like 'verify', but only verifies the files which were verified "
+		  + "least recently, or never, until the --budget of time or --bytes "
+		  + "is used up. When each file was verified is stored in the state "
+		  + "file. Thus running this e.g. every night verifies the whole "
+		  + "INPUT_DIR over multiple nights, so trees which are too large to "
+		  + "be verified at once can still be checked for corruption. "
+		  + "Directories are not verified.");
+		err.println();
+		err.println(
+		    "Output and exit code are the same as for 'verify'. The summary "
+		  + "tells which share of the files was verified, and when the least "
+		  + "recently verified one was verified.");
+	}
+
+}
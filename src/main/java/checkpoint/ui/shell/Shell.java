@@ -18,9 +18,18 @@ public final class Shell {
 	 *  object of it and register its name for usage. */
 	private static final List<Class<? extends Command>> commandClasses = asList(
 		CheckFsFeaturesCommand.class,
+		CompareCommand.class,
+		ConvertCommand.class,
 		CreateCommand.class,
 		FilterCommand.class,
-		InspectCommand.class);
+		FindByHashCommand.class,
+		FindDuplicatesCommand.class,
+		HistoryCommand.class,
+		InspectCommand.class,
+		LookupCommand.class,
+		ScrubCommand.class,
+		StatusCommand.class,
+		VerifyCommand.class);
 
 	private static final Map<String, Command> commandMap
 		= Command.getCommandMap(commandClasses);
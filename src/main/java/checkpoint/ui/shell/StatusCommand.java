@@ -0,0 +1,344 @@
+package checkpoint.ui.shell;
+
+import static checkpoint.ui.shell.ConcurrentJoin.source;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.System.err;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.ParametersDelegate;
+
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.ITimestamps;
+import checkpoint.datamodel.implementation.Checkpoint.PathComparator;
+import checkpoint.datamodel.implementation.NodeFinder;
+import checkpoint.datamodel.implementation.PathPatterns;
+import checkpoint.datamodel.implementation.Timestamps;
+import checkpoint.generation.ConcurrentCheckpointGenerator;
+import checkpoint.serialization.CheckpointParser;
+import checkpoint.serialization.CheckpointReader;
+import checkpoint.ui.shell.ConcurrentJoin.Counts;
+import checkpoint.ui.shell.ConcurrentJoin.NodeSource;
+import checkpoint.ui.shell.ConcurrentJoin.Range;
+
+/** Tells which files were added, removed or modified since a checkpoint was
+ *  created, like "git status", by comparing only their metadata.
+ *  Excluded paths are neither walked nor taken from the checkpoint, so a
+ *  checkpoint which was created with the same excludes, or without any,
+ *  can be used. */
+final class StatusCommand extends Command {
+
+	static final String SIZE_CHANGED = "size";
+
+	/** The CHANGEs in addition to the ones of {@link ConcurrentJoin}. */
+	private static final List<String> CHANGE_TYPES = asList(
+		CompareCommand.TYPE_CHANGED, SIZE_CHANGED,
+		CompareCommand.CTIME_CHANGED, CompareCommand.MTIME_CHANGED);
+
+	/** Ranges of less nodes aren't worth a separate thread. */
+	private static final int MIN_NODES_PER_RANGE = 16 * 1024;
+
+	@Override String getShortSyntax() {
+		return '\t' + getCommandName()
+			+ " [--ssd] [--threads N] [--exclude PATTERN]... "
+			+ "[--exclude-from FILE]... CHECKPOINT_DIR INPUT_DIR";
+	}
+
+	private static final class Options {
+		@Parameter(names = { "--ssd" }, description =
+			  "Same as for the 'create' command.")
+		boolean ssd = false;
+		
+		@Parameter(names = { "--threads" }, description =
+			  "Number of threads to read the timestamps of the files with, "
+			+ "each processes a range of directories. Must be at least 1. "
+			+ "Same defaults as for the 'create' command: "
+			+ ConcurrentCheckpointGenerator.DEFAULT_THREAD_COUNT_HDD
+			+ " for rotational disks, "
+			+ ConcurrentCheckpointGenerator.DEFAULT_THREADS_PER_CPU_WITH_SSD
+			+ "x the number of CPUs with --ssd. Only one is used if the "
+			+ "checkpoint is compressed.")
+		Integer threads = null; // No default because it depends on --ssd
+		
+		@ParametersDelegate
+		ExcludeOptions exclude = new ExcludeOptions();
+		
+		/** Parsed from {@link #exclude} by {@link #validate()}, null if
+		 *  there are none. */
+		PathPatterns excludes = null;
+		
+		@Parameter(description = "CHECKPOINT_DIR INPUT_DIR")
+		List<String> args = new ArrayList<>(2);
+		
+		void validate() throws IllegalArgumentException {
+			if(threads != null && threads < 1)
+				throw new IllegalArgumentException("--threads is too low!");
+			
+			excludes = exclude.parse();
+			
+			// TODO: As of 2019-11-11 with JCommander 1.71 @Parameter(arity = 2)
+			// doesn't work for unnamed parameters it seems so we check it
+			// manually, try again in some years.
+			if(args.size() < 2) {
+				throw new IllegalArgumentException(
+					"Missing checkpoint/input dir!");
+			} else if(args.size() > 2) {
+				throw new IllegalArgumentException(
+					"Too many/unknown arguments: " + args);
+			}
+		}
+	}
+
+	@Override int run(List<String> args) {
+		Options o = new Options();
+		JCommander jc = new JCommander();
+		jc.addObject(o);
+		jc.setProgramName(getCommandName());
+		try {
+			jc.parse(args.toArray(new String[args.size()]));
+			o.validate();
+			args = null; // Prevent accidental usage instead of Options.args
+		} catch(ParameterException | IllegalArgumentException e) {
+			err.println(e.getMessage());
+			err.println();
+			printUsage(jc);
+			return 2;
+		}
+		
+		Path checkpointDir;
+		Path inputDir;
+		try {
+			checkpointDir = Paths.get(o.args.get(0));
+			inputDir = Paths.get(o.args.get(1));
+		} catch(InvalidPathException e) {
+			err.println("Invalid path: " + e.getMessage());
+			return 2;
+		}
+		
+		int threads = o.threads != null ? o.threads
+			: o.ssd ? ConcurrentCheckpointGenerator.DEFAULT_THREAD_COUNT_SSD
+			        : ConcurrentCheckpointGenerator.DEFAULT_THREAD_COUNT_HDD;
+		
+		try(ReadableByteChannel checkpoint = CheckpointReader.openChannel(
+				CheckpointReader.getCheckpointFile(checkpointDir))) {
+			
+			return status(checkpoint, inputDir, threads, o.excludes,
+				MIN_NODES_PER_RANGE) ? 0 : 1;
+		} catch(IOException | InterruptedException e) {
+			err.println("Status failed:");
+			err.println(e);
+			return 2;
+		}
+	}
+
+	/** Walks the input dir, prints the differences to the checkpoint to
+	 *  stdout and a summary to stderr, and returns true if there are none.
+	 *
+	 *  The walk is sorted and split into ranges of paths, i.e. of
+	 *  directories, and each range is joined by a separate thread against
+	 *  the same range of the checkpoint. The timestamps are obtained by the
+	 *  walk already, from the same stat() as the size. If the checkpoint is
+	 *  compressed we cannot seek in it so a single range is used then.
+	 *  @param excludes Null if nothing is excluded.
+	 *  @param minNodesPerRange See {@link #MIN_NODES_PER_RANGE}, lower for
+	 *      tests. */
+	static boolean status(ReadableByteChannel checkpoint, Path inputDir,
+			int threads, PathPatterns excludes, int minNodesPerRange)
+			throws IOException, InterruptedException {
+		
+		// The timestamps are read by the same stat() as the size while
+		// walking.
+		ArrayList<INode> nodes = new ArrayList<>(
+			new NodeFinder(threads, true, excludes).findNodes(inputDir));
+		final PathComparator pathComparator = new PathComparator();
+		Collections.sort(nodes, new Comparator<INode>() {
+			@Override public int compare(INode n1, INode n2) {
+				return pathComparator.compare(n1.getPath(), n2.getPath());
+			}
+		});
+		
+		int rangeCount = !(checkpoint instanceof FileChannel) ? 1
+			: max(1, min(threads, nodes.size() / minNodesPerRange));
+		ArrayList<Range> ranges = new ArrayList<>(rangeCount);
+		CheckpointParser last = null;
+		long oldStart = 0;
+		for(int i = 0; i < rangeCount; ++i) {
+			int from = (int)((long)nodes.size() * i / rangeCount);
+			int to = (int)((long)nodes.size() * (i + 1) / rangeCount);
+			if(rangeCount == 1)
+				last = new CheckpointParser(checkpoint);
+			else {
+				long oldEnd = Long.MAX_VALUE;
+				if(i < rangeCount - 1) {
+					oldEnd = CheckpointParser.findPath((FileChannel)checkpoint,
+						nodes.get(to).getPath().toString().getBytes(UTF_8));
+				}
+				last = new CheckpointParser((FileChannel)checkpoint,
+					oldStart, oldEnd, CheckpointParser.DEFAULT_BUFFER_SIZE);
+				oldStart = oldEnd;
+			}
+			NodeSource old = source(last);
+			if(excludes != null)
+				old = new ExcludingSource(old, excludes);
+			ranges.add(new Range(old,
+				new WalkedNodes(nodes.subList(from, to))));
+		}
+		
+		Counts c = ConcurrentJoin.run(ranges, new NodeComparator(),
+			CHANGE_TYPES, null);
+		if(!last.isComplete()) {
+			err.println("WARNING: The checkpoint is incomplete, so nodes "
+				+ "may be reported as added which are not.");
+		}
+		c.print();
+		return c.differing == 0;
+	}
+
+	/** Returns the nodes of the walk, which have their timestamps already. */
+	static final class WalkedNodes implements NodeSource {
+
+		private final List<INode> nodes;
+		
+		/** Of the node which {@link #next()} returns. */
+		private int index = 0;
+		
+		WalkedNodes(List<INode> nodes) {
+			this.nodes = nodes;
+		}
+		
+		@Override public INode next() {
+			return index < nodes.size() ? nodes.get(index++) : null;
+		}
+		
+		@Override public long skipSubtree(Path directory) {
+			String prefix = directory.toString() + "/";
+			int start = index;
+			while(index < nodes.size()
+					&& nodes.get(index).getPath().toString().startsWith(prefix))
+				++index;
+			return index - start;
+		}
+	}
+
+	/** Drops the nodes of the checkpoint which {@link NodeFinder} would
+	 *  exclude from the walk, using the same rules. */
+	static final class ExcludingSource implements NodeSource {
+
+		private final NodeSource source;
+		
+		private final PathPatterns excludes;
+		
+		ExcludingSource(NodeSource source, PathPatterns excludes) {
+			this.source = source;
+			this.excludes = excludes;
+		}
+		
+		@Override public INode next() throws IOException {
+			INode n;
+			while((n = source.next()) != null) {
+				String path = n.getPath().toString();
+				if(excludes.matches(path)) {
+					if(n.isDirectory())
+						source.skipSubtree(n.getPath());
+					continue;
+				}
+				// The directory is kept but its contents are excluded.
+				if(n.isDirectory() && excludes.matchesAllBelow(path))
+					source.skipSubtree(n.getPath());
+				return n;
+			}
+			return null;
+		}
+		
+		@Override public long skipSubtree(Path directory) throws IOException {
+			return source.skipSubtree(directory);
+		}
+	}
+
+	private static final class NodeComparator
+			implements ConcurrentJoin.NodeComparator {
+		
+		/** Directories are only compared by their type. Their timestamps
+		 *  change whenever a node inside of them is added or removed, which
+		 *  is reported anyway. */
+		@Override public void compare(INode o, INode n, List<String> changes) {
+			if(o.isDirectory() != n.isDirectory()) {
+				changes.add(CompareCommand.TYPE_CHANGED);
+				return;
+			}
+			if(o.isDirectory())
+				return;
+			
+			// A size of 0 in the checkpoint may mean unknown, see
+			// INode.getSize(). The mtime will tell if an empty file was
+			// modified.
+			if(o.getSize() != 0 && o.getSize() != n.getSize())
+				changes.add(SIZE_CHANGED);
+			
+			ITimestamps ot = o.getTimetamps();
+			ITimestamps nt = n.getTimetamps();
+			if(ot != null && nt != null) {
+				if(changed(ot.getStatusChangeTime(), nt.getStatusChangeTime()))
+					changes.add(CompareCommand.CTIME_CHANGED);
+				if(changed(ot.getModificationTime(), nt.getModificationTime()))
+					changes.add(CompareCommand.MTIME_CHANGED);
+			}
+		}
+		
+		/** Directory hashes are not computed by the walk. */
+		@Override public boolean isSubtreeEqual(INode o, INode n) {
+			return false;
+		}
+		
+		/** Unavailable timestamps are not compared. */
+		private static boolean changed(Date old, Date now) {
+			return old != null && now != null
+				&& !Timestamps.sameSecond(old, now);
+		}
+	}
+
+	private static void printUsage(JCommander jc) {
+		// TODO: See FilterCommand.printUsage().
+		StringBuilder sb = new StringBuilder();
+		jc.usage(sb);
+		err.println(sb);
+		
+		err.println(
+		    "Searches the files and directories in the INPUT_DIR like "
+		  + "'create' does and compares them to the checkpoint in the "
+		  + "CHECKPOINT_DIR by their size, ctime and mtime. The content of "
+		  + "the files is not read, so this is about as fast as 'find' and "
+		  + "can tell whether running 'create' is necessary.");
+		err.println();
+		err.println(
+		    "Prints a line for each difference to stdout, in the syntax of "
+		  + "'compare': 'PATH\\0\\tCHANGE\\tCHANGE...\\n' where CHANGE can be "
+		  + "'" + ConcurrentJoin.ADDED + "' for new nodes, '"
+		  + ConcurrentJoin.REMOVED + "' for deleted ones, '"
+		  + CompareCommand.TYPE_CHANGED + "' if a file became a directory "
+		  + "or vice versa, '" + SIZE_CHANGED + "', '"
+		  + CompareCommand.CTIME_CHANGED + "' and '"
+		  + CompareCommand.MTIME_CHANGED + "'. The timestamps of "
+		  + "directories are not compared. A summary is printed to stderr.");
+		err.println();
+		err.println("Exit code is 0 if nothing changed, 1 if something "
+			+ "changed, 2 if an error occurred.");
+	}
+
+}
@@ -0,0 +1,181 @@
+package checkpoint.ui.shell;
+
+import static java.lang.System.err;
+
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+
+import checkpoint.generation.ConcurrentCheckpointGenerator;
+import checkpoint.generation.ConcurrentCheckpointVerifier;
+import checkpoint.generation.ConcurrentCheckpointVerifier.Result;
+import checkpoint.generation.IOThrottle;
+import checkpoint.generation.JavaSHA256Generator;
+import checkpoint.serialization.CheckpointReader;
+
+final class VerifyCommand extends Command {
+
+	/** The exit codes follow the convention of Nagios and compatible
+	 *  monitoring systems: 0 = OK, 1 = WARNING, 2 = CRITICAL, 3 = UNKNOWN. */
+	static final int EXIT_OK = 0;
+	static final int EXIT_CHANGED = 1;
+	static final int EXIT_CORRUPTED = 2;
+	static final int EXIT_ERROR = 3;
+
+	@Override String getShortSyntax() {
+		return '\t' + getCommandName()
+			+ " [options] CHECKPOINT_DIR INPUT_DIR";
+	}
+
+	private static final class Options {
+		@Parameter(names = { "--quick" }, description =
+			  "Only compare the size, mtime and ctime of files, do not read "
+			+ "their content. This is about as fast as 'find' but cannot "
+			+ "detect corruption.")
+		boolean quick = false;
+		
+		@Parameter(names = { "--fail-fast" }, description =
+			  "Stop at the first mismatch.")
+		boolean failFast = false;
+		
+		@Parameter(names = { "--ssd" }, description =
+			  "Same as for the 'create' command.")
+		boolean ssd = false;
+		
+		@Parameter(names = { "--threads" }, description =
+			  "Same as for the 'create' command, with the same defaults: "
+			+ ConcurrentCheckpointGenerator.DEFAULT_THREAD_COUNT_HDD
+			+ " for rotational disks, "
+			+ ConcurrentCheckpointGenerator.DEFAULT_THREADS_PER_CPU_WITH_SSD
+			+ "x the number of CPUs with --ssd.")
+		Integer threads = null; // No default because it depends on --ssd
+		
+		@Parameter(names = { "--buffer" }, description =
+			  "Same as for the 'create' command.")
+		int buffer = JavaSHA256Generator.DEFAULT_READ_BUFFER_SIZE;
+		
+		@Parameter(names = { "--throttle" }, description =
+			  "Same as for the 'create' command.")
+		String throttle = null;
+		
+		/** Parsed from {@link #throttle} by {@link #validate()}. */
+		IOThrottle ioThrottle = null;
+		
+		@Parameter(description = "CHECKPOINT_DIR INPUT_DIR")
+		List<String> args = new ArrayList<>(2);
+		
+		void validate() throws IllegalArgumentException {
+			if(threads != null && threads < 1)
+				throw new IllegalArgumentException("--threads is too low!");
+			
+			if(buffer < 4096)
+				throw new IllegalArgumentException("--buffer is too low!");
+			
+			if(throttle != null)
+				ioThrottle = new IOThrottle(parseBytes("--throttle", throttle));
+			
+			// TODO: As of 2019-11-11 with JCommander 1.71 @Parameter(arity = 2)
+			// doesn't work for unnamed parameters it seems so we check it
+			// manually, try again in some years.
+			if(args.size() < 2) {
+				throw new IllegalArgumentException(
+					"Missing checkpoint/input dir!");
+			} else if(args.size() > 2) {
+				throw new IllegalArgumentException(
+					"Too many/unknown arguments: " + args);
+			}
+		}
+	}
+
+	@Override int run(List<String> args) {
+		Options o = new Options();
+		JCommander jc = new JCommander();
+		jc.addObject(o);
+		jc.setProgramName(getCommandName());
+		try {
+			jc.parse(args.toArray(new String[args.size()]));
+			o.validate();
+			args = null; // Prevent accidental usage instead of Options.args
+		} catch(ParameterException | IllegalArgumentException e) {
+			err.println(e.getMessage());
+			err.println();
+			printUsage(jc);
+			return EXIT_ERROR;
+		}
+		
+		Path checkpointDir;
+		Path inputDir;
+		try {
+			checkpointDir = Paths.get(o.args.get(0));
+			inputDir = Paths.get(o.args.get(1));
+		} catch(InvalidPathException e) {
+			err.println("Invalid path: " + e.getMessage());
+			return EXIT_ERROR;
+		}
+		
+		try(CheckpointReader reader = CheckpointReader.open(checkpointDir)) {
+			Result result = new ConcurrentCheckpointVerifier(inputDir, reader,
+				o.ssd, o.threads, o.buffer, o.ioThrottle, o.quick, o.failFast)
+				.run();
+			switch(result) {
+				case OK:        return EXIT_OK;
+				case CHANGED:   return EXIT_CHANGED;
+				case CORRUPTED: return EXIT_CORRUPTED;
+				default: throw new UnsupportedOperationException(
+					"Unknown result: " + result);
+			}
+		} catch(IOException | InterruptedException e) {
+			err.println("Verifying failed:");
+			e.printStackTrace(err);
+			return EXIT_ERROR;
+		}
+	}
+
+	private static void printUsage(JCommander jc) {
+		// TODO: See FilterCommand.printUsage().
+		StringBuilder sb = new StringBuilder();
+		jc.usage(sb);
+		err.println(sb);
+		
+		err.println(
+		    "Verifies the files and directories in the INPUT_DIR against the "
+		  + "checkpoint in the CHECKPOINT_DIR by hashing the files again, "
+		  + "without writing a new checkpoint. Files which were added since "
+		  + "the checkpoint was created are not checked, see 'status' for "
+		  + "listing them. "
+		  + "The checkpoint is read while verifying, so memory usage does "
+		  + "not depend on its size.");
+		err.println();
+		err.println(
+		    "Each mismatch is printed to stdout as soon as it is found, as "
+		  + "'PATH\\0\\tPROBLEM\\tPROBLEM...\\n' like the lines of "
+		  + "checkpoints and the output of 'compare'. PROBLEM can be: "
+		  + "'" + ConcurrentCheckpointVerifier.MISSING + "', "
+		  + "'" + ConcurrentCheckpointVerifier.TYPE_CHANGED + "', "
+		  + "'" + ConcurrentCheckpointVerifier.SIZE_CHANGED + "', "
+		  + "'" + ConcurrentCheckpointVerifier.MTIME_CHANGED + "', "
+		  + "'" + ConcurrentCheckpointVerifier.CTIME_CHANGED + "', "
+		  + "'" + ConcurrentCheckpointVerifier.CONTENT_CHANGED + "', "
+		  + "'" + ConcurrentCheckpointVerifier.READ_FAILED + "'. "
+		  + "A summary is printed to stderr.");
+		err.println();
+		err.println(
+		    "The exit code is suitable for monitoring systems such as "
+		  + "Nagios: " + EXIT_OK + " if everything matches, "
+		  + EXIT_CHANGED + " if files were modified, removed or could not "
+		  + "be read, or the checkpoint is incomplete, "
+		  + EXIT_CORRUPTED + " if the content of a file differs even "
+		  + "though its size and mtime did not change, which indicates data "
+		  + "corruption (if the checkpoint does not contain the mtime this is "
+		  + EXIT_CHANGED + " instead), " + EXIT_ERROR + " if verifying "
+		  + "failed.");
+	}
+
+}
@@ -63,6 +63,7 @@ class Checkpoint:
 	CONST_SHA256SUM_DIRECTORY = "(directory)"
 	CONST_SHA256SUM_FAILED = "(sha256sum failed!)"
 	CONST_STAT_FAILED = "(stat failed!)"
+	CONST_SIZE_PREFIX = "Size: " # The size field of files, after the sha256sum
 	
 	def __init__(self, input_dir, output_dir):
 		self.input_dir, self.output_dir = map(path.abspath, (input_dir, output_dir))
@@ -98,10 +99,12 @@ class Checkpoint:
 	class Entry:
 		sha256sum = None # The sha256sum. None if the Entry is a directory
 		stat = None # The filedates (output of stat)
+		size = None # The size in bytes. None if the Entry is a directory or the size is unknown
 		
-		def __init__(self, sha256sum=None, stat=None):
+		def __init__(self, sha256sum=None, stat=None, size=None):
 			self.sha256sum = sha256sum if not sha256sum == Checkpoint.CONST_SHA256SUM_DIRECTORY else None
 			self.stat = stat
+			self.size = size
 		
 		def stat_filter(self, stat_array, exclude_times):
 			for time in stat_array:
@@ -213,7 +216,13 @@ class Checkpoint:
 					count_ignored += 1
 					continue
 				
-				entry = Checkpoint.Entry(sha256sum, stat)
+				# Checkpoints of former versions lack the size field.
+				size = None
+				if stat.startswith(Checkpoint.CONST_SIZE_PREFIX):
+					(size, stat) = stat.split("\t", 1)
+					size = int(size[len(Checkpoint.CONST_SIZE_PREFIX):])
+				
+				entry = Checkpoint.Entry(sha256sum, stat, size)
 				assert file not in entries
 				entries[file] = entry
 				count += 1
@@ -321,10 +330,15 @@ class Checkpoint:
 						count_skipped += 1
 						continue
 					
+					size = None
 					if path.isfile(file):
 						sha256sum = self.compute_sha256sum(file, log_file)
 						if sha256sum == Checkpoint.CONST_SHA256SUM_FAILED:
 							count_failed += 1
+						try:
+							size = path.getsize(file)
+						except OSError:
+							self.log.warning("Obtaining the size failed: " + file)
 					elif path.isdir(file):
 						sha256sum = Checkpoint.CONST_SHA256SUM_DIRECTORY
 					elif not path.exists(file):
@@ -338,7 +352,7 @@ class Checkpoint:
 					if stat == Checkpoint.CONST_STAT_FAILED:
 						count_failed += 1
 					
-					self.entries[file] = Checkpoint.Entry(sha256sum, stat)
+					self.entries[file] = Checkpoint.Entry(sha256sum, stat, size)
 					count_computed += 1
 		
 		self.log.info("Computing finished. Computed {} entries. sha256/stat failed {} times. Skipped {} of {} files due to incremental computation.".format(count_computed, count_failed, count_skipped, len(self.entries)))
@@ -362,6 +376,9 @@ class Checkpoint:
 					output.write(file)
 					output.write("\0\t")
 					output.write(entry.sha256sum if entry.sha256sum else Checkpoint.CONST_SHA256SUM_DIRECTORY)
+					# Same as the Java implementation, which writes the size of files only.
+					if entry.size is not None:
+						output.write("\t" + Checkpoint.CONST_SIZE_PREFIX + str(entry.size))
 					output.write("\t")
 					output.write(entry.get_stat(exclude_times))
 					output.write("\n")
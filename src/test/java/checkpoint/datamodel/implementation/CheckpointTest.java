@@ -16,6 +16,7 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Scanner;
+import java.util.TreeMap;
 
 import org.apache.commons.codec.DecoderException;
 import org.junit.Ignore;
@@ -23,6 +24,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import checkpoint.datamodel.INode;
 import checkpoint.datamodel.implementation.Checkpoint.PathComparator;
 
 public final class CheckpointTest {
@@ -166,6 +168,7 @@ public final class CheckpointTest {
 		original.save(testCheckpoint);
 		
 		Checkpoint loaded = Checkpoint.load(testCheckpoint);
+		assertEquals(123, loaded.getNodeSize());
 		Path savedAgain = tempDir.newFolder().toPath();
 		loaded.save(savedAgain);
 		
@@ -176,4 +179,24 @@ public final class CheckpointTest {
 		// FIXME: Add more tests
 	}
 
+	@Test public void testSortedNodeList() {
+		ArrayList<INode> sorted = new ArrayList<>();
+		for(String p : asList(".", "./a", "./a.b", "./a/b", "./c"))
+			sorted.add(constructNode(Paths.get(p), true, 0));
+		Checkpoint.SortedNodeList map = new Checkpoint.SortedNodeList(sorted);
+		
+		assertEquals(Paths.get("."), map.firstKey());
+		assertEquals(Paths.get("./c"), map.lastKey());
+		assertSame(sorted.get(2), map.get(Paths.get("./a.b")));
+		assertNull(map.get(Paths.get("./b")));
+		assertEquals(asList(Paths.get("./a.b"), Paths.get("./a/b")),
+			new ArrayList<>(map.subMap(Paths.get("./a."), Paths.get("./b"))
+				.keySet()));
+		assertEquals(2, map.headMap(Paths.get("./a.b")).size());
+		assertEquals(Paths.get("./a/b"),
+			map.tailMap(Paths.get("./a/a")).firstKey());
+		assertTrue(map.tailMap(Paths.get("./d")).isEmpty());
+		assertEquals(new TreeMap<>(map), map);
+	}
+
 }
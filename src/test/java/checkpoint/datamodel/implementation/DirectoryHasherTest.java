@@ -0,0 +1,71 @@
+package checkpoint.datamodel.implementation;
+
+import static checkpoint.datamodel.implementation.Node.constructNode;
+import static checkpoint.datamodel.implementation.SHA256.sha256fromString;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.apache.commons.codec.DecoderException;
+import org.junit.Test;
+
+import checkpoint.datamodel.INode;
+
+public final class DirectoryHasherTest {
+
+	private static final String someHash
+		= "7dd91e07f0341646d53f6938278a4d3e87961fabea066f7e6f40b7398f3b0b0f";
+
+	/** sha256sum of the string "2". */
+	private static final String otherHash
+		= "d4735e3a265e16eee03f59718b9b5d03019c07d8b6c51f90da3a666eec13ab35";
+
+	/** Tests the hashes against the ones computed by the Bash command
+	 *  given at {@link DirectoryHasher} to ensure the format matches the
+	 *  documentation. The "./b.c" is sorted between "./b" and the nodes
+	 *  inside of it. */
+	@Test public void testComputeHashes() throws DecoderException {
+		INode root = constructNode(Paths.get("."), true, 0);
+		INode a = file("./a", someHash);
+		INode b = constructNode(Paths.get("./b"), true, 0);
+		INode bc = file("./b.c", otherHash);
+		INode bx = file("./b/x", someHash);
+		List<INode> nodes = asList(root, a, b, bc, bx);
+
+		DirectoryHasher.computeHashes(nodes);
+		assertEquals(
+			"9fe8e7fd253c7e2c635ec4c1fe76ff8216135d74e432582e91c819fb5f6f6d08",
+			b.getHash().toString());
+		assertEquals(
+			"cfaf9177e71817b2f5ae7241a85b3e4841b3dd5116f31189166a1db882aed23b",
+			root.getHash().toString());
+
+		// The hash of a file being unavailable makes the ones of the
+		// directories which contain it unavailable.
+		bx.setHash(null);
+		DirectoryHasher.computeHashes(nodes);
+		assertNull(b.getHash());
+		assertNull(root.getHash());
+
+		// Same for a missing directory.
+		bx.setHash(sha256fromString(someHash));
+		DirectoryHasher.computeHashes(asList(root, a, bc, bx));
+		assertNull(root.getHash());
+
+		// Empty directories have the hash of no data.
+		DirectoryHasher.computeHashes(asList(b));
+		assertEquals(
+			"e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855",
+			b.getHash().toString());
+	}
+
+	private static INode file(String path, String hash)
+			throws DecoderException {
+
+		return constructNode(Paths.get(path), false, 1,
+			sha256fromString(hash), null);
+	}
+
+}
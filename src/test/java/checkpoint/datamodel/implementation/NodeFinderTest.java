@@ -0,0 +1,238 @@
+package checkpoint.datamodel.implementation;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import checkpoint.datamodel.INode;
+
+public final class NodeFinderTest {
+
+	@Rule
+	public final TemporaryFolder tempDir = new TemporaryFolder();
+
+	/** The concurrent walk must find the same nodes as the single-threaded
+	 *  one. */
+	@Test public void testThreads() throws IOException, InterruptedException {
+		Path input = createTree();
+		TreeSet<String> expected = find(input, 1);
+		assertEquals(1 + 10 * (2 + 10), expected.size());
+		assertTrue(expected.contains(". d"));
+		assertTrue(expected.contains("./d3/e3/f7 1"));
+		assertFalse(expected.contains("./link 0"));
+		assertEquals(expected, find(input, 4));
+	}
+
+	@Test public void testProgress() throws IOException, InterruptedException {
+		Path input = createTree();
+		for(int threads : new int[] { 1, 4 }) {
+			NodeFinder finder = new NodeFinder(threads);
+			finder.findNodes(input);
+			NodeFinder.Progress p = finder.getProgress();
+			assertEquals(1 + 10 * 2, p.getDirectories());
+			assertEquals(10 * 10, p.getFiles());
+			assertEquals(10 * 10, p.getBytes());
+			assertTrue(p.getDepth() >= 1 && p.getDepth() <= 2);
+		}
+	}
+
+	@Test public void testInterrupt() throws IOException {
+		Path input = createTree();
+		for(int threads : new int[] { 1, 4 }) {
+			Thread.currentThread().interrupt();
+			try {
+				new NodeFinder(threads).findNodes(input);
+				fail("Interrupt ignored with threads: " + threads);
+			} catch(InterruptedException e) {}
+			assertFalse(Thread.interrupted());
+		}
+	}
+
+	@Test public void testExcludes() throws IOException, InterruptedException {
+		Path input = createTree();
+		PathPatterns excludes = new PathPatterns(asList(
+			"./d1", "./d2/e2/", "./d3/*/f[0-4]"));
+		for(int threads : new int[] { 1, 4 }) {
+			TreeSet<String> found = new TreeSet<>();
+			for(INode n : new NodeFinder(threads, false, excludes)
+					.findNodes(input)) {
+				found.add(n.getPath().toString());
+			}
+			assertFalse(found.contains("./d1"));
+			assertFalse(found.contains("./d1/e1/f0"));
+			assertTrue(found.contains("./d2/e2"));
+			assertFalse(found.contains("./d2/e2/f0"));
+			assertFalse(found.contains("./d3/e3/f4"));
+			assertTrue(found.contains("./d3/e3/f5"));
+			assertEquals(1 + 10 * (2 + 10) - 12 - 10 - 5, found.size());
+		}
+	}
+
+	/** The attributes which are read along with the timestamps must
+	 *  implement all of {@link BasicFileAttributes}. */
+	@Test public void testReadAttributesWithTimestamps() throws IOException {
+		Path file = tempDir.newFile().toPath();
+		BasicFileAttributes expected = Files.readAttributes(file,
+			BasicFileAttributes.class, NOFOLLOW_LINKS);
+		BasicFileAttributes attrs
+			= new NodeFinder(1, true).readAttributes(file);
+		assertEquals(expected.creationTime(), attrs.creationTime());
+		assertEquals(expected.lastModifiedTime(), attrs.lastModifiedTime());
+		assertEquals(expected.fileKey(), attrs.fileKey());
+		assertTrue(attrs.isRegularFile());
+	}
+
+	@Test public void testGetDevice() {
+		assertEquals(Long.valueOf(0xfd01),
+			NodeFinder.getDevice(fileKey("(dev=fd01,ino=123)")));
+		assertEquals(Long.valueOf(0),
+			NodeFinder.getDevice(fileKey("(dev=0,ino=1)")));
+	}
+
+	/** Keys of another shape, e.g. of another OS or a future JDK, must not
+	 *  be misinterpreted as a device. */
+	@Test public void testGetDeviceOfOtherKey() {
+		assertNull(NodeFinder.getDevice(fileKey(null)));
+		assertNull(NodeFinder.getDevice(fileKey("(ino=123,dev=fd01)")));
+		assertNull(NodeFinder.getDevice(fileKey("(dev=fd01)")));
+		assertNull(NodeFinder.getDevice(fileKey("(dev=xyz,ino=123)")));
+		assertNull(NodeFinder.getDevice(fileKey("fd01")));
+	}
+
+	/** On Unix with the JDK's file keys the device must be parsed from the
+	 *  walk's attributes, or the slow FileStore comparison is used. */
+	@Test public void testGetInputDirDevice() throws IOException {
+		Path dir = tempDir.newFolder().toPath();
+		assertEquals(Files.getAttribute(dir, "unix:dev", NOFOLLOW_LINKS),
+			NodeFinder.getInputDirDevice(dir));
+	}
+
+	/** No node on the same device may be ignored as being on another
+	 *  filesystem, with the attributes of both kinds of walks. */
+	@Test public void testSameDevice()
+			throws IOException, InterruptedException {
+		
+		Path input = createTree();
+		final TreeSet<String> expected = new TreeSet<>();
+		final Path root = input;
+		Files.walkFileTree(input, new SimpleFileVisitor<Path>() {
+			@Override public FileVisitResult preVisitDirectory(Path dir,
+					BasicFileAttributes attrs) {
+				expected.add(Paths.get(".").resolve(root.relativize(dir))
+					.toString());
+				return CONTINUE;
+			}
+			
+			@Override public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) {
+				if(attrs.isRegularFile()) {
+					expected.add(Paths.get(".").resolve(root.relativize(file))
+						.toString());
+				}
+				return CONTINUE;
+			}
+		});
+		for(boolean timestamps : new boolean[] { false, true }) {
+			for(int threads : new int[] { 1, 4 }) {
+				TreeSet<String> found = new TreeSet<>();
+				for(INode n : new NodeFinder(threads, timestamps)
+						.findNodes(input)) {
+					found.add(n.getPath().toString());
+				}
+				assertEquals(expected, found);
+			}
+		}
+	}
+
+	/** Returns attributes of which only the fileKey() is used, whose
+	 *  toString() is the given one. */
+	private static BasicFileAttributes fileKey(final String key) {
+		final Object fileKey = key == null ? null : new Object() {
+			@Override public String toString() {
+				return key;
+			}
+		};
+		return new BasicFileAttributes() {
+			@Override public FileTime lastModifiedTime() {
+				throw new UnsupportedOperationException();
+			}
+			
+			@Override public FileTime lastAccessTime() {
+				throw new UnsupportedOperationException();
+			}
+			
+			@Override public FileTime creationTime() {
+				throw new UnsupportedOperationException();
+			}
+			
+			@Override public boolean isRegularFile() {
+				throw new UnsupportedOperationException();
+			}
+			
+			@Override public boolean isDirectory() {
+				throw new UnsupportedOperationException();
+			}
+			
+			@Override public boolean isSymbolicLink() {
+				throw new UnsupportedOperationException();
+			}
+			
+			@Override public boolean isOther() {
+				throw new UnsupportedOperationException();
+			}
+			
+			@Override public long size() {
+				throw new UnsupportedOperationException();
+			}
+			
+			@Override public Object fileKey() {
+				return fileKey;
+			}
+		};
+	}
+
+	/** Creates 10 dirs with a subdir of 10 files each, of 1 byte. */
+	private Path createTree() throws IOException {
+		Path input = tempDir.newFolder().toPath();
+		for(int i = 0; i < 10; ++i) {
+			Path dir = Files.createDirectories(
+				input.resolve("d" + i).resolve("e" + i));
+			for(int j = 0; j < 10; ++j) {
+				Files.write(dir.resolve("f" + j),
+					Integer.toString(j).getBytes(UTF_8));
+			}
+		}
+		// Not followed, and not included as it is not a regular file.
+		Files.createSymbolicLink(input.resolve("link"), input.resolve("d0"));
+		return input;
+	}
+
+	/** Returns "PATH SIZE" for files and "PATH d" for directories. */
+	private static TreeSet<String> find(Path input, int threads)
+			throws IOException, InterruptedException {
+		
+		TreeSet<String> result = new TreeSet<>();
+		for(INode n : new NodeFinder(threads).findNodes(input)) {
+			result.add(n.getPath() + " "
+				+ (n.isDirectory() ? "d" : Long.toString(n.getSize())));
+		}
+		return result;
+	}
+
+}
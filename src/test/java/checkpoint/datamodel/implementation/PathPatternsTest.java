@@ -0,0 +1,104 @@
+package checkpoint.datamodel.implementation;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public final class PathPatternsTest {
+
+	@Test public void testPrefixes() {
+		PathPatterns p = new PathPatterns(asList(
+			"./a/b", "./c/d/", "e/f", "./a/b/x"));
+		assertTrue(p.matches("./a/b"));
+		assertTrue(p.matches("./a/b/c"));
+		assertFalse(p.matches("./a/bc"));
+		assertFalse(p.matches("./a"));
+		assertFalse(p.matches("."));
+		// Only the contents with a trailing "/".
+		assertFalse(p.matches("./c/d"));
+		assertTrue(p.matches("./c/d/e"));
+		assertTrue(p.matchesAllBelow("./c/d"));
+		assertFalse(p.matchesAllBelow("./c"));
+		// The leading "./" is optional.
+		assertTrue(p.matches("./e/f"));
+		assertEquals(4, p.size());
+	}
+
+	@Test public void testGlobs() {
+		PathPatterns p = new PathPatterns(asList(
+			"./home/*/.cache/",
+			"./home/*/.thumbnails",
+			"./home/[!s]?/[tT]emp",
+			"./**/*.tmp",
+			"./var/**/log/",
+			"./x\\*"));
+		assertFalse(p.matches("./home/user/.cache"));
+		assertTrue(p.matches("./home/user/.cache/a/b"));
+		assertTrue(p.matchesAllBelow("./home/user/.cache"));
+		assertFalse(p.matches("./home/user/sub/.cache/a"));
+		assertTrue(p.matches("./home/user/.thumbnails"));
+		assertTrue(p.matches("./home/user/.thumbnails/a"));
+		assertFalse(p.matches("./home/user/.thumbnailsX"));
+		assertTrue(p.matches("./home/ab/Temp/a"));
+		assertTrue(p.matches("./home/ab/temp"));
+		assertFalse(p.matches("./home/sb/temp"));
+		assertFalse(p.matches("./home/abc/temp"));
+		assertTrue(p.matches("./a.tmp"));
+		assertTrue(p.matches("./a/b/c.tmp"));
+		assertFalse(p.matches("./a/b/c.tmpx"));
+		assertTrue(p.matches("./var/log/a"));
+		assertTrue(p.matches("./var/a/b/log/c"));
+		assertFalse(p.matches("./var/a/b/log"));
+		assertTrue(p.matches("./x*"));
+		assertFalse(p.matches("./xy"));
+	}
+
+	/** Tests the expressions of tools/filter-checkpoint.sh. */
+	@Test public void testRegexes() {
+		PathPatterns include = PathPatterns.fromRegexes(asList(
+			"^\\./home/"));
+		PathPatterns exclude = PathPatterns.fromRegexes(asList(
+			"^\\./home/some-user/",
+			"^\\./home/([[:alnum:]]|-)+/\\.cache/mozilla/firefox/",
+			"^\\./home/([[:alnum:]]|-)+/[tT]emp/",
+			"\\.o$",
+			"^\\./a|b$",
+			"^\\./x+y"));
+		assertFalse(include.matches("./home"));
+		assertTrue(include.matches("./home/a"));
+		assertFalse(include.matches("./homes/a"));
+		
+		assertFalse(exclude.matches("./home/some-user"));
+		assertTrue(exclude.matches("./home/some-user/a"));
+		assertFalse(exclude.matches("./home/some-user2/a"));
+		assertFalse(exclude.matches("./home/u-1/.cache/mozilla/firefox"));
+		assertTrue(exclude.matches("./home/u-1/.cache/mozilla/firefox/a"));
+		assertFalse(exclude.matches("./home/u.1/.cache/mozilla/firefox/a"));
+		assertTrue(exclude.matches("./home/u/Temp/a"));
+		assertTrue(exclude.matches("./home/u/temp/a"));
+		// Unanchored.
+		assertTrue(exclude.matches("./src/a.o"));
+		assertFalse(exclude.matches("./src/a.oo"));
+		// The "^" only applies to the first alternative.
+		assertTrue(exclude.matches("./ab"));
+		assertTrue(exclude.matches("./zb"));
+		// The quantifier applies to the last literal character only.
+		assertTrue(exclude.matches("./xxxy"));
+		assertFalse(exclude.matches("./y"));
+	}
+
+	@Test public void testInvalid() {
+		for(String invalid : asList("./a//b", "./[a", "./a\\")) {
+			try {
+				new PathPatterns(asList(invalid));
+				fail("Accepted: " + invalid);
+			} catch(IllegalArgumentException e) {}
+		}
+		try {
+			PathPatterns.fromRegexes(asList("^\\./(a"));
+			fail("Accepted invalid regex!");
+		} catch(IllegalArgumentException e) {}
+	}
+
+}
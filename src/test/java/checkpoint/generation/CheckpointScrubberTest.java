@@ -0,0 +1,99 @@
+package checkpoint.generation;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.write;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.implementation.Node;
+import checkpoint.generation.ConcurrentCheckpointVerifier.Result;
+import checkpoint.serialization.CheckpointReader;
+import checkpoint.serialization.CheckpointWriter;
+import checkpoint.serialization.CheckpointWriter.Index;
+
+public final class CheckpointScrubberTest {
+
+	@Rule
+	public final TemporaryFolder tempDir = new TemporaryFolder();
+
+	@Test public void testRun() throws IOException, InterruptedException {
+		Path input = tempDir.newFolder().toPath();
+		Path checkpoint = tempDir.newFolder().toPath();
+		write(input.resolve("a"), "a".getBytes(UTF_8));
+		write(input.resolve("b"), "b".getBytes(UTF_8));
+		Path c = write(input.resolve("c"), "c".getBytes(UTF_8));
+		new ConcurrentCheckpointGenerator(input, checkpoint, false, 1, 4096,
+			null, true, false, EnumSet.noneOf(Index.class)).run();
+		
+		assertEquals(Result.OK, scrub(input, checkpoint, 2));
+		assertEquals(asList("./a", "./b"), getVerifiedPaths(checkpoint));
+		
+		// The file which was never verified must be verified first, the
+		// corruption thus be detected by the next run.
+		FileTime mtime = Files.getLastModifiedTime(c);
+		write(c, "x".getBytes(UTF_8));
+		Files.setLastModifiedTime(c, mtime);
+		assertEquals(Result.CORRUPTED, scrub(input, checkpoint, 1));
+		assertEquals(asList("./a", "./b", "./c"),
+			getVerifiedPaths(checkpoint));
+	}
+
+	/** Checkpoints of former versions do not contain sizes, the budget must
+	 *  then be applied to the sizes on disk instead of verifying all files. */
+	@Test public void testRunWithUnknownSizes()
+			throws IOException, InterruptedException {
+		
+		Path input = tempDir.newFolder().toPath();
+		Path generated = tempDir.newFolder().toPath();
+		Path checkpoint = tempDir.newFolder().toPath();
+		write(input.resolve("a"), "a".getBytes(UTF_8));
+		write(input.resolve("b"), "b".getBytes(UTF_8));
+		write(input.resolve("c"), "c".getBytes(UTF_8));
+		new ConcurrentCheckpointGenerator(input, generated, false, 1, 4096,
+			null, true, false, EnumSet.noneOf(Index.class)).run();
+		try(CheckpointReader reader = CheckpointReader.open(generated);
+			CheckpointWriter writer = CheckpointWriter.open(checkpoint)) {
+			
+			for(INode n; (n = reader.next()) != null; ) {
+				writer.addNode(Node.constructNode(n.getPath(), n.isDirectory(),
+					0, n.getHash(), n.getTimetamps()));
+			}
+			writer.finish(reader.isComplete());
+		}
+		
+		assertEquals(Result.OK, scrub(input, checkpoint, 2));
+		assertEquals(asList("./a", "./b"), getVerifiedPaths(checkpoint));
+	}
+
+	private static Result scrub(Path input, Path checkpoint, long bytes)
+			throws IOException, InterruptedException {
+		
+		return new CheckpointScrubber(input, checkpoint, null, true, 2, 4096,
+			null, 0, bytes).run();
+	}
+
+	private static List<String> getVerifiedPaths(Path checkpoint)
+			throws IOException {
+		
+		ArrayList<String> paths = new ArrayList<>();
+		for(String line : Files.readAllLines(
+				checkpoint.resolve(CheckpointScrubber.STATE_FILENAME), UTF_8)) {
+			paths.add(line.substring(0, line.indexOf('\0')));
+		}
+		return paths;
+	}
+
+}
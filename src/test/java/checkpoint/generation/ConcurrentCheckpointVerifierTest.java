@@ -0,0 +1,180 @@
+package checkpoint.generation;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.write;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.ISHA256;
+import checkpoint.datamodel.ITimestamps.TimestampTypes;
+import checkpoint.generation.ConcurrentCheckpointVerifier.Result;
+import checkpoint.serialization.CheckpointReader;
+import checkpoint.serialization.CheckpointWriter;
+import checkpoint.serialization.CheckpointWriter.Index;
+
+public final class ConcurrentCheckpointVerifierTest {
+
+	@Rule
+	public final TemporaryFolder tempDir = new TemporaryFolder();
+
+	@Test public void testRun() throws IOException, InterruptedException {
+		Path input = tempDir.newFolder().toPath();
+		Path checkpoint = tempDir.newFolder().toPath();
+		Files.createDirectory(input.resolve("dir"));
+		Path a = write(input.resolve("dir/a"), "a".getBytes(UTF_8));
+		Path b = write(input.resolve("b"), "b".getBytes(UTF_8));
+		new ConcurrentCheckpointGenerator(input, checkpoint, false, 1, 4096,
+			null, true, false, EnumSet.noneOf(Index.class)).run();
+		
+		assertEquals(Result.OK, verify(input, checkpoint, false));
+		assertEquals(Result.OK, verify(input, checkpoint, true));
+		
+		// Modify the content without changing the size and mtime, which is
+		// what corruption looks like. The quick mode cannot detect it.
+		FileTime mtime = Files.getLastModifiedTime(a);
+		write(a, "x".getBytes(UTF_8));
+		Files.setLastModifiedTime(a, mtime);
+		assertEquals(Result.CORRUPTED, verify(input, checkpoint, false));
+		// The ctime can be changed by e.g. chmod as well, so it is merely a
+		// change.
+		assertNotEquals(Result.CORRUPTED, verify(input, checkpoint, true));
+		
+		write(a, "a".getBytes(UTF_8));
+		Files.setLastModifiedTime(a, mtime);
+		Files.delete(b);
+		assertEquals(Result.CHANGED, verify(input, checkpoint, false));
+	}
+
+	/** Without the mtime in the checkpoint a modification which keeps the
+	 *  size cannot be told apart from corruption, so it is merely a
+	 *  change. */
+	@Test public void testRunWithoutMtime()
+			throws IOException, InterruptedException {
+		
+		Path input = tempDir.newFolder().toPath();
+		Path checkpoint = tempDir.newFolder().toPath();
+		Path withoutMtime = tempDir.newFolder().toPath();
+		Path a = write(input.resolve("a"), "a".getBytes(UTF_8));
+		new ConcurrentCheckpointGenerator(input, checkpoint, false, 1, 4096,
+			null, true, false, EnumSet.noneOf(Index.class)).run();
+		try(CheckpointReader reader = CheckpointReader.open(checkpoint);
+			CheckpointWriter writer = CheckpointWriter.open(withoutMtime,
+				EnumSet.of(TimestampTypes.ModificationTime))) {
+			
+			for(INode n; (n = reader.next()) != null; )
+				writer.addNode(n);
+			writer.finish(reader.isComplete());
+		}
+		
+		FileTime mtime = Files.getLastModifiedTime(a);
+		write(a, "x".getBytes(UTF_8));
+		Files.setLastModifiedTime(a, mtime);
+		assertEquals(Result.CORRUPTED, verify(input, checkpoint, false));
+		assertEquals(Result.CHANGED, verify(input, withoutMtime, false));
+	}
+
+	/** Files whose hashing is interrupted by the deadline or --fail-fast
+	 *  were not verified, so they must not be reported as read-failed nor
+	 *  passed to the listener. */
+	@Test public void testStop() throws IOException, InterruptedException {
+		Path input = tempDir.newFolder().toPath();
+		Path checkpoint = tempDir.newFolder().toPath();
+		// Takes 16 seconds to hash due to the throttle below, and is large
+		// enough to be the only file of its batch.
+		try(RandomAccessFile a = new RandomAccessFile(
+				input.resolve("a").toFile(), "rw")) {
+			a.setLength(16 * 1024 * 1024);
+		}
+		Path b = write(input.resolve("b"), "b".getBytes(UTF_8));
+		new ConcurrentCheckpointGenerator(input, checkpoint, false, 1, 4096,
+			null, true, false, EnumSet.noneOf(Index.class)).run();
+		
+		IOThrottle throttle = new IOThrottle(1024 * 1024);
+		// The directory "." is verified quickly, so only files are counted.
+		final List<INode> verified = new ArrayList<>();
+		ConcurrentCheckpointVerifier.Listener listener
+			= new ConcurrentCheckpointVerifier.Listener() {
+			@Override public void verified(INode n, List<String> problems) {
+				if(!n.isDirectory())
+					verified.add(n);
+			}
+		};
+		try(CheckpointReader reader = CheckpointReader.open(checkpoint)) {
+			ConcurrentCheckpointVerifier v = new ConcurrentCheckpointVerifier(
+				input, reader, true, 1, 4096, throttle, false, false);
+			v.setDeadline(System.currentTimeMillis() + 500);
+			v.setListener(listener);
+			assertEquals(Result.OK, v.run());
+		}
+		assertEquals(0, verified.size());
+		
+		// b is verified by the second thread while the first one is
+		// hashing a. Its mismatch stops the verification.
+		write(b, "bb".getBytes(UTF_8));
+		try(CheckpointReader reader = CheckpointReader.open(checkpoint)) {
+			ConcurrentCheckpointVerifier v = new ConcurrentCheckpointVerifier(
+				input, reader, true, 2, 4096, throttle, false, true);
+			v.setListener(listener);
+			assertEquals(Result.CHANGED, v.run());
+		}
+		assertEquals(1, verified.size());
+		assertEquals(Paths.get("./b"), verified.get(0).getPath());
+	}
+
+	/** The interruption of a read closes its channel, which must not be
+	 *  mistaken for a read failure. Not reliably caused by
+	 *  {@link #testStop()} as the interruption usually hits the throttle. */
+	@Test public void testVerifyInterrupted()
+			throws IOException, InterruptedException {
+		
+		Path input = tempDir.newFolder().toPath();
+		Path checkpoint = tempDir.newFolder().toPath();
+		write(input.resolve("a"), "a".getBytes(UTF_8));
+		new ConcurrentCheckpointGenerator(input, checkpoint, false, 1, 4096,
+			null, true, false, EnumSet.noneOf(Index.class)).run();
+		
+		ISHA256Generator interrupted = new ISHA256Generator() {
+			@Override public ISHA256 sha256ofFile(Path p) throws IOException {
+				throw new ClosedByInterruptException();
+			}
+		};
+		try(CheckpointReader reader = CheckpointReader.open(checkpoint)) {
+			ConcurrentCheckpointVerifier v = new ConcurrentCheckpointVerifier(
+				input, reader, true, 1, 4096, null, false, false);
+			INode a;
+			while((a = reader.next()).isDirectory()) { }
+			
+			ArrayList<String> problems = new ArrayList<>();
+			try {
+				v.verify(a, interrupted, problems);
+				fail("Interruption was not propagated!");
+			} catch(InterruptedException e) {}
+			assertEquals(0, problems.size());
+		}
+	}
+
+	private static Result verify(Path input, Path checkpoint, boolean quick)
+			throws IOException, InterruptedException {
+		
+		try(CheckpointReader reader = CheckpointReader.open(checkpoint)) {
+			return new ConcurrentCheckpointVerifier(input, reader, true, 2,
+				4096, null, quick, false).run();
+		}
+	}
+
+}
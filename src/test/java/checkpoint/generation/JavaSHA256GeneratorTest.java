@@ -65,4 +65,17 @@ public final class JavaSHA256GeneratorTest {
 			g.sha256ofFile(largeFile).toString());
 	}
 
+	@Test public void testFileChanged()
+			throws IOException, InterruptedException {
+		
+		JavaSHA256Generator g = new JavaSHA256Generator();
+		Path p = tempDir.newFile().toPath();
+		write(p, "Test\r\n".getBytes(UTF_8));
+		assertEquals(g.sha256ofFile(p), g.sha256ofFile(p, 6));
+		try {
+			g.sha256ofFile(p, 5);
+			fail("Size change not detected!");
+		} catch(JavaSHA256Generator.FileChangedException e) {}
+	}
+
 }
@@ -0,0 +1,175 @@
+package checkpoint.serialization;
+
+import static checkpoint.datamodel.implementation.Node.constructNode;
+import static checkpoint.datamodel.implementation.SHA256.sha256fromString;
+import static checkpoint.datamodel.implementation.Timestamps.timestampsFromDates;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Random;
+
+import org.apache.commons.codec.DecoderException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.ITimestamps;
+import checkpoint.datamodel.ITimestamps.TimestampTypes;
+import checkpoint.serialization.BinaryFormat.Column;
+
+/** Tests {@link BinaryCheckpointWriter} and {@link BinaryCheckpointReader}. */
+public final class BinaryCheckpointTest {
+
+	private static final String someHash
+		= "7dd91e07f0341646d53f6938278a4d3e87961fabea066f7e6f40b7398f3b0b0f";
+
+	@Rule
+	public final TemporaryFolder tempDir = new TemporaryFolder();
+
+	/** Returns sorted random nodes, enough for multiple blocks. */
+	private static ArrayList<INode> randomNodes(Random r)
+			throws DecoderException {
+		
+		ArrayList<INode> result = new ArrayList<>();
+		for(int i = 0; i < BinaryFormat.NODES_PER_BLOCK + 1000; ++i) {
+			// Paths with shared prefixes of varying length, and a non-ASCII
+			// character to test the UTF-8 encoding.
+			Path p = Paths.get(String.format("./dir%05d/Ä%07d", i / 100, i));
+			
+			ITimestamps t = null;
+			if(r.nextInt(10) != 0) {
+				Date[] dates = new Date[3];
+				for(int j = 0; j < dates.length; ++j) {
+					// Some before 1970 to test the rounding of nanoseconds.
+					dates[j] = r.nextInt(10) == 0 ? null
+						: new Date(r.nextLong() % 10000000000000L);
+				}
+				t = timestampsFromDates(dates[0], dates[1], dates[2]);
+			}
+			
+			if(r.nextBoolean())
+				result.add(constructNode(p, true, 0, null, t));
+			else {
+				result.add(constructNode(p, false, r.nextInt(3) == 0
+						? r.nextLong() & Long.MAX_VALUE : r.nextInt(1000),
+					r.nextInt(10) == 0 ? null : sha256fromString(someHash), t));
+			}
+		}
+		return result;
+	}
+
+	private static void assertNodeEquals(String message, INode expected,
+			INode actual, EnumSet<Column> columns) {
+		
+		assertEquals(message, expected.getPath(), actual.getPath());
+		assertEquals(message, expected.isDirectory(), actual.isDirectory());
+		assertEquals(message, columns.contains(Column.Sizes)
+			? expected.getSize() : 0, actual.getSize());
+		if(columns.contains(Column.Hashes) && expected.getHash() != null)
+			assertEquals(message, expected.getHash(), actual.getHash());
+		else
+			assertNull(message, actual.getHash());
+		
+		ITimestamps e = expected.getTimetamps();
+		ITimestamps a = actual.getTimetamps();
+		assertEquals(message, e == null, a == null);
+		if(e != null) {
+			assertEquals(message, columns.contains(Column.AccessTimes)
+				? e.getAccessTime() : null, a.getAccessTime());
+			assertEquals(message, columns.contains(Column.StatusChangeTimes)
+				? e.getStatusChangeTime() : null, a.getStatusChangeTime());
+			assertEquals(message, columns.contains(Column.ModificationTimes)
+				? e.getModificationTime() : null, a.getModificationTime());
+		}
+	}
+
+	@Test public void testRoundTrip() throws IOException, DecoderException {
+		long seed = new Random().nextLong();
+		ArrayList<INode> nodes = randomNodes(new Random(seed));
+		Path dir = tempDir.newFolder().toPath();
+		
+		EnumSet<TimestampTypes> filter = EnumSet.of(TimestampTypes.BirthTime);
+		try(BinaryCheckpointWriter w
+				= BinaryCheckpointWriter.open(dir, filter)) {
+			
+			for(INode n : nodes)
+				w.addNode(n);
+			w.finish(true);
+		}
+		
+		ArrayList<EnumSet<Column>> columnSets = new ArrayList<>();
+		columnSets.add(EnumSet.allOf(Column.class));
+		columnSets.add(EnumSet.of(Column.Hashes));
+		columnSets.add(EnumSet.of(Column.ModificationTimes, Column.Sizes));
+		for(EnumSet<Column> columns : columnSets) {
+			try(BinaryCheckpointReader r
+					= BinaryCheckpointReader.open(dir, columns)) {
+				
+				assertEquals(filter, r.getTimestampsFilter());
+				for(INode expected : nodes) {
+					assertNodeEquals("Failed for seed: " + seed, expected,
+						r.next(), columns);
+				}
+				assertNull(r.next());
+				assertTrue(r.isComplete());
+			}
+		}
+	}
+
+	/** Tests that the filter of the writer is applied. */
+	@Test public void testTimestampsFilter() throws IOException {
+		Path dir = tempDir.newFolder().toPath();
+		Date date = new Date(1000);
+		try(BinaryCheckpointWriter w = BinaryCheckpointWriter.open(dir,
+				EnumSet.of(TimestampTypes.AccessTime))) {
+			
+			w.addNode(constructNode(Paths.get("./a"), true, 0, null,
+				timestampsFromDates(date, date, date)));
+			w.finish(false);
+		}
+		
+		try(BinaryCheckpointReader r = BinaryCheckpointReader.open(dir)) {
+			ITimestamps t = r.next().getTimetamps();
+			assertNull(t.getAccessTime());
+			assertEquals(date, t.getStatusChangeTime());
+			assertEquals(date, t.getModificationTime());
+			assertNull(r.next());
+			assertFalse(r.isComplete());
+		}
+	}
+
+	@Test public void testTruncated() throws IOException, DecoderException {
+		Path dir = tempDir.newFolder().toPath();
+		ArrayList<INode> nodes = randomNodes(new Random());
+		try(BinaryCheckpointWriter w = BinaryCheckpointWriter.open(dir)) {
+			for(INode n : nodes)
+				w.addNode(n);
+			w.finish(true);
+		}
+		
+		Path file = dir.resolve(BinaryFormat.FILENAME);
+		long size = Files.size(file);
+		for(long truncatedSize : new long[] { size - 1, size / 2, 3 }) {
+			try(FileChannel c = FileChannel.open(file, WRITE)) {
+				c.truncate(truncatedSize);
+			}
+			
+			try(BinaryCheckpointReader r = BinaryCheckpointReader.open(dir)) {
+				while(r.next() != null);
+				fail("Truncation not detected at: " + truncatedSize);
+			} catch(IOException e) {
+				// Success
+			}
+		}
+	}
+
+}
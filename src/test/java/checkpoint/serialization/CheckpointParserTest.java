@@ -0,0 +1,278 @@
+package checkpoint.serialization;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import checkpoint.datamodel.INode;
+
+/** Tests {@link CheckpointParser}. */
+public final class CheckpointParserTest {
+
+	private static final String someHash
+		= "7dd91e07f0341646d53f6938278a4d3e87961fabea066f7e6f40b7398f3b0b0f";
+
+	@Rule
+	public final TemporaryFolder tempDir = new TemporaryFolder();
+
+	private static CheckpointParser parserOf(String checkpoint, int bufferSize) {
+		return new CheckpointParser(Channels.newChannel(
+			new ByteArrayInputStream(checkpoint.getBytes(UTF_8))), bufferSize);
+	}
+
+	@Test public void testNext() throws IOException {
+		String poorFilename = "./This \n is \r\n bad \t due to the whitespace!";
+		String checkpoint =
+			  poorFilename + "\0\t" + someHash + "\t(stat failed!)\n"
+			+ "./a\0\t(directory)\tBirth: -\tAccess: -\tModify: -\tChange: -\n"
+			+ "./b\0\t" + someHash + "\tSize: 9223372036854775807\tChange: -"
+				+ "\tUnknown: field\n"
+			+ "./Ä\0\t(sha256sum failed!)\tSize: 0\t(stat failed!)\n"
+			+ TextFormat.EOFPaths.CheckpointIncomplete + "\0";
+		
+		// Use a tiny buffer to test refilling and growing of it.
+		CheckpointParser p = parserOf(checkpoint, 4);
+		
+		INode n = p.next();
+		assertEquals(Paths.get(poorFilename), n.getPath());
+		assertFalse(n.isDirectory());
+		assertEquals(someHash, n.getHash().toString());
+		assertNull(n.getTimetamps());
+		// Files of former versions don't contain the size.
+		assertEquals(0, n.getSize());
+		
+		n = p.next();
+		assertEquals(Paths.get("./a"), n.getPath());
+		assertTrue(n.isDirectory());
+		assertNull(n.getHash());
+		assertNotNull(n.getTimetamps());
+		assertNull(n.getTimetamps().getAccessTime());
+		
+		n = p.next();
+		assertEquals(Paths.get("./b"), n.getPath());
+		assertEquals(Long.MAX_VALUE, n.getSize());
+		assertNotNull(n.getTimetamps());
+		
+		n = p.next();
+		assertEquals(Paths.get("./Ä"), n.getPath());
+		assertNull(n.getHash());
+		assertEquals(0, n.getSize());
+		assertNull(n.getTimetamps());
+		
+		assertNull(p.next());
+		assertNull(p.next());
+		assertFalse(p.isComplete());
+		assertTrue(p.isSorted());
+	}
+
+	@Test public void testSkip() throws IOException {
+		String checkpoint =
+			  "./a\0\t(directory)\tMerkle: " + someHash + "\n"
+			+ "./a.b\0\t(sha256sum failed!)\n"
+			+ "./a/b\0\t(sha256sum failed!)\n"
+			+ "./a/b/c\n\0\t(sha256sum failed!)\n"
+			+ "./b\0\t(directory)\n"
+			+ TextFormat.EOFPaths.CheckpointComplete + "\0";
+		
+		CheckpointParser p = parserOf(checkpoint, 4);
+		INode n = p.next();
+		assertTrue(n.isDirectory());
+		assertEquals(someHash, n.getHash().toString());
+		// "./a.b" is sorted before the nodes inside of "./a".
+		assertEquals(0, p.skip("./a/".getBytes(UTF_8)));
+		assertEquals(Paths.get("./a.b"), p.next().getPath());
+		assertEquals(2, p.skip("./a/".getBytes(UTF_8)));
+		n = p.next();
+		assertEquals(Paths.get("./b"), n.getPath());
+		assertNull(n.getHash());
+		// Must not skip the EOF marker.
+		assertEquals(0, p.skip("".getBytes(UTF_8)));
+		assertNull(p.next());
+		assertTrue(p.isComplete());
+		assertTrue(p.isSorted());
+	}
+
+	@Test public void testIsSorted() throws IOException {
+		CheckpointParser p = parserOf(
+			  "./b\0\t(directory)\n"
+			+ "./a\0\t(directory)\n"
+			+ TextFormat.EOFPaths.CheckpointComplete + "\0",
+			CheckpointParser.DEFAULT_BUFFER_SIZE);
+		
+		while(p.next() != null);
+		assertTrue(p.isComplete());
+		assertFalse(p.isSorted());
+	}
+
+	@Test public void testTruncated() {
+		String[] truncated = {
+			"",
+			"./a\0\t(directory)\n",
+			"./a\0\t(directory)\n" + TextFormat.EOFPaths.CheckpointComplete,
+			"./a\0\t(directory)",
+			"./a\0"
+		};
+		
+		for(String checkpoint : truncated) {
+			CheckpointParser p = parserOf(checkpoint, 16);
+			try {
+				while(p.next() != null);
+				fail("Truncation not detected: " + checkpoint);
+			} catch(IOException e) {
+				// Success
+			}
+		}
+	}
+
+	/** Tests {@link CheckpointParser#findNodeStart(FileChannel, long)} and
+	 *  parsing of ranges of a file as {@link ConcurrentCheckpointParser} does
+	 *  by splitting a file at every possible offset. */
+	@Test public void testFindNodeStart() throws IOException {
+		// Paths which contain \n and \t, and one which looks like a line of
+		// another node, to ensure the splitting isn't fooled by them.
+		String[] lines = {
+			"./\n\0\t(directory)\n",
+			"./a\tb\n\0\t(sha256sum failed!)\t(stat failed!)\n",
+			"./b\0\t" + someHash + "\tChange: -\n",
+			"./c\n./d\0\t(directory)\n",
+			TextFormat.EOFPaths.CheckpointComplete + "\0"
+		};
+		
+		StringBuilder checkpoint = new StringBuilder();
+		ArrayList<Long> nodeStarts = new ArrayList<>();
+		for(String line : lines) {
+			nodeStarts.add((long)checkpoint.toString().getBytes(UTF_8).length);
+			checkpoint.append(line);
+		}
+		Path file = tempDir.newFile().toPath();
+		Files.write(file, checkpoint.toString().getBytes(UTF_8));
+		
+		try(FileChannel channel = FileChannel.open(file, READ)) {
+			ArrayList<Path> expected = new ArrayList<>();
+			CheckpointParser p = new CheckpointParser(channel, 16);
+			for(INode n; (n = p.next()) != null; )
+				expected.add(n.getPath());
+			assertEquals(lines.length - 1, expected.size());
+			
+			for(long offset = 0; offset <= channel.size(); ++offset) {
+				long start = CheckpointParser.findNodeStart(channel, offset);
+				assertTrue(start == channel.size()
+					|| nodeStarts.contains(start));
+				// A node's start is only allowed to be before the offset if
+				// the offset is inside of its path.
+				if(start < offset) {
+					assertFalse(checkpoint.substring((int)start, (int)offset)
+						.contains("\0"));
+				}
+				
+				ArrayList<Path> actual = new ArrayList<>();
+				CheckpointParser first
+					= new CheckpointParser(channel, 0, start, 16);
+				CheckpointParser second
+					= new CheckpointParser(channel, start, Long.MAX_VALUE, 16);
+				for(INode n; (n = first.next()) != null; )
+					actual.add(n.getPath());
+				// The start is the file size if the offset is after the \0 of
+				// the EOF marker, so the first parser has parsed the marker.
+				// ConcurrentCheckpointParser doesn't create a chunk then.
+				CheckpointParser last = first;
+				if(start < channel.size()) {
+					for(INode n; (n = second.next()) != null; )
+						actual.add(n.getPath());
+					last = second;
+				}
+				
+				assertEquals(expected, actual);
+				assertTrue(last.isComplete());
+			}
+		}
+	}
+
+	/** Tests {@link CheckpointParser#findPath(FileChannel, byte[])} with a
+	 *  file which is large enough to need multiple steps of the search. */
+	@Test public void testFindPath() throws IOException {
+		int count = 20000;
+		StringBuilder checkpoint = new StringBuilder();
+		long[] nodeStarts = new long[count + 1];
+		for(int i = 0; i < count; ++i) {
+			nodeStarts[i] = checkpoint.length();
+			checkpoint.append(String.format("./%05d\0\t(directory)\n", i));
+		}
+		nodeStarts[count] = checkpoint.length();
+		checkpoint.append(TextFormat.EOFPaths.CheckpointComplete + "\0");
+		Path file = tempDir.newFile().toPath();
+		Files.write(file, checkpoint.toString().getBytes(UTF_8));
+		
+		try(FileChannel channel = FileChannel.open(file, READ)) {
+			for(int i = 0; i < count; i += 7) {
+				String path = String.format("./%05d", i);
+				assertEquals(nodeStarts[i], findPath(channel, path));
+				// Sorted between the node and the next one.
+				assertEquals(nodeStarts[i + 1], findPath(channel, path + "a"));
+			}
+			assertEquals(nodeStarts[0], findPath(channel, "."));
+			// Not found, returns the EOF marker.
+			assertEquals(nodeStarts[count], findPath(channel, "./a"));
+		}
+	}
+
+	private static long findPath(FileChannel file, String path)
+			throws IOException {
+		
+		return CheckpointParser.findPath(file, path.getBytes(UTF_8));
+	}
+
+	/** The parser decodes dates without {@link SimpleDateFormat} so test it
+	 *  against that with random dates in different timezones. */
+	@Test public void testDates() throws IOException, ParseException {
+		long seed = new Random().nextLong();
+		Random r = new Random(seed);
+		String[] timezones = {
+			"UTC", "Europe/Berlin", "America/St_Johns", "Asia/Kathmandu" };
+		
+		for(String timezone : timezones) {
+			SimpleDateFormat f
+				= new SimpleDateFormat(TextFormat.DATE_FORMAT_STRING);
+			f.setTimeZone(TimeZone.getTimeZone(timezone));
+			
+			for(int i = 0; i < 1000; ++i) {
+				// From about the year 1000 to 4800 so some of them will be
+				// before the Gregorian calendar was introduced to also test the
+				// fallback to SimpleDateFormat.
+				// Whole seconds because the format doesn't contain millis.
+				long seconds = -30000000000L
+					+ (long)(r.nextDouble() * 90000000000L);
+				String date = f.format(new Date(1000L * seconds));
+				
+				CheckpointParser p = parserOf(
+					  "./a\0\t(directory)\tModify: " + date + "\n"
+					+ TextFormat.EOFPaths.CheckpointComplete + "\0", 64);
+				
+				// Compare against parse() instead of the original Date because
+				// the format cannot represent historical timezone offsets which
+				// were not whole minutes.
+				assertEquals("Failed for seed: " + seed, f.parse(date),
+					p.next().getTimetamps().getModificationTime());
+			}
+		}
+	}
+
+}
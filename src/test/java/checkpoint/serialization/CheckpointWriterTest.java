@@ -0,0 +1,331 @@
+package checkpoint.serialization;
+
+import static checkpoint.datamodel.implementation.Node.constructNode;
+import static checkpoint.datamodel.implementation.SHA256.sha256fromString;
+import static checkpoint.datamodel.implementation.Timestamps.timestampsFromDates;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.codec.DecoderException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.ITimestamps.TimestampTypes;
+import checkpoint.datamodel.implementation.Checkpoint;
+import checkpoint.datamodel.implementation.Timestamps;
+
+/** Tests {@link CheckpointWriter} and {@link CheckpointReader}. */
+public final class CheckpointWriterTest {
+
+	private static final String someHash
+		= "7dd91e07f0341646d53f6938278a4d3e87961fabea066f7e6f40b7398f3b0b0f";
+
+	private static final Timestamps someTimestamps = timestampsFromDates(
+		new Date(DAYS.toMillis(1)),
+		new Date(DAYS.toMillis(2)),
+		new Date(DAYS.toMillis(3)));
+
+	@Rule
+	public final TemporaryFolder tempDir = new TemporaryFolder();
+
+	@Test public void testRoundTrip() throws IOException, DecoderException {
+		Path dir = tempDir.newFolder().toPath();
+		INode[] nodes = {
+			constructNode(Paths.get("./a"), true, 0, null, someTimestamps),
+			constructNode(Paths.get("./a/b"), false, 1234567,
+				sha256fromString(someHash), someTimestamps),
+			constructNode(Paths.get("./c"), false, 10, null, null),
+			constructNode(Paths.get("./d"), false, 0, null, null)
+		};
+		
+		try(CheckpointWriter w = CheckpointWriter.open(dir)) {
+			for(INode n : nodes)
+				w.addNode(n);
+			w.finish(false);
+		}
+		
+		// Only checkpoint.txt must be there, the temporary file must be gone.
+		assertEquals(1, dir.toFile().list().length);
+		
+		try(CheckpointReader r = CheckpointReader.open(dir)) {
+			for(INode expected : nodes) {
+				INode actual = r.next();
+				assertEquals(expected.getPath(), actual.getPath());
+				assertEquals(expected.isDirectory(), actual.isDirectory());
+				assertEquals(expected.getSize(), actual.getSize());
+				assertEquals(expected.getHash(), actual.getHash());
+				assertEquals(expected.getTimetamps() == null,
+					actual.getTimetamps() == null);
+			}
+			assertNull(r.next());
+			assertFalse(r.isComplete());
+		}
+	}
+
+	/** {@link NodeFormatter} formats dates by a cache and by hand instead of
+	 *  calling {@link SimpleDateFormat} for each, so test it against that with
+	 *  random dates in different timezones. */
+	@Test public void testDates() throws IOException {
+		long seed = new Random().nextLong();
+		Random r = new Random(seed);
+		String[] timezones = {
+			"UTC", "Europe/Berlin", "America/St_Johns", "Asia/Kathmandu" };
+		TimeZone defaultTimeZone = TimeZone.getDefault();
+		
+		try {
+			for(String timezone : timezones) {
+				// The writer uses the default timezone like the parser.
+				TimeZone.setDefault(TimeZone.getTimeZone(timezone));
+				SimpleDateFormat f
+					= new SimpleDateFormat(TextFormat.DATE_FORMAT_STRING);
+				Path dir = tempDir.newFolder().toPath();
+				StringBuilder expected = new StringBuilder();
+				
+				try(CheckpointWriter w = CheckpointWriter.open(dir)) {
+					for(int i = 0; i < 1000; ++i) {
+						// From about the year 1000 to 4800 so some of them
+						// will be before the Gregorian calendar was introduced
+						// to also test the fallback to SimpleDateFormat.
+						// Also dates which are close to each other to test the
+						// cache, and before 1970 to test rounding of negative
+						// milliseconds.
+						Date d = new Date(-30000000000000L
+							+ (long)(r.nextDouble() * 90000000000000L));
+						Date nearby = new Date(d.getTime() + r.nextInt(2000));
+						Date before1970 = new Date(-r.nextInt(1000000));
+						Path p = Paths.get(String.format("./%05d", i));
+						w.addNode(constructNode(p, true, 0, null,
+							timestampsFromDates(d, before1970, nearby)));
+						expected.append(p + "\0\t(directory)\tBirth: -"
+							+ "\tAccess: " + f.format(d)
+							+ "\tModify: " + f.format(nearby)
+							+ "\tChange: " + f.format(before1970) + "\n");
+					}
+					w.finish(true);
+				}
+				expected.append(TextFormat.EOFPaths.CheckpointComplete + "\0");
+				
+				assertEquals("Failed for seed: " + seed, expected.toString(),
+					new String(Files.readAllBytes(
+						dir.resolve(TextFormat.FILENAME)), UTF_8));
+			}
+		} finally {
+			TimeZone.setDefault(defaultTimeZone);
+		}
+	}
+
+	@Test public void testUnsorted() throws IOException {
+		Path dir = tempDir.newFolder().toPath();
+		try(CheckpointWriter w = CheckpointWriter.open(dir)) {
+			w.addNode(constructNode(Paths.get("./b"), true, 0, null, null));
+			try {
+				w.addNode(constructNode(Paths.get("./a"), true, 0, null, null));
+				fail("Unsorted node accepted");
+			} catch(IllegalArgumentException e) {
+				// Success
+			}
+			try {
+				w.addNode(constructNode(Paths.get("./b"), true, 0, null, null));
+				fail("Duplicate node accepted");
+			} catch(IllegalArgumentException e) {
+				// Success
+			}
+		}
+		
+		Files.write(dir.resolve(TextFormat.FILENAME), (
+			  "./b\0\t(directory)\n"
+			+ "./a\0\t(directory)\n"
+			+ TextFormat.EOFPaths.CheckpointComplete + "\0").getBytes(UTF_8));
+		try(CheckpointReader r = CheckpointReader.open(dir)) {
+			r.next();
+			r.next();
+			fail("Unsorted checkpoint accepted");
+		} catch(IOException e) {
+			// Success
+		}
+	}
+
+	/** Tests that {@link CheckpointWriter#addNodes(Iterable, int)} produces the
+	 *  same output as {@link CheckpointWriter#addNode(INode)}, including at
+	 *  the boundaries of its ranges and when mixing both. */
+	@Test public void testAddNodes() throws IOException, DecoderException {
+		ArrayList<INode> nodes = new ArrayList<>();
+		for(int i = 0; i < 3 * CheckpointWriter.NODES_PER_RANGE + 123; ++i) {
+			Path p = Paths.get(String.format("./%06d", i));
+			nodes.add(i % 2 == 0
+				? constructNode(p, true, 0, null, someTimestamps)
+				: constructNode(p, false, 0, sha256fromString(someHash), null));
+		}
+		List<INode> head = nodes.subList(0, 10);
+		List<INode> middle = nodes.subList(10, nodes.size() - 1);
+		INode last = nodes.get(nodes.size() - 1);
+		
+		Path expected = tempDir.newFolder().toPath();
+		try(CheckpointWriter w = CheckpointWriter.open(expected)) {
+			for(INode n : nodes)
+				w.addNode(n);
+			w.finish(true);
+		}
+		
+		Path actual = tempDir.newFolder().toPath();
+		try(CheckpointWriter w = CheckpointWriter.open(actual)) {
+			w.addNodes(head, 3);
+			w.addNodes(middle, 3);
+			w.addNode(last);
+			w.finish(true);
+		}
+		
+		assertArrayEquals(
+			Files.readAllBytes(expected.resolve(TextFormat.FILENAME)),
+			Files.readAllBytes(actual.resolve(TextFormat.FILENAME)));
+		
+		// Unsorted at a boundary of the ranges, before them and after them.
+		for(int index : new int[] { CheckpointWriter.NODES_PER_RANGE, 0, -1 }) {
+			try(CheckpointWriter w = CheckpointWriter.open(actual)) {
+				w.addNode(nodes.get(0));
+				ArrayList<INode> unsorted = new ArrayList<>(nodes.subList(1,
+					nodes.size() - 1));
+				if(index >= 0)
+					unsorted.set(index, nodes.get(0));
+				w.addNodes(unsorted, 3);
+				w.addNode(index >= 0 ? last : nodes.get(1));
+				fail("Unsorted node accepted at: " + index);
+			} catch(IllegalArgumentException e) {
+				// Success
+			}
+		}
+	}
+
+	/** Tests that {@link CheckpointWriter#open(Path, EnumSet, boolean)}
+	 *  produces a valid gzip file of the same content as the uncompressed
+	 *  output, which {@link CheckpointReader} and {@link Checkpoint#load(Path)}
+	 *  read transparently, and that {@link ParallelGzipChannel} produces the
+	 *  same on multiple threads. */
+	@Test public void testCompressed() throws IOException, DecoderException {
+		long seed = new Random().nextLong();
+		Random r = new Random(seed);
+		// Enough for many blocks of ParallelGzipChannel.
+		ArrayList<INode> nodes = new ArrayList<>();
+		for(int i = 0; i < 20000; ++i) {
+			Path p = Paths.get(String.format("./%06d", i));
+			nodes.add(r.nextBoolean()
+				? constructNode(p, true, 0, null, someTimestamps)
+				: constructNode(p, false, r.nextInt(1000),
+					sha256fromString(someHash), null));
+		}
+		
+		Path plain = tempDir.newFolder().toPath();
+		try(CheckpointWriter w = CheckpointWriter.open(plain)) {
+			w.addNodes(nodes);
+			w.finish(true);
+		}
+		byte[] expected
+			= Files.readAllBytes(plain.resolve(TextFormat.FILENAME));
+		
+		Path compressed = tempDir.newFolder().toPath();
+		// Must be deleted to not confuse CheckpointReader.
+		Files.write(compressed.resolve(TextFormat.FILENAME), expected);
+		try(CheckpointWriter w = CheckpointWriter.open(compressed,
+				EnumSet.noneOf(TimestampTypes.class), true)) {
+			w.addNodes(nodes);
+			w.finish(true);
+		}
+		assertArrayEquals(new String[] { TextFormat.COMPRESSED_FILENAME },
+			compressed.toFile().list());
+		Path file = compressed.resolve(TextFormat.COMPRESSED_FILENAME);
+		assertArrayEquals("Failed for seed: " + seed, expected, gunzip(file));
+		assertTrue(Files.size(file) < expected.length / 2);
+		
+		try(CheckpointReader reader = CheckpointReader.open(compressed)) {
+			for(INode n : nodes)
+				assertEquals(n.getPath(), reader.next().getPath());
+			assertNull(reader.next());
+			assertTrue(reader.isComplete());
+		}
+		Checkpoint loaded = Checkpoint.load(compressed);
+		assertEquals(nodes.size(), loaded.getNodeCount());
+		assertTrue(loaded.isComplete());
+		
+		// Write in random pieces to test the splitting into blocks, and with
+		// threads to test the order of the blocks.
+		for(int threads : new int[] { 1, 4 }) {
+			try(FileChannel f = FileChannel.open(file, WRITE,
+					TRUNCATE_EXISTING)) {
+				ParallelGzipChannel c = new ParallelGzipChannel(f,
+					Deflater.BEST_SPEED, threads);
+				for(int i = 0; i < expected.length; ) {
+					int length = Math.min(expected.length - i,
+						r.nextInt(3 * ParallelGzipChannel.BLOCK_SIZE));
+					c.write(ByteBuffer.wrap(expected, i, length));
+					i += length;
+				}
+				c.finish();
+				c.close();
+			}
+			assertArrayEquals("Failed for seed: " + seed, expected,
+				gunzip(file));
+		}
+	}
+
+	private static byte[] gunzip(Path file) throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		try(InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+			byte[] buffer = new byte[64 * 1024];
+			for(int read; (read = in.read(buffer)) != -1; )
+				result.write(buffer, 0, read);
+		}
+		return result.toByteArray();
+	}
+
+	/** Tests that an existing checkpoint is only replaced by
+	 *  {@link CheckpointWriter#finish(boolean)}, which allows filtering a
+	 *  checkpoint in place. */
+	@Test public void testReplaceOnFinish() throws IOException {
+		Path dir = tempDir.newFolder().toPath();
+		Path file = dir.resolve(TextFormat.FILENAME);
+		String old = TextFormat.EOFPaths.CheckpointComplete + "\0";
+		Files.write(file, old.getBytes(UTF_8));
+		
+		try(CheckpointWriter w = CheckpointWriter.open(dir)) {
+			w.addNode(constructNode(Paths.get("./a"), true, 0, null, null));
+			// No finish()
+		}
+		assertEquals(old, new String(Files.readAllBytes(file), UTF_8));
+		assertEquals(1, dir.toFile().list().length);
+		
+		try(CheckpointReader r = CheckpointReader.open(dir);
+		    CheckpointWriter w = CheckpointWriter.open(dir)) {
+			
+			for(INode n; (n = r.next()) != null; )
+				w.addNode(n);
+			w.addNode(constructNode(Paths.get("./a"), true, 0, null, null));
+			w.finish(r.isComplete());
+		}
+		assertEquals("./a\0\t(directory)\t(stat failed!)\n" + old,
+			new String(Files.readAllBytes(file), UTF_8));
+	}
+
+}
@@ -0,0 +1,91 @@
+package checkpoint.serialization;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import checkpoint.datamodel.INode;
+import checkpoint.serialization.ConcurrentCheckpointParser.ChunkHandler;
+
+/** Tests {@link ConcurrentCheckpointParser}. */
+public final class ConcurrentCheckpointParserTest {
+
+	@Rule
+	public final TemporaryFolder tempDir = new TemporaryFolder();
+
+	/** Tests {@link ConcurrentCheckpointParser#stream(ReadableByteChannel,
+	 *  int, ChunkHandler)} with a file and, as if it was compressed, with a
+	 *  channel which cannot be split, of multiple chunks then. */
+	@Test public void testStream() throws IOException {
+		int count = 150 * 1000;
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < count; ++i)
+			sb.append(String.format("./%06d\0\t(directory)\n", i));
+		sb.append(TextFormat.EOFPaths.CheckpointComplete + "\0");
+		byte[] checkpoint = sb.toString().getBytes(UTF_8);
+		
+		assertEquals(count, stream(Channels.newChannel(
+			new ByteArrayInputStream(checkpoint)), true));
+		
+		Path file = tempDir.newFile().toPath();
+		Files.write(file, checkpoint);
+		try(FileChannel channel = FileChannel.open(file, READ)) {
+			assertEquals(count, stream(channel, true));
+		}
+		
+		String incomplete = "./a\0\t(directory)\n./b\0\t(directory)\n"
+			+ TextFormat.EOFPaths.CheckpointIncomplete + "\0";
+		assertEquals(2, stream(Channels.newChannel(new ByteArrayInputStream(
+			incomplete.getBytes(UTF_8))), false));
+	}
+
+	@Test public void testStreamUnsorted() {
+		String checkpoint = "./b\0\t(directory)\n./a\0\t(directory)\n"
+			+ TextFormat.EOFPaths.CheckpointComplete + "\0";
+		try {
+			stream(Channels.newChannel(new ByteArrayInputStream(
+				checkpoint.getBytes(UTF_8))), false);
+			fail("Unsorted checkpoint accepted!");
+		} catch(IOException e) {}
+	}
+
+	/** Streams the channel with 4 threads, checks that the handler receives
+	 *  the nodes in order and returns their amount. */
+	private static int stream(ReadableByteChannel channel,
+			boolean expectComplete) throws IOException {
+		
+		final ArrayList<String> paths = new ArrayList<>();
+		boolean complete = ConcurrentCheckpointParser.stream(channel, 4,
+			new ChunkHandler<List<String>>() {
+				@Override public List<String> process(List<INode> nodes) {
+					ArrayList<String> result = new ArrayList<>();
+					for(INode n : nodes)
+						result.add(n.getPath().toString());
+					return result;
+				}
+				
+				@Override public void consume(List<String> result) {
+					paths.addAll(result);
+				}
+			});
+		assertEquals(expectComplete, complete);
+		for(int i = 1; i < paths.size(); ++i)
+			assertTrue(paths.get(i - 1).compareTo(paths.get(i)) < 0);
+		return paths.size();
+	}
+
+}
@@ -0,0 +1,65 @@
+package checkpoint.serialization;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class ExternalSorterTest {
+
+	@Rule
+	public final TemporaryFolder tempDir = new TemporaryFolder();
+
+	@Test public void testInMemory() throws IOException {
+		testSort(1024 * 1024, 1000);
+	}
+
+	/** Also tests merging the runs early once there are too many of them. */
+	@Test public void testSpilling() throws IOException {
+		testSort(1024, 20000);
+	}
+
+	private void testSort(long memoryBytes, int count) throws IOException {
+		Path dir = tempDir.newFolder().toPath();
+		Random random = new Random(123);
+		ArrayList<byte[]> expected = new ArrayList<>(count);
+		try(ExternalSorter sorter = new ExternalSorter(dir, memoryBytes)) {
+			for(int i = 0; i < count; ++i) {
+				// Short records of few values so there are equal ones and
+				// ones which are a prefix of others.
+				byte[] r = new byte[random.nextInt(4)];
+				for(int j = 0; j < r.length; ++j)
+					r[j] = (byte)(random.nextInt(4) * 85);
+				expected.add(r);
+				sorter.add(r);
+			}
+			assertEquals(count, sorter.size());
+			Collections.sort(expected, ExternalSorter.COMPARATOR);
+			
+			try(ExternalSorter.Reader sorted = sorter.sorted()) {
+				for(byte[] r : expected)
+					assertArrayEquals(r, sorted.next());
+				assertNull(sorted.next());
+			}
+		}
+		// The runs must be deleted.
+		assertEquals(0, dir.toFile().list().length);
+	}
+
+	@Test public void testComparator() {
+		byte[] a = { 1 };
+		byte[] b = { 1, 0 };
+		byte[] c = { (byte)0xFF };
+		assertTrue(ExternalSorter.COMPARATOR.compare(a, b) < 0);
+		assertTrue(ExternalSorter.COMPARATOR.compare(b, c) < 0);
+		assertTrue(ExternalSorter.COMPARATOR.compare(c, c) == 0);
+	}
+
+}
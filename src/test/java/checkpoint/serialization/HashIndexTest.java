@@ -0,0 +1,104 @@
+package checkpoint.serialization;
+
+import static checkpoint.datamodel.implementation.Node.constructNode;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.ISHA256;
+import checkpoint.datamodel.ITimestamps.TimestampTypes;
+import checkpoint.datamodel.implementation.SHA256;
+import checkpoint.serialization.CheckpointWriter.Index;
+
+/** Tests {@link HashIndex} and its creation by {@link CheckpointWriter}. */
+public final class HashIndexTest {
+
+	@Rule
+	public final TemporaryFolder tempDir = new TemporaryFolder();
+
+	@Test public void testLookup() throws IOException {
+		long seed = new Random().nextLong();
+		Random r = new Random(seed);
+		
+		// Few distinct hashes so many files share them, as duplicates do.
+		ISHA256[] hashes = new ISHA256[1000];
+		for(int i = 0; i < hashes.length; ++i) {
+			byte[] hash = new byte[32];
+			r.nextBytes(hash);
+			hashes[i] = SHA256.construct(hash);
+		}
+		
+		ArrayList<INode> nodes = new ArrayList<>();
+		Map<ISHA256, List<Path>> expected = new HashMap<>();
+		for(int i = 0; i < 3 * CheckpointWriter.NODES_PER_RANGE; ++i) {
+			Path p = Paths.get(String.format("./%06d", i));
+			int type = r.nextInt(10);
+			if(type == 0)
+				nodes.add(constructNode(p, true, 0, null, null));
+			else if(type == 1) // Hashing failed
+				nodes.add(constructNode(p, false, 0, null, null));
+			else {
+				ISHA256 hash = hashes[r.nextInt(hashes.length)];
+				nodes.add(constructNode(p, false, 0, hash, null));
+				if(!expected.containsKey(hash))
+					expected.put(hash, new ArrayList<Path>());
+				expected.get(hash).add(p);
+			}
+		}
+		
+		Path dir = tempDir.newFolder().toPath();
+		try(CheckpointWriter w = CheckpointWriter.open(dir,
+				EnumSet.noneOf(TimestampTypes.class), false,
+				EnumSet.of(Index.Hashes))) {
+			// Mix both ways of adding nodes as they compute the offsets
+			// differently.
+			int split = r.nextInt(nodes.size());
+			for(INode n : nodes.subList(0, split))
+				w.addNode(n);
+			w.addNodes(nodes.subList(split, nodes.size()), 3);
+			w.finish(true);
+		}
+		
+		try(HashIndex index = HashIndex.open(dir)) {
+			long files = 0;
+			for(List<Path> paths : expected.values())
+				files += paths.size();
+			assertEquals("Failed for seed: " + seed, files, index.size());
+			
+			for(ISHA256 hash : hashes) {
+				List<Path> actual = new ArrayList<>();
+				for(INode n : index.lookup(hash))
+					actual.add(n.getPath());
+				List<Path> e = expected.get(hash);
+				assertEquals("Failed for seed: " + seed,
+					e != null ? e : new ArrayList<Path>(), actual);
+			}
+			
+			byte[] unknown = new byte[32];
+			r.nextBytes(unknown);
+			assertTrue(index.lookup(SHA256.construct(unknown)).isEmpty());
+		}
+		
+		// An outdated index must be deleted.
+		try(CheckpointWriter w = CheckpointWriter.open(dir)) {
+			w.addNodes(nodes.subList(1, nodes.size()));
+			w.finish(true);
+		}
+		assertFalse(Files.exists(dir.resolve(HashIndex.FILENAME)));
+	}
+
+}
@@ -0,0 +1,133 @@
+package checkpoint.serialization;
+
+import static checkpoint.datamodel.implementation.Node.constructNode;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import checkpoint.datamodel.ICheckpointReader;
+import checkpoint.datamodel.INode;
+import checkpoint.serialization.HistoryStore.Change;
+
+public final class HistoryStoreTest {
+
+	@Rule
+	public final TemporaryFolder tempDir = new TemporaryFolder();
+
+	@Test public void testAddAndOpen() throws IOException {
+		HistoryStore store = HistoryStore.open(tempDir.newFolder().toPath());
+		List<List<String>> snapshots = new ArrayList<>();
+		// Enough unchanged nodes to not exceed the maximal size of deltas.
+		snapshots.add(lines("./a 1", "./b 1", "./c 1", "./d 1", "./e 1",
+			"./g 1", "./h 1", "./i 1"));
+		snapshots.add(lines("./a 2", "./b 1", "./c 1", "./d 1", "./f 1",
+			"./g 1", "./h 1", "./i 1"));
+		snapshots.add(lines("./a 2", "./b 1", "./c 3", "./d 1", "./f 1",
+			"./g 1", "./h 1", "./i 1"));
+		snapshots.add(lines("./a 2", "./b 1", "./c 3", "./d 1",
+			"./g 1", "./h 1", "./i 1"));
+		for(int i = 0; i < snapshots.size(); ++i)
+			store.add(checkpoint(snapshots.get(i)), "label" + i, 3);
+		
+		assertEquals(asList(1, 2, 3, 4), store.getSnapshots());
+		assertTrue(store.isBase(1));
+		assertFalse(store.isBase(2));
+		assertFalse(store.isBase(3));
+		assertTrue(store.isBase(4));
+		for(int i = 0; i < snapshots.size(); ++i)
+			assertEquals(snapshots.get(i), read(store.open(i + 1)));
+		
+		List<Change> history = store.getHistory("./c");
+		assertEquals(2, history.size());
+		assertEquals(1, history.get(0).snapshot);
+		assertNull(history.get(0).previousNode);
+		assertEquals(3, history.get(1).snapshot);
+		assertEquals(1, history.get(1).previousNode.getSize());
+		assertEquals(3, history.get(1).node.getSize());
+		
+		history = store.getHistory("./f");
+		assertEquals(2, history.size());
+		assertEquals(2, history.get(0).snapshot);
+		assertEquals(4, history.get(1).snapshot);
+		assertNull(history.get(1).node);
+		
+		assertEquals(0, store.getHistory("./x").size());
+	}
+
+	/** A delta which would be larger than half of a full checkpoint must be
+	 *  stored as a full one. */
+	@Test public void testRebaseOnLargeDelta() throws IOException {
+		HistoryStore store = HistoryStore.open(tempDir.newFolder().toPath());
+		store.add(checkpoint(lines("./a 1", "./b 1", "./c 1")), "x", 90);
+		store.add(checkpoint(lines("./a 2", "./b 2", "./c 1")), "y", 90);
+		assertTrue(store.isBase(2));
+		assertEquals("y", store.getLabel(2));
+	}
+
+	/** Only adding may create the store, a mistyped store dir must not be
+	 *  created by reading it. */
+	@Test public void testOpenMissing() throws IOException {
+		Path dir = tempDir.getRoot().toPath().resolve("store");
+		try {
+			HistoryStore.open(dir);
+			fail();
+		} catch(NoSuchFileException e) {
+			assertEquals(dir.toString(), e.getFile());
+		}
+		assertFalse(Files.exists(dir));
+		
+		HistoryStore.create(dir).add(checkpoint(lines("./a 1")), "x", 3);
+		assertEquals(asList(1), HistoryStore.open(dir).getSnapshots());
+	}
+
+	/** "PATH SIZE" lines, to keep the tests short. */
+	private static List<String> lines(String... lines) {
+		ArrayList<String> result = new ArrayList<>();
+		for(String l : lines)
+			result.add(l);
+		return result;
+	}
+
+	private static List<Integer> asList(Integer... ints) {
+		ArrayList<Integer> result = new ArrayList<>();
+		for(Integer i : ints)
+			result.add(i);
+		return result;
+	}
+
+	private Path checkpoint(List<String> lines) throws IOException {
+		Path dir = tempDir.newFolder().toPath();
+		try(CheckpointWriter w = CheckpointWriter.open(dir)) {
+			for(String l : lines) {
+				String[] s = l.split(" ");
+				w.addNode(constructNode(Paths.get(s[0]), false,
+					Long.parseLong(s[1]), null, null));
+			}
+			w.finish(true);
+		}
+		return dir;
+	}
+
+	private static List<String> read(ICheckpointReader r) throws IOException {
+		ArrayList<String> result = new ArrayList<>();
+		try {
+			for(INode n; (n = r.next()) != null; )
+				result.add(n.getPath() + " " + n.getSize());
+			assertTrue(r.isComplete());
+		} finally {
+			r.close();
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,130 @@
+package checkpoint.serialization;
+
+import static checkpoint.datamodel.implementation.Node.constructNode;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.ITimestamps.TimestampTypes;
+import checkpoint.serialization.CheckpointWriter.Index;
+
+/** Tests {@link PathIndex} and its creation by {@link CheckpointWriter}. */
+public final class PathIndexTest {
+
+	@Rule
+	public final TemporaryFolder tempDir = new TemporaryFolder();
+
+	/** Returns a sorted tree of random dirs and files. */
+	private static ArrayList<INode> randomNodes(Random r) {
+		ArrayList<INode> result = new ArrayList<>();
+		for(int dir = 0; dir < 20; ++dir) {
+			Path d = Paths.get(String.format("./dir%02d", dir));
+			result.add(constructNode(d, true, 0, null, null));
+			int files = r.nextInt(2 * PathIndex.DEFAULT_INTERVAL);
+			for(int file = 0; file < files; ++file) {
+				result.add(constructNode(
+					d.resolve(String.format("file%05d", file)),
+					false, r.nextInt(1000), null, null));
+			}
+		}
+		return result;
+	}
+
+	@Test public void testLookup() throws IOException {
+		long seed = new Random().nextLong();
+		Random r = new Random(seed);
+		ArrayList<INode> nodes = randomNodes(r);
+		
+		Path dir = tempDir.newFolder().toPath();
+		try(CheckpointWriter w = CheckpointWriter.open(dir,
+				EnumSet.noneOf(TimestampTypes.class), false,
+				EnumSet.of(Index.Paths))) {
+			// Mix both ways of adding nodes as they compute the offsets
+			// differently.
+			int split = r.nextInt(nodes.size());
+			for(INode n : nodes.subList(0, split))
+				w.addNode(n);
+			w.addNodes(nodes.subList(split, nodes.size()), 3);
+			w.finish(true);
+		}
+		
+		try(PathIndex index = PathIndex.open(dir)) {
+			assertEquals("Failed for seed: " + seed,
+				(nodes.size() + PathIndex.DEFAULT_INTERVAL - 1)
+					/ PathIndex.DEFAULT_INTERVAL,
+				index.size());
+			
+			for(INode expected : nodes) {
+				String p = expected.getPath().toString();
+				INode actual = index.lookup(p);
+				assertNotNull("Failed for seed: " + seed + "; " + p, actual);
+				assertEquals(expected.getPath(), actual.getPath());
+				assertEquals(expected.isDirectory(), actual.isDirectory());
+			}
+			assertNull(index.lookup("./"));
+			assertNull(index.lookup("./dir05/file"));
+			assertNull(index.lookup("./dir99"));
+			
+			for(String prefix : new String[] {
+					"./", "./dir0", "./dir05", "./dir05/", "./dir19/file000",
+					"./dir20", "./a", "./z" }) {
+				
+				List<String> expected = new ArrayList<>();
+				for(INode n : nodes) {
+					if(n.getPath().toString().startsWith(prefix))
+						expected.add(n.getPath().toString());
+				}
+				List<String> actual = new ArrayList<>();
+				for(INode n : index.lookupPrefix(prefix))
+					actual.add(n.getPath().toString());
+				assertEquals("Failed for seed: " + seed + "; " + prefix,
+					expected, actual);
+			}
+		}
+	}
+
+	/** Tests that an index is deleted if a checkpoint is written without one,
+	 *  and that a modified checkpoint is detected. */
+	@Test public void testOutdated() throws IOException {
+		ArrayList<INode> nodes = randomNodes(new Random());
+		Path dir = tempDir.newFolder().toPath();
+		try(CheckpointWriter w = CheckpointWriter.open(dir,
+				EnumSet.noneOf(TimestampTypes.class), false,
+				EnumSet.of(Index.Paths))) {
+			w.addNodes(nodes);
+			w.finish(true);
+		}
+		assertTrue(Files.exists(dir.resolve(PathIndex.FILENAME)));
+		
+		// Same size but different content.
+		Path file = dir.resolve(TextFormat.FILENAME);
+		String content = new String(Files.readAllBytes(file), UTF_8);
+		Files.write(file, content.replace("./dir", "./Dir").getBytes(UTF_8));
+		try(PathIndex index = PathIndex.open(dir)) {
+			index.lookup(nodes.get(nodes.size() - 1).getPath().toString());
+			fail("Outdated index not detected!");
+		} catch(IOException e) {
+			// Success
+		}
+		
+		try(CheckpointWriter w = CheckpointWriter.open(dir)) {
+			w.addNodes(nodes.subList(1, nodes.size()));
+			w.finish(true);
+		}
+		assertFalse(Files.exists(dir.resolve(PathIndex.FILENAME)));
+	}
+
+}
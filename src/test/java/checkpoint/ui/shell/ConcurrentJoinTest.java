@@ -0,0 +1,156 @@
+package checkpoint.ui.shell;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.ISHA256;
+import checkpoint.datamodel.implementation.Node;
+import checkpoint.datamodel.implementation.SHA256;
+import checkpoint.ui.shell.ConcurrentJoin.Counts;
+import checkpoint.ui.shell.ConcurrentJoin.Range;
+
+public final class ConcurrentJoinTest {
+
+	static final String CONTENT = "content";
+
+	/** The nodes inside of directories with equal hashes must be skipped,
+	 *  including when other nodes are sorted between the directory and
+	 *  them. */
+	@Test public void testSkipEqualDirectories() throws IOException {
+		List<INode> oldNodes = asList(
+			dir(".", null),
+			dir("./a", "1"),
+			file("./a.b", "2"),
+			file("./a/x", "3"),
+			file("./a/y", "4"),
+			dir("./c", "5"),
+			file("./c/z", "6"));
+		// "./a/x" differs but is not compared as "./a" is equal.
+		List<INode> newNodes = asList(
+			dir(".", null),
+			dir("./a", "1"),
+			file("./a.b", "2"),
+			file("./a/x", "7"),
+			file("./a/y", "4"),
+			dir("./c", "8"),
+			file("./c/z", "9"));
+		
+		ListSource oldSource = new ListSource(oldNodes);
+		ListSource newSource = new ListSource(newNodes);
+		Counts[] counts = new Counts[1];
+		String output = join(asList(new Range(oldSource, newSource)), null,
+			counts);
+		
+		assertEquals("./c/z\0\t" + CONTENT + "\n", output);
+		assertEquals(1, counts[0].differing);
+		assertEquals(6, counts[0].equal);
+		assertEquals(asList(Paths.get("./a")), oldSource.skipped);
+		assertEquals(asList(Paths.get("./a")), newSource.skipped);
+	}
+
+	/** Joins the ranges with a {@link HashComparator}, and runs the given
+	 *  {@link MoveDetector} afterwards like "compare --moves" if it is not
+	 *  null. Returns what was printed to stdout. Stores the {@link Counts} at
+	 *  index 0 of the given array. */
+	static String join(List<Range> ranges, MoveDetector moves,
+			Counts[] counts) throws IOException {
+		
+		List<String> changeTypes = moves == null
+			? Collections.singletonList(CONTENT)
+			: asList(CONTENT, MoveDetector.MOVED);
+		PrintStream stdout = System.out;
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(output, true));
+		try {
+			counts[0] = ConcurrentJoin.run(ranges, new HashComparator(),
+				changeTypes, moves);
+			if(moves != null)
+				moves.run(counts[0]);
+		} finally {
+			System.setOut(stdout);
+		}
+		return new String(output.toByteArray(), UTF_8);
+	}
+
+	static INode dir(String path, String hash) {
+		return Node.constructNode(Paths.get(path), true, 0, hash(hash), null);
+	}
+
+	static INode file(String path, long size, String hash) {
+		return Node.constructNode(Paths.get(path), false, size, hash(hash),
+			null);
+	}
+
+	static INode file(String path, String hash) {
+		return file(path, 1, hash);
+	}
+
+	/** Returns a hash whose bytes are all the given character, null for
+	 *  null. */
+	private static ISHA256 hash(String c) {
+		if(c == null)
+			return null;
+		
+		byte[] hash = new byte[32];
+		Arrays.fill(hash, (byte)c.charAt(0));
+		return SHA256.construct(hash);
+	}
+
+	/** Compares the hashes of files, and considers directories with equal
+	 *  hashes to be equal. */
+	private static final class HashComparator
+			implements ConcurrentJoin.NodeComparator {
+		
+		@Override public void compare(INode o, INode n, List<String> changes) {
+			if(!o.isDirectory() && !o.getHash().equals(n.getHash()))
+				changes.add(CONTENT);
+		}
+		
+		@Override public boolean isSubtreeEqual(INode o, INode n) {
+			return o.getHash() != null && o.getHash().equals(n.getHash());
+		}
+	}
+
+	static final class ListSource implements ConcurrentJoin.NodeSource {
+
+		private final List<INode> nodes;
+		
+		private int index = 0;
+		
+		/** The directories passed to {@link #skipSubtree(Path)}. */
+		final ArrayList<Path> skipped = new ArrayList<>();
+		
+		ListSource(List<INode> nodes) {
+			this.nodes = nodes;
+		}
+		
+		@Override public INode next() {
+			return index < nodes.size() ? nodes.get(index++) : null;
+		}
+		
+		@Override public long skipSubtree(Path directory) {
+			skipped.add(directory);
+			String prefix = directory.toString() + "/";
+			int start = index;
+			while(index < nodes.size()
+					&& nodes.get(index).getPath().toString().startsWith(prefix))
+				++index;
+			return index - start;
+		}
+	}
+
+}
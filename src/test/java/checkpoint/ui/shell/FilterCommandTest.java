@@ -0,0 +1,138 @@
+package checkpoint.ui.shell;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.write;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import checkpoint.datamodel.INode;
+import checkpoint.generation.ConcurrentCheckpointGenerator;
+import checkpoint.serialization.CheckpointReader;
+import checkpoint.serialization.CheckpointWriter.Index;
+
+public final class FilterCommandTest {
+
+	@Rule
+	public final TemporaryFolder tempDir = new TemporaryFolder();
+
+	@Test public void testSplitOutputs() {
+		List<String> args = asList("--threads", "2", "IN");
+		assertEquals(asList(args), FilterCommand.splitOutputs(args));
+		
+		args = asList("IN", "--remove-directory-hashes",
+			"--output", "A",
+			"--output", "B", "--remove-timestamps", "a",
+			// The value of an --output is not split at.
+			"--output", "--output", "--include-regex", "x");
+		assertEquals(asList(
+				asList("IN", "--remove-directory-hashes", "--output", "A"),
+				asList("IN", "--remove-directory-hashes", "--output", "B",
+					"--remove-timestamps", "a"),
+				asList("IN", "--remove-directory-hashes", "--output",
+					"--output", "--include-regex", "x")),
+			FilterCommand.splitOutputs(args));
+	}
+
+	/** The options before the first --output apply to all outputs, the ones
+	 *  after an --output only to that output. */
+	@Test public void testRunWithOutputs()
+			throws IOException, InterruptedException {
+		
+		Path input = createCheckpoint();
+		Path full = tempDir.getRoot().toPath().resolve("full");
+		Path noAtime = tempDir.getRoot().toPath().resolve("noAtime");
+		Path dir = tempDir.getRoot().toPath().resolve("dir");
+		assertEquals(0, new FilterCommand().run(asList(
+			input.toString(), "--remove-directory-hashes",
+			"--output", full.toString(),
+			"--output", noAtime.toString(), "--remove-timestamps", "a",
+			"--output", dir.toString(), "--include-regex", "^\\./dir")));
+		
+		List<INode> nodes = read(full);
+		assertEquals(asList(".", "./b", "./dir", "./dir/a"), paths(nodes));
+		for(INode n : nodes) {
+			assertEquals(n.isDirectory(), n.getHash() == null);
+			assertNotNull(n.getTimetamps().getAccessTime());
+		}
+		
+		nodes = read(noAtime);
+		assertEquals(asList(".", "./b", "./dir", "./dir/a"), paths(nodes));
+		for(INode n : nodes) {
+			assertEquals(n.isDirectory(), n.getHash() == null);
+			assertNull(n.getTimetamps().getAccessTime());
+		}
+		
+		nodes = read(dir);
+		assertEquals(asList("./dir", "./dir/a"), paths(nodes));
+		assertNotNull(nodes.get(1).getTimetamps().getAccessTime());
+	}
+
+	/** Positional arguments after an --output would only apply to that
+	 *  output, the error must say so instead of complaining about the missing
+	 *  input dir of the other outputs. */
+	@Test public void testRunWithArgumentAfterOutput()
+			throws IOException, InterruptedException {
+		
+		Path input = createCheckpoint();
+		Path a = tempDir.getRoot().toPath().resolve("a");
+		Path b = tempDir.getRoot().toPath().resolve("b");
+		PrintStream stderr = System.err;
+		ByteArrayOutputStream errors = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(errors, true));
+		try {
+			assertEquals(1, new FilterCommand().run(asList(
+				"--output", a.toString(), input.toString(),
+				"--output", b.toString())));
+		} finally {
+			System.setErr(stderr);
+		}
+		assertTrue(new String(errors.toByteArray(), UTF_8).startsWith(
+			"Only options may follow --output, found: [" + input + "]."));
+		assertFalse(Files.exists(a));
+		assertFalse(Files.exists(b));
+	}
+
+	/** Returns the dir of a checkpoint of "./b" and "./dir/a" with directory
+	 *  hashes. */
+	private Path createCheckpoint() throws IOException, InterruptedException {
+		Path input = tempDir.newFolder().toPath();
+		Path checkpoint = tempDir.newFolder().toPath();
+		Files.createDirectory(input.resolve("dir"));
+		write(input.resolve("dir/a"), "a".getBytes(UTF_8));
+		write(input.resolve("b"), "b".getBytes(UTF_8));
+		new ConcurrentCheckpointGenerator(input, checkpoint, false, 1, 4096,
+			null, true, false, EnumSet.noneOf(Index.class)).run();
+		return checkpoint;
+	}
+
+	private static List<INode> read(Path checkpoint) throws IOException {
+		ArrayList<INode> result = new ArrayList<>();
+		try(CheckpointReader reader = CheckpointReader.open(checkpoint)) {
+			for(INode n; (n = reader.next()) != null; )
+				result.add(n);
+			assertTrue(reader.isComplete());
+		}
+		return result;
+	}
+
+	private static List<String> paths(List<INode> nodes) {
+		ArrayList<String> result = new ArrayList<>(nodes.size());
+		for(INode n : nodes)
+			result.add(n.getPath().toString());
+		return result;
+	}
+
+}
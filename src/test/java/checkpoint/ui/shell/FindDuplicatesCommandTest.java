@@ -0,0 +1,95 @@
+package checkpoint.ui.shell;
+
+import static checkpoint.ui.shell.ConcurrentJoinTest.file;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.implementation.Node;
+import checkpoint.datamodel.implementation.SHA256;
+import checkpoint.serialization.CheckpointWriter;
+
+public final class FindDuplicatesCommandTest {
+
+	@Rule
+	public final TemporaryFolder tempDir = new TemporaryFolder();
+
+	@Test public void testFindDuplicates()
+			throws IOException, NoSuchAlgorithmException {
+		
+		SHA256 empty = SHA256.construct(
+			MessageDigest.getInstance("SHA-256").digest());
+		Path first = createCheckpoint(asList(
+			file("./a1", 3, "a"),
+			file("./a2", 3, "a"),
+			file("./b1", 100, "b"),
+			// Empty, which is ignored, as opposed to an unknown size.
+			Node.constructNode(Paths.get("./empty"), false, 0, empty, null),
+			file("./single", 5, "s"),
+			// Of unknown size, as in checkpoints of old versions.
+			file("./u1", 0, "u")));
+		Path second = createCheckpoint(asList(
+			// Grouped with the ones of known size by its hash.
+			file("./a3", 0, "a"),
+			file("./b2", 100, "b"),
+			Node.constructNode(Paths.get("./empty"), false, 0, empty, null),
+			file("./u2", 0, "u")));
+		
+		PrintStream stdout = System.out;
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(output, true));
+		try {
+			FindDuplicatesCommand.findDuplicates(asList(first, second),
+				tempDir.getRoot().toPath(), 1024 * 1024, 1);
+		} finally {
+			System.setOut(stdout);
+		}
+		
+		// Ranked by the wasted bytes, groups of unknown size last. The
+		// files of a group are sorted by their size first, so unknown ones
+		// come first.
+		assertEquals(
+			  hash("b") + "\tSize: 100\tCopies: 2\tWasted: 100\n"
+			+ "\t" + first + "\0\t./b1\0\n"
+			+ "\t" + second + "\0\t./b2\0\n"
+			+ hash("a") + "\tSize: 3\tCopies: 3\tWasted: 6\n"
+			+ "\t" + second + "\0\t./a3\0\n"
+			+ "\t" + first + "\0\t./a1\0\n"
+			+ "\t" + first + "\0\t./a2\0\n"
+			+ hash("u") + "\tSize: unknown\tCopies: 2\tWasted: unknown\n"
+			+ "\t" + first + "\0\t./u1\0\n"
+			+ "\t" + second + "\0\t./u2\0\n",
+			new String(output.toByteArray(), UTF_8));
+	}
+
+	private Path createCheckpoint(List<INode> nodes) throws IOException {
+		Path checkpoint = tempDir.newFolder().toPath();
+		try(CheckpointWriter writer = CheckpointWriter.open(checkpoint)) {
+			for(INode n : nodes)
+				writer.addNode(n);
+			writer.finish(true);
+		}
+		return checkpoint;
+	}
+
+	/** The hex of {@link ConcurrentJoinTest#file(String, long, String)}'s
+	 *  hash of the given character. */
+	private static String hash(String c) {
+		return file("./x", c).getHash().toString();
+	}
+
+}
@@ -0,0 +1,68 @@
+package checkpoint.ui.shell;
+
+import static checkpoint.ui.shell.ConcurrentJoinTest.dir;
+import static checkpoint.ui.shell.ConcurrentJoinTest.file;
+import static checkpoint.ui.shell.ConcurrentJoinTest.join;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import checkpoint.datamodel.INode;
+import checkpoint.ui.shell.ConcurrentJoin.Counts;
+import checkpoint.ui.shell.ConcurrentJoin.Range;
+import checkpoint.ui.shell.ConcurrentJoinTest.ListSource;
+
+public final class MoveDetectorTest {
+
+	@Test public void testRun() throws IOException {
+		List<INode> oldNodes = asList(
+			dir(".", null),
+			file("./copy1", 2, "c"),
+			file("./copy2", 2, "c"),
+			file("./keep", 1, "k"),
+			file("./moved", 10, "m"),
+			file("./removed", 1, "r"),
+			// Of a checkpoint of an old version, i.e. the size is unknown.
+			file("./unknown", 0, "u"),
+			file("./x", 3, "x"));
+		List<INode> newNodes = asList(
+			dir(".", null),
+			file("./added", 1, "a"),
+			file("./copy3", 2, "c"),
+			file("./keep", 1, "k"),
+			file("./moved2", 10, "m"),
+			dir("./newdir", "d"),
+			file("./unknown2", 7, "u"),
+			// Same hash as ./x but a different size, so not the same file.
+			file("./y", 4, "x"));
+		
+		Counts[] counts = new Counts[1];
+		String output;
+		try(MoveDetector moves = new MoveDetector(null, 1024 * 1024)) {
+			output = join(asList(new Range(new ListSource(oldNodes),
+				new ListSource(newNodes))), moves, counts);
+		}
+		
+		// The lines of the join come first. Directories are not taken by
+		// the MoveDetector.
+		assertEquals(
+			  "./newdir\0\tadded\n"
+			+ "./added\0\tadded\n"
+			// Copies are paired in the order of their paths.
+			+ "./copy2\0\tremoved\n"
+			+ "./copy3\0\tmoved\t./copy1\0\n"
+			+ "./moved2\0\tmoved\t./moved\0\n"
+			+ "./removed\0\tremoved\n"
+			+ "./unknown2\0\tmoved\t./unknown\0\n"
+			+ "./x\0\tremoved\n"
+			+ "./y\0\tadded\n",
+			output);
+		assertEquals(2, counts[0].equal);
+		assertEquals(9, counts[0].differing);
+	}
+
+}
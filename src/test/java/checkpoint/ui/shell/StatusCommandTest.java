@@ -0,0 +1,170 @@
+package checkpoint.ui.shell;
+
+import static checkpoint.ui.shell.ConcurrentJoinTest.dir;
+import static checkpoint.ui.shell.ConcurrentJoinTest.file;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.write;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import checkpoint.datamodel.INode;
+import checkpoint.datamodel.ITimestamps.TimestampTypes;
+import checkpoint.datamodel.implementation.Node;
+import checkpoint.datamodel.implementation.PathPatterns;
+import checkpoint.generation.ConcurrentCheckpointGenerator;
+import checkpoint.serialization.CheckpointReader;
+import checkpoint.serialization.CheckpointWriter;
+import checkpoint.serialization.CheckpointWriter.Index;
+import checkpoint.ui.shell.ConcurrentJoinTest.ListSource;
+
+public final class StatusCommandTest {
+
+	@Rule
+	public final TemporaryFolder tempDir = new TemporaryFolder();
+
+	@Test public void testStatus() throws IOException, InterruptedException {
+		Path input = tempDir.newFolder().toPath();
+		Files.createDirectories(input.resolve("cache"));
+		Files.createDirectories(input.resolve("d"));
+		Files.createDirectories(input.resolve("e"));
+		Files.createDirectories(input.resolve("z"));
+		write(input.resolve("cache/x"), "x".getBytes(UTF_8));
+		write(input.resolve("d/a"), "a".getBytes(UTF_8));
+		write(input.resolve("d/b"), "b".getBytes(UTF_8));
+		write(input.resolve("e/c"), "c".getBytes(UTF_8));
+		Path mtime = write(input.resolve("mtime"), "m".getBytes(UTF_8));
+		write(input.resolve("removed"), "r".getBytes(UTF_8));
+		Path size = write(input.resolve("size"), "s".getBytes(UTF_8));
+		write(input.resolve("type"), "t".getBytes(UTF_8));
+		write(input.resolve("unknown"), "u".getBytes(UTF_8));
+		Path checkpoint = createCheckpoint(input);
+		
+		FileTime time = Files.getLastModifiedTime(mtime);
+		Files.setLastModifiedTime(mtime,
+			FileTime.fromMillis(time.toMillis() + 60 * 1000));
+		Files.delete(input.resolve("removed"));
+		time = Files.getLastModifiedTime(size);
+		write(size, "ss".getBytes(UTF_8));
+		Files.setLastModifiedTime(size, time);
+		Files.delete(input.resolve("type"));
+		Files.createDirectory(input.resolve("type"));
+		write(input.resolve("z/added"), "z".getBytes(UTF_8));
+		// The contents of the cache are excluded, so neither the removed
+		// file which is only in the checkpoint nor the added one are
+		// reported.
+		Files.delete(input.resolve("cache/x"));
+		write(input.resolve("cache/y"), "y".getBytes(UTF_8));
+		
+		// "./unknown" is not reported although its size differs, as it is
+		// unknown in the checkpoint.
+		String expected =
+			  "./mtime\0\tmtime\n"
+			+ "./removed\0\tremoved\n"
+			+ "./size\0\tsize\n"
+			+ "./type\0\ttype\n"
+			+ "./z/added\0\tadded\n";
+		PathPatterns excludes = new PathPatterns(asList("./cache/"));
+		// 13 nodes are walked, so the first uses a single range, the
+		// second 3.
+		assertEquals(expected, status(checkpoint, input, excludes, 1024));
+		assertEquals(expected, status(checkpoint, input, excludes, 2));
+	}
+
+	@Test public void testWalkedNodesSkipSubtree() {
+		StatusCommand.WalkedNodes nodes = new StatusCommand.WalkedNodes(
+			asList(dir("./a", null), file("./a/x", null),
+				file("./a/y", null), file("./b", null)));
+		assertEquals(Paths.get("./a"), nodes.next().getPath());
+		assertEquals(2, nodes.skipSubtree(Paths.get("./a")));
+		assertEquals(Paths.get("./b"), nodes.next().getPath());
+		assertEquals(0, nodes.skipSubtree(Paths.get("./b")));
+		assertNull(nodes.next());
+	}
+
+	/** Nodes of the checkpoint must be excluded by the same rules as the
+	 *  ones of the walk. */
+	@Test public void testExcludingSource() throws IOException {
+		ListSource source = new ListSource(asList(
+			dir(".", null),
+			dir("./c", null),
+			file("./c/x", null),
+			file("./c/y", null),
+			file("./f", null),
+			dir("./g", null),
+			file("./g/z", null),
+			file("./h", null)));
+		StatusCommand.ExcludingSource excluding
+			= new StatusCommand.ExcludingSource(source,
+				new PathPatterns(asList("./c/", "./f", "./g")));
+		ArrayList<String> paths = new ArrayList<>();
+		for(INode n; (n = excluding.next()) != null; )
+			paths.add(n.getPath().toString());
+		assertEquals(asList(".", "./c", "./h"), paths);
+		assertEquals(asList(Paths.get("./c"), Paths.get("./g")),
+			source.skipped);
+	}
+
+	/** Returns a checkpoint of the input dir in which the size of "./unknown"
+	 *  is 0, i.e. unknown as in checkpoints of old versions, and without
+	 *  ctimes as the tests cannot control them. */
+	private Path createCheckpoint(Path input)
+			throws IOException, InterruptedException {
+		
+		Path generated = tempDir.newFolder().toPath();
+		Path checkpoint = tempDir.newFolder().toPath();
+		new ConcurrentCheckpointGenerator(input, generated, false, 1, 4096,
+			null, true, false, EnumSet.noneOf(Index.class)).run();
+		try(CheckpointReader reader = CheckpointReader.open(generated);
+			CheckpointWriter writer = CheckpointWriter.open(checkpoint,
+				EnumSet.of(TimestampTypes.StatusChangeTime))) {
+			
+			for(INode n; (n = reader.next()) != null; ) {
+				if(n.getPath().equals(Paths.get("./unknown"))) {
+					n = Node.constructNode(n.getPath(), false, 0, n.getHash(),
+						n.getTimetamps());
+				}
+				writer.addNode(n);
+			}
+			writer.finish(reader.isComplete());
+		}
+		return checkpoint;
+	}
+
+	/** Returns what {@link StatusCommand#status(java.nio.channels.
+	 *  ReadableByteChannel, Path, int, PathPatterns, int)} printed to
+	 *  stdout. */
+	private static String status(Path checkpoint, Path input,
+			PathPatterns excludes, int minNodesPerRange)
+			throws IOException, InterruptedException {
+		
+		PrintStream stdout = System.out;
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(output, true));
+		try(FileChannel channel = FileChannel.open(
+				CheckpointReader.getCheckpointFile(checkpoint), READ)) {
+			
+			assertFalse(StatusCommand.status(channel, input, 3, excludes,
+				minNodesPerRange));
+		} finally {
+			System.setOut(stdout);
+		}
+		return new String(output.toByteArray(), UTF_8);
+	}
+
+}